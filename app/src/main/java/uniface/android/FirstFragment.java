@@ -19,6 +19,7 @@ import java.io.IOException;
 import uniface.UniFaceFeature;
 import uniface.android.camera.UniCamera2GrabberConfiguration;
 import uniface.android.databinding.FragmentFirstBinding;
+import uniface.android.image.UniFlatGeometryGraph;
 import uniface.android.license.License;
 import uniface.android.util.AndroidUtil;
 import uniimage.UniRGBImage;
@@ -82,26 +83,31 @@ public class FirstFragment extends ShowCamera2FaceDemoFragment {
     private Handler mainThreadHandler;
     private long lastShowFaceTime;
     @Override
-    protected void onGrabbedFaces(UniRGBImage grabbedImage, UniFaceFeature[] grabbedImageFeatures) {
+    protected void onGrabbedFaces(UniRGBImage grabbedImage, UniFlatGeometryGraph grabbedGraph, UniFaceFeature[] grabbedImageFeatures) {
         if (System.currentTimeMillis() - this.lastShowFaceTime > 500) {
 //            this.saveImage(grabbedImage, "grabbed.jpg");
             this.lastShowFaceTime = System.currentTimeMillis();
             final ImageView fiv = this.binding.featureImage;
             final ImageView fcv = this.binding.featureCutImage;
             final ImageView ccv = this.binding.cameraCutImage;
+            // grabbedImage是逐帧复用的帧图，必须在当前线程中完成裁剪，只把裁剪结果交给主线程显示
+            final Bitmap featureBitmap = AndroidUtil.toBitmap(grabbedImageFeatures[0].getFaceImage());
+            UniRGBImage img = UniImageUtil.cutImage(grabbedImage, grabbedImageFeatures[0].getRectangle());
+            final Bitmap featureCutBitmap = AndroidUtil.toBitmap(img);
+            Bitmap cameraCutBitmap = null;
+            UniFaceFeature[] features = super.parseFaceFeaturesFromGeometryGraph(grabbedGraph);
+            if (features != null && features.length > 0) {
+                img = UniImageUtil.cutImage(grabbedImage, features[0].getRectangle());
+                cameraCutBitmap = AndroidUtil.toBitmap(img);
+            }
+            final Bitmap ccb = cameraCutBitmap;
             this.mainThreadHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    Bitmap bitmap = AndroidUtil.toBitmap(grabbedImageFeatures[0].getFaceImage());
-                    fiv.setImageBitmap(bitmap);
-                    UniRGBImage img = UniImageUtil.cutImage(grabbedImage, grabbedImageFeatures[0].getRectangle());
-                    bitmap = AndroidUtil.toBitmap(img);
-                    fcv.setImageBitmap(bitmap);
-                    UniFaceFeature[] features = FirstFragment.super.parseFaceFeaturesFromGeometryGraph(grabbedImage.getInsideGeometryGraph());
-                    if (features != null && features.length > 0) {
-                        img = UniImageUtil.cutImage(grabbedImage, features[0].getRectangle());
-                        bitmap = AndroidUtil.toBitmap(img);
-                        ccv.setImageBitmap(bitmap);
+                    fiv.setImageBitmap(featureBitmap);
+                    fcv.setImageBitmap(featureCutBitmap);
+                    if (ccb != null) {
+                        ccv.setImageBitmap(ccb);
                     }
                 }
             });
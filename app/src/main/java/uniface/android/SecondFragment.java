@@ -16,7 +16,10 @@ import androidx.navigation.fragment.NavHostFragment;
 import uniface.UniFaceFeature;
 import uniface.android.camera.UniCamera2GrabberConfiguration;
 import uniface.android.databinding.FragmentSecondBinding;
+import uniface.android.image.UniFlatGeometryGraph;
 import uniface.android.license.License;
+import uniface.android.metrics.UniPipelineMetrics;
+import uniface.android.pipeline.UniFaceTracker;
 import uniface.android.util.AndroidUtil;
 import uniface.tf2lite.util.TFLieFaceApi;
 import uniimage.UniRGBImage;
@@ -48,6 +51,10 @@ public class SecondFragment extends ShowCamera2FaceDemoFragment {
         // 人脸位置绘制视图设置透明和置顶
         this.binding.drawFacesView.setZOrderOnTop(true);
         this.binding.drawFacesView.getHolder().setFormat(PixelFormat.TRANSPARENT);
+        // 格式转换、人脸分析、绘图分别在独立线程中流水线执行
+        super.pipelineMode = true;
+        // 每10帧做一次完整的人脸分析，其余帧跟踪摄像头检测的人脸，交并比不小于0.4视为同一人脸，连续3帧跟丢的人脸放弃跟踪
+        super.faceTracker = new UniFaceTracker(10, 0.4f, 3);
         // 开始抓帧并预览
         super.startGrabber(0, 1280, 960, this.binding.previewView, this.binding.drawFacesView);
 
@@ -69,7 +76,7 @@ public class SecondFragment extends ShowCamera2FaceDemoFragment {
     private UniFaceFeature firstFace;
     private long lastShowFaceTime;
     @Override
-    protected void onGrabbedFaces(UniRGBImage grabbedImage, UniFaceFeature[] grabbedImageFeatures) {
+    protected void onGrabbedFaces(UniRGBImage grabbedImage, UniFlatGeometryGraph grabbedGraph, UniFaceFeature[] grabbedImageFeatures) {
         if (this.firstFace == null) {
             this.firstFace = grabbedImageFeatures[0];
             final ImageView iv = this.binding.firstFace;
@@ -88,7 +95,9 @@ public class SecondFragment extends ShowCamera2FaceDemoFragment {
             final UniFaceFeature[] currentFace = new UniFaceFeature[1];
             for (UniFaceFeature feature : grabbedImageFeatures) {
                 if (feature != this.firstFace) {
+                    long time = System.nanoTime();
                     Float similarity = TFLieFaceApi.compare(feature, this.firstFace);
+                    super.metrics.recordSince(UniPipelineMetrics.Compare, time);
                     // 与第一个人脸比对，相似度大于0.7的判定为同一个人
                     if (similarity > 0.7f) {
                         foundFace[0] = feature;
@@ -1,17 +1,16 @@
 package uniface.android;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
-import android.graphics.RectF;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.hardware.camera2.CaptureRequest;
+import android.os.Build;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -20,22 +19,34 @@ import android.view.TextureView;
 import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import thread.WhileThread;
 import uniface.UniFaceFeature;
 import uniface.android.camera.UniCamera2Grabber;
 import uniface.android.camera.UniCamera2GrabberConfiguration;
+import uniface.android.engine.UniEnginePrewarmer;
+import uniface.android.image.UniFlatGeometryGraph;
+import uniface.android.image.UniFusedImageUtil;
 import uniface.android.license.License;
+import uniface.android.metrics.UniLatencyHistogram;
+import uniface.android.metrics.UniPipelineMetrics;
+import uniface.android.pipeline.UniFaceTracker;
+import uniface.android.pipeline.UniLatestFrameQueue;
+import uniface.android.pipeline.UniYUVFrameRing;
+import uniface.android.render.UniFaceOverlayRenderer;
+import uniface.android.video.UniFrameDumpWriter;
 import uniface.tf2lite.util.TFLieFaceApi;
 import uniimage.UniGeometryGraph;
-import uniimage.UniPoint;
+import uniimage.UniImage;
 import uniimage.UniPolygon;
 import uniimage.UniRGBImage;
-import uniimage.UniRect;
 import uniimage.UniSize;
 import uniimage.UniYUVImage;
-import uniimage.util.UniImageUtil;
 
 /**
  * UniCamera2Grabber摄像头抓帧和Tensorflow lite人脸识别比对应用例程
@@ -45,7 +56,13 @@ import uniimage.util.UniImageUtil;
  */
 public abstract class ShowCamera2FaceDemoFragment extends Fragment {
     protected final static String LogTag = "uniface.debug";
-    protected abstract void onGrabbedFaces(UniRGBImage grabbedImage, UniFaceFeature[] grabbedImageFeatures);
+    /**
+     * 在人脸信息绘图后台线程中被调用
+     * @param grabbedImage 逐帧复用的RGB帧图，仅在本方法调用期间有效，需要异步使用时必须先拷贝或裁剪
+     * @param grabbedGraph 摄像头检测的人脸图层，坐标与RGB帧图一致，可能为null
+     * @param grabbedImageFeatures 帧图中分析所得的人脸特征
+     */
+    protected abstract void onGrabbedFaces(UniRGBImage grabbedImage, UniFlatGeometryGraph grabbedGraph, UniFaceFeature[] grabbedImageFeatures);
     protected abstract void onGrabStarted(UniCamera2GrabberConfiguration grabberConfiguration);
     protected UniCamera2GrabberConfiguration grabberConfiguration;
     protected Paint rectPaintY; // 用于绘制UniFaceEngine分析所得人脸矩形
@@ -62,12 +79,26 @@ public abstract class ShowCamera2FaceDemoFragment extends Fragment {
     protected final UniCamera2Grabber.GrabberStateListener grabberStateListener = new UniCamera2Grabber.GrabberStateListener() {
         @Override
         public void onStarted(String cameraId) {
+            ShowCamera2FaceDemoFragment.this.grabbedImageRing.open();
+            if (ShowCamera2FaceDemoFragment.this.faceTracker != null) {
+                ShowCamera2FaceDemoFragment.this.faceTracker.reset();
+            }
+            if (ShowCamera2FaceDemoFragment.this.pipelineMode) {
+                ShowCamera2FaceDemoFragment.this.analyseQueue.open();
+                ShowCamera2FaceDemoFragment.this.renderQueue.open();
+                ShowCamera2FaceDemoFragment.this.facesRenderThread.start();
+                ShowCamera2FaceDemoFragment.this.facesAnalyseThread.start();
+            }
             ShowCamera2FaceDemoFragment.this.facesDrawThread.start();
             ShowCamera2FaceDemoFragment.this.onGrabStarted(ShowCamera2FaceDemoFragment.this.grabberConfiguration);
         }
         @Override
         public void onStopped(String cameraId) {
             ShowCamera2FaceDemoFragment.this.facesDrawThread.stop();
+            ShowCamera2FaceDemoFragment.this.facesAnalyseThread.stop();
+            ShowCamera2FaceDemoFragment.this.facesRenderThread.stop();
+            ShowCamera2FaceDemoFragment.this.stopRecording();
+            ShowCamera2FaceDemoFragment.this.dumpMetrics();
         }
         /**
          * 在Camera2 AIP CameraCaptureSession.StateCallback.onConfigured()被调用时调用<br>
@@ -97,13 +128,8 @@ public abstract class ShowCamera2FaceDemoFragment extends Fragment {
         private int fpsIndex;
         @Override
         public void onGrabbed(String cameraId, UniYUVImage frameImage, long timestamp) {
-            // 为了不阻塞摄像头的抓帧，这里仅仅将抓取的帧图放入单帧缓存中
-            synchronized (ShowCamera2FaceDemoFragment.this.grabbedImageBuffer) {
-                ShowCamera2FaceDemoFragment.this.grabbedImageBuffer[0] = frameImage;
-                ShowCamera2FaceDemoFragment.this.grabbedImageTimestamp = timestamp;
-                ShowCamera2FaceDemoFragment.this.grabbedImageTime = System.currentTimeMillis();
-                ShowCamera2FaceDemoFragment.this.grabbedImageBuffer.notifyAll();
-            }
+            // 为了不阻塞摄像头的抓帧，这里仅仅将抓取的帧图拷贝进帧图缓存环
+            ShowCamera2FaceDemoFragment.this.grabbedImageRing.offer(frameImage, timestamp);
             this.fpsTimes[this.fpsIndex++] = System.currentTimeMillis();
             if (this.fpsIndex >= this.fpsTimes.length) {
                 this.fpsIndex = 0;
@@ -112,50 +138,170 @@ public abstract class ShowCamera2FaceDemoFragment extends Fragment {
         }
     };
     /**
-     * 摄像头抓帧线程与人脸信息绘图线程之间的单帧缓存<br>
-     * 没有被人脸信息绘图线程及时取走的帧图会被摄像头抓帧线程用新抓取的帧图覆盖
+     * 摄像头抓帧线程与人脸信息绘图线程之间循环复用的帧图缓存环<br>
+     * 没有被人脸信息绘图线程及时取走的帧图会被丢弃或被摄像头抓帧线程用新抓取的帧图覆盖
      */
-    protected final UniYUVImage[] grabbedImageBuffer = new UniYUVImage[1];
+    protected final UniYUVFrameRing grabbedImageRing = new UniYUVFrameRing(3);
     protected long grabbedImageTimestamp;
     protected long grabbedImageTime;
     /**
-     * 人脸信息绘图后台线程
+     * 人脸信息绘图后台线程<br>
+     * 流水线模式下只负责帧图的旋转和格式转换，人脸分析和绘图分别由facesAnalyseThread和facesRenderThread完成
      */
     protected final WhileThread facesDrawThread = new WhileThread() {
         @Override
         protected void stopping() {
-            // 激活可能处于wait()状态的run()及时终止运行
-            synchronized (ShowCamera2FaceDemoFragment.this.grabbedImageBuffer) {
-                ShowCamera2FaceDemoFragment.this.grabbedImageBuffer.notifyAll();
-            }
-            ShowCamera2FaceDemoFragment.this.grabbedImageBuffer[0] = null;
+            // 唤醒可能阻塞在take()中的run()及时终止运行
+            ShowCamera2FaceDemoFragment.this.grabbedImageRing.close();
         }
         @Override
         protected void pausing() {
         }
         @Override
         public void run() {
-            UniYUVImage image = null;
+            UniYUVFrameRing ring = ShowCamera2FaceDemoFragment.this.grabbedImageRing;
             while (super.running()) {
-                if (image != null) {
-                    try {
-                        ShowCamera2FaceDemoFragment.this.onGrabbedImage(image);
-                    } catch (Exception e) {
-                        Log.e(LogTag, e.getMessage() + " - " + e.getClass().getSimpleName());
-                    }
+                // 从帧图缓存环中取最新的一帧，如果没有新帧则阻塞等待
+                UniYUVFrameRing.Frame frame = ring.take();
+                if (frame == null) {
+                    continue;
                 }
-                // 从帧图缓存中取图，如果缓存中无图则阻塞等待
-                synchronized (ShowCamera2FaceDemoFragment.this.grabbedImageBuffer) {
-                    if (ShowCamera2FaceDemoFragment.this.grabbedImageBuffer[0] == null) {
-                        try {
-                            ShowCamera2FaceDemoFragment.this.grabbedImageBuffer.wait();
-                        } catch (InterruptedException e) {
-                            break;
-                        }
+                ShowCamera2FaceDemoFragment.this.metrics.record(UniPipelineMetrics.GrabWait, System.nanoTime() - frame.getNanoTime());
+                try {
+                    ShowCamera2FaceDemoFragment.this.recordFrame(frame);
+                    if (ShowCamera2FaceDemoFragment.this.pipelineMode) {
+                        ShowCamera2FaceDemoFragment.this.onGrabbedImagePipelined(frame);
+                    } else {
+                        ShowCamera2FaceDemoFragment.this.grabbedImageTimestamp = frame.getTimestamp();
+                        ShowCamera2FaceDemoFragment.this.grabbedImageTime = frame.getTime();
+                        ShowCamera2FaceDemoFragment.this.onGrabbedImage(frame.getImage());
                     }
-                    image = ShowCamera2FaceDemoFragment.this.grabbedImageBuffer[0];
-                    ShowCamera2FaceDemoFragment.this.grabbedImageBuffer[0] = null;
+                } catch (Exception e) {
+                    Log.e(LogTag, e.getMessage() + " - " + e.getClass().getSimpleName());
+                } finally {
+                    // 帧图处理完成以后槽位归还缓存环，帧图对象不能再被引用
+                    ring.release(frame);
+                }
+            }
+        }
+    };
+    /**
+     * 在格式转换、人脸分析、绘图各处理阶段之间传递的帧
+     */
+    protected static class GrabbedFrame {
+        protected UniRGBImage image; // 逐帧复用的RGB帧图
+        protected UniImage analyseImage; // 交给人脸引擎分析的帧图
+        protected UniFlatGeometryGraph graph; // 摄像头检测的人脸图层，已映射到RGB帧图的坐标系
+        protected UniFaceFeature[] features; // 人脸引擎分析所得的人脸特征
+        protected long timestamp;
+        protected long time;
+    }
+    /**
+     * 是否启用流水线模式<br>
+     * 流水线模式下格式转换、人脸分析、绘图分别在独立的线程中执行，各阶段之间通过新帧优先的有界队列交接，
+     * 处理帧率由最慢的阶段决定，而不是所有阶段耗时之和。需要在startGrabber()之前设置。
+     */
+    protected boolean pipelineMode = false;
+    /**
+     * 人脸跟踪器，null表示不跟踪，每帧都做完整的人脸分析<br>
+     * 设置以后只在需要时才调用人脸引擎分析帧图，其余帧通过摄像头检测的人脸传递已跟踪人脸的位置，
+     * onGrabbedFaces()得到的人脸特征的faceId是稳定的跟踪ID。需要在startGrabber()之前设置。
+     */
+    protected UniFaceTracker faceTracker;
+    /**
+     * 各处理阶段的延迟直方图和帧计数器，通过getMetrics()查询，抓帧器停止时写入文件
+     */
+    protected final UniPipelineMetrics metrics = new UniPipelineMetrics();
+    /**
+     * 格式转换阶段到人脸分析阶段的交接队列
+     */
+    protected final UniLatestFrameQueue<GrabbedFrame> analyseQueue = new UniLatestFrameQueue<GrabbedFrame>(1);
+    /**
+     * 人脸分析阶段到绘图阶段的交接队列
+     */
+    protected final UniLatestFrameQueue<GrabbedFrame> renderQueue = new UniLatestFrameQueue<GrabbedFrame>(1);
+    /**
+     * 流水线中空闲可复用的帧
+     */
+    private final ArrayBlockingQueue<GrabbedFrame> freeFrames = new ArrayBlockingQueue<GrabbedFrame>(8);
+    private GrabbedFrame obtainFrame() {
+        GrabbedFrame frame = this.freeFrames.poll();
+        return frame == null ? new GrabbedFrame() : frame;
+    }
+    private void recycleFrame(GrabbedFrame frame) {
+        if (frame != null) {
+            frame.analyseImage = null;
+            frame.features = null;
+            this.freeFrames.offer(frame);
+        }
+    }
+    /**
+     * 流水线模式的人脸分析后台线程
+     */
+    protected final WhileThread facesAnalyseThread = new WhileThread() {
+        @Override
+        protected void stopping() {
+            ShowCamera2FaceDemoFragment.this.analyseQueue.close();
+        }
+        @Override
+        protected void pausing() {
+        }
+        @Override
+        public void run() {
+            ShowCamera2FaceDemoFragment fragment = ShowCamera2FaceDemoFragment.this;
+            while (super.running()) {
+                GrabbedFrame frame = fragment.analyseQueue.take();
+                if (frame == null) {
+                    continue;
+                }
+                try {
+                    fragment.analyseGrabbedImage(frame);
+                    // 绘图阶段来不及处理时，丢弃最旧的已分析帧
+                    fragment.recycleFrame(fragment.renderQueue.offer(frame));
+                } catch (Exception e) {
+                    Log.e(LogTag, e.getMessage() + " - " + e.getClass().getSimpleName());
+                    fragment.recycleFrame(frame);
+                }
+            }
+            // 回收队列中剩余的帧
+            GrabbedFrame frame;
+            while ((frame = fragment.analyseQueue.poll()) != null) {
+                fragment.recycleFrame(frame);
+            }
+        }
+    };
+    /**
+     * 流水线模式的人脸信息绘图后台线程
+     */
+    protected final WhileThread facesRenderThread = new WhileThread() {
+        @Override
+        protected void stopping() {
+            ShowCamera2FaceDemoFragment.this.renderQueue.close();
+        }
+        @Override
+        protected void pausing() {
+        }
+        @Override
+        public void run() {
+            ShowCamera2FaceDemoFragment fragment = ShowCamera2FaceDemoFragment.this;
+            while (super.running()) {
+                GrabbedFrame frame = fragment.renderQueue.take();
+                if (frame == null) {
+                    continue;
                 }
+                try {
+                    fragment.grabbedImageTimestamp = frame.timestamp;
+                    fragment.grabbedImageTime = frame.time;
+                    fragment.renderGrabbedImage(frame);
+                } catch (Exception e) {
+                    Log.e(LogTag, e.getMessage() + " - " + e.getClass().getSimpleName());
+                } finally {
+                    fragment.recycleFrame(frame);
+                }
+            }
+            GrabbedFrame frame;
+            while ((frame = fragment.renderQueue.poll()) != null) {
+                fragment.recycleFrame(frame);
             }
         }
     };
@@ -288,17 +434,63 @@ public abstract class ShowCamera2FaceDemoFragment extends Fragment {
         }
     };
     private void startGrabber(UniCamera2GrabberConfiguration grabberConfiguration) {
+        this.startTime = System.nanoTime();
+        this.firstFrameTime = -1;
+        this.firstRecognitionTime = -1;
         // 开个光照度监听，观察一下光照度与人脸识别效果的关系
         SensorManager sensorManager = (SensorManager) grabberConfiguration.getContext().getSystemService(Context.SENSOR_SERVICE);
         Sensor sensor = sensorManager.getDefaultSensor(Sensor.TYPE_LIGHT);
         sensorManager.registerListener(this.sensorEventListener, sensor, SensorManager.SENSOR_DELAY_GAME);
-        this.licenseValid = License.check(0, this.expiryDate);
         try {
             grabberConfiguration.enableFaceDetect().setSnatchMode(false);
+            // 先打开相机，授权检查和引擎预热在相机打开的同时在后台线程中进行
             this.grabber.start(grabberConfiguration);
         } catch (Exception e) {
             Log.e(LogTag, e.getMessage() + " - " + e.getClass().getSimpleName());
         }
+        if (!this.engineReady) {
+            this.enginePrewarmer.prewarm(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    ShowCamera2FaceDemoFragment fragment = ShowCamera2FaceDemoFragment.this;
+                    fragment.licenseValid = License.check(0, fragment.expiryDate);
+                    long time = System.nanoTime();
+                    try {
+                        fragment.prewarmEngines();
+                        fragment.metrics.recordSince(UniPipelineMetrics.Prewarm, time);
+                    } catch (Exception e) {
+                        Log.e(LogTag, e.getMessage() + " - " + e.getClass().getSimpleName());
+                    } finally {
+                        // 预热失败时由第一帧的分析承担加载开销
+                        fragment.engineReady = true;
+                    }
+                    return null;
+                }
+            });
+        } else {
+            this.licenseValid = License.check(0, this.expiryDate);
+        }
+    }
+    /**
+     * 在后台线程中预热人脸引擎，相机打开和预热同时进行，预热完成之前的帧只预览不分析<br>
+     * 默认用一张空白图调用一次TFLieFaceApi.analyse()，让模型加载和解释器初始化提前完成。
+     * 模型由人脸库内部加载，应用无法传入预先映射的模型数据；子类可以覆盖这个方法，通过UniEnginePrewarmer预热引擎池。
+     */
+    protected void prewarmEngines() throws Exception {
+        TFLieFaceApi.analyse(UniEnginePrewarmer.createWarmupImage());
+    }
+    /**
+     * 记录从启动抓帧到第一帧和第一次识别出人脸的耗时，每次启动各记录一次
+     */
+    private synchronized void recordStartup(boolean recognized) {
+        if (this.firstFrameTime < 0) {
+            this.firstFrameTime = (System.nanoTime() - this.startTime) / 1000000L;
+            this.metrics.record(UniPipelineMetrics.FirstFrame, System.nanoTime() - this.startTime);
+        }
+        if (recognized && this.firstRecognitionTime < 0) {
+            this.firstRecognitionTime = (System.nanoTime() - this.startTime) / 1000000L;
+            this.metrics.record(UniPipelineMetrics.FirstRecognition, System.nanoTime() - this.startTime);
+        }
     }
     protected void stopGrabber() {
         SensorManager sensorManager = (SensorManager) grabberConfiguration.getContext().getSystemService(Context.SENSOR_SERVICE);
@@ -311,55 +503,235 @@ public abstract class ShowCamera2FaceDemoFragment extends Fragment {
     private final long[] fpsTimes = new long[10];
     private int fpsIndex;
     /**
-     * 在人脸信息绘图后台线程中被调用
+     * 在人脸信息绘图后台线程中被调用，依次完成格式转换、人脸分析和绘图
      * @param yuvImage 来自摄像头的实时帧图
      */
     protected void onGrabbedImage(UniYUVImage yuvImage) {
-        // 计算人脸识别、绘图等一系列处理的帧率
-        this.fpsTimes[this.fpsIndex++] = System.currentTimeMillis();
-        if (this.fpsIndex >= this.fpsTimes.length) {
-            this.fpsIndex = 0;
-            this.fps[1] = this.fpsTimes.length * 1000F / (float)(this.fpsTimes[this.fpsTimes.length - 1] - this.fpsTimes[0]);
+        GrabbedFrame frame = this.serialFrame;
+        this.convertGrabbedImage(yuvImage, frame, false);
+        this.analyseGrabbedImage(frame);
+        this.renderGrabbedImage(frame);
+    }
+    /**
+     * 流水线模式下在人脸信息绘图后台线程中被调用，完成格式转换以后交给人脸分析阶段
+     * @param ringFrame 来自帧图缓存环的实时帧
+     */
+    protected void onGrabbedImagePipelined(UniYUVFrameRing.Frame ringFrame) {
+        GrabbedFrame frame = this.obtainFrame();
+        frame.timestamp = ringFrame.getTimestamp();
+        frame.time = ringFrame.getTime();
+        // 缓存环中的YUV帧图在转换以后就会归还，后续阶段只能使用RGB帧图
+        this.convertGrabbedImage(ringFrame.getImage(), frame, true);
+        // 人脸分析阶段来不及处理时，丢弃最旧的待分析帧
+        this.recycleFrame(this.analyseQueue.offer(frame));
+    }
+    /**
+     * 格式转换阶段：根据配置旋转帧图并转换为RGB格式
+     * @param yuvImage 来自摄像头的实时帧图
+     * @param frame 用来保存转换结果的帧
+     * @param analyseRGB 是否总是分析RGB帧图，为false时不需要旋转的情况下直接分析YUV帧图
+     */
+    protected void convertGrabbedImage(UniYUVImage yuvImage, GrabbedFrame frame, boolean analyseRGB) {
+        if (!this.adjustDegree) {
+            yuvImage.setDegree(null);
         }
+        int degree = 0;
         if (!this.adjustOrientation && yuvImage.getOrientation() != null) {
             // 根据图片的方向属性将图片旋转为正图
-            yuvImage = UniImageUtil.rotateImage(yuvImage, yuvImage.getOrientation(), (byte)0, new UniSize());
+            degree = yuvImage.getOrientation();
         }
+        // 摄像头检测的人脸图层只展开一次，后续各阶段传递写时复制的扁平图层，不再逐帧深拷贝UniGeometryGraph
+        UniGeometryGraph graph = yuvImage.getInsideGeometryGraph();
+        UniFlatGeometryGraph flatGraph = UniFlatGeometryGraph.of(graph);
+        yuvImage.setInsideGeometryGraph(null);
         // 因为人脸识别引擎仅支持RGB格式的图片数据，因此需要转换图片数据的格式
-        if (!this.adjustDegree) {
-            yuvImage.setDegree(null);
+        // 旋转和格式转换在一次遍历中完成，结果写入复用的RGB帧图
+        long time = System.nanoTime();
+        frame.image = UniFusedImageUtil.yuv2rgb(yuvImage, degree, null, frame.image);
+        this.metrics.recordSince(UniPipelineMetrics.RotateYuv2rgb, time);
+        yuvImage.setInsideGeometryGraph(graph);
+        frame.graph = UniFusedImageUtil.mapGraph(flatGraph, yuvImage.getWidth(), yuvImage.getHeight(), degree, null);
+        // 需要旋转时直接分析旋转以后的RGB帧图，不再单独生成旋转以后的YUV帧图
+        frame.analyseImage = degree == 0 && !analyseRGB ? yuvImage : frame.image;
+        if (this.useGeometryGraph && frame.analyseImage == frame.image && frame.graph != null) {
+            // 只有让引擎从几何图层中解析人脸特征时，分析图才需要携带UniGeometryGraph
+            frame.image.setInsideGeometryGraph(frame.graph.toGeometryGraph());
+        }
+    }
+    /**
+     * 人脸分析阶段：通过人脸引擎分析帧图中的人脸特征
+     * @param frame 格式转换以后的帧
+     */
+    protected void analyseGrabbedImage(GrabbedFrame frame) {
+        if (!this.engineReady) {
+            // 引擎还在预热，这一帧只预览
+            frame.features = null;
+            return;
+        }
+        UniImage analyseImage = frame.analyseImage;
+        UniFaceTracker tracker = this.faceTracker;
+        if (tracker != null) {
+            // 摄像头检测的人脸位置与分析图在同一坐标系中，可以直接用来跟踪
+            UniFaceFeature[] cameraFaces = this.parseFaceFeaturesFromGeometryGraph(frame.graph);
+            if (!tracker.needAnalyse(cameraFaces)) {
+                // 跟踪的人脸沿用已有的分析结果，不再调用人脸引擎
+                frame.features = tracker.propagate(cameraFaces);
+                return;
+            }
         }
         UniGeometryGraph graph = null;
         if (!this.useGeometryGraph) {
-            graph = yuvImage.getInsideGeometryGraph();
+            graph = analyseImage.getInsideGeometryGraph();
             // 将附加在图片上的几何图层置空，人脸识别引擎就会通过人脸识别算法从图片内容中检测人脸，检测结果不依赖摄像头检测的人脸信息
-            yuvImage.setInsideGeometryGraph(null);
+            analyseImage.setInsideGeometryGraph(null);
         }
-        long time = System.currentTimeMillis();
+        long time = System.nanoTime();
         // 通过人脸引擎分析图片中的人脸特征信息（人脸在图中的位置信息、人脸图的清晰度、人脸特征值、仅包含人脸的小图）
-        UniFaceFeature[] grabbedImageFeatures = TFLieFaceApi.analyse(yuvImage);
-        this.lastAnalyseTime = System.currentTimeMillis() - time;
+        // TFLieFaceApi.analyse()没有只检测不提取的模式，已跟踪的人脸也会重新提取特征值；需要按跟踪复用特征值时使用UniBatchFaceAnalyzer.setFaceTracker()
+        frame.features = TFLieFaceApi.analyse(analyseImage);
+        time = System.nanoTime() - time;
+        this.metrics.record(UniPipelineMetrics.Analyse, time);
+        this.lastAnalyseTime = time / 1000000;
+        if (this.firstRecognitionTime < 0) {
+            this.recordStartup(frame.features != null && frame.features.length > 0);
+        }
+        if (tracker != null) {
+            // 为分析所得的人脸分配稳定的跟踪ID
+            frame.features = tracker.onAnalysed(frame.features);
+        }
         if (graph != null) {
-            yuvImage.setInsideGeometryGraph(graph);
+            analyseImage.setInsideGeometryGraph(graph);
+        }
+    }
+    /**
+     * 绘图阶段：绘制人脸位置并回调onGrabbedFaces()
+     * @param frame 人脸分析以后的帧
+     */
+    protected void renderGrabbedImage(GrabbedFrame frame) {
+        if (this.firstFrameTime < 0) {
+            this.recordStartup(false);
+        }
+        // 计算人脸识别、绘图等一系列处理的帧率
+        this.fpsTimes[this.fpsIndex++] = System.currentTimeMillis();
+        if (this.fpsIndex >= this.fpsTimes.length) {
+            this.fpsIndex = 0;
+            this.fps[1] = this.fpsTimes.length * 1000F / (float)(this.fpsTimes[this.fpsTimes.length - 1] - this.fpsTimes[0]);
         }
+        UniFaceFeature[] grabbedImageFeatures = frame.features;
         // 从配置对象中获取竖屏状态的预览图片尺寸，通常是原始抓帧图尺寸旋转90以后的尺寸，也就是宽高互换
         UniSize previewImageSize = this.grabberConfiguration.getPortraitPreviewImageSize();
-        // 调整帧图分析所获的人脸位置信息，获得预览所需的人脸位置信息，调整过程会对人脸位置信息进行旋转、缩放。
-        UniFaceFeature[] previewImageFeatures = TFLieFaceApi.adjustFaceFeaturesAngleForPreview(grabbedImageFeatures, yuvImage, previewImageSize);
-        UniRGBImage grabbedImage = UniImageUtil.toRGBImage(yuvImage);
-        this.drawFaces(grabbedImage, previewImageSize, previewImageFeatures);
+        long time = System.nanoTime();
+        // 人脸位置保持在帧图坐标系中，旋转、缩放到预览由渲染器的坐标变换完成，不再逐帧生成调整以后的人脸特征
+        this.drawFaces(frame.image, frame.graph, previewImageSize, grabbedImageFeatures);
+        this.metrics.recordSince(UniPipelineMetrics.Draw, time);
         if (grabbedImageFeatures != null && grabbedImageFeatures.length > 0) {
-            this.onGrabbedFaces(grabbedImage, grabbedImageFeatures);
+            this.onGrabbedFaces(frame.image, frame.graph, grabbedImageFeatures);
         }
     }
+    /**
+     * 非流水线模式下在人脸信息绘图后台线程中逐帧复用的帧，其中的RGB帧图不能在onGrabbedFaces()返回以后继续引用
+     */
+    private final GrabbedFrame serialFrame = new GrabbedFrame();
     protected final float[] fps = new float[2];
     protected long lastAnalyseTime; // 最近一次调用人脸识别引擎进行图片分析的耗时毫秒值
+    /**
+     * 取运行指标，帧计数器同步为帧图缓存环、交接队列、人脸跟踪器中的最新累计值
+     * @return 运行指标
+     */
+    public UniPipelineMetrics getMetrics() {
+        this.metrics.setCounter(UniPipelineMetrics.FramesDropped, this.grabbedImageRing.getDroppedCount()
+                + this.analyseQueue.getDroppedCount() + this.renderQueue.getDroppedCount());
+        this.metrics.setCounter(UniPipelineMetrics.FramesOverwritten, this.grabbedImageRing.getOverwrittenCount());
+        UniFaceTracker tracker = this.faceTracker;
+        this.metrics.setCounter(UniPipelineMetrics.FramesSkipped, tracker == null ? 0 : tracker.getTrackedFrames());
+        return this.metrics;
+    }
+    /**
+     * 将运行指标追加写入应用外部文件目录下的uniface-metrics.txt，可以通过adb pull取回
+     */
+    protected void dumpMetrics() {
+        UniCamera2GrabberConfiguration configuration = this.grabberConfiguration;
+        if (configuration == null) {
+            return;
+        }
+        File dir = configuration.getContext().getExternalFilesDir(null);
+        if (dir == null) {
+            dir = configuration.getContext().getFilesDir();
+        }
+        try {
+            this.getMetrics().dump(new File(dir, "uniface-metrics.txt"), true,
+                    Build.MANUFACTURER + " " + Build.MODEL + " " + this.getClass().getSimpleName());
+        } catch (Exception e) {
+            Log.e(LogTag, e.getMessage() + " - " + e.getClass().getSimpleName());
+        }
+    }
+    /**
+     * 帧图录制器，null表示没有在录制
+     */
+    private volatile UniFrameDumpWriter frameRecorder;
+    /**
+     * 开始把人脸信息绘图线程取到的每一帧录制到转储文件，可以通过UniFileVideoSource在没有摄像头的环境中回放<br>
+     * 录制在人脸信息绘图线程中同步写文件，会降低处理帧率，只用于采集测试数据
+     * @param file 转储文件，已存在时覆盖
+     */
+    public void startRecording(File file) throws IOException {
+        UniFrameDumpWriter recorder = new UniFrameDumpWriter(file);
+        UniFrameDumpWriter old = this.frameRecorder;
+        this.frameRecorder = recorder;
+        if (old != null) {
+            this.closeRecorder(old);
+        }
+    }
+    /**
+     * 停止录制
+     * @return 录制的帧数
+     */
+    public int stopRecording() {
+        UniFrameDumpWriter recorder = this.frameRecorder;
+        this.frameRecorder = null;
+        return recorder == null ? 0 : this.closeRecorder(recorder);
+    }
+    private int closeRecorder(UniFrameDumpWriter recorder) {
+        try {
+            recorder.close();
+        } catch (IOException e) {
+            Log.e(LogTag, e.getMessage() + " - " + e.getClass().getSimpleName());
+        }
+        return recorder.getFrames();
+    }
+    private void recordFrame(UniYUVFrameRing.Frame frame) {
+        UniFrameDumpWriter recorder = this.frameRecorder;
+        if (recorder == null) {
+            return;
+        }
+        try {
+            recorder.write(frame.getImage(), frame.getTime());
+        } catch (IOException e) {
+            Log.e(LogTag, e.getMessage() + " - " + e.getClass().getSimpleName());
+            this.stopRecording();
+        }
+    }
     protected String[] expiryDate = new String[1];
-    protected boolean licenseValid;
+    protected volatile boolean licenseValid;
+    /**
+     * 在后台线程中完成授权检查和引擎预热
+     */
+    protected final UniEnginePrewarmer enginePrewarmer = new UniEnginePrewarmer();
+    private volatile boolean engineReady; // 引擎是否已经预热完成
+    private long startTime; // 启动抓帧时的System.nanoTime()值
+    private volatile long firstFrameTime; // 启动以后第一帧完成绘制的毫秒数，-1表示还没有
+    private volatile long firstRecognitionTime; // 启动以后第一次识别出人脸的毫秒数，-1表示还没有
     private float light;
     private int lightAccuracy;
-    @SuppressLint("DefaultLocale")
-    private void drawFaces(UniRGBImage grabbedImage, UniSize previewImageSize, UniFaceFeature[] previewImageFeatures) {
+    /**
+     * 人脸信息叠加渲染器，只在人脸信息绘图线程中使用
+     */
+    private final UniFaceOverlayRenderer overlayRenderer = new UniFaceOverlayRenderer();
+    /**
+     * 绘制人脸信息，分析所得的人脸和摄像头检测的人脸都在帧图坐标系中<br>
+     * 分析图不是grabbedImage时是旋转角度为0的YUV帧图，与grabbedImage的尺寸和成像方向相同，两者共用一个坐标变换
+     */
+    private void drawFaces(UniRGBImage grabbedImage, UniFlatGeometryGraph grabbedGraph, UniSize previewImageSize, UniFaceFeature[] grabbedImageFeatures) {
         Canvas canvas = null;
         SurfaceHolder surfaceHolder = null;
         try{
@@ -373,31 +745,70 @@ public abstract class ShowCamera2FaceDemoFragment extends Fragment {
             canvas.drawColor(Color.WHITE);
             canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.SRC);
 
-            this.drawFaces(canvas, this.rectPaintY, this.rectPaintB, this.textPaintY, previewImageSize, previewImageFeatures, true);
-
-            UniFaceFeature[] graphFeatures = this.parseFaceFeaturesFromGeometryGraph(grabbedImage.getInsideGeometryGraph());
-            if (graphFeatures != null) {
-                UniFaceFeature[] graphPreviewFeatures = TFLieFaceApi.adjustFaceFeaturesAngleForPreview(graphFeatures, grabbedImage, previewImageSize);
-                this.drawFaces(canvas, this.rectPaintG, this.rectPaintG, textPaintG, previewImageSize, graphPreviewFeatures, false);
-            }
+            UniFaceOverlayRenderer renderer = this.overlayRenderer;
             Integer imageOrientation = grabbedImage.getOrientation();
+            // 帧图按成像方向旋转到预览图、缩放到绘制视图以及前置摄像头镜像，参数不变时沿用已有的变换
+            renderer.setTransform(grabbedImage.getWidth(), grabbedImage.getHeight(), imageOrientation == null ? 0 : imageOrientation,
+                    previewImageSize.getWidth(), previewImageSize.getHeight(),
+                    this.facesDrawViewSize.width, this.facesDrawViewSize.height, this.grabberConfiguration.isFront());
+            renderer.drawFaces(canvas, grabbedImageFeatures, this.rectPaintY, this.rectPaintB, this.textPaintY, true);
+            // 摄像头检测的人脸直接从扁平图层中绘制
+            renderer.drawFaces(canvas, grabbedGraph, this.rectPaintG, this.rectPaintG, this.textPaintG, false);
             Integer imageDegree = grabbedImage.getDegree();
             int logY = 32;
             int logYH = 32;
             // fps[0]是抓帧帧率，fps[1]是人脸识别、绘图帧率
-            canvas.drawText(String.format("FPS:%.2f|%.2f", this.fps[0], this.fps[1]), 32, logY, this.logPaint);
+            StringBuilder line = renderer.beginText().append("FPS:");
+            UniFaceOverlayRenderer.appendFixed(line, this.fps[0], 2).append('|');
+            UniFaceOverlayRenderer.appendFixed(line, this.fps[1], 2);
+            renderer.drawText(canvas, 32, logY, this.logPaint);
+            logY += logYH;
+            renderer.beginText().append("face analyse time:").append(this.lastAnalyseTime);
+            renderer.drawText(canvas, 32, logY, this.logPaint);
+            logY += logYH;
+            UniLatencyHistogram analyseHistogram = this.metrics.getHistogram(UniPipelineMetrics.Analyse);
+            line = renderer.beginText().append("analyse p50:");
+            UniFaceOverlayRenderer.appendFixed(line, analyseHistogram.getPercentile(50) / 1e6, 1).append(", p99:");
+            UniFaceOverlayRenderer.appendFixed(line, analyseHistogram.getPercentile(99) / 1e6, 1).append(", p999:");
+            UniFaceOverlayRenderer.appendFixed(line, analyseHistogram.getPercentile(99.9) / 1e6, 1).append(" ms");
+            renderer.drawText(canvas, 32, logY, this.logPaint);
             logY += logYH;
-            canvas.drawText(String.format("face analyse time:%d", this.lastAnalyseTime), 32, logY, this.logPaint);
+            renderer.beginText().append("image size:").append(grabbedImage.getWidth()).append('x').append(grabbedImage.getHeight());
+            renderer.drawText(canvas, 32, logY, this.logPaint);
             logY += logYH;
-            canvas.drawText(String.format("image size:%dx%d", grabbedImage.getWidth(), grabbedImage.getHeight()), 32, logY, this.logPaint);
+            renderer.beginText().append("image orientation:").append(imageOrientation == null ? -1 : imageOrientation.intValue())
+                    .append(", degree:").append(imageDegree == null ? -1 : imageDegree.intValue());
+            renderer.drawText(canvas, 32, logY, this.logPaint);
             logY += logYH;
-            canvas.drawText(String.format("image orientation:%d, degree:%d", imageOrientation == null ? -1 : imageOrientation, imageDegree == null ? -1 : imageDegree), 32, logY, this.logPaint);
+            renderer.beginText().append("timestamp:").append(this.grabbedImageTimestamp).append(", time:").append(this.grabbedImageTime);
+            renderer.drawText(canvas, 32, logY, this.logPaint);
             logY += logYH;
-            canvas.drawText(String.format("timestamp:%d, time:%d", this.grabbedImageTimestamp, this.grabbedImageTime), 32, logY, this.logPaint);
+            renderer.beginText().append("frames dropped:").append(this.grabbedImageRing.getDroppedCount())
+                    .append(", overwritten:").append(this.grabbedImageRing.getOverwrittenCount());
+            renderer.drawText(canvas, 32, logY, this.logPaint);
+            logY += logYH;
+            if (this.pipelineMode) {
+                renderer.beginText().append("stage dropped analyse:").append(this.analyseQueue.getDroppedCount())
+                        .append(", render:").append(this.renderQueue.getDroppedCount());
+                renderer.drawText(canvas, 32, logY, this.logPaint);
+                logY += logYH;
+            }
+            if (this.faceTracker != null) {
+                renderer.beginText().append("faces analysed:").append(this.faceTracker.getAnalysedFrames())
+                        .append(", tracked:").append(this.faceTracker.getTrackedFrames());
+                renderer.drawText(canvas, 32, logY, this.logPaint);
+                logY += logYH;
+            }
+            line = renderer.beginText().append("light:");
+            UniFaceOverlayRenderer.appendFixed(line, this.light, 2).append('|').append(this.lightAccuracy);
+            renderer.drawText(canvas, 32, logY, this.logPaint);
             logY += logYH;
-            canvas.drawText(String.format("light:%.2f|%d", this.light, this.lightAccuracy), 32, logY, this.logPaint);
+            renderer.beginText().append("startup first frame:").append(this.firstFrameTime)
+                    .append(", first recognition:").append(this.firstRecognitionTime).append(this.engineReady ? " ms" : " ms, warming up");
+            renderer.drawText(canvas, 32, logY, this.logPaint);
             logY += logYH;
-            canvas.drawText(String.format("license(%s) %s", this.licenseValid, this.expiryDate[0]), 32, logY, this.logPaint);
+            renderer.beginText().append("license(").append(this.licenseValid).append(") ").append(this.expiryDate[0]);
+            renderer.drawText(canvas, 32, logY, this.logPaint);
 
         } catch(Exception e){
             e.printStackTrace();
@@ -407,84 +818,6 @@ public abstract class ShowCamera2FaceDemoFragment extends Fragment {
             }
         }
     }
-    @SuppressLint("DefaultLocale")
-    private void drawFaces(Canvas canvas, Paint polygonPaint, Paint rectPaint, Paint textPaint, UniSize previewSize, UniFaceFeature[] previewFeatures, boolean topTip) {
-        int sw = this.facesDrawViewSize.width;
-        int sh = this.facesDrawViewSize.height;
-        for (UniFaceFeature feature : previewFeatures) {
-            UniPolygon polygon = feature.getPolygon();
-            if (polygon != null && polygon.getPoints() != null) {
-                UniPoint firstPoint = null;
-                UniPoint prevPoint = null;
-                int minX = Integer.MAX_VALUE;
-                int maxY = Integer.MIN_VALUE;
-                int minY = Integer.MAX_VALUE;
-                Iterator<UniPoint> it = polygon.getPoints().iterator();
-                // 按人脸区域的多边形数据绘制
-                while (it.hasNext()) {
-                    UniPoint point = it.next().clone();
-                    point.x = point.x * sw / previewSize.getWidth();
-                    point.y = point.y * sh / previewSize.getHeight();
-                    if (this.grabberConfiguration.isFront()) {
-                        point.x = sw - point.x;
-                    }
-                    if (minX > point.x) {
-                        minX = point.x;
-                    }
-                    if (minY > point.y) {
-                        minY = point.y;
-                    }
-                    if (maxY < point.y) {
-                        maxY = point.y;
-                    }
-                    if (firstPoint == null) {
-                        firstPoint = point;
-                    }
-                    if (prevPoint != null) {
-                        canvas.drawLine(prevPoint.x, prevPoint.y, point.x, point.y, polygonPaint);
-                    }
-                    prevPoint = point;
-                }
-                if (firstPoint != prevPoint) {
-                    canvas.drawLine(prevPoint.x, prevPoint.y, firstPoint.x, firstPoint.y, polygonPaint);
-                }
-                // 按人脸区域的矩形数据绘制
-                if (!polygon.isRect()) {
-                    UniRect rect = feature.getRectangle();
-                    rect.x = rect.x * sw / previewSize.getWidth();
-                    rect.y = rect.y * sh / previewSize.getHeight();
-                    rect.width = rect.width * sw / previewSize.getWidth();
-                    rect.height = rect.height * sh / previewSize.getHeight();
-                    if (this.grabberConfiguration.isFront()) {
-                        rect.x = sw - rect.x - rect.width;
-                    }
-                    RectF rect2 = new RectF(rect.x, rect.y, rect.x + rect.width - 1, rect.y + rect.height - 1);
-                    canvas.drawRect(rect2, rectPaint);
-                }
-                UniPoint mp = feature.getMouthPoint();
-                UniPoint lep = feature.getLeftEyePoint();
-                UniPoint rep = feature.getRightEyePoint();
-                // 绘制人脸的嘴眼点位
-                if (mp != null) {
-                    mp.x = mp.x * sw / previewSize.getWidth();
-                    mp.y = mp.y * sh / previewSize.getHeight();
-                    lep.x = lep.x * sw / previewSize.getWidth();
-                    lep.y = lep.y * sh / previewSize.getHeight();
-                    rep.x = rep.x * sw / previewSize.getWidth();
-                    rep.y = rep.y * sh / previewSize.getHeight();
-                    if (this.grabberConfiguration.isFront()) {
-                        mp.x += (sw / 2 - mp.x) * 2;
-                        lep.x += (sw / 2 - lep.x) * 2;
-                        rep.x += (sw / 2 - rep.x) * 2;
-                    }
-                    canvas.drawLine(mp.x, mp.y, lep.x, lep.y, polygonPaint);
-                    canvas.drawLine(lep.x, lep.y, rep.x, rep.y, polygonPaint);
-                    canvas.drawLine(mp.x, mp.y, rep.x, rep.y, polygonPaint);
-                }
-                canvas.drawText(String.format("置信:%d,清晰:%.2f", feature.getScore() == null ? -1 : feature.getScore(), feature.getClarity() == null ? -1f : feature.getClarity()), minX, (topTip ? minY : maxY) - 8, textPaint);
-            }
-        }
-    }
     protected UniFaceFeature[] parseFaceFeaturesFromGeometryGraph(UniGeometryGraph rootGraph) {
         UniFaceFeature[] features = null;
         if (rootGraph != null) {
@@ -519,4 +852,36 @@ public abstract class ShowCamera2FaceDemoFragment extends Fragment {
         }
         return features;
     }
+    /**
+     * 从扁平人脸图层中解析人脸特征，结果与parseFaceFeaturesFromGeometryGraph(UniGeometryGraph)一致，按名称ID查找不比较字符串
+     */
+    protected UniFaceFeature[] parseFaceFeaturesFromGeometryGraph(UniFlatGeometryGraph rootGraph) {
+        UniFaceFeature[] features = null;
+        if (rootGraph != null) {
+            int facesNode = rootGraph.findInside(UniFlatGeometryGraph.ROOT, UniFlatGeometryGraph.FaceName);
+            if (facesNode >= 0 && rootGraph.getInsideCount(facesNode) > 0) {
+                features = new UniFaceFeature[rootGraph.getInsideCount(facesNode)];
+                for (int i = 0; i < features.length; i++) {
+                    int face = rootGraph.getInside(facesNode, i);
+                    UniFaceFeature feature = new UniFaceFeature();
+                    feature.setFaceId(rootGraph.getId(face));
+                    feature.setScore(rootGraph.getScore(face));
+                    feature.setPolygon(new UniPolygon(rootGraph.getPoints(face)));
+                    for (int j = 0; j < rootGraph.getInsideCount(face); j++) {
+                        int node = rootGraph.getInside(face, j);
+                        int nameId = rootGraph.getNameId(node);
+                        if (nameId == UniFlatGeometryGraph.FacePolygonMouthPointName) {
+                            feature.setMouthPoint(rootGraph.asPoint(node, null));
+                        } else if (nameId == UniFlatGeometryGraph.FacePolygonLeftEyePointName) {
+                            feature.setLeftEyePoint(rootGraph.asPoint(node, null));
+                        } else if (nameId == UniFlatGeometryGraph.FacePolygonRightEyePointName) {
+                            feature.setRightEyePoint(rootGraph.asPoint(node, null));
+                        }
+                    }
+                    features[i] = feature;
+                }
+            }
+        }
+        return features;
+    }
 }
@@ -0,0 +1,462 @@
+package uniface.android.engine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import thread.WhileThread;
+import uniface.UniFaceAnalysisItem;
+import uniface.UniFaceAnalyzer;
+import uniface.UniFaceEngine;
+import uniface.UniFaceEngineFactory;
+import uniface.UniFaceFeature;
+import uniface.android.image.UniYPlanePyramid;
+import uniface.android.metrics.UniPipelineMetrics;
+import uniface.android.pipeline.UniBestShotSelector;
+import uniface.android.pipeline.UniFaceQualityGate;
+import uniface.android.pipeline.UniFaceTracker;
+import uniimage.UniImage;
+import uniimage.UniYUVImage;
+
+/**
+ * 批量提取人脸特征的人脸分析器，用来替代uniface.util.UniFaceParallelAnalyzer<br>
+ * 1. 人脸引擎只负责检测人脸和截取对齐的人脸小图，不提取特征值；<br>
+ * 2. 一帧中的所有人脸，以及在最长等待时间内排队的多帧中的所有人脸，合并为一次UniBatchFaceExtractor推理，
+ * 人脸数量达到最大批量时不再等待；<br>
+ * 3. 批量内的人脸数组和任务列表在批次之间复用；<br>
+ * 4. 一个分析器由一个后台线程按批处理，提取器不需要线程安全；<br>
+ * 5. 可选的质量门限和最佳帧选择器在检测之后、提取之前过滤人脸，未被选中的人脸在回调中没有特征值；<br>
+ * 6. 可选的人脸跟踪器在检测之后为人脸分配跟踪ID（faceId），已有特征值的跟踪直接复用，每个跟踪只提取一次特征值；<br>
+ * 7. 启用金字塔检测时，YUV帧图不再整帧转换为RGB：在Y平面生成的灰度金字塔的小图上检测人脸，
+ * 人脸位置映射回原图，只把人脸区域转换为RGB小图用来提取特征值。
+ */
+public class UniBatchFaceAnalyzer implements UniFaceAnalyzer {
+    /**
+     * 最佳帧回调，在最佳帧的人脸提取特征值以后调用
+     */
+    public interface BestShotCallback {
+        /**
+         * @param face 窗口内质量最好的人脸，已经提取了特征值
+         */
+        void onBestShot(UniFaceFeature face);
+    }
+    private static class AnalyseTask {
+        private UniImage image;
+        private Object custom;
+        private AnalysedCallback callback;
+        private UniFaceFeature[] features;
+        private Exception exception;
+        private AnalyseTask(UniImage image, Object custom, AnalysedCallback callback) {
+            this.image = image;
+            this.custom = custom;
+            this.callback = callback;
+        }
+    }
+    private final ArrayDeque<AnalyseTask> tasks = new ArrayDeque<AnalyseTask>();
+    private final UniFaceEngineFactory factory;
+    private final UniBatchFaceExtractor extractor;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final int maxWaitings;
+    private boolean closed;
+    private boolean started;
+    private UniPipelineMetrics metrics;
+    private UniFaceQualityGate qualityGate;
+    private UniBestShotSelector bestShotSelector;
+    private BestShotCallback bestShotCallback;
+    private UniFaceTracker faceTracker;
+    private int pyramidMaxSide;
+    private float pyramidCropMargin;
+    private long batchCount;
+    private long batchedFaces;
+
+    /**
+     * @param factory 人脸引擎工厂，用来创建检测人脸的引擎
+     * @param extractor 批量特征提取器
+     * @param maxBatchSize 一次推理最多合并的人脸数量，<1表示取提取器的最大批量
+     * @param maxWaitTime 第一帧入队以后等待更多帧凑批的最长毫秒数，0表示只合并已经排队的帧
+     * @param maxWaitings 在队列中等待的最大帧数，<1表示不限
+     */
+    public UniBatchFaceAnalyzer(UniFaceEngineFactory factory, UniBatchFaceExtractor extractor, int maxBatchSize, long maxWaitTime, int maxWaitings) {
+        this.factory = factory;
+        this.extractor = extractor;
+        this.maxBatchSize = maxBatchSize < 1 ? extractor.getMaxBatchSize() : maxBatchSize;
+        this.maxWaitNanos = maxWaitTime < 0 ? 0 : maxWaitTime * 1000000L;
+        this.maxWaitings = maxWaitings;
+    }
+    /**
+     * 设置记录运行指标的对象，人脸检测耗时记入Analyse，批量推理耗时记入Extract
+     */
+    public UniBatchFaceAnalyzer setMetrics(UniPipelineMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * 设置人脸质量门限，被拒绝的人脸不提取特征值，在开始分析之前设置
+     */
+    public UniBatchFaceAnalyzer setQualityGate(UniFaceQualityGate qualityGate) {
+        this.qualityGate = qualityGate;
+        return this;
+    }
+    /**
+     * 设置最佳帧选择器，同一人脸在一个窗口内只提取一次特征值，在开始分析之前设置<br>
+     * 最佳帧选择器按faceId区分人脸，需要同时通过setFaceTracker()设置人脸跟踪器为人脸分配跟踪ID，
+     * 否则人脸没有跟踪ID，每个人脸都直接输出。<br>
+     * 最佳帧输出时，它所在帧的回调通常已经完成，所以提取结果通过bestShotCallback另行通知
+     * @param bestShotSelector 最佳帧选择器，只在批处理线程中使用
+     * @param bestShotCallback 最佳帧回调
+     */
+    public UniBatchFaceAnalyzer setBestShotSelector(UniBestShotSelector bestShotSelector, BestShotCallback bestShotCallback) {
+        this.bestShotSelector = bestShotSelector;
+        this.bestShotCallback = bestShotCallback;
+        return this;
+    }
+
+    /**
+     * 设置人脸跟踪器，在开始分析之前设置<br>
+     * 检测所得的人脸按交并比与跟踪的人脸匹配，faceId被设置为跟踪ID；跟踪已有特征值的人脸直接复用，不经过质量门限和最佳帧选择，
+     * 也不再提取。跟踪器按帧的先后顺序匹配，只适用于单个视频源的连续帧。
+     * @param faceTracker 人脸跟踪器，只在批处理线程中使用
+     */
+    public UniBatchFaceAnalyzer setFaceTracker(UniFaceTracker faceTracker) {
+        this.faceTracker = faceTracker;
+        return this;
+    }
+    /**
+     * 启用金字塔检测，只对UniYUVImage帧图生效，在开始分析之前设置<br>
+     * 人脸引擎需要能够分析UniGrayYImage灰度图，回调中人脸的位置是原图坐标；
+     * 其他格式的帧图仍然整图检测，由人脸引擎截取人脸小图，引擎的分析项目按帧图格式切换
+     * @param maxSide 检测图的最大边长，取长边不超过它的最大一层金字塔，<1表示不启用
+     * @param cropMargin 人脸小图每侧边距与人脸长边之比
+     */
+    public UniBatchFaceAnalyzer setPyramid(int maxSide, float cropMargin) {
+        this.pyramidMaxSide = maxSide;
+        this.pyramidCropMargin = cropMargin;
+        return this;
+    }
+
+    private final WhileThread batchThread = new WhileThread() {
+        private UniFaceEngine engine;
+        private UniFaceFeature[] batchFaces = new UniFaceFeature[16];
+        private final ArrayList<AnalyseTask> batchTasks = new ArrayList<AnalyseTask>();
+        private final ArrayList<UniFaceFeature> bestShots = new ArrayList<UniFaceFeature>();
+        private final UniYPlanePyramid pyramid = new UniYPlanePyramid(6);
+        private UniFaceAnalysisItem[] faceImageItems; // 由人脸引擎截取人脸小图的分析项目
+        private UniFaceAnalysisItem[] pyramidItems; // 金字塔检测时的分析项目，人脸小图从原图截取
+        private boolean engineFaceImage; // 人脸引擎当前是否截取人脸小图
+        @Override
+        public void run() {
+            Thread.currentThread().setName("BatchAnalyseThread_" + Thread.currentThread().getId());
+            try {
+                this.engine = UniBatchFaceAnalyzer.this.factory.createEngine(true);
+                this.faceImageItems = UniBatchFaceAnalyzer.detectOnlyItems(this.engine, true);
+                this.pyramidItems = UniBatchFaceAnalyzer.detectOnlyItems(this.engine, false);
+                this.engine.setAnalysisItems(this.faceImageItems);
+                this.engineFaceImage = true;
+            } catch (Exception e) {
+                this.engine = null;
+                e.printStackTrace();
+            }
+            while (super.running()) {
+                AnalyseTask task = UniBatchFaceAnalyzer.this.poll(0);
+                if (task == null) {
+                    if (UniBatchFaceAnalyzer.this.isClosed()) {
+                        break;
+                    }
+                    continue;
+                }
+                long deadline = System.nanoTime() + UniBatchFaceAnalyzer.this.maxWaitNanos;
+                int faceCount = 0;
+                // 检测排队的帧，直到人脸数量达到最大批量或者等待超时
+                while (task != null) {
+                    faceCount = this.detect(task, faceCount);
+                    this.batchTasks.add(task);
+                    if (faceCount >= UniBatchFaceAnalyzer.this.maxBatchSize) {
+                        break;
+                    }
+                    task = UniBatchFaceAnalyzer.this.poll(deadline);
+                }
+                this.extract(faceCount);
+                this.complete();
+                this.notifyBestShots();
+            }
+            UniFaceEngine engine = this.engine;
+            this.engine = null;
+            if (engine != null) {
+                UniBatchFaceAnalyzer.this.factory.destoryEngine(engine);
+            }
+        }
+        private int detect(AnalyseTask task, int faceCount) {
+            if (this.engine == null) {
+                task.exception = new IllegalStateException("face engine unavailable");
+                return faceCount;
+            }
+            boolean pyramid = UniBatchFaceAnalyzer.this.pyramidMaxSide > 0 && task.image instanceof UniYUVImage;
+            int level = 0;
+            try {
+                if (this.engineFaceImage == pyramid) {
+                    // 金字塔检测的人脸小图从原图截取，其他帧图的人脸小图只能由人脸引擎截取，交替出现时才切换
+                    this.engine.setAnalysisItems(pyramid ? this.pyramidItems : this.faceImageItems);
+                    this.engineFaceImage = !pyramid;
+                }
+                long time = System.nanoTime();
+                if (pyramid) {
+                    this.pyramid.build((UniYUVImage) task.image, 0);
+                    level = this.pyramid.selectLevel(UniBatchFaceAnalyzer.this.pyramidMaxSide);
+                    time = UniBatchFaceAnalyzer.this.record(UniPipelineMetrics.Pyramid, time);
+                    task.features = this.engine.analyse(this.pyramid.getLevel(level));
+                } else {
+                    task.features = this.engine.analyse(task.image);
+                }
+                UniBatchFaceAnalyzer.this.record(UniPipelineMetrics.Analyse, time);
+            } catch (Exception e) {
+                task.exception = e;
+            }
+            UniFaceFeature[] features = task.features;
+            if (pyramid && features != null) {
+                for (int i = 0; i < features.length; i++) {
+                    this.pyramid.mapToFrame(features[i], level);
+                }
+            }
+            UniFaceTracker tracker = UniBatchFaceAnalyzer.this.faceTracker;
+            if (tracker != null && task.exception == null) {
+                long reused = tracker.getReusedFeatures();
+                tracker.onDetected(features);
+                UniPipelineMetrics metrics = UniBatchFaceAnalyzer.this.metrics;
+                if (metrics != null) {
+                    metrics.getCounter(UniPipelineMetrics.FacesReused).addAndGet(tracker.getReusedFeatures() - reused);
+                }
+            }
+            UniFaceQualityGate gate = UniBatchFaceAnalyzer.this.qualityGate;
+            UniBestShotSelector selector = UniBatchFaceAnalyzer.this.bestShotSelector;
+            if (selector != null) {
+                selector.beginFrame();
+            }
+            int count = features == null ? 0 : features.length;
+            for (int i = 0; i < count; i++) {
+                UniFaceFeature face = features[i];
+                if (face.getFeatureCode() != null) {
+                    // 跟踪已有特征值
+                    continue;
+                }
+                float quality = gate == null ? 0 : gate.evaluate(task.image, face);
+                if (quality < 0) {
+                    UniPipelineMetrics metrics = UniBatchFaceAnalyzer.this.metrics;
+                    if (metrics != null) {
+                        metrics.increment(UniPipelineMetrics.FacesRejected);
+                    }
+                    continue;
+                }
+                if (pyramid) {
+                    // 只把通过质量门限的人脸区域转换为RGB，最佳帧可能在之后的帧才被选中，所以在原图有效时就截取
+                    long time = System.nanoTime();
+                    this.pyramid.cropFace(face, UniBatchFaceAnalyzer.this.pyramidCropMargin, null);
+                    UniBatchFaceAnalyzer.this.record(UniPipelineMetrics.RotateYuv2rgb, time);
+                }
+                if (selector != null) {
+                    selector.offer(face, quality);
+                } else {
+                    faceCount = this.add(face, faceCount);
+                }
+            }
+            this.pyramid.clear();
+            if (selector != null) {
+                // 选中的可能是之前帧中的人脸，它们的人脸小图仍然有效
+                List<UniFaceFeature> selected = selector.endFrame();
+                for (int i = 0; i < selected.size(); i++) {
+                    faceCount = this.add(selected.get(i), faceCount);
+                    this.bestShots.add(selected.get(i));
+                }
+            }
+            return faceCount;
+        }
+        private int add(UniFaceFeature face, int faceCount) {
+            if (this.batchFaces.length <= faceCount) {
+                UniFaceFeature[] grown = new UniFaceFeature[this.batchFaces.length * 2];
+                System.arraycopy(this.batchFaces, 0, grown, 0, faceCount);
+                this.batchFaces = grown;
+            }
+            this.batchFaces[faceCount] = face;
+            return faceCount + 1;
+        }
+        private void extract(int faceCount) {
+            if (faceCount == 0) {
+                return;
+            }
+            try {
+                long time = System.nanoTime();
+                UniBatchFaceAnalyzer.this.extractor.extract(this.batchFaces, 0, faceCount);
+                UniBatchFaceAnalyzer.this.record(UniPipelineMetrics.Extract, time);
+                synchronized (UniBatchFaceAnalyzer.this.tasks) {
+                    UniBatchFaceAnalyzer.this.batchCount++;
+                    UniBatchFaceAnalyzer.this.batchedFaces += faceCount;
+                }
+                UniPipelineMetrics metrics = UniBatchFaceAnalyzer.this.metrics;
+                if (metrics != null) {
+                    metrics.getCounter(UniPipelineMetrics.FacesExtracted).addAndGet(faceCount);
+                }
+            } catch (Exception e) {
+                for (AnalyseTask task : this.batchTasks) {
+                    if (task.exception == null) {
+                        task.exception = e;
+                    }
+                }
+            }
+            UniFaceTracker tracker = UniBatchFaceAnalyzer.this.faceTracker;
+            for (int i = 0; i < faceCount; i++) {
+                if (tracker != null) {
+                    // 最佳帧可能是之前帧中的人脸，特征值交给它所在的跟踪
+                    tracker.onExtracted(this.batchFaces[i]);
+                }
+                this.batchFaces[i] = null;
+            }
+        }
+        private void notifyBestShots() {
+            BestShotCallback callback = UniBatchFaceAnalyzer.this.bestShotCallback;
+            for (int i = 0; i < this.bestShots.size(); i++) {
+                UniFaceFeature face = this.bestShots.get(i);
+                if (callback != null && face.getFeatureCode() != null) {
+                    try {
+                        callback.onBestShot(face);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            this.bestShots.clear();
+        }
+        private void complete() {
+            for (AnalyseTask task : this.batchTasks) {
+                try {
+                    task.callback.onCompleted(task.custom, task.exception == null ? task.features : null, task.exception);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                task.image = null;
+                task.features = null;
+            }
+            this.batchTasks.clear();
+        }
+        @Override
+        protected void stopping() {
+            synchronized (UniBatchFaceAnalyzer.this.tasks) {
+                UniBatchFaceAnalyzer.this.tasks.notifyAll();
+            }
+        }
+        @Override
+        protected void pausing() {
+        }
+    };
+    /**
+     * 人脸引擎只检测人脸、截取人脸小图的分析项目，特征值交给批量提取器
+     * @param faceImage 是否由人脸引擎截取人脸小图，金字塔检测时人脸小图从原图截取
+     */
+    private static UniFaceAnalysisItem[] detectOnlyItems(UniFaceEngine engine, boolean faceImage) throws Exception {
+        UniFaceAnalysisItem[] items = engine.getAnalysisItems();
+        ArrayList<UniFaceAnalysisItem> list = new ArrayList<UniFaceAnalysisItem>();
+        if (items != null) {
+            for (UniFaceAnalysisItem item : items) {
+                if (item != UniFaceAnalysisItem.FeatureCode && item != UniFaceAnalysisItem.FaceImage) {
+                    list.add(item);
+                }
+            }
+        }
+        if (faceImage) {
+            list.add(UniFaceAnalysisItem.FaceImage);
+        }
+        return list.toArray(new UniFaceAnalysisItem[0]);
+    }
+    private long record(String stage, long startNanos) {
+        UniPipelineMetrics metrics = this.metrics;
+        if (metrics != null) {
+            return metrics.recordSince(stage, startNanos);
+        }
+        return System.nanoTime();
+    }
+    /**
+     * 取下一个任务
+     * @param deadline 等待截止的System.nanoTime()值，0表示没有待提取的批次，不设超时一直等待，直到有新任务或者分析器关闭
+     * @return 任务，超时、被中断或者关闭时返回null
+     */
+    private AnalyseTask poll(long deadline) {
+        synchronized (this.tasks) {
+            while (this.tasks.isEmpty() && !this.closed) {
+                try {
+                    if (deadline == 0) {
+                        // 空闲时不轮询，close()和analyse()都会唤醒
+                        this.tasks.wait();
+                    } else {
+                        long wait = (deadline - System.nanoTime()) / 1000000L;
+                        if (wait <= 0) {
+                            return null;
+                        }
+                        this.tasks.wait(wait);
+                    }
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            AnalyseTask task = this.tasks.pollFirst();
+            this.tasks.notifyAll(); // 通知等待入队的生产者
+            return task;
+        }
+    }
+
+    @Override
+    public UniFaceAnalyzer analyse(UniImage image, Object custom, AnalysedCallback callback) throws Exception {
+        synchronized (this.tasks) {
+            if (!this.closed && !this.started) {
+                this.started = true;
+                this.batchThread.start();
+            }
+            if (this.maxWaitings > 0) {
+                while (this.tasks.size() >= this.maxWaitings && !this.closed) {
+                    this.tasks.wait(100);
+                }
+            }
+            if (!this.closed) {
+                this.tasks.addLast(new AnalyseTask(image, custom, callback));
+                this.tasks.notifyAll();
+                return this;
+            }
+        }
+        callback.onCompleted(custom, null, null);
+        return this;
+    }
+    private boolean isClosed() {
+        synchronized (this.tasks) {
+            return this.closed;
+        }
+    }
+    public int getWaitings() {
+        synchronized (this.tasks) {
+            return this.tasks.size();
+        }
+    }
+    /**
+     * @return 平均每次推理合并的人脸数量
+     */
+    public float getAverageBatchSize() {
+        synchronized (this.tasks) {
+            return this.batchCount == 0 ? 0 : (float) this.batchedFaces / this.batchCount;
+        }
+    }
+    /**
+     * 关闭分析器，排队中的任务以空结果回调，提取器由调用者关闭
+     */
+    public UniFaceAnalyzer close() {
+        ArrayList<AnalyseTask> pending;
+        synchronized (this.tasks) {
+            this.closed = true;
+            pending = new ArrayList<AnalyseTask>(this.tasks);
+            this.tasks.clear();
+            this.tasks.notifyAll();
+        }
+        for (AnalyseTask task : pending) {
+            task.callback.onCompleted(task.custom, null, null);
+        }
+        this.batchThread.stop();
+        return this;
+    }
+}
@@ -0,0 +1,26 @@
+package uniface.android.engine;
+
+import uniface.UniFaceFeature;
+
+/**
+ * 批量人脸特征提取器<br>
+ * 将多个已对齐的人脸小图（UniFaceFeature.faceImage）合并为一次模型推理，提取结果写入各自的featureCode。
+ */
+public interface UniBatchFaceExtractor {
+    /**
+     * @return 一次推理最多处理的人脸数量
+     */
+    int getMaxBatchSize();
+    /**
+     * 提取一组人脸的特征值，数量超过getMaxBatchSize()时分为多次推理
+     * @param faces 人脸特征数组，faceImage为null的人脸会被跳过
+     * @param offset 起始位置
+     * @param count 人脸数量
+     * @return 实际提取了特征值的人脸数量
+     */
+    int extract(UniFaceFeature[] faces, int offset, int count) throws Exception;
+    /**
+     * 释放模型等资源
+     */
+    void close();
+}
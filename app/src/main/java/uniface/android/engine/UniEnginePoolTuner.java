@@ -0,0 +1,313 @@
+package uniface.android.engine;
+
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uniface.UniFaceEngine;
+import uniface.UniFaceEngineFactory;
+import uniface.util.UniFaceEnginePoolFactory;
+import uniimage.UniImage;
+
+/**
+ * 人脸引擎池的自动调优<br>
+ * 1. 对每一组候选的池大小和单个引擎的推理线程数，用同样数量的线程并发分析校准图片一段时间，测量每秒分析次数；<br>
+ * 2. 取吞吐量最高的配置，吞吐量相差不超过5%时取总线程数（池大小x推理线程数）较少的配置，避免大小核设备上的过度订阅；<br>
+ * 3. 结果按设备型号保存在属性文件中，同一型号的设备之后直接读取，不再校准；<br>
+ * 4. 借用等待上限按实测的单次分析耗时推算，代替固定的30秒。
+ */
+public class UniEnginePoolTuner {
+    /**
+     * 引擎池配置
+     */
+    public static class Configuration {
+        private final int poolSize;
+        private final int threads;
+        private final float throughput;
+        private final long latency;
+        public Configuration(int poolSize, int threads, float throughput, long latency) {
+            this.poolSize = poolSize;
+            this.threads = threads;
+            this.throughput = throughput;
+            this.latency = latency;
+        }
+        /**
+         * @return 池中最大的引擎数
+         */
+        public int getPoolSize() {
+            return this.poolSize;
+        }
+        /**
+         * @return 单个引擎的推理线程数
+         */
+        public int getThreads() {
+            return this.threads;
+        }
+        /**
+         * @return 校准时测得的每秒分析次数
+         */
+        public float getThroughput() {
+            return this.throughput;
+        }
+        /**
+         * @return 校准时测得的单次分析平均耗时毫秒值
+         */
+        public long getLatency() {
+            return this.latency;
+        }
+        /**
+         * @return 推荐的借用等待上限毫秒值：所有引擎都被占用时，等待几轮分析完成的时间
+         */
+        public long getMaxWait() {
+            return Math.max(MIN_MAX_WAIT, Math.min(MAX_MAX_WAIT, this.latency * MAX_WAIT_ROUNDS));
+        }
+        private String format() {
+            return String.format(Locale.US, "%d,%d,%.2f,%d", this.poolSize, this.threads, this.throughput, this.latency);
+        }
+        private static Configuration parse(String value) {
+            if (value == null) {
+                return null;
+            }
+            String[] fields = value.split(",");
+            try {
+                return new Configuration(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                        Float.parseFloat(fields[2]), Long.parseLong(fields[3]));
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "pool:%d, threads:%d, throughput:%.2f/s, latency:%dms",
+                    this.poolSize, this.threads, this.throughput, this.latency);
+        }
+    }
+    private final static long MIN_MAX_WAIT = 1000;
+    private final static long MAX_MAX_WAIT = 30000;
+    private final static int MAX_WAIT_ROUNDS = 20;
+    private final static float TIE_RATIO = 0.95f; // 吞吐量不低于最优值的95%视为相当
+
+    private final UniFaceEngineFactory rawEngineFactory;
+    private final File store;
+    private final String deviceKey;
+    private String threadsProperty = "threads";
+    private int[] poolSizes;
+    private int[] threadCounts;
+    private long warmupTime = 300;
+    private long calibrationTime = 1500;
+    private UniImage calibrationImage = UniEnginePrewarmer.createWarmupImage();
+    private final List<Configuration> results = new ArrayList<Configuration>();
+
+    /**
+     * @param rawEngineFactory 创建真实引擎的工厂，校准时为每组候选配置创建独立的引擎池
+     * @param store 保存校准结果的属性文件
+     * @param deviceKey 设备标识，null表示取当前设备的厂商和型号
+     */
+    public UniEnginePoolTuner(UniFaceEngineFactory rawEngineFactory, File store, String deviceKey) {
+        this.rawEngineFactory = rawEngineFactory;
+        this.store = store;
+        this.deviceKey = deviceKey == null ? defaultDeviceKey() : deviceKey;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        this.poolSizes = new int[Math.max(1, Math.min(cpus, 4))];
+        for (int i = 0; i < this.poolSizes.length; i++) {
+            this.poolSizes[i] = i + 1;
+        }
+        this.threadCounts = cpus >= 4 ? new int[] {1, 2, 4} : (cpus >= 2 ? new int[] {1, 2} : new int[] {1});
+    }
+    public static String defaultDeviceKey() {
+        return (Build.MANUFACTURER + "_" + Build.MODEL).replace(' ', '_');
+    }
+    /**
+     * 设置引擎打开参数中推理线程数对应的属性名
+     */
+    public UniEnginePoolTuner setThreadsProperty(String threadsProperty) {
+        this.threadsProperty = threadsProperty;
+        return this;
+    }
+    /**
+     * 设置候选的池大小和推理线程数
+     */
+    public UniEnginePoolTuner setCandidates(int[] poolSizes, int[] threadCounts) {
+        this.poolSizes = poolSizes.clone();
+        this.threadCounts = threadCounts.clone();
+        return this;
+    }
+    /**
+     * 设置每组候选配置的预热和测量时长毫秒值
+     */
+    public UniEnginePoolTuner setCalibrationTime(long warmupTime, long calibrationTime) {
+        this.warmupTime = warmupTime < 0 ? 0 : warmupTime;
+        this.calibrationTime = calibrationTime < 1 ? 1 : calibrationTime;
+        return this;
+    }
+    /**
+     * 设置校准时分析的图片，最好是包含人脸的典型帧图，默认为空白图
+     */
+    public UniEnginePoolTuner setCalibrationImage(UniImage calibrationImage) {
+        this.calibrationImage = calibrationImage;
+        return this;
+    }
+    /**
+     * @return 最近一次校准中每组候选配置的测量结果
+     */
+    public List<Configuration> getResults() {
+        return this.results;
+    }
+
+    /**
+     * 读取当前设备保存的配置
+     * @return 配置，没有保存过时返回null
+     */
+    public Configuration load() {
+        return Configuration.parse(this.loadStore().getProperty(this.deviceKey));
+    }
+    /**
+     * 读取当前设备保存的配置，没有保存过时校准
+     */
+    public Configuration loadOrCalibrate() throws Exception {
+        Configuration configuration = this.load();
+        return configuration != null ? configuration : this.calibrate();
+    }
+    /**
+     * 逐一测量候选配置，保存并返回最优的配置，耗时约为候选数x(预热时长+测量时长)
+     */
+    public Configuration calibrate() throws Exception {
+        this.results.clear();
+        int cpus = Runtime.getRuntime().availableProcessors();
+        Configuration best = null;
+        for (int poolSize : this.poolSizes) {
+            for (int threads : this.threadCounts) {
+                if (poolSize > 1 && poolSize * threads > cpus * 2) {
+                    // 总线程数远超核心数的组合不必测量
+                    continue;
+                }
+                Configuration c = this.measure(poolSize, threads);
+                this.results.add(c);
+                if (best == null || better(c, best)) {
+                    best = c;
+                }
+            }
+        }
+        if (best == null) {
+            throw new IllegalStateException("no candidate configuration");
+        }
+        this.save(best);
+        return best;
+    }
+    private static boolean better(Configuration c, Configuration best) {
+        if (c.throughput >= best.throughput * TIE_RATIO && best.throughput >= c.throughput * TIE_RATIO) {
+            return c.poolSize * c.threads < best.poolSize * best.threads;
+        }
+        return c.throughput > best.throughput;
+    }
+    /**
+     * 用poolSize个线程并发借用引擎分析校准图片，测量吞吐量和平均耗时
+     */
+    private Configuration measure(int poolSize, int threads) throws Exception {
+        final UniFaceEnginePoolFactory factory = this.apply(new Configuration(poolSize, threads, 0, 0), new UniFaceEnginePoolFactory(this.rawEngineFactory));
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong busy = new AtomicLong();
+        final long[] window = new long[2]; // 测量开始和结束的System.nanoTime()值
+        final Exception[] error = new Exception[1];
+        long now = System.nanoTime();
+        window[0] = now + this.warmupTime * 1000000L;
+        window[1] = window[0] + this.calibrationTime * 1000000L;
+        Thread[] workers = new Thread[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (System.nanoTime() < window[1]) {
+                            UniFaceEngine engine = factory.createEngine(true);
+                            try {
+                                long start = System.nanoTime();
+                                engine.analyse(UniEnginePoolTuner.this.calibrationImage);
+                                long end = System.nanoTime();
+                                if (start >= window[0] && end <= window[1]) {
+                                    count.incrementAndGet();
+                                    busy.addAndGet(end - start);
+                                }
+                            } finally {
+                                factory.destoryEngine(engine);
+                            }
+                        }
+                    } catch (Exception e) {
+                        synchronized (error) {
+                            error[0] = e;
+                        }
+                    }
+                }
+            }, "PoolTunerThread_" + i);
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        factory.clearPool();
+        synchronized (error) {
+            if (error[0] != null) {
+                throw error[0];
+            }
+        }
+        long n = count.get();
+        float throughput = n * 1000f / this.calibrationTime;
+        long latency = n == 0 ? this.calibrationTime : busy.get() / n / 1000000L;
+        return new Configuration(poolSize, threads, throughput, latency);
+    }
+    /**
+     * 将配置应用到引擎池工厂
+     * @return factory
+     */
+    public UniFaceEnginePoolFactory apply(Configuration configuration, UniFaceEnginePoolFactory factory) {
+        factory.setPoolMaxTotal(configuration.getPoolSize());
+        if (configuration.getLatency() > 0) {
+            factory.setPoolMaxWait(configuration.getMaxWait());
+        }
+        Properties properties = factory.getPropertiesForAutoOpen();
+        properties = properties == null ? new Properties() : (Properties) properties.clone();
+        properties.setProperty(this.threadsProperty, String.valueOf(configuration.getThreads()));
+        factory.setPropertiesForAutoOpen(properties);
+        return factory;
+    }
+
+    private Properties loadStore() {
+        Properties properties = new Properties();
+        if (this.store != null && this.store.isFile()) {
+            try {
+                InputStream in = new FileInputStream(this.store);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return properties;
+    }
+    private void save(Configuration configuration) throws IOException {
+        if (this.store == null) {
+            return;
+        }
+        Properties properties = this.loadStore();
+        properties.setProperty(this.deviceKey, configuration.format());
+        OutputStream out = new FileOutputStream(this.store);
+        try {
+            properties.store(out, "uniface engine pool tuning: poolSize,threads,throughput,latency");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package uniface.android.engine;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import uniface.UniFaceEngine;
+import uniface.UniFaceEngineFactory;
+import uniface.util.UniFaceEnginePoolFactory;
+import uniimage.UniImage;
+import uniimage.UniRGBImage;
+
+/**
+ * 人脸引擎预热<br>
+ * 1. 在后台线程中提前创建并打开引擎，用一张空白图分析一次，让模型加载、解释器张量分配等一次性开销发生在第一帧到来之前；<br>
+ * 2. 对UniFaceEnginePoolFactory，同时借出指定数量的引擎，预热以后全部归还，池中就保有这些已打开的空闲引擎，
+ * 之后的createEngine()直接取用，不再等待创建和打开。
+ */
+public class UniEnginePrewarmer {
+    private final static int WARMUP_SIZE = 160; // 预热用空白图的边长
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "EnginePrewarmThread");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * 创建预热用的空白图
+     */
+    public static UniRGBImage createWarmupImage() {
+        return new UniRGBImage(WARMUP_SIZE, WARMUP_SIZE);
+    }
+    /**
+     * 异步执行一个预热任务
+     * @param task 预热任务，如调用一次第三方人脸接口的分析方法
+     * @return 任务完成时返回耗时毫秒值
+     */
+    public Future<Long> prewarm(final Callable<?> task) {
+        return this.executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                long time = System.nanoTime();
+                task.call();
+                return (System.nanoTime() - time) / 1000000L;
+            }
+        });
+    }
+    /**
+     * 异步预热引擎池，池中最终保有minIdle个已打开并分析过一次的空闲引擎
+     * @param factory 引擎池工厂
+     * @param minIdle 预热的空闲引擎数量，不超过池的最大引擎数
+     * @param warmupImage 预热时分析的图片，null表示只打开引擎不做分析
+     * @return 任务完成时返回预热的引擎数量
+     */
+    public Future<Integer> prewarm(final UniFaceEnginePoolFactory factory, int minIdle, final UniImage warmupImage) {
+        final int count = Math.max(0, Math.min(minIdle, factory.getPoolMaxTotal()));
+        return this.executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                // 各引擎在独立的线程中并行创建和预热，借出以后全部预热完成才归还，保证池中是不同的引擎
+                final UniFaceEngine[] engines = new UniFaceEngine[count];
+                Future<?>[] futures = new Future<?>[count];
+                for (int i = 0; i < count; i++) {
+                    final int index = i;
+                    futures[i] = UniEnginePrewarmer.this.executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            engines[index] = prewarmEngine(factory, warmupImage);
+                            return null;
+                        }
+                    });
+                }
+                int warmed = 0;
+                Exception exception = null;
+                for (int i = 0; i < count; i++) {
+                    try {
+                        futures[i].get();
+                        warmed++;
+                    } catch (Exception e) {
+                        exception = e;
+                    }
+                }
+                for (UniFaceEngine engine : engines) {
+                    if (engine != null) {
+                        factory.destoryEngine(engine);
+                    }
+                }
+                if (warmed == 0 && exception != null) {
+                    throw exception;
+                }
+                return warmed;
+            }
+        });
+    }
+    /**
+     * 创建一个引擎并分析一次预热图片，引擎由调用者归还或销毁
+     */
+    public static UniFaceEngine prewarmEngine(UniFaceEngineFactory factory, UniImage warmupImage) throws Exception {
+        UniFaceEngine engine = factory.createEngine(true);
+        if (warmupImage != null) {
+            try {
+                engine.analyse(warmupImage);
+            } catch (Exception e) {
+                factory.destoryEngine(engine);
+                throw e;
+            }
+        }
+        return engine;
+    }
+    public void close() {
+        this.executor.shutdown();
+    }
+}
@@ -0,0 +1,104 @@
+package uniface.android.engine;
+
+import java.util.Properties;
+
+import uniface.UniFaceAnalysisItem;
+import uniface.UniFaceEngine;
+import uniface.UniFaceEngineFactory;
+import uniface.android.metrics.UniPipelineMetrics;
+
+/**
+ * 记录引擎借用情况的人脸引擎工厂包装<br>
+ * 1. createEngine()的耗时即从引擎池借出引擎的等待时间，记入UniPipelineMetrics.BorrowWait直方图；<br>
+ * 2. 借出数量随时间的积分除以池容量和统计时长即池利用率，利用率长期接近1而借用等待很长说明池太小，
+ * 利用率很低说明池太大。
+ */
+public class UniMeteredEngineFactory implements UniFaceEngineFactory {
+    private final UniFaceEngineFactory factory;
+    private final int capacity;
+    private final UniPipelineMetrics metrics;
+    private int active;
+    private long busyNanos;
+    private long lastChangeNanos;
+    private long startNanos;
+
+    /**
+     * @param factory 被包装的工厂，通常是UniFaceEnginePoolFactory
+     * @param capacity 池容量，用来计算利用率
+     * @param metrics 记录指标的对象
+     */
+    public UniMeteredEngineFactory(UniFaceEngineFactory factory, int capacity, UniPipelineMetrics metrics) {
+        this.factory = factory;
+        this.capacity = capacity < 1 ? 1 : capacity;
+        this.metrics = metrics;
+        this.startNanos = this.lastChangeNanos = System.nanoTime();
+    }
+    private synchronized void changeActive(int delta) {
+        long now = System.nanoTime();
+        this.busyNanos += this.active * (now - this.lastChangeNanos);
+        this.lastChangeNanos = now;
+        this.active += delta;
+        this.metrics.setCounter(UniPipelineMetrics.PoolActive, this.active);
+    }
+    @Override
+    public UniFaceEngine createEngine(boolean autoOpen) throws Exception {
+        long time = System.nanoTime();
+        UniFaceEngine engine = this.factory.createEngine(autoOpen);
+        this.metrics.recordSince(UniPipelineMetrics.BorrowWait, time);
+        this.changeActive(1);
+        return engine;
+    }
+    @Override
+    public UniFaceEngineFactory destoryEngine(UniFaceEngine engine) {
+        this.factory.destoryEngine(engine);
+        this.changeActive(-1);
+        return this;
+    }
+    /**
+     * @return 统计开始以来的池利用率，0-1之间
+     */
+    public synchronized float getUtilisation() {
+        long now = System.nanoTime();
+        long busy = this.busyNanos + this.active * (now - this.lastChangeNanos);
+        long elapsed = now - this.startNanos;
+        return elapsed <= 0 ? 0 : (float) busy / ((float) elapsed * this.capacity);
+    }
+    public synchronized int getActive() {
+        return this.active;
+    }
+    /**
+     * 将当前利用率同步到计数器，单位千分比
+     */
+    public UniPipelineMetrics updateMetrics() {
+        this.metrics.setCounter(UniPipelineMetrics.PoolUtilisation, (long) (this.getUtilisation() * 1000));
+        return this.metrics;
+    }
+    /**
+     * 重新开始统计利用率
+     */
+    public synchronized void reset() {
+        this.startNanos = this.lastChangeNanos = System.nanoTime();
+        this.busyNanos = 0;
+    }
+    public UniFaceEngineFactory getFactory() {
+        return this.factory;
+    }
+    @Override
+    public Properties getPropertiesForAutoOpen() {
+        return this.factory.getPropertiesForAutoOpen();
+    }
+    @Override
+    public UniFaceEngineFactory setPropertiesForAutoOpen(Properties properties) {
+        this.factory.setPropertiesForAutoOpen(properties);
+        return this;
+    }
+    @Override
+    public UniFaceAnalysisItem[] getAnalysisItemsForAutoOpen() {
+        return this.factory.getAnalysisItemsForAutoOpen();
+    }
+    @Override
+    public UniFaceEngineFactory setAnalysisItemsForAutoOpen(UniFaceAnalysisItem[] items) throws Exception {
+        this.factory.setAnalysisItemsForAutoOpen(items);
+        return this;
+    }
+}
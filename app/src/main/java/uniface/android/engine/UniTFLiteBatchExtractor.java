@@ -0,0 +1,268 @@
+package uniface.android.engine;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import uniface.UniFaceFeature;
+import uniface.android.image.UniPlaneImageUtil;
+import uniface.android.image.UniPlaneYUVImage;
+import uniimage.UniRGBImage;
+import uniimage.UniRect;
+import uniimage.util.UniImageUtil;
+
+/**
+ * 基于Tensorflow lite的批量人脸特征提取器<br>
+ * 1. 模型输入为[batch, height, width, 3]的浮点张量，输出为[batch, dim]的特征向量，batch维度在每次推理前按实际人脸数量调整；<br>
+ * 2. 输入输出缓冲区按最大批量一次分配，每种批量大小对应的缓冲区切片和张量形状在首次使用时创建并缓存，之后的推理不再分配；<br>
+ * 3. 人脸小图按最近邻采样缩放到模型输入尺寸，像素值按(v - mean) / std归一化；<br>
+ * 4. 也可以不裁剪人脸小图，直接从UniPlaneYUVImage帧图的分量平面按人脸区域采样写入输入缓冲区，
+ *    结果与先用UniPlaneImageUtil.yuv2rgb()裁剪人脸小图再提取一致。<br>
+ * 不是线程安全的，多个线程并发提取时每个线程需要各自的实例。
+ */
+public class UniTFLiteBatchExtractor implements UniBatchFaceExtractor {
+    private final Interpreter interpreter;
+    private final int maxBatchSize;
+    private final int inputWidth;
+    private final int inputHeight;
+    private final int dimension;
+    private final float mean;
+    private final float std;
+
+    private final ByteBuffer inputBuffer;
+    private final ByteBuffer outputBuffer;
+    private final ByteBuffer[] inputSlices;
+    private final ByteBuffer[] outputSlices;
+    private final int[][] inputShapes;
+    private int currentBatch;
+    private final int[] batchIndex;
+    private final float[] vector;
+    private final int[] sampleX;
+    private final int[] sampleY;
+    private final int[] bgr = new int[3];
+    private long inferenceCount;
+    private long extractedCount;
+
+    /**
+     * @param model 模型数据，通常是映射到内存的模型文件
+     * @param maxBatchSize 一次推理最多处理的人脸数量
+     * @param numThreads 推理线程数量
+     * @param mean 像素归一化的均值，如127.5
+     * @param std 像素归一化的标准差，如128
+     */
+    public UniTFLiteBatchExtractor(ByteBuffer model, int maxBatchSize, int numThreads, float mean, float std) {
+        this.interpreter = new Interpreter(model, new Interpreter.Options().setNumThreads(numThreads < 1 ? 1 : numThreads));
+        this.maxBatchSize = maxBatchSize < 1 ? 1 : maxBatchSize;
+        int[] inputShape = this.interpreter.getInputTensor(0).shape();
+        int[] outputShape = this.interpreter.getOutputTensor(0).shape();
+        if (inputShape.length != 4 || inputShape[3] != 3 || outputShape.length != 2) {
+            this.interpreter.close();
+            throw new IllegalArgumentException("unsupported model shape");
+        }
+        this.inputHeight = inputShape[1];
+        this.inputWidth = inputShape[2];
+        this.dimension = outputShape[1];
+        this.mean = mean;
+        this.std = std == 0 ? 1 : std;
+        this.inputBuffer = ByteBuffer.allocateDirect(this.maxBatchSize * this.inputHeight * this.inputWidth * 3 * 4).order(ByteOrder.nativeOrder());
+        this.outputBuffer = ByteBuffer.allocateDirect(this.maxBatchSize * this.dimension * 4).order(ByteOrder.nativeOrder());
+        this.inputSlices = new ByteBuffer[this.maxBatchSize];
+        this.outputSlices = new ByteBuffer[this.maxBatchSize];
+        this.inputShapes = new int[this.maxBatchSize][];
+        this.currentBatch = inputShape[0];
+        this.batchIndex = new int[this.maxBatchSize];
+        this.vector = new float[this.dimension];
+        this.sampleX = new int[this.inputWidth];
+        this.sampleY = new int[this.inputHeight];
+    }
+    /**
+     * 取缓冲区前batch个人脸对应的切片，Interpreter要求缓冲区容量与张量字节数一致
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, ByteBuffer[] slices, int batch, int bytesPerFace) {
+        ByteBuffer slice = slices[batch - 1];
+        if (slice == null) {
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(0);
+            duplicate.limit(batch * bytesPerFace);
+            slice = duplicate.slice().order(ByteOrder.nativeOrder());
+            slices[batch - 1] = slice;
+        }
+        slice.clear();
+        return slice;
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return this.maxBatchSize;
+    }
+    @Override
+    public int extract(UniFaceFeature[] faces, int offset, int count) throws Exception {
+        int extracted = 0;
+        int end = offset + count;
+        int i = offset;
+        while (i < end) {
+            // 收集一批有人脸小图的人脸
+            int batch = 0;
+            for (; i < end && batch < this.maxBatchSize; i++) {
+                UniFaceFeature face = faces[i];
+                if (face != null && face.getFaceImage() != null && face.getFaceImage().getImageData() != null) {
+                    this.fillInput(face.getFaceImage(), batch);
+                    this.batchIndex[batch++] = i;
+                }
+            }
+            if (batch == 0) {
+                continue;
+            }
+            this.run(batch);
+            this.output(faces, batch);
+            extracted += batch;
+        }
+        this.extractedCount += extracted;
+        return extracted;
+    }
+    /**
+     * 直接从帧图的分量平面提取一组人脸的特征值，不生成人脸小图
+     * @param frame 帧图，提取完成以前不能release()
+     * @param degree 旋转角度，仅支持90的整数倍
+     * @param faces 人脸特征数组
+     * @param rois 与faces一一对应的人脸区域，坐标在帧图按degree旋转以后的图中，null的人脸会被跳过
+     * @param offset 起始位置
+     * @param count 人脸数量
+     * @return 实际提取了特征值的人脸数量
+     */
+    public int extract(UniPlaneYUVImage frame, int degree, UniFaceFeature[] faces, UniRect[] rois, int offset, int count) {
+        degree %= 360;
+        if (degree < 0) {
+            degree += 360;
+        }
+        int extracted = 0;
+        int end = offset + count;
+        int i = offset;
+        while (i < end) {
+            int batch = 0;
+            for (; i < end && batch < this.maxBatchSize; i++) {
+                if (faces[i] != null && rois[i] != null && rois[i].width > 0 && rois[i].height > 0) {
+                    this.fillInput(frame, degree, rois[i], batch);
+                    this.batchIndex[batch++] = i;
+                }
+            }
+            if (batch == 0) {
+                continue;
+            }
+            this.run(batch);
+            this.output(faces, batch);
+            extracted += batch;
+        }
+        this.extractedCount += extracted;
+        return extracted;
+    }
+    /**
+     * 读出batch个人脸的特征向量，写入各自的featureCode
+     */
+    private void output(UniFaceFeature[] faces, int batch) {
+        for (int b = 0; b < batch; b++) {
+            int base = b * this.dimension * 4;
+            for (int d = 0; d < this.dimension; d++) {
+                this.vector[d] = this.outputBuffer.getFloat(base + d * 4);
+            }
+            byte[] featureCode = new byte[this.dimension * 4];
+            UniImageUtil.floatsToBytes(this.vector, featureCode);
+            faces[this.batchIndex[b]].setFeatureCode(featureCode);
+        }
+    }
+    /**
+     * 按实际批量调整输入张量的batch维度并推理一次
+     */
+    private void run(int batch) {
+        if (this.currentBatch != batch) {
+            int[] shape = this.inputShapes[batch - 1];
+            if (shape == null) {
+                shape = new int[] {batch, this.inputHeight, this.inputWidth, 3};
+                this.inputShapes[batch - 1] = shape;
+            }
+            // 形状变化以后由Interpreter在下一次推理前重新分配张量
+            this.interpreter.resizeInput(0, shape);
+            this.currentBatch = batch;
+        }
+        ByteBuffer input = slice(this.inputBuffer, this.inputSlices, batch, this.inputHeight * this.inputWidth * 3 * 4);
+        ByteBuffer output = slice(this.outputBuffer, this.outputSlices, batch, this.dimension * 4);
+        this.interpreter.run(input, output);
+        this.inferenceCount++;
+    }
+    /**
+     * 将人脸小图缩放、归一化以后写入输入缓冲区的第index个位置
+     */
+    private void fillInput(UniRGBImage image, int index) {
+        byte[] data = image.getImageData();
+        int sw = image.getWidth();
+        int sh = image.getHeight();
+        UniRGBImage.RGBType type = image.getType() == null ? UniRGBImage.RGB : image.getType();
+        int pixelBytes = type.bits / 8;
+        for (int x = 0; x < this.inputWidth; x++) {
+            this.sampleX[x] = (x * sw / this.inputWidth) * pixelBytes;
+        }
+        for (int y = 0; y < this.inputHeight; y++) {
+            this.sampleY[y] = (y * sh / this.inputHeight) * sw * pixelBytes;
+        }
+        float scale = 1f / this.std;
+        int position = index * this.inputHeight * this.inputWidth * 3 * 4;
+        for (int y = 0; y < this.inputHeight; y++) {
+            int row = this.sampleY[y];
+            for (int x = 0; x < this.inputWidth; x++) {
+                int p = row + this.sampleX[x];
+                this.inputBuffer.putFloat(position, ((data[p + type.ri] & 0xff) - this.mean) * scale);
+                this.inputBuffer.putFloat(position + 4, ((data[p + type.gi] & 0xff) - this.mean) * scale);
+                this.inputBuffer.putFloat(position + 8, ((data[p + type.bi] & 0xff) - this.mean) * scale);
+                position += 12;
+            }
+        }
+    }
+    /**
+     * 从帧图中按人脸区域最近邻采样、归一化以后写入输入缓冲区的第index个位置，超出帧图范围的像素按0处理，
+     * 采样位置和分量顺序与fillInput(yuv2rgb(frame, degree, roi, null), index)一致
+     */
+    private void fillInput(UniPlaneYUVImage frame, int degree, UniRect roi, int index) {
+        for (int x = 0; x < this.inputWidth; x++) {
+            this.sampleX[x] = roi.x + x * roi.width / this.inputWidth;
+        }
+        for (int y = 0; y < this.inputHeight; y++) {
+            this.sampleY[y] = roi.y + y * roi.height / this.inputHeight;
+        }
+        float scale = 1f / this.std;
+        int position = index * this.inputHeight * this.inputWidth * 3 * 4;
+        int[] bgr = this.bgr;
+        for (int y = 0; y < this.inputHeight; y++) {
+            for (int x = 0; x < this.inputWidth; x++) {
+                if (!UniPlaneImageUtil.sample(frame, degree, this.sampleX[x], this.sampleY[y], bgr)) {
+                    bgr[0] = 0;
+                    bgr[1] = 0;
+                    bgr[2] = 0;
+                }
+                this.inputBuffer.putFloat(position, (bgr[0] - this.mean) * scale);
+                this.inputBuffer.putFloat(position + 4, (bgr[1] - this.mean) * scale);
+                this.inputBuffer.putFloat(position + 8, (bgr[2] - this.mean) * scale);
+                position += 12;
+            }
+        }
+    }
+    public int getDimension() {
+        return this.dimension;
+    }
+    /**
+     * @return 推理次数
+     */
+    public long getInferenceCount() {
+        return this.inferenceCount;
+    }
+    /**
+     * @return 提取了特征值的人脸数量，除以推理次数即平均批量
+     */
+    public long getExtractedCount() {
+        return this.extractedCount;
+    }
+    @Override
+    public void close() {
+        this.interpreter.close();
+    }
+}
@@ -0,0 +1,460 @@
+package uniface.android.image;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import uniimage.UniGeometryGraph;
+import uniimage.UniGeometryGraph.GeometryType;
+import uniimage.UniPoint;
+import uniimage.UniRect;
+
+/**
+ * 扁平存储、写时复制的几何图层<br>
+ * UniGeometryGraph由LinkedList<UniPoint>和LinkedList<UniGeometryGraph>构成，每次UniGeometryGraph.clone()都要深拷贝所有节点和点，
+ * 按名称查找时逐个比较字符串。这里把整棵树展开为数组：<br>
+ * 1. 节点按层序排列，根节点序号为ROOT，同一节点的内部节点序号连续，用起始序号和数量表示；<br>
+ * 2. 名称统一登记为全局的名称ID，查找内部节点时比较整数，不分配任何对象；<br>
+ * 3. 所有点的坐标依次存放在一个int[]中（x0, y0, x1, y1...），节点用起始点序号和点数引用；<br>
+ * 4. 节点结构构建以后不再修改，clone()只复制引用，坐标数组在克隆以后第一次平移、旋转或缩放时才复制，克隆的代价是O(1)。<br>
+ * 平移、旋转、缩放的计算结果与UniGeometryGraph一致，通过of()和toGeometryGraph()与UniGeometryGraph互相转换。
+ * 不是线程安全的，克隆以后各线程修改各自的克隆是安全的。
+ */
+public class UniFlatGeometryGraph {
+    /**
+     * 根节点序号
+     */
+    public final static int ROOT = 0;
+    /**
+     * id或得分为null时getIdValue()、getScoreValue()的返回值
+     */
+    public final static int NULL_INT = Integer.MIN_VALUE;
+
+    private final static ConcurrentHashMap<String, Integer> nameIds = new ConcurrentHashMap<String, Integer>();
+    private static volatile String[] names = new String[0];
+    public final static int RootName                    = nameId(UniGeometryGraph.Root);
+    public final static int FaceName                    = nameId(UniGeometryGraph.Face);
+    public final static int FacePolygonName             = nameId(UniGeometryGraph.FacePolygon);
+    public final static int FacePolygonMouthPointName   = nameId(UniGeometryGraph.FacePolygonMouthPoint);
+    public final static int FacePolygonLeftEyePointName = nameId(UniGeometryGraph.FacePolygonLeftEyePoint);
+    public final static int FacePolygonRightEyePointName = nameId(UniGeometryGraph.FacePolygonRightEyePoint);
+
+    private final static GeometryType[] TYPES = GeometryType.values();
+    // 每个节点占用的int数量及各字段偏移
+    private final static int NODE_FIELDS = 8;
+    private final static int NAME = 0;
+    private final static int ID = 1;
+    private final static int SCORE = 2;
+    private final static int TYPE = 3;
+    private final static int POINT_START = 4;
+    private final static int POINT_COUNT = 5; // -1表示points为null
+    private final static int INSIDE_START = 6;
+    private final static int INSIDE_COUNT = 7; // -1表示insideGraphs为null
+
+    private final int[] nodes;
+    private final int nodeCount;
+    private int[] coords;
+    private boolean coordsShared;
+    private UniPoint scratch;
+
+    private UniFlatGeometryGraph(int[] nodes, int nodeCount, int[] coords) {
+        this.nodes = nodes;
+        this.nodeCount = nodeCount;
+        this.coords = coords;
+    }
+
+    /**
+     * 登记名称，同一名称总是得到同一个ID
+     * @param name 名称
+     * @return 名称ID，name为null时返回-1
+     */
+    public static int nameId(String name) {
+        if (name == null) {
+            return -1;
+        }
+        Integer id = nameIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (nameIds) {
+            id = nameIds.get(name);
+            if (id == null) {
+                String[] current = names;
+                String[] next = new String[current.length + 1];
+                System.arraycopy(current, 0, next, 0, current.length);
+                next[current.length] = name;
+                id = current.length;
+                names = next;
+                nameIds.put(name, id);
+            }
+            return id;
+        }
+    }
+    /**
+     * @param nameId nameId()返回的名称ID
+     * @return 名称，-1时返回null
+     */
+    public static String nameOf(int nameId) {
+        return nameId < 0 ? null : names[nameId];
+    }
+
+    /**
+     * 把UniGeometryGraph展开为扁平图层
+     * @param graph 几何图层
+     * @return 扁平图层，graph为null时返回null
+     */
+    public static UniFlatGeometryGraph of(UniGeometryGraph graph) {
+        if (graph == null) {
+            return null;
+        }
+        // 层序遍历，同一节点的内部节点依次入队，序号连续
+        List<UniGeometryGraph> order = new ArrayList<UniGeometryGraph>();
+        order.add(graph);
+        int pointTotal = 0;
+        for (int i = 0; i < order.size(); i++) {
+            UniGeometryGraph g = order.get(i);
+            if (g.getPoints() != null) {
+                pointTotal += g.getPoints().size();
+            }
+            if (g.getInsideGraphs() != null) {
+                order.addAll(g.getInsideGraphs());
+            }
+        }
+        int n = order.size();
+        int[] nodes = new int[n * NODE_FIELDS];
+        int[] coords = new int[pointTotal * 2];
+        int nextInside = 1;
+        int nextPoint = 0;
+        for (int i = 0; i < n; i++) {
+            UniGeometryGraph g = order.get(i);
+            int base = i * NODE_FIELDS;
+            nodes[base + NAME] = nameId(g.getName());
+            nodes[base + ID] = g.getId() == null ? NULL_INT : g.getId();
+            nodes[base + SCORE] = g.getScore() == null ? NULL_INT : g.getScore();
+            nodes[base + TYPE] = g.getType() == null ? -1 : g.getType().ordinal();
+            nodes[base + POINT_START] = nextPoint;
+            List<UniPoint> points = g.getPoints();
+            nodes[base + POINT_COUNT] = points == null ? -1 : points.size();
+            if (points != null) {
+                for (UniPoint point : points) {
+                    coords[nextPoint * 2] = point.x;
+                    coords[nextPoint * 2 + 1] = point.y;
+                    nextPoint++;
+                }
+            }
+            List<UniGeometryGraph> insideGraphs = g.getInsideGraphs();
+            nodes[base + INSIDE_START] = nextInside;
+            nodes[base + INSIDE_COUNT] = insideGraphs == null ? -1 : insideGraphs.size();
+            if (insideGraphs != null) {
+                nextInside += insideGraphs.size();
+            }
+        }
+        return new UniFlatGeometryGraph(nodes, n, coords);
+    }
+    /**
+     * 还原为UniGeometryGraph，供需要UniGeometryGraph的接口使用
+     * @return 新建的几何图层
+     */
+    public UniGeometryGraph toGeometryGraph() {
+        return this.toGeometryGraph(ROOT);
+    }
+    /**
+     * 把指定节点及其内部节点还原为UniGeometryGraph
+     * @param node 节点序号
+     * @return 新建的几何图层
+     */
+    public UniGeometryGraph toGeometryGraph(int node) {
+        int base = node * NODE_FIELDS;
+        UniGeometryGraph graph = new UniGeometryGraph();
+        graph.setName(nameOf(this.nodes[base + NAME]));
+        graph.setId(this.getId(node));
+        graph.setScore(this.getScore(node));
+        graph.setType(this.getType(node));
+        graph.setPoints(this.getPoints(node));
+        int count = this.nodes[base + INSIDE_COUNT];
+        if (count >= 0) {
+            List<UniGeometryGraph> insideGraphs = new LinkedList<UniGeometryGraph>();
+            int start = this.nodes[base + INSIDE_START];
+            for (int i = 0; i < count; i++) {
+                insideGraphs.add(this.toGeometryGraph(start + i));
+            }
+            graph.setInsideGraphs(insideGraphs);
+        }
+        return graph;
+    }
+    /**
+     * 克隆，节点结构和坐标数组都与原图层共享，任一方修改坐标之前才复制坐标数组
+     * @return 克隆的图层
+     */
+    @Override
+    public UniFlatGeometryGraph clone() {
+        UniFlatGeometryGraph copy = new UniFlatGeometryGraph(this.nodes, this.nodeCount, this.coords);
+        this.coordsShared = true;
+        copy.coordsShared = true;
+        return copy;
+    }
+    public static UniFlatGeometryGraph clone(UniFlatGeometryGraph graph) {
+        return graph == null ? null : graph.clone();
+    }
+    /**
+     * 修改坐标之前调用，坐标数组与其他克隆共享时先复制一份
+     */
+    private int[] ownCoords() {
+        if (this.coordsShared) {
+            this.coords = this.coords.clone();
+            this.coordsShared = false;
+        }
+        return this.coords;
+    }
+
+    public UniFlatGeometryGraph translate(int left, int top) {
+        int[] c = this.ownCoords();
+        for (int i = 0; i < c.length; i += 2) {
+            c[i] += left;
+            c[i + 1] += top;
+        }
+        return this;
+    }
+    /**
+     * 按UniPoint.resize()的方式缩放所有点
+     */
+    public UniFlatGeometryGraph resize(int fromWidth, int fromHeight, int toWidth, int toHeight) {
+        int[] c = this.ownCoords();
+        for (int i = 0; i < c.length; i += 2) {
+            c[i] = fromWidth == 0 ? 0 : (c[i] * toWidth + (fromWidth >> 1)) / fromWidth;
+            c[i + 1] = fromHeight == 0 ? 0 : (c[i + 1] * toHeight + (fromHeight >> 1)) / fromHeight;
+        }
+        return this;
+    }
+    /**
+     * 绕原点旋转以后再平移，结果与UniGeometryGraph.rotate()一致<br>
+     * 90的整数倍直接按整数公式计算，其他角度逐点交给UniPoint计算
+     */
+    public UniFlatGeometryGraph rotate(int originX, int originY, int degree, int translateX, int translateY) {
+        degree %= 360;
+        if (degree < 0) {
+            degree += 360;
+        }
+        int[] c = this.ownCoords();
+        for (int i = 0; i < c.length; i += 2) {
+            int x = c[i];
+            int y = c[i + 1];
+            if (degree == 0) {
+                c[i] = x + translateX;
+                c[i + 1] = y + translateY;
+            } else if (degree == 90) {
+                c[i] = originX + originY - y + translateX;
+                c[i + 1] = originY - originX + x + translateY;
+            } else if (degree == 180) {
+                c[i] = originX * 2 - x + translateX;
+                c[i + 1] = originY * 2 - y + translateY;
+            } else if (degree == 270) {
+                c[i] = originX - originY + y + translateX;
+                c[i + 1] = originY + originX - x + translateY;
+            } else {
+                UniPoint point = this.scratch == null ? (this.scratch = new UniPoint()) : this.scratch;
+                point.x = x;
+                point.y = y;
+                point.rotate(originX, originY, degree).translate(translateX, translateY);
+                c[i] = point.x;
+                c[i + 1] = point.y;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return 节点数量，包括根节点
+     */
+    public int getNodeCount() {
+        return this.nodeCount;
+    }
+    public int getNameId(int node) {
+        return this.nodes[node * NODE_FIELDS + NAME];
+    }
+    public String getName(int node) {
+        return nameOf(this.getNameId(node));
+    }
+    /**
+     * @return id，null时返回NULL_INT
+     */
+    public int getIdValue(int node) {
+        return this.nodes[node * NODE_FIELDS + ID];
+    }
+    public Integer getId(int node) {
+        int id = this.getIdValue(node);
+        return id == NULL_INT ? null : id;
+    }
+    /**
+     * @return 得分，null时返回NULL_INT
+     */
+    public int getScoreValue(int node) {
+        return this.nodes[node * NODE_FIELDS + SCORE];
+    }
+    public Integer getScore(int node) {
+        int score = this.getScoreValue(node);
+        return score == NULL_INT ? null : score;
+    }
+    public GeometryType getType(int node) {
+        int type = this.nodes[node * NODE_FIELDS + TYPE];
+        return type < 0 ? null : TYPES[type];
+    }
+    /**
+     * @return 点数，points为null时返回0
+     */
+    public int getPointCount(int node) {
+        return Math.max(0, this.nodes[node * NODE_FIELDS + POINT_COUNT]);
+    }
+    public int getX(int node, int index) {
+        return this.coords[(this.nodes[node * NODE_FIELDS + POINT_START] + index) * 2];
+    }
+    public int getY(int node, int index) {
+        return this.coords[(this.nodes[node * NODE_FIELDS + POINT_START] + index) * 2 + 1];
+    }
+    /**
+     * @return 新建的点列表，与UniGeometryGraph.getPoints()一致，points为null时返回null
+     */
+    public List<UniPoint> getPoints(int node) {
+        int count = this.nodes[node * NODE_FIELDS + POINT_COUNT];
+        if (count < 0) {
+            return null;
+        }
+        List<UniPoint> points = new LinkedList<UniPoint>();
+        for (int i = 0; i < count; i++) {
+            points.add(new UniPoint(this.getX(node, i), this.getY(node, i)));
+        }
+        return points;
+    }
+    /**
+     * @return 内部节点数量，insideGraphs为null时返回0
+     */
+    public int getInsideCount(int node) {
+        return Math.max(0, this.nodes[node * NODE_FIELDS + INSIDE_COUNT]);
+    }
+    /**
+     * @return 第index个内部节点的序号
+     */
+    public int getInside(int node, int index) {
+        return this.nodes[node * NODE_FIELDS + INSIDE_START] + index;
+    }
+    /**
+     * 查找第一个指定名称的内部节点，相当于UniGeometryGraph.findInsideGeometryGraph()
+     * @param node 节点序号
+     * @param nameId 名称ID
+     * @return 内部节点序号，没有找到时返回-1
+     */
+    public int findInside(int node, int nameId) {
+        return this.findInside(node, nameId, -1);
+    }
+    /**
+     * 查找序号大于after的下一个指定名称的内部节点，用于遍历所有同名内部节点：<br>
+     * for (int i = graph.findInside(node, nameId); i >= 0; i = graph.findInside(node, nameId, i)) {...}
+     * @param node 节点序号
+     * @param nameId 名称ID
+     * @param after 上一次找到的内部节点序号
+     * @return 内部节点序号，没有找到时返回-1
+     */
+    public int findInside(int node, int nameId, int after) {
+        int start = this.nodes[node * NODE_FIELDS + INSIDE_START];
+        int end = start + this.getInsideCount(node);
+        for (int i = Math.max(start, after + 1); i < end; i++) {
+            if (this.nodes[i * NODE_FIELDS + NAME] == nameId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    /**
+     * 计算节点的外接矩形，与UniGeometryGraph.asRect()一致
+     * @param node 节点序号
+     * @param des 目标矩形，null表示新建
+     * @return 目标矩形
+     */
+    public UniRect asRect(int node, UniRect des) {
+        UniRect rect = des == null ? new UniRect() : des;
+        int count = this.getPointCount(node);
+        if (count == 0) {
+            rect.x = rect.y = rect.width = rect.height = 0;
+            return rect;
+        }
+        if (this.getType(node) == GeometryType.Circle) {
+            int ox = this.getX(node, 0);
+            int oy = this.getY(node, 0);
+            double maxRadius = 0f;
+            for (int i = 1; i < count; i++) {
+                int dx = this.getX(node, i) - ox;
+                int dy = this.getY(node, i) - oy;
+                double r;
+                if (dx == 0) {
+                    r = Math.abs(dy);
+                } else if (dy == 0) {
+                    r = Math.abs(dx);
+                } else {
+                    r = Math.sqrt(dx * dx + dy * dy);
+                }
+                if (maxRadius < r) {
+                    maxRadius = r;
+                }
+            }
+            rect.width = rect.height = (int) (maxRadius * 2 + 0.5f);
+            rect.x = ox - (rect.width >> 1);
+            rect.y = oy - (rect.height >> 1);
+            return rect;
+        }
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int bottom = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            int x = this.getX(node, i);
+            int y = this.getY(node, i);
+            left = Math.min(left, x);
+            top = Math.min(top, y);
+            right = Math.max(right, x);
+            bottom = Math.max(bottom, y);
+        }
+        rect.x = left;
+        rect.y = top;
+        rect.width = right - left + 1;
+        rect.height = bottom - top + 1;
+        return rect;
+    }
+    /**
+     * 计算节点的代表点，与UniGeometryGraph.asPoint()一致：只有一个点时就是这个点，否则是外接矩形的中心
+     * @param node 节点序号
+     * @param des 目标点，null表示新建
+     * @return 目标点
+     */
+    public UniPoint asPoint(int node, UniPoint des) {
+        UniPoint point = des == null ? new UniPoint() : des;
+        int count = this.getPointCount(node);
+        if (count == 0) {
+            point.x = point.y = 0;
+        } else if (count == 1) {
+            point.x = this.getX(node, 0);
+            point.y = this.getY(node, 0);
+        } else if (this.getType(node) == GeometryType.Circle) {
+            // 外接矩形以圆心为中心
+            point.x = this.getX(node, 0);
+            point.y = this.getY(node, 0);
+        } else {
+            // 按asRect()的外接矩形计算中心，不创建UniRect，可以在绘图线程中逐帧调用
+            int left = Integer.MAX_VALUE;
+            int top = Integer.MAX_VALUE;
+            int right = Integer.MIN_VALUE;
+            int bottom = Integer.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                int x = this.getX(node, i);
+                int y = this.getY(node, i);
+                left = Math.min(left, x);
+                top = Math.min(top, y);
+                right = Math.max(right, x);
+                bottom = Math.max(bottom, y);
+            }
+            point.x = left + ((right - left + 1) >> 1);
+            point.y = top + ((bottom - top + 1) >> 1);
+        }
+        return point;
+    }
+}
@@ -0,0 +1,255 @@
+package uniface.android.image;
+
+import java.util.Arrays;
+
+import uniimage.UniGeometryGraph;
+import uniimage.UniRGBImage;
+import uniimage.UniRGBImage.RGBType;
+import uniimage.UniRect;
+import uniimage.UniSize;
+import uniimage.UniYUVImage;
+import uniimage.UniYUVImage.YUVType;
+
+/**
+ * 单遍完成的融合图像处理工具<br>
+ * UniImageUtil中YUV旋转、YUV转RGB、裁剪各自要完整遍历一次帧图并各自分配结果图，
+ * 这里把三个步骤融合在一次逐像素遍历中完成，结果直接写入调用者提供的目标图。<br>
+ * 计算结果与UniImageUtil.rotateImage(UniYUVImage, degree, 0, new UniSize()) -> UniImageUtil.yuv2rgb() -> UniImageUtil.cutImage()的结果一致。
+ */
+public class UniFusedImageUtil {
+    /**
+     * 计算YUV图片按指定角度自适应旋转以后的尺寸
+     * @param image 原图
+     * @param degree 旋转角度，仅支持90的整数倍
+     * @return 旋转以后的尺寸
+     */
+    public static UniSize rotatedSize(UniYUVImage image, int degree) {
+        degree = normalizeDegree(degree);
+        if (degree == 90 || degree == 270) {
+            return new UniSize(image.getHeight(), image.getWidth());
+        }
+        return new UniSize(image.getWidth(), image.getHeight());
+    }
+    /**
+     * YUV图片旋转、转换为RGB格式并裁剪
+     * @param image 原图
+     * @param degree 旋转角度，仅支持90的整数倍
+     * @param roi 旋转以后的图中待裁剪的区域，null表示不裁剪
+     * @param desImage 目标图，null表示新建；尺寸与裁剪区域不一致时会重新分配图片数据
+     * @return 目标图
+     */
+    public static UniRGBImage yuv2rgb(UniYUVImage image, int degree, UniRect roi, UniRGBImage desImage) {
+        return yuv2rgb(image, degree, roi, desImage, (byte) 0);
+    }
+    /**
+     * YUV图片旋转、转换为RGB格式并裁剪
+     * @param image 原图
+     * @param degree 旋转角度，仅支持90的整数倍
+     * @param roi 旋转以后的图中待裁剪的区域，null表示不裁剪
+     * @param desImage 目标图，null表示新建；尺寸与裁剪区域不一致时会重新分配图片数据
+     * @param fillGray 裁剪区域超出图片范围部分的填充灰度，如果指定null则表示不填充。
+     * @return 目标图
+     */
+    public static UniRGBImage yuv2rgb(UniYUVImage image, int degree, UniRect roi, UniRGBImage desImage, Byte fillGray) {
+        degree = normalizeDegree(degree);
+        UniSize rs = rotatedSize(image, degree);
+        UniRect r = roi == null ? new UniRect(0, 0, rs.width, rs.height) : roi;
+        UniRGBImage img = prepare(desImage, r.width, r.height);
+        fillRows(image, degree, r, img, fillGray, 0, r.height);
+        return finish(image, degree, r, img);
+    }
+    /**
+     * 设置目标图的方向、角度、镜像和几何图层，供单线程和分行并行的实现共用
+     * @param image 原图
+     * @param degree 已规整的旋转角度
+     * @param r 旋转以后的图中待裁剪的区域
+     * @param img 已生成像素的目标图
+     * @return 目标图
+     */
+    static UniRGBImage finish(UniYUVImage image, int degree, UniRect r, UniRGBImage img) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        UniSize rs = rotatedSize(image, degree);
+        Integer io = image.getOrientation();
+        img.setOrientation(io == null ? null : io - degree);
+        img.setDegree(image.getDegree());
+        img.setMirror(image.isMirror());
+        UniGeometryGraph graph = UniGeometryGraph.clone(image.getInsideGeometryGraph());
+        if (graph != null) {
+            if (degree != 0) {
+                graph.rotate(w >> 1, h >> 1, degree, (rs.width - w) >> 1, (rs.height - h) >> 1);
+            }
+            if (r.x != 0 || r.y != 0) {
+                graph.translate(-r.x, -r.y);
+            }
+        }
+        img.setInsideGeometryGraph(graph);
+        return img;
+    }
+    /**
+     * 把原图上的扁平几何图层映射到yuv2rgb()生成的目标图上，变换方式与yuv2rgb()处理UniGeometryGraph一致，
+     * 克隆是O(1)的，坐标数组在变换时才复制
+     * @param graph 原图上的几何图层
+     * @param width 原图宽
+     * @param height 原图高
+     * @param degree 旋转角度，仅支持90的整数倍
+     * @param roi 旋转以后的图中裁剪的区域，null表示不裁剪
+     * @return 目标图上的几何图层，graph为null时返回null
+     */
+    public static UniFlatGeometryGraph mapGraph(UniFlatGeometryGraph graph, int width, int height, int degree, UniRect roi) {
+        if (graph == null) {
+            return null;
+        }
+        degree = normalizeDegree(degree);
+        UniFlatGeometryGraph mapped = graph.clone();
+        if (degree != 0) {
+            boolean swap = degree == 90 || degree == 270;
+            int rw = swap ? height : width;
+            int rh = swap ? width : height;
+            mapped.rotate(width >> 1, height >> 1, degree, (rw - width) >> 1, (rh - height) >> 1);
+        }
+        if (roi != null && (roi.x != 0 || roi.y != 0)) {
+            mapped.translate(-roi.x, -roi.y);
+        }
+        return mapped;
+    }
+    /**
+     * 准备目标图，尺寸一致时复用图片数据
+     */
+    static UniRGBImage prepare(UniRGBImage desImage, int width, int height) {
+        UniRGBImage img = desImage == null ? new UniRGBImage(width, height) : desImage;
+        int len = width * height * img.getType().bits / 8;
+        if (img.getImageData() == null || img.getImageData().length != len) {
+            img.setImageData(new byte[len]);
+        }
+        img.setWidth(width);
+        img.setHeight(height);
+        return img;
+    }
+    static int normalizeDegree(int degree) {
+        degree %= 360;
+        if (degree < 0) {
+            degree += 360;
+        }
+        if (degree % 90 != 0) {
+            throw new IllegalArgumentException("unsupported degree: " + degree);
+        }
+        return degree;
+    }
+    /**
+     * 生成目标图[beginRow, endRow)行的像素，供单线程和分行并行的实现共用
+     * @param image 原图
+     * @param degree 已规整的旋转角度
+     * @param r 旋转以后的图中待裁剪的区域
+     * @param img 尺寸与r一致的目标图
+     * @param fillGray 超出原图范围的像素填充灰度，null表示不填充
+     * @param beginRow 目标图起始行
+     * @param endRow 目标图终止行（不含）
+     */
+    static void fillRows(UniYUVImage image, int degree, UniRect r, UniRGBImage img, Byte fillGray, int beginRow, int endRow) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        YUVType yuv = image.getType();
+        RGBType rgb = img.getType();
+        byte[] sd = image.getImageData();
+        byte[] dd = img.getImageData();
+        int dbn = rgb.bits / 8;
+        int[] uvi = chromaLayout(image);
+        int u0 = uvi[0];
+        int v0 = uvi[1];
+        int uvRowStride = uvi[2];
+        int uvRowShift = uvi[3];
+        int yhm = yuv.yhm;
+        int yvm = yuv.yvm;
+        // 目标像素(dx, dy)对应旋转图中的(r.x + dx, r.y + dy)，再由旋转图坐标反推原图坐标(sx, sy)：
+        // sx = sxb + sxx * dx + sxy * dy; sy = syb + syx * dx + syy * dy
+        int sxb, sxx, sxy, syb, syx, syy;
+        if (degree == 90) {
+            // 顺时针旋转90度：rx = h - 1 - sy, ry = sx
+            sxb = r.y; sxx = 0; sxy = 1;
+            syb = h - 1 - r.x; syx = -1; syy = 0;
+        } else if (degree == 180) {
+            sxb = w - 1 - r.x; sxx = -1; sxy = 0;
+            syb = h - 1 - r.y; syx = 0; syy = -1;
+        } else if (degree == 270) {
+            // 逆时针旋转90度：rx = sy, ry = w - 1 - sx
+            sxb = w - 1 - r.y; sxx = 0; sxy = -1;
+            syb = r.x; syx = 1; syy = 0;
+        } else {
+            sxb = r.x; sxx = 1; sxy = 0;
+            syb = r.y; syx = 0; syy = 1;
+        }
+        int dw = img.getWidth();
+        for (int dy = beginRow; dy < endRow; dy++) {
+            int sx = sxb + sxy * dy;
+            int sy = syb + syy * dy;
+            int di = dy * dw * dbn;
+            for (int dx = 0; dx < dw; dx++, sx += sxx, sy += syx, di += dbn) {
+                if (sx < 0 || sx >= w || sy < 0 || sy >= h) {
+                    if (fillGray != null) {
+                        for (int i = 0; i < dbn; i++) {
+                            dd[di + i] = fillGray;
+                        }
+                    }
+                    continue;
+                }
+                int cy = sy / yvm;
+                int ci = cy * uvRowStride + (sy - cy * yvm) * uvRowShift + (sx / yhm) * yuv.uvs;
+                int Y = sd[yuv.ysi + (sy * w + sx) * yuv.ys] & 0xFF;
+                int U = sd[u0 + ci] & 0xFF;
+                int V = sd[v0 + ci] & 0xFF;
+                int R = ((yuv.ry * Y + yuv.ru * U + yuv.rv * V + yuv.rc) >> 8);
+                int G = ((yuv.gy * Y + yuv.gu * U + yuv.gv * V + yuv.gc) >> 8);
+                int B = ((yuv.by * Y + yuv.bu * U + yuv.bv * V + yuv.bc) >> 8);
+                R = R < 0 ? 0 : (R > 255 ? 255 : R);
+                G = G < 0 ? 0 : (G > 255 ? 255 : G);
+                B = B < 0 ? 0 : (B > 255 ? 255 : B);
+                // 与UniImageUtil.yuv2rgb()保持一致的分量写入位置
+                dd[di + rgb.ri] = (byte) B;
+                dd[di + rgb.gi] = (byte) G;
+                dd[di + rgb.bi] = (byte) R;
+            }
+        }
+    }
+    /**
+     * 按UniImageUtil.yuv2rgb()的寻址方式计算uv分量的布局
+     * @param image YUV图片
+     * @return {u分量起始索引, v分量起始索引, uv分量每行（每yvm个Y分量行）的索引增量, 同一组Y分量行内每行的uv索引偏移}
+     */
+    static int[] chromaLayout(UniYUVImage image) {
+        YUVType yuv = image.getType();
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int ui = yuv.usi;
+        int vi = yuv.vsi;
+        int ps = 0; // 填充区长度
+        int len = image.getImageData().length;
+        if (yuv.pn > 1) {
+            // y分量单独存储格式
+            int wh = w * h;
+            if (ui == vi) {
+                // uv分量都是单独存储的格式
+                int uvdl = (wh * 2) / (yuv.yhm * yuv.yvm); // uv分量数据长度
+                ps = wh + uvdl < len ? w / 2 : 0;
+                if (yuv.uv) {
+                    ui += wh;
+                    vi += wh + (len - wh) / 2;
+                } else {
+                    vi += wh;
+                    ui += wh + (len - wh) / 2;
+                }
+            } else {
+                // uv分量混合存储格式
+                ui += wh;
+                vi += wh;
+            }
+        } else {
+            throw new IllegalArgumentException("unsupported yuv type, planar number: " + yuv.pn);
+        }
+        int uvw = w / (yuv.pn - 1);
+        int rowAdvance = (w / yuv.yhm) * yuv.uvs + ps; // 每处理一行Y分量uv索引的增量
+        int rowShift = rowAdvance - uvw; // 同一组Y分量行内，下一行相对上一行的uv索引偏移
+        int rowStride = rowAdvance * yuv.yvm - uvw * (yuv.yvm - 1);
+        return new int[] {ui, vi, rowStride, rowShift};
+    }
+}
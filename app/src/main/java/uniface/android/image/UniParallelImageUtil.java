@@ -0,0 +1,299 @@
+package uniface.android.image;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import uniimage.UniGeometryGraph;
+import uniimage.UniRGBImage;
+import uniimage.UniRect;
+import uniimage.UniSize;
+import uniimage.UniYUVImage;
+import uniimage.UniYUVImage.YUVType;
+
+/**
+ * 分行并行的图像处理工具<br>
+ * 把目标图按行划分为若干条带，由共享的ForkJoinPool并行生成，每个条带只写自己的目标行，不需要加锁。<br>
+ * 1. yuv2rgb()的结果与UniFusedImageUtil.yuv2rgb()逐字节一致，条带内部就是同一个逐行实现；<br>
+ * 2. rotateImage()按90的整数倍自适应旋转YUV图片，Y分量和uv分量分别按条带旋转，
+ *    半平面格式的结果与UniImageUtil.rotateImage(image, degree, 0, new UniSize())逐字节一致；
+ *    平面格式（YUV_420_888）的U、V分量分别旋转，原图uv分量带行填充时按UniFusedImageUtil.chromaLayout()的方式寻址；
+ *    其他角度抛出IllegalArgumentException；<br>
+ * 3. 目标图像素数小于并行阈值时直接在调用线程中串行处理，小图不值得承担任务调度的开销。
+ */
+public class UniParallelImageUtil {
+    /**
+     * 默认并行阈值，640x480及以上的目标图才分行并行
+     */
+    public final static int DEFAULT_PARALLEL_THRESHOLD = 640 * 480;
+    /**
+     * 每个工作线程平均划分的条带数，条带数多于线程数时工作窃取才能平衡各条带的耗时差异
+     */
+    private final static int STRIPS_PER_THREAD = 4;
+
+    private static volatile ForkJoinPool pool;
+    private static volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    /**
+     * 设置共享的线程池，由调用者负责关闭；null表示使用默认线程池
+     */
+    public static void setPool(ForkJoinPool pool) {
+        UniParallelImageUtil.pool = pool;
+    }
+    /**
+     * @return 共享的线程池，没有设置时按CPU核数创建默认线程池
+     */
+    public static ForkJoinPool getPool() {
+        ForkJoinPool pool = UniParallelImageUtil.pool;
+        if (pool == null) {
+            synchronized (UniParallelImageUtil.class) {
+                pool = UniParallelImageUtil.pool;
+                if (pool == null) {
+                    pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+                    UniParallelImageUtil.pool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+    /**
+     * 设置并行阈值
+     * @param pixels 目标图像素数达到该值时才分行并行，小于1表示总是并行
+     */
+    public static void setParallelThreshold(int pixels) {
+        parallelThreshold = pixels;
+    }
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * 分行并行的YUV图片旋转、转换为RGB格式并裁剪，参数和结果与UniFusedImageUtil.yuv2rgb()一致
+     * @param image 原图
+     * @param degree 旋转角度，仅支持90的整数倍
+     * @param roi 旋转以后的图中待裁剪的区域，null表示不裁剪
+     * @param desImage 目标图，null表示新建；尺寸与裁剪区域不一致时会重新分配图片数据
+     * @return 目标图
+     */
+    public static UniRGBImage yuv2rgb(UniYUVImage image, int degree, UniRect roi, UniRGBImage desImage) {
+        return yuv2rgb(image, degree, roi, desImage, (byte) 0);
+    }
+    /**
+     * 分行并行的YUV图片旋转、转换为RGB格式并裁剪，参数和结果与UniFusedImageUtil.yuv2rgb()一致
+     * @param image 原图
+     * @param degree 旋转角度，仅支持90的整数倍
+     * @param roi 旋转以后的图中待裁剪的区域，null表示不裁剪
+     * @param desImage 目标图，null表示新建；尺寸与裁剪区域不一致时会重新分配图片数据
+     * @param fillGray 裁剪区域超出图片范围部分的填充灰度，如果指定null则表示不填充。
+     * @return 目标图
+     */
+    public static UniRGBImage yuv2rgb(UniYUVImage image, int degree, UniRect roi, UniRGBImage desImage, Byte fillGray) {
+        degree = UniFusedImageUtil.normalizeDegree(degree);
+        UniSize rs = UniFusedImageUtil.rotatedSize(image, degree);
+        UniRect r = roi == null ? new UniRect(0, 0, rs.width, rs.height) : roi;
+        final UniRGBImage img = UniFusedImageUtil.prepare(desImage, r.width, r.height);
+        final UniYUVImage src = image;
+        final int deg = degree;
+        final UniRect rect = r;
+        final Byte gray = fillGray;
+        forRows(r.width, r.height, new Rows() {
+            @Override
+            public void fill(int beginRow, int endRow) {
+                UniFusedImageUtil.fillRows(src, deg, rect, img, gray, beginRow, endRow);
+            }
+        });
+        return UniFusedImageUtil.finish(image, degree, r, img);
+    }
+    /**
+     * 分行并行的YUV图片自适应旋转
+     * @param image 原图
+     * @param degree 旋转角度，仅支持90的整数倍
+     * @param desImage 目标图，null或格式不一致时新建；尺寸不一致时会重新分配图片数据
+     * @return 目标图
+     * @throws IllegalArgumentException 旋转角度不是90的整数倍
+     */
+    public static UniYUVImage rotateImage(UniYUVImage image, int degree, UniYUVImage desImage) {
+        degree = UniFusedImageUtil.normalizeDegree(degree);
+        YUVType yuv = image.getType();
+        int w = image.getWidth();
+        int h = image.getHeight();
+        UniSize rs = UniFusedImageUtil.rotatedSize(image, degree);
+        UniYUVImage img = desImage == null || desImage.getType() != yuv ? new UniYUVImage(yuv, rs.width, rs.height) : desImage;
+        int len = rs.width * rs.height * yuv.bits / 8;
+        if (img.getImageData() == null || img.getImageData().length != len) {
+            img.setImageData(new byte[len]);
+        }
+        img.setWidth(rs.width);
+        img.setHeight(rs.height);
+
+        final Plane[] planes = planes(image, img);
+        final int deg = degree;
+        final int rows = rs.height;
+        // 各分量平面的行数不同，按目标图行数的比例换算成各平面自己的行区间，相邻条带的区间首尾相接
+        forRows(rs.width, rs.height, new Rows() {
+            @Override
+            public void fill(int beginRow, int endRow) {
+                for (Plane plane : planes) {
+                    int pr = plane.rows(deg);
+                    plane.rotateRows(deg, (int) ((long) beginRow * pr / rows), (int) ((long) endRow * pr / rows));
+                }
+            }
+        });
+
+        Integer io = image.getOrientation();
+        img.setOrientation(io == null ? null : io - degree);
+        img.setDegree(image.getDegree());
+        img.setMirror(image.isMirror());
+        UniGeometryGraph graph = UniGeometryGraph.clone(image.getInsideGeometryGraph());
+        if (graph != null && degree != 0) {
+            graph.rotate(w >> 1, h >> 1, degree, (rs.width - w) >> 1, (rs.height - h) >> 1);
+        }
+        img.setInsideGeometryGraph(graph);
+        return img;
+    }
+    /**
+     * 逐行生成目标图的处理过程，同一个实例的不同行区间会被多个线程并发调用，各区间互不重叠
+     */
+    interface Rows {
+        /**
+         * 生成目标图[beginRow, endRow)行
+         */
+        void fill(int beginRow, int endRow);
+    }
+    /**
+     * 生成目标图的所有行，像素数达到并行阈值时按条带分给共享线程池并行处理，否则在调用线程中串行处理
+     * @param width 目标图宽
+     * @param height 目标图高
+     * @param rows 逐行处理过程
+     */
+    static void forRows(int width, int height, Rows rows) {
+        if (height > 1 && (long) width * height >= parallelThreshold) {
+            ForkJoinPool pool = getPool();
+            int strips = Math.max(1, pool.getParallelism() * STRIPS_PER_THREAD);
+            pool.invoke(new Strip(rows, 0, height, Math.max(1, (height + strips - 1) / strips)));
+        } else {
+            rows.fill(0, height);
+        }
+    }
+    /**
+     * 处理目标图[beginRow, endRow)行的任务，行数大于grain时对半拆分
+     */
+    private static class Strip extends RecursiveAction {
+        private final static long serialVersionUID = 1L;
+        private final Rows rows;
+        private final int beginRow;
+        private final int endRow;
+        private final int grain;
+        Strip(Rows rows, int beginRow, int endRow, int grain) {
+            this.rows = rows;
+            this.beginRow = beginRow;
+            this.endRow = endRow;
+            this.grain = grain;
+        }
+        @Override
+        protected void compute() {
+            if (this.endRow - this.beginRow <= this.grain) {
+                this.rows.fill(this.beginRow, this.endRow);
+                return;
+            }
+            int mid = (this.beginRow + this.endRow) >>> 1;
+            invokeAll(new Strip(this.rows, this.beginRow, mid, this.grain), new Strip(this.rows, mid, this.endRow, this.grain));
+        }
+    }
+
+    /**
+     * 一个分量平面的寻址方式：第y行第x个元素从base + y * rowStride + x * step开始，占size个字节
+     */
+    private static class Plane {
+        final byte[] sd;
+        final int sBase;
+        final int sRowStride;
+        final byte[] dd;
+        final int dBase;
+        final int dRowStride;
+        final int step;
+        final int size;
+        final int width;
+        final int height;
+        Plane(byte[] sd, int sBase, int sRowStride, byte[] dd, int dBase, int dRowStride, int step, int size, int width, int height) {
+            this.sd = sd;
+            this.sBase = sBase;
+            this.sRowStride = sRowStride;
+            this.dd = dd;
+            this.dBase = dBase;
+            this.dRowStride = dRowStride;
+            this.step = step;
+            this.size = size;
+            this.width = width;
+            this.height = height;
+        }
+        /**
+         * @return 旋转以后的行数
+         */
+        int rows(int degree) {
+            return degree == 90 || degree == 270 ? this.width : this.height;
+        }
+        /**
+         * 生成旋转以后[beginRow, endRow)行的元素，原图坐标的反推方式与UniFusedImageUtil.fillRows()一致
+         */
+        void rotateRows(int degree, int beginRow, int endRow) {
+            int w = this.width;
+            int h = this.height;
+            int sxb, sxx, sxy, syb, syx, syy;
+            if (degree == 90) {
+                sxb = 0; sxx = 0; sxy = 1;
+                syb = h - 1; syx = -1; syy = 0;
+            } else if (degree == 180) {
+                sxb = w - 1; sxx = -1; sxy = 0;
+                syb = h - 1; syx = 0; syy = -1;
+            } else if (degree == 270) {
+                sxb = w - 1; sxx = 0; sxy = -1;
+                syb = 0; syx = 1; syy = 0;
+            } else {
+                sxb = 0; sxx = 1; sxy = 0;
+                syb = 0; syx = 0; syy = 1;
+            }
+            int dw = degree == 90 || degree == 270 ? h : w;
+            // 原图中沿目标行前进一个元素时的索引增量
+            int sInc = sxx * this.step + syx * this.sRowStride;
+            for (int dy = beginRow; dy < endRow; dy++) {
+                int si = this.sBase + (syb + syy * dy) * this.sRowStride + (sxb + sxy * dy) * this.step;
+                int di = this.dBase + dy * this.dRowStride;
+                if (this.size == 1) {
+                    for (int dx = 0; dx < dw; dx++, si += sInc, di += this.step) {
+                        this.dd[di] = this.sd[si];
+                    }
+                } else {
+                    for (int dx = 0; dx < dw; dx++, si += sInc, di += this.step) {
+                        for (int i = 0; i < this.size; i++) {
+                            this.dd[di + i] = this.sd[si + i];
+                        }
+                    }
+                }
+            }
+        }
+    }
+    /**
+     * 按原图和目标图的格式划分分量平面：Y分量一个平面；半平面格式的uv分量交错存储，作为每个元素占uvs个字节的一个平面；
+     * 平面格式的U、V分量各一个平面。uv分量的起始位置和行增量取自UniFusedImageUtil.chromaLayout()。
+     */
+    private static Plane[] planes(UniYUVImage image, UniYUVImage img) {
+        YUVType yuv = image.getType();
+        int w = image.getWidth();
+        int h = image.getHeight();
+        byte[] sd = image.getImageData();
+        byte[] dd = img.getImageData();
+        Plane y = new Plane(sd, yuv.ysi, w * yuv.ys, dd, yuv.ysi, img.getWidth() * yuv.ys, yuv.ys, yuv.ys, w, h);
+        int cw = w / yuv.yhm;
+        int ch = h / yuv.yvm;
+        int[] s = UniFusedImageUtil.chromaLayout(image);
+        int[] d = UniFusedImageUtil.chromaLayout(img);
+        if (yuv.pn == 2) {
+            int so = Math.min(s[0], s[1]);
+            int dof = Math.min(d[0], d[1]);
+            return new Plane[] {y, new Plane(sd, so, s[2], dd, dof, d[2], yuv.uvs, yuv.uvs, cw, ch)};
+        }
+        return new Plane[] {y,
+                new Plane(sd, s[0], s[2], dd, d[0], d[2], yuv.uvs, yuv.uvs, cw, ch),
+                new Plane(sd, s[1], s[2], dd, d[1], d[2], yuv.uvs, yuv.uvs, cw, ch)};
+    }
+}
@@ -0,0 +1,225 @@
+package uniface.android.image;
+
+import java.nio.ByteBuffer;
+
+import uniimage.UniGeometryGraph;
+import uniimage.UniRGBImage;
+import uniimage.UniRGBImage.RGBType;
+import uniimage.UniRect;
+import uniimage.UniSize;
+import uniimage.UniYUVImage;
+import uniimage.UniYUVImage.YUVType;
+
+/**
+ * UniPlaneYUVImage的处理工具，直接读取分量平面缓冲区，不先拷贝到堆上<br>
+ * yuv2rgb()的计算方式与UniFusedImageUtil.yuv2rgb()一致，同一帧图数据用UniPlaneYUVImage.wrap(UniYUVImage)引用时结果逐字节相同；
+ * 目标图像素数达到UniParallelImageUtil的并行阈值时分行并行。
+ */
+public class UniPlaneImageUtil {
+    /**
+     * 计算按指定角度自适应旋转以后的尺寸
+     * @param image 原图
+     * @param degree 旋转角度，仅支持90的整数倍
+     * @return 旋转以后的尺寸
+     */
+    public static UniSize rotatedSize(UniPlaneYUVImage image, int degree) {
+        degree = UniFusedImageUtil.normalizeDegree(degree);
+        if (degree == 90 || degree == 270) {
+            return new UniSize(image.getHeight(), image.getWidth());
+        }
+        return new UniSize(image.getWidth(), image.getHeight());
+    }
+    /**
+     * 旋转、转换为RGB格式并裁剪
+     * @param image 原图
+     * @param degree 旋转角度，仅支持90的整数倍
+     * @param roi 旋转以后的图中待裁剪的区域，null表示不裁剪
+     * @param desImage 目标图，null表示新建；尺寸与裁剪区域不一致时会重新分配图片数据
+     * @return 目标图
+     */
+    public static UniRGBImage yuv2rgb(UniPlaneYUVImage image, int degree, UniRect roi, UniRGBImage desImage) {
+        return yuv2rgb(image, degree, roi, desImage, (byte) 0);
+    }
+    /**
+     * 旋转、转换为RGB格式并裁剪
+     * @param image 原图
+     * @param degree 旋转角度，仅支持90的整数倍
+     * @param roi 旋转以后的图中待裁剪的区域，null表示不裁剪
+     * @param desImage 目标图，null表示新建；尺寸与裁剪区域不一致时会重新分配图片数据
+     * @param fillGray 裁剪区域超出图片范围部分的填充灰度，如果指定null则表示不填充。
+     * @return 目标图
+     */
+    public static UniRGBImage yuv2rgb(UniPlaneYUVImage image, int degree, UniRect roi, UniRGBImage desImage, Byte fillGray) {
+        degree = UniFusedImageUtil.normalizeDegree(degree);
+        int w = image.getWidth();
+        int h = image.getHeight();
+        UniSize rs = rotatedSize(image, degree);
+        UniRect r = roi == null ? new UniRect(0, 0, rs.width, rs.height) : roi;
+        final UniRGBImage img = UniFusedImageUtil.prepare(desImage, r.width, r.height);
+        final UniPlaneYUVImage src = image;
+        final int deg = degree;
+        final UniRect rect = r;
+        final Byte gray = fillGray;
+        UniParallelImageUtil.forRows(r.width, r.height, new UniParallelImageUtil.Rows() {
+            @Override
+            public void fill(int beginRow, int endRow) {
+                fillRows(src, deg, rect, img, gray, beginRow, endRow);
+            }
+        });
+
+        Integer io = image.getOrientation();
+        img.setOrientation(io == null ? null : io - degree);
+        img.setDegree(image.getDegree());
+        img.setMirror(image.isMirror());
+        UniGeometryGraph graph = UniGeometryGraph.clone(image.getInsideGeometryGraph());
+        if (graph != null) {
+            if (degree != 0) {
+                graph.rotate(w >> 1, h >> 1, degree, (rs.width - w) >> 1, (rs.height - h) >> 1);
+            }
+            if (r.x != 0 || r.y != 0) {
+                graph.translate(-r.x, -r.y);
+            }
+        }
+        img.setInsideGeometryGraph(graph);
+        return img;
+    }
+    /**
+     * 生成目标图[beginRow, endRow)行的像素，原图坐标的反推方式与UniFusedImageUtil.fillRows()一致
+     */
+    static void fillRows(UniPlaneYUVImage image, int degree, UniRect r, UniRGBImage img, Byte fillGray, int beginRow, int endRow) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        RGBType rgb = img.getType();
+        byte[] dd = img.getImageData();
+        int dbn = rgb.bits / 8;
+        int[] m = mapping(w, h, degree, r.x, r.y);
+        int dw = img.getWidth();
+        int[] bgr = new int[3];
+        for (int dy = beginRow; dy < endRow; dy++) {
+            int sx = m[0] + m[2] * dy;
+            int sy = m[3] + m[5] * dy;
+            int di = dy * dw * dbn;
+            for (int dx = 0; dx < dw; dx++, sx += m[1], sy += m[4], di += dbn) {
+                if (sx < 0 || sx >= w || sy < 0 || sy >= h) {
+                    if (fillGray != null) {
+                        for (int i = 0; i < dbn; i++) {
+                            dd[di + i] = fillGray;
+                        }
+                    }
+                    continue;
+                }
+                convert(image, sx, sy, bgr);
+                // 与UniImageUtil.yuv2rgb()保持一致的分量写入位置
+                dd[di + rgb.ri] = (byte) bgr[0];
+                dd[di + rgb.gi] = (byte) bgr[1];
+                dd[di + rgb.bi] = (byte) bgr[2];
+            }
+        }
+    }
+    /**
+     * 读取旋转以后的图中一个像素转换成的RGB分量，用于只需要少量采样点的场合，如直接从帧图生成模型输入
+     * @param image 原图
+     * @param degree 已规整的旋转角度
+     * @param x 旋转以后的图中的x坐标
+     * @param y 旋转以后的图中的y坐标
+     * @param bgr 依次存放写入RGB图ri、gi、bi位置的分量值，与yuv2rgb()生成的RGB图一致
+     * @return 坐标是否在图片范围内，不在范围内时bgr不变
+     */
+    public static boolean sample(UniPlaneYUVImage image, int degree, int x, int y, int[] bgr) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int[] m = mapping(w, h, degree, x, y);
+        int sx = m[0];
+        int sy = m[3];
+        if (sx < 0 || sx >= w || sy < 0 || sy >= h) {
+            return false;
+        }
+        convert(image, sx, sy, bgr);
+        return true;
+    }
+    /**
+     * 目标像素(dx, dy)对应旋转图中的(rx + dx, ry + dy)，由旋转图坐标反推原图坐标(sx, sy)：<br>
+     * sx = m[0] + m[1] * dx + m[2] * dy; sy = m[3] + m[4] * dx + m[5] * dy
+     */
+    private static int[] mapping(int w, int h, int degree, int rx, int ry) {
+        if (degree == 90) {
+            return new int[] {ry, 0, 1, h - 1 - rx, -1, 0};
+        } else if (degree == 180) {
+            return new int[] {w - 1 - rx, -1, 0, h - 1 - ry, 0, -1};
+        } else if (degree == 270) {
+            return new int[] {w - 1 - ry, 0, -1, rx, 1, 0};
+        }
+        return new int[] {rx, 1, 0, ry, 0, 1};
+    }
+    /**
+     * 原图(sx, sy)像素转换为RGB，分量依次是写入ri、gi、bi位置的值
+     */
+    private static void convert(UniPlaneYUVImage image, int sx, int sy, int[] bgr) {
+        YUVType yuv = image.getType();
+        int ci = (sy / yuv.yvm) * image.getUVRowStride() + (sx / yuv.yhm) * image.getUVPixelStride();
+        int Y = image.getYBuffer().get(sy * image.getYRowStride() + sx * image.getYPixelStride()) & 0xFF;
+        int U = image.getUBuffer().get(ci) & 0xFF;
+        int V = image.getVBuffer().get(ci) & 0xFF;
+        int R = ((yuv.ry * Y + yuv.ru * U + yuv.rv * V + yuv.rc) >> 8);
+        int G = ((yuv.gy * Y + yuv.gu * U + yuv.gv * V + yuv.gc) >> 8);
+        int B = ((yuv.by * Y + yuv.bu * U + yuv.bv * V + yuv.bc) >> 8);
+        bgr[0] = B < 0 ? 0 : (B > 255 ? 255 : B);
+        bgr[1] = G < 0 ? 0 : (G > 255 ? 255 : G);
+        bgr[2] = R < 0 ? 0 : (R > 255 ? 255 : R);
+    }
+    /**
+     * 拷贝为堆上的UniYUVImage，供只接受UniYUVImage的处理方法使用；拷贝完成以后可以立即release()原图
+     * @param image 原图
+     * @param desImage 目标图，null表示新建NV21格式的图片；格式取自目标图，尺寸不一致时会重新分配图片数据
+     * @return 目标图
+     */
+    public static UniYUVImage toYUVImage(UniPlaneYUVImage image, UniYUVImage desImage) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        UniYUVImage img = desImage == null ? new UniYUVImage(UniYUVImage.NV21, w, h) : desImage;
+        YUVType yuv = img.getType();
+        int len = w * h * yuv.bits / 8;
+        if (img.getImageData() == null || img.getImageData().length != len) {
+            img.setImageData(new byte[len]);
+        }
+        img.setWidth(w);
+        img.setHeight(h);
+        byte[] dd = img.getImageData();
+        ByteBuffer y = image.getYBuffer();
+        int yRowStride = image.getYRowStride();
+        int yPixelStride = image.getYPixelStride();
+        for (int sy = 0; sy < h; sy++) {
+            int si = sy * yRowStride;
+            int di = yuv.ysi + sy * w * yuv.ys;
+            if (yPixelStride == 1 && yuv.ys == 1) {
+                // 绝对位置批量读取，不改变缓冲区的position
+                ByteBuffer row = y.duplicate();
+                row.position(si);
+                row.get(dd, di, w);
+                continue;
+            }
+            for (int sx = 0; sx < w; sx++, si += yPixelStride, di += yuv.ys) {
+                dd[di] = y.get(si);
+            }
+        }
+        int[] uvi = UniFusedImageUtil.chromaLayout(img);
+        int step = yuv.pn == 2 ? yuv.uvs : 1;
+        ByteBuffer u = image.getUBuffer();
+        ByteBuffer v = image.getVBuffer();
+        int cw = w / yuv.yhm;
+        int ch = h / yuv.yvm;
+        for (int cy = 0; cy < ch; cy++) {
+            int si = cy * image.getUVRowStride();
+            int di = cy * uvi[2];
+            for (int cx = 0; cx < cw; cx++, si += image.getUVPixelStride(), di += step) {
+                dd[uvi[0] + di] = u.get(si);
+                dd[uvi[1] + di] = v.get(si);
+            }
+        }
+        img.setOrientation(image.getOrientation());
+        img.setDegree(image.getDegree());
+        img.setMirror(image.isMirror());
+        img.setInsideGeometryGraph(UniGeometryGraph.clone(image.getInsideGeometryGraph()));
+        return img;
+    }
+}
@@ -0,0 +1,185 @@
+package uniface.android.image;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import uniimage.UniGeometryGraph;
+import uniimage.UniYUVImage;
+import uniimage.UniYUVImage.YUVType;
+
+/**
+ * 直接引用分量平面缓冲区的YUV 4:2:0帧图<br>
+ * UniYUVImage只能把像素存放在堆上的byte[]中，摄像头ImageReader的每个分量平面都要先拷贝一次；
+ * 这里按Camera2 Image.Plane的方式描述Y、U、V三个平面：每个平面一个ByteBuffer（通常是直接缓冲区），
+ * 外加行跨度和像素跨度，U、V平面的行跨度和像素跨度相同，因此平面、半平面和带行填充的布局都可以原地表示。<br>
+ * 1. UniPlaneImageUtil中的处理方法以绝对位置读取缓冲区，不改变缓冲区的position，多个线程可以并发读取同一帧；<br>
+ * 2. 帧图来自ImageReader时（见UniImagePlanes），通过release()把Image归还给ImageReader，归还以后不能再读取任何平面；<br>
+ * 3. 颜色转换系数取自指定的YUVType，Camera2的YUV_420_888帧是全范围的，对应UniYUVImage.YUV_420_888。
+ */
+public class UniPlaneYUVImage {
+    /**
+     * 帧图使用完成以后归还分量平面缓冲区的回调
+     */
+    public interface Releaser {
+        void release(UniPlaneYUVImage image);
+    }
+
+    private final int width;
+    private final int height;
+    private final ByteBuffer yBuffer;
+    private final ByteBuffer uBuffer;
+    private final ByteBuffer vBuffer;
+    private final int yRowStride;
+    private final int yPixelStride;
+    private final int uvRowStride;
+    private final int uvPixelStride;
+    private final YUVType type;
+    private final Releaser releaser;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private Integer orientation;
+    private Integer degree;
+    private boolean mirror;
+    private UniGeometryGraph insideGeometryGraph;
+    private long timestamp;
+
+    /**
+     * @param width 帧宽
+     * @param height 帧高
+     * @param type 颜色转换系数及uv分量的采样倍数所取自的YUV格式
+     * @param yBuffer Y分量平面
+     * @param yRowStride Y分量相邻两行的字节距离
+     * @param yPixelStride Y分量相邻两个像素的字节距离
+     * @param uBuffer U分量平面
+     * @param vBuffer V分量平面，半平面格式时与U分量平面共享同一块内存
+     * @param uvRowStride uv分量相邻两行的字节距离
+     * @param uvPixelStride uv分量相邻两个像素的字节距离，平面格式为1，半平面格式为2
+     * @param releaser 帧图使用完成以后归还缓冲区的回调，null表示不需要归还
+     */
+    public UniPlaneYUVImage(int width, int height, YUVType type,
+                            ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                            ByteBuffer uBuffer, ByteBuffer vBuffer, int uvRowStride, int uvPixelStride,
+                            Releaser releaser) {
+        this.width = width;
+        this.height = height;
+        this.type = type;
+        this.yBuffer = yBuffer;
+        this.yRowStride = yRowStride;
+        this.yPixelStride = yPixelStride;
+        this.uBuffer = uBuffer;
+        this.vBuffer = vBuffer;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        this.releaser = releaser;
+    }
+    /**
+     * 引用堆上的UniYUVImage图片数据，不拷贝；用于让同一套处理方法同时处理两种帧图
+     * @param image 平面或半平面格式的图片，平面格式的uv分量不能带行填充
+     */
+    public static UniPlaneYUVImage wrap(UniYUVImage image) {
+        YUVType yuv = image.getType();
+        int[] uvi = UniFusedImageUtil.chromaLayout(image);
+        if (uvi[3] != 0) {
+            throw new IllegalArgumentException("unsupported padded chroma layout");
+        }
+        ByteBuffer data = ByteBuffer.wrap(image.getImageData());
+        int uvPixelStride = yuv.pn == 2 ? yuv.uvs : 1;
+        UniPlaneYUVImage img = new UniPlaneYUVImage(image.getWidth(), image.getHeight(), yuv,
+                offset(data, yuv.ysi), image.getWidth() * yuv.ys, yuv.ys,
+                offset(data, uvi[0]), offset(data, uvi[1]), uvi[2], uvPixelStride, null);
+        img.setOrientation(image.getOrientation());
+        img.setDegree(image.getDegree());
+        img.setMirror(image.isMirror());
+        img.setInsideGeometryGraph(image.getInsideGeometryGraph());
+        return img;
+    }
+    private static ByteBuffer offset(ByteBuffer data, int offset) {
+        ByteBuffer duplicate = data.duplicate();
+        duplicate.position(offset);
+        return duplicate.slice();
+    }
+    /**
+     * 归还分量平面缓冲区，只有第一次调用有效
+     * @return 是否是第一次调用
+     */
+    public boolean release() {
+        if (!this.released.compareAndSet(false, true)) {
+            return false;
+        }
+        if (this.releaser != null) {
+            this.releaser.release(this);
+        }
+        return true;
+    }
+    public boolean isReleased() {
+        return this.released.get();
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+    public int getHeight() {
+        return this.height;
+    }
+    public YUVType getType() {
+        return this.type;
+    }
+    public ByteBuffer getYBuffer() {
+        return this.yBuffer;
+    }
+    public int getYRowStride() {
+        return this.yRowStride;
+    }
+    public int getYPixelStride() {
+        return this.yPixelStride;
+    }
+    public ByteBuffer getUBuffer() {
+        return this.uBuffer;
+    }
+    public ByteBuffer getVBuffer() {
+        return this.vBuffer;
+    }
+    public int getUVRowStride() {
+        return this.uvRowStride;
+    }
+    public int getUVPixelStride() {
+        return this.uvPixelStride;
+    }
+    public Integer getOrientation() {
+        return this.orientation;
+    }
+    public UniPlaneYUVImage setOrientation(Integer orientation) {
+        this.orientation = orientation;
+        return this;
+    }
+    public Integer getDegree() {
+        return this.degree;
+    }
+    public UniPlaneYUVImage setDegree(Integer degree) {
+        this.degree = degree;
+        return this;
+    }
+    public boolean isMirror() {
+        return this.mirror;
+    }
+    public UniPlaneYUVImage setMirror(boolean mirror) {
+        this.mirror = mirror;
+        return this;
+    }
+    public UniGeometryGraph getInsideGeometryGraph() {
+        return this.insideGeometryGraph;
+    }
+    public UniPlaneYUVImage setInsideGeometryGraph(UniGeometryGraph insideGeometryGraph) {
+        this.insideGeometryGraph = insideGeometryGraph;
+        return this;
+    }
+    /**
+     * @return 帧时间戳，来自ImageReader时是Image.getTimestamp()的纳秒值
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+    public UniPlaneYUVImage setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+        return this;
+    }
+}
@@ -0,0 +1,233 @@
+package uniface.android.image;
+
+import java.util.List;
+
+import uniface.UniFaceFeature;
+import uniimage.UniGrayYImage;
+import uniimage.UniPoint;
+import uniimage.UniRGBImage;
+import uniimage.UniRect;
+import uniimage.UniSize;
+import uniimage.UniYUVImage;
+import uniimage.UniYUVImage.YUVType;
+
+/**
+ * 由YUV帧图的Y平面直接生成的多分辨率灰度金字塔<br>
+ * 1. 第0层是旋转以后的帧图按2x2取均值缩小一半，由Y平面一次遍历生成，之后每层由上一层再缩小一半；<br>
+ * 2. 各层是复用的UniGrayYImage，尺寸不变时不重新分配图片数据；<br>
+ * 3. 人脸检测在较小的一层上进行，检测结果映射回原图坐标以后，只把人脸区域按原分辨率转换为RGB，用来提取特征值，
+ * 不再需要整帧的yuv2rgb。<br>
+ * 金字塔引用build()时的原图，在裁剪人脸完成之前原图不能被复用。不是线程安全的，每个线程使用各自的金字塔。
+ */
+public class UniYPlanePyramid {
+    private final UniGrayYImage[] levels;
+    private int levelCount;
+    private UniYUVImage source;
+    private int degree;
+
+    /**
+     * @param maxLevels 最多生成的层数，最小为1
+     */
+    public UniYPlanePyramid(int maxLevels) {
+        this.levels = new UniGrayYImage[maxLevels < 1 ? 1 : maxLevels];
+    }
+    /**
+     * 由帧图的Y平面生成金字塔，尺寸小于2的层不再生成
+     * @param image 原图
+     * @param degree 旋转角度，仅支持90的整数倍，与UniFusedImageUtil.yuv2rgb()的旋转一致
+     * @return this
+     */
+    public UniYPlanePyramid build(UniYUVImage image, int degree) {
+        this.source = image;
+        this.degree = UniFusedImageUtil.normalizeDegree(degree);
+        UniSize rs = UniFusedImageUtil.rotatedSize(image, this.degree);
+        int width = rs.width >> 1;
+        int height = rs.height >> 1;
+        this.levelCount = 0;
+        while (this.levelCount < this.levels.length && width > 1 && height > 1) {
+            UniGrayYImage level = this.prepare(this.levelCount, width, height);
+            if (this.levelCount == 0) {
+                downscaleYPlane(image, this.degree, level);
+            } else {
+                downscale(this.levels[this.levelCount - 1], level);
+            }
+            this.levelCount++;
+            width >>= 1;
+            height >>= 1;
+        }
+        return this;
+    }
+    private UniGrayYImage prepare(int index, int width, int height) {
+        UniGrayYImage level = this.levels[index];
+        if (level == null || level.getImageData() == null || level.getImageData().length != width * height) {
+            level = new UniGrayYImage(width, height);
+            this.levels[index] = level;
+        }
+        level.setWidth(width);
+        level.setHeight(height);
+        return level;
+    }
+    /**
+     * 旋转以后的Y平面按2x2取均值写入第0层
+     */
+    static void downscaleYPlane(UniYUVImage image, int degree, UniGrayYImage level) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        YUVType yuv = image.getType();
+        byte[] sd = image.getImageData();
+        byte[] dd = level.getImageData();
+        int dw = level.getWidth();
+        int dh = level.getHeight();
+        // 与UniFusedImageUtil.fillRows()相同的反推方式：旋转图坐标(rx, ry)对应原图坐标
+        // sx = sxb + sxx * rx + sxy * ry; sy = syb + syx * rx + syy * ry
+        int sxb, sxx, sxy, syb, syx, syy;
+        if (degree == 90) {
+            sxb = 0; sxx = 0; sxy = 1;
+            syb = h - 1; syx = -1; syy = 0;
+        } else if (degree == 180) {
+            sxb = w - 1; sxx = -1; sxy = 0;
+            syb = h - 1; syx = 0; syy = -1;
+        } else if (degree == 270) {
+            sxb = w - 1; sxx = 0; sxy = -1;
+            syb = 0; syx = 1; syy = 0;
+        } else {
+            sxb = 0; sxx = 1; sxy = 0;
+            syb = 0; syx = 0; syy = 1;
+        }
+        int ys = yuv.ys;
+        // 旋转图中向右、向下一个像素在原图数据中的索引增量
+        int stepX = (syx * w + sxx) * ys;
+        int stepY = (syy * w + sxy) * ys;
+        int di = 0;
+        for (int dy = 0; dy < dh; dy++) {
+            int ry = dy << 1;
+            int si = yuv.ysi + ((syb + syy * ry) * w + sxb + sxy * ry) * ys;
+            for (int dx = 0; dx < dw; dx++, si += stepX << 1) {
+                int sum = (sd[si] & 0xFF) + (sd[si + stepX] & 0xFF) + (sd[si + stepY] & 0xFF) + (sd[si + stepX + stepY] & 0xFF);
+                dd[di++] = (byte) ((sum + 2) >> 2);
+            }
+        }
+    }
+    /**
+     * 按2x2取均值缩小一半
+     */
+    static void downscale(UniGrayYImage src, UniGrayYImage des) {
+        byte[] sd = src.getImageData();
+        byte[] dd = des.getImageData();
+        int sw = src.getWidth();
+        int dw = des.getWidth();
+        int dh = des.getHeight();
+        int di = 0;
+        for (int dy = 0; dy < dh; dy++) {
+            int si = (dy << 1) * sw;
+            for (int dx = 0; dx < dw; dx++, si += 2) {
+                int sum = (sd[si] & 0xFF) + (sd[si + 1] & 0xFF) + (sd[si + sw] & 0xFF) + (sd[si + sw + 1] & 0xFF);
+                dd[di++] = (byte) ((sum + 2) >> 2);
+            }
+        }
+    }
+    public int getLevelCount() {
+        return this.levelCount;
+    }
+    public UniGrayYImage getLevel(int level) {
+        return this.levels[level];
+    }
+    /**
+     * @return 指定层相对于旋转以后的原图的缩小倍数
+     */
+    public int getScale(int level) {
+        return 2 << level;
+    }
+    /**
+     * 选择长边不超过maxSide的最大一层，所有层都超过时取最小的一层
+     * @param maxSide 检测图的最大边长
+     * @return 层号
+     */
+    public int selectLevel(int maxSide) {
+        for (int i = 0; i < this.levelCount; i++) {
+            if (Math.max(this.levels[i].getWidth(), this.levels[i].getHeight()) <= maxSide) {
+                return i;
+            }
+        }
+        return this.levelCount - 1;
+    }
+    /**
+     * 将在指定层上检测所得的人脸位置、双眼和嘴的点位映射为旋转以后的原图坐标
+     * @param face 人脸，点位被原地修改
+     * @param level 检测所用的层号
+     */
+    public void mapToFrame(UniFaceFeature face, int level) {
+        int scale = this.getScale(level);
+        List<UniPoint> points = face.getPolygon() == null ? null : face.getPolygon().getPoints();
+        if (points != null) {
+            for (int i = 0; i < points.size(); i++) {
+                scale(points.get(i), scale);
+            }
+        }
+        scale(face.getLeftEyePoint(), scale);
+        scale(face.getRightEyePoint(), scale);
+        scale(face.getMouthPoint(), scale);
+    }
+    private static void scale(UniPoint point, int scale) {
+        if (point != null) {
+            // 映射到缩小前对应像素块的中心
+            point.x = point.x * scale + (scale >> 1);
+            point.y = point.y * scale + (scale >> 1);
+        }
+    }
+    /**
+     * 计算人脸的裁剪区域：以人脸外接矩形为中心、边长为长边加上两侧边距的正方形
+     * @param face 人脸，位置为旋转以后的原图坐标
+     * @param margin 每侧边距与长边之比
+     * @return 裁剪区域，人脸没有位置时返回null
+     */
+    public static UniRect cropRect(UniFaceFeature face, float margin) {
+        List<UniPoint> points = face.getPolygon() == null ? null : face.getPolygon().getPoints();
+        int count = points == null ? 0 : points.size();
+        if (count == 0) {
+            return null;
+        }
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int bottom = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            UniPoint p = points.get(i);
+            left = Math.min(left, p.x);
+            top = Math.min(top, p.y);
+            right = Math.max(right, p.x);
+            bottom = Math.max(bottom, p.y);
+        }
+        int side = Math.max(right - left, bottom - top) + 1;
+        side += 2 * (int) (side * margin);
+        return new UniRect((left + right + 1 - side) / 2, (top + bottom + 1 - side) / 2, side, side);
+    }
+    /**
+     * 把人脸区域按原分辨率旋转并转换为RGB，作为人脸小图
+     * @param face 人脸，位置为旋转以后的原图坐标
+     * @param margin 每侧边距与长边之比
+     * @param desImage 目标图，null表示新建
+     * @return 人脸小图，同时设置到face中；人脸没有位置时返回null
+     */
+    public UniRGBImage cropFace(UniFaceFeature face, float margin, UniRGBImage desImage) {
+        UniRect roi = cropRect(face, margin);
+        if (roi == null) {
+            return null;
+        }
+        UniRGBImage img = UniFusedImageUtil.yuv2rgb(this.source, this.degree, roi, desImage, (byte) 0);
+        face.setFaceImage(img);
+        return img;
+    }
+    /**
+     * @return 最近一次build()的原图
+     */
+    public UniYUVImage getSource() {
+        return this.source;
+    }
+    /**
+     * 释放对原图的引用
+     */
+    public void clear() {
+        this.source = null;
+    }
+}
@@ -0,0 +1,123 @@
+package uniface.android.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 低开销的延迟直方图，单位纳秒<br>
+ * 1. 桶按2的幂分段，每段再线性等分为16个子桶，任意延迟值的量化误差不超过6.25%；<br>
+ * 2. 桶数量固定，记录一次只有一次原子自增和少量位运算，不分配内存、不加锁，可以在多个线程中并发记录；<br>
+ * 3. 分位数从桶计数中计算，返回所在桶的上界值，不会低估尾部延迟。
+ */
+public class UniLatencyHistogram {
+    private final static int SUB_BITS = 5; // 每段子桶数为2^(SUB_BITS-1)
+    private final static int SUB_HALF = 1 << (SUB_BITS - 1);
+    private final static int MAX_BITS = 40; // 可记录的最大值约为1100秒，超过的按最大值计
+    private final static long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private final static int BUCKETS = bucketOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+
+    /**
+     * 计算值所在的桶索引：小于2^SUB_BITS的值每个值一个桶，更大的值按最高位所在段加高几位有效位定位
+     */
+    static int bucketOf(long value) {
+        int highBit = 63 - Long.numberOfLeadingZeros(value | 1);
+        int shift = highBit < SUB_BITS ? 0 : highBit - (SUB_BITS - 1);
+        return (shift << (SUB_BITS - 1)) + (int) (value >>> shift);
+    }
+    /**
+     * 桶中可能出现的最大值
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < (SUB_HALF << 1)) {
+            return bucket;
+        }
+        int shift = (bucket >> (SUB_BITS - 1)) - 1;
+        long mantissa = bucket - (shift << (SUB_BITS - 1));
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * 记录一次延迟
+     * @param nanos 延迟纳秒值，负值按0计
+     */
+    public void record(long nanos) {
+        long v = nanos < 0 ? 0 : (nanos > MAX_VALUE ? MAX_VALUE : nanos);
+        this.buckets.incrementAndGet(bucketOf(v));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(v);
+        long m;
+        while (v > (m = this.max.get()) && !this.max.compareAndSet(m, v)) {
+        }
+        while (v < (m = this.min.get()) && !this.min.compareAndSet(m, v)) {
+        }
+    }
+    /**
+     * 记录从startNanos到现在的延迟
+     * @param startNanos 开始时的System.nanoTime()值
+     * @return 当前的System.nanoTime()值，便于连续记录下一段
+     */
+    public long recordSince(long startNanos) {
+        long now = System.nanoTime();
+        this.record(now - startNanos);
+        return now;
+    }
+    public long getCount() {
+        return this.count.get();
+    }
+    public long getMax() {
+        return this.max.get();
+    }
+    public long getMin() {
+        long m = this.min.get();
+        return m == Long.MAX_VALUE ? 0 : m;
+    }
+    public double getMean() {
+        long c = this.count.get();
+        return c == 0 ? 0 : (double) this.sum.get() / c;
+    }
+    /**
+     * 计算分位数
+     * @param percentile 百分位，如50、99、99.9
+     * @return 不小于该百分位延迟的桶上界纳秒值，不超过记录到的最大值；没有记录时返回0。
+     * 直接遍历桶计数而不拷贝，不分配对象，可以在绘图线程中逐帧调用；与并发的record()之间不保证精确一致。
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += this.buckets.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), this.getMax());
+            }
+        }
+        return this.getMax();
+    }
+    /**
+     * 清空所有记录，与并发的record()之间不保证原子性
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets.set(i, 0);
+        }
+        this.count.set(0);
+        this.sum.set(0);
+        this.max.set(0);
+        this.min.set(Long.MAX_VALUE);
+    }
+}
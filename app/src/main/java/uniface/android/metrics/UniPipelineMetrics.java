@@ -0,0 +1,167 @@
+package uniface.android.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 人脸识别流水线的运行指标：每个处理阶段一个延迟直方图，外加帧计数器<br>
+ * 1. 直方图和计数器按名称取用，首次使用时创建，之后的记录不加锁；<br>
+ * 2. 可以通过getHistogram()/getCounter()在程序中查询，也可以通过dump()写入文件，便于在现场按设备收集p50/p99/p999。
+ */
+public class UniPipelineMetrics {
+    // 处理阶段
+    public final static String GrabWait         = "grab.wait"; // 帧图从放入缓存环到被处理线程取走的等待时间
+    public final static String RotateYuv2rgb    = "rotate.yuv2rgb"; // 帧图旋转和YUV转RGB，两者在一次遍历中完成
+    public final static String Pyramid          = "pyramid"; // 由Y平面生成检测用的灰度金字塔
+    public final static String Analyse          = "analyse"; // 人脸检测和特征提取，由人脸引擎在一次调用中完成
+    public final static String Extract          = "extract"; // 批量特征提取时一次模型推理的耗时，人脸检测仍记入Analyse
+    public final static String Draw             = "draw"; // 人脸信息绘制
+    public final static String Compare          = "compare"; // 人脸特征比对
+    public final static String Search           = "search"; // 人脸特征库搜索
+    public final static String Prewarm          = "startup.prewarm"; // 启动时后台预热人脸引擎的耗时
+    public final static String FirstFrame       = "startup.first.frame"; // 从启动抓帧到第一帧完成绘制
+    public final static String FirstRecognition = "startup.first.recognition"; // 从启动抓帧到第一次识别出人脸
+    public final static String BorrowWait       = "pool.borrow.wait"; // 从人脸引擎池借出引擎的等待时间
+    public final static String EndToEnd         = "end.to.end"; // 从抓帧到识别结果回调的端到端延迟
+    // 帧计数器
+    public final static String FramesDropped    = "frames.dropped"; // 未被处理就丢弃的帧数
+    public final static String FramesOverwritten = "frames.overwritten"; // 未被处理就被新帧覆盖的帧数
+    public final static String FramesSkipped    = "frames.skipped"; // 跳过人脸分析的帧数
+    // 人脸计数器
+    public final static String FacesRejected    = "faces.rejected"; // 未通过质量门限、不提取特征值的人脸数
+    public final static String FacesExtracted   = "faces.extracted"; // 提取了特征值的人脸数
+    public final static String FacesReused      = "faces.reused"; // 复用跟踪已有特征值、不再提取的人脸数
+    // 人脸引擎池
+    public final static String PoolActive       = "pool.active"; // 当前借出的引擎数
+    public final static String PoolUtilisation  = "pool.utilisation.permille"; // 池利用率千分比
+
+    private final ConcurrentHashMap<String, UniLatencyHistogram> histograms = new ConcurrentHashMap<String, UniLatencyHistogram>();
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private volatile long startTime = System.currentTimeMillis();
+
+    /**
+     * 取指定阶段的直方图，不存在时创建
+     */
+    public UniLatencyHistogram getHistogram(String stage) {
+        UniLatencyHistogram histogram = this.histograms.get(stage);
+        if (histogram == null) {
+            UniLatencyHistogram created = new UniLatencyHistogram();
+            histogram = this.histograms.putIfAbsent(stage, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+    /**
+     * 取指定名称的计数器，不存在时创建
+     */
+    public AtomicLong getCounter(String name) {
+        AtomicLong counter = this.counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = this.counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+    /**
+     * 记录一个阶段的耗时
+     * @param stage 阶段名称
+     * @param nanos 耗时纳秒值
+     */
+    public void record(String stage, long nanos) {
+        this.getHistogram(stage).record(nanos);
+    }
+    /**
+     * 记录一个阶段从startNanos到现在的耗时
+     * @param stage 阶段名称
+     * @param startNanos 阶段开始时的System.nanoTime()值
+     * @return 当前的System.nanoTime()值，便于连续记录下一阶段
+     */
+    public long recordSince(String stage, long startNanos) {
+        return this.getHistogram(stage).recordSince(startNanos);
+    }
+    public long increment(String name) {
+        return this.getCounter(name).incrementAndGet();
+    }
+    /**
+     * 设置计数器的值，用于同步由其他组件自行累计的计数
+     */
+    public void setCounter(String name, long value) {
+        this.getCounter(name).set(value);
+    }
+    /**
+     * @return 已记录过的阶段名称，按名称排序
+     */
+    public String[] getStages() {
+        return new TreeMap<String, UniLatencyHistogram>(this.histograms).keySet().toArray(new String[0]);
+    }
+    /**
+     * @return 开始统计以来的毫秒数
+     */
+    public long getElapsedTime() {
+        return System.currentTimeMillis() - this.startTime;
+    }
+    /**
+     * 清空所有直方图和计数器，重新开始统计
+     */
+    public void reset() {
+        for (UniLatencyHistogram histogram : this.histograms.values()) {
+            histogram.reset();
+        }
+        for (AtomicLong counter : this.counters.values()) {
+            counter.set(0);
+        }
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 以文本表格输出所有指标，延迟单位为微秒
+     * @param writer 输出目标
+     * @param title 标题行，通常包含设备型号，可以为null
+     */
+    public void writeTo(Writer writer, String title) throws IOException {
+        if (title != null) {
+            writer.write("# " + title + "\n");
+        }
+        writer.write(String.format(Locale.US, "# elapsed:%dms\n", this.getElapsedTime()));
+        writer.write("stage\tcount\tmin\tp50\tp99\tp999\tmax\tmean\n");
+        for (Map.Entry<String, UniLatencyHistogram> e : new TreeMap<String, UniLatencyHistogram>(this.histograms).entrySet()) {
+            UniLatencyHistogram h = e.getValue();
+            writer.write(String.format(Locale.US, "%s\t%d\t%d\t%d\t%d\t%d\t%d\t%.1f\n", e.getKey(), h.getCount(),
+                    h.getMin() / 1000, h.getPercentile(50) / 1000, h.getPercentile(99) / 1000,
+                    h.getPercentile(99.9) / 1000, h.getMax() / 1000, h.getMean() / 1000));
+        }
+        writer.write("counter\tvalue\n");
+        for (Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(this.counters).entrySet()) {
+            writer.write(e.getKey() + "\t" + e.getValue().get() + "\n");
+        }
+        writer.flush();
+    }
+    /**
+     * 将所有指标写入文件
+     * @param file 目标文件
+     * @param append 是否追加到文件末尾，便于同一台设备多次运行的结果保存在一个文件中
+     * @param title 标题行，通常包含设备型号，可以为null
+     */
+    public void dump(File file, boolean append, String title) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file, append), Charset.forName("UTF-8"));
+        try {
+            this.writeTo(writer, title);
+        } finally {
+            writer.close();
+        }
+    }
+}
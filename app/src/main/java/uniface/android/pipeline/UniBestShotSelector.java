@@ -0,0 +1,126 @@
+package uniface.android.pipeline;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import uniface.UniFaceFeature;
+
+/**
+ * 每个人脸的最佳帧选择器<br>
+ * 1. 以人脸的跟踪ID（UniFaceFeature.faceId）区分人脸，每个人脸从首次出现起，每windowFrames帧为一个窗口；<br>
+ * 2. 窗口内只保留质量分最高的一次检测结果，窗口结束或者人脸消失时输出这一个结果，只有它需要提取特征值和搜索；<br>
+ * 3. 没有跟踪ID的人脸无法跨帧对应，直接输出。<br>
+ * faceId必须是跨帧稳定的跟踪ID，人脸引擎本身不分配，通常由UniFaceTracker在offer()之前设置
+ * （UniBatchFaceAnalyzer中同时设置setFaceTracker()即可）；不同帧中不同的人脸使用同一个faceId时会被当作同一个人脸。<br>
+ * 不是线程安全的，应当只在人脸分析线程中使用。
+ */
+public class UniBestShotSelector {
+    private static class Window {
+        private UniFaceFeature best;
+        private float bestQuality;
+        private long firstFrame;
+        private long lastFrame;
+    }
+    private final int windowFrames;
+    private final int maxMissedFrames;
+    private final LinkedHashMap<Integer, Window> windows = new LinkedHashMap<Integer, Window>();
+    private final ArrayList<Window> freeWindows = new ArrayList<Window>();
+    private final List<UniFaceFeature> selected = new ArrayList<UniFaceFeature>();
+    private long frame;
+    private long offeredCount;
+    private long selectedCount;
+
+    /**
+     * @param windowFrames 窗口帧数，最小为1（每帧都输出）
+     * @param maxMissedFrames 人脸连续多少帧没有出现视为消失，最小为1
+     */
+    public UniBestShotSelector(int windowFrames, int maxMissedFrames) {
+        this.windowFrames = windowFrames < 1 ? 1 : windowFrames;
+        this.maxMissedFrames = maxMissedFrames < 1 ? 1 : maxMissedFrames;
+    }
+    /**
+     * 开始新的一帧，清空上一帧的输出
+     */
+    public void beginFrame() {
+        this.frame++;
+        this.selected.clear();
+    }
+    /**
+     * 提交一个通过质量门限的人脸
+     * @param face 人脸，faceId为跟踪ID，null表示没有跟踪
+     * @param quality 质量分
+     */
+    public void offer(UniFaceFeature face, float quality) {
+        this.offeredCount++;
+        Integer faceId = face.getFaceId();
+        if (faceId == null) {
+            this.select(face);
+            return;
+        }
+        Window window = this.windows.get(faceId);
+        if (window == null) {
+            window = this.freeWindows.isEmpty() ? new Window() : this.freeWindows.remove(this.freeWindows.size() - 1);
+            window.best = null;
+            window.firstFrame = this.frame;
+            this.windows.put(faceId, window);
+        }
+        window.lastFrame = this.frame;
+        if (window.best == null || quality > window.bestQuality) {
+            window.best = face;
+            window.bestQuality = quality;
+        }
+    }
+    /**
+     * 结束当前帧，输出窗口已满或者已消失的人脸的最佳结果
+     * @return 本帧需要提取特征值的人脸，列表在下一次beginFrame()时清空
+     */
+    public List<UniFaceFeature> endFrame() {
+        Iterator<Window> it = this.windows.values().iterator();
+        while (it.hasNext()) {
+            Window window = it.next();
+            boolean full = this.frame - window.firstFrame + 1 >= this.windowFrames;
+            boolean missed = this.frame - window.lastFrame >= this.maxMissedFrames;
+            if (full || missed) {
+                if (window.best != null) {
+                    this.select(window.best);
+                }
+                window.best = null;
+                it.remove();
+                this.freeWindows.add(window);
+            }
+        }
+        return this.selected;
+    }
+    private void select(UniFaceFeature face) {
+        this.selected.add(face);
+        this.selectedCount++;
+    }
+    /**
+     * 清空所有窗口，视频源切换时调用
+     */
+    public void reset() {
+        for (Window window : this.windows.values()) {
+            window.best = null;
+            this.freeWindows.add(window);
+        }
+        this.windows.clear();
+        this.selected.clear();
+    }
+    /**
+     * @return 正在挑选最佳帧的人脸数
+     */
+    public int getWindowCount() {
+        return this.windows.size();
+    }
+    public long getOfferedCount() {
+        return this.offeredCount;
+    }
+    /**
+     * @return 输出的人脸数，与提交数之比即特征提取的节省比例
+     */
+    public long getSelectedCount() {
+        return this.selectedCount;
+    }
+}
@@ -0,0 +1,223 @@
+package uniface.android.pipeline;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uniface.UniFaceFeature;
+import uniimage.UniGrayYImage;
+import uniimage.UniImage;
+import uniimage.UniPoint;
+import uniimage.UniRGBImage;
+import uniimage.UniYUVImage;
+
+/**
+ * 提取人脸特征值之前的人脸质量门限<br>
+ * 1. 在帧图亮度分量（YUV帧图的Y平面、UniGrayYImage，RGB帧图按整数公式即时换算）上，对人脸区域按固定的采样点数计算：
+ * 清晰度（拉普拉斯响应的方差）和亮度（均值），耗时与人脸大小无关；<br>
+ * 2. 姿态优先取人脸特征中的yaw、pitch、roll，没有时由双眼和嘴的点位估算roll和yaw；<br>
+ * 3. 任一项超出阈值的人脸被拒绝，不再提取特征值；通过的人脸给出0-1之间的质量分，供UniBestShotSelector挑选最佳帧。<br>
+ * 阈值设置不是线程安全的，应在使用前设置；evaluate()可以在多个线程中并发调用。
+ */
+public class UniFaceQualityGate {
+    // 拒绝原因
+    public final static int Accepted        = 0;
+    public final static int RejectScore     = 1; // 检测得分过低
+    public final static int RejectBlur      = 2; // 模糊
+    public final static int RejectDark      = 3; // 过暗
+    public final static int RejectBright    = 4; // 过亮
+    public final static int RejectPose      = 5; // 姿态过偏
+    public final static int RejectRegion    = 6; // 人脸区域无效或太小
+    private final static int REASONS = 7;
+    private final static int SAMPLES = 48; // 每个方向的采样点数
+    private final static int MIN_FACE_SIZE = 16; // 人脸区域的最小边长
+
+    private float minSharpness = 40f;
+    private float minBrightness = 50f;
+    private float maxBrightness = 210f;
+    private float maxYaw = 35f;
+    private float maxPitch = 30f;
+    private float maxRoll = 30f;
+    private int minScore = 0;
+    private final AtomicLong[] counts = new AtomicLong[REASONS];
+
+    public UniFaceQualityGate() {
+        for (int i = 0; i < REASONS; i++) {
+            this.counts[i] = new AtomicLong();
+        }
+    }
+    /**
+     * 设置清晰度阈值，拉普拉斯响应的方差，清晰的人脸通常在100以上
+     */
+    public UniFaceQualityGate setMinSharpness(float minSharpness) {
+        this.minSharpness = minSharpness;
+        return this;
+    }
+    /**
+     * 设置亮度范围，人脸区域亮度均值，0-255
+     */
+    public UniFaceQualityGate setBrightness(float minBrightness, float maxBrightness) {
+        this.minBrightness = minBrightness;
+        this.maxBrightness = maxBrightness;
+        return this;
+    }
+    /**
+     * 设置姿态阈值，角度的绝对值
+     */
+    public UniFaceQualityGate setMaxPose(float maxYaw, float maxPitch, float maxRoll) {
+        this.maxYaw = maxYaw;
+        this.maxPitch = maxPitch;
+        this.maxRoll = maxRoll;
+        return this;
+    }
+    /**
+     * 设置人脸检测得分阈值，人脸特征没有得分时不检查
+     */
+    public UniFaceQualityGate setMinScore(int minScore) {
+        this.minScore = minScore;
+        return this;
+    }
+
+    /**
+     * 评价一个人脸的质量
+     * @param image 人脸所在的帧图，人脸位置与帧图在同一坐标系中
+     * @param face 检测所得的人脸
+     * @return 通过时返回0-1之间的质量分，被拒绝时返回负的拒绝原因，如-RejectBlur
+     */
+    public float evaluate(UniImage image, UniFaceFeature face) {
+        float quality = this.check(image, face);
+        this.counts[quality < 0 ? (int) -quality : Accepted].incrementAndGet();
+        return quality;
+    }
+    private float check(UniImage image, UniFaceFeature face) {
+        Integer score = face.getScore();
+        if (score != null && score < this.minScore) {
+            return -RejectScore;
+        }
+        // 姿态
+        float yaw = face.getYaw() == null ? Float.NaN : Math.abs(face.getYaw());
+        float pitch = face.getPitch() == null ? Float.NaN : Math.abs(face.getPitch());
+        float roll = face.getRoll() == null ? Float.NaN : Math.abs(face.getRoll());
+        UniPoint le = face.getLeftEyePoint();
+        UniPoint re = face.getRightEyePoint();
+        UniPoint mp = face.getMouthPoint();
+        if (le != null && re != null) {
+            double dx = re.x - le.x;
+            double dy = re.y - le.y;
+            double eyeDistance = Math.sqrt(dx * dx + dy * dy);
+            if (Float.isNaN(roll) && eyeDistance > 0) {
+                // 双眼连线与水平方向的夹角，左右眼顺序不同时取补角
+                double angle = Math.abs(Math.toDegrees(Math.atan2(dy, dx)));
+                roll = (float) Math.min(angle, 180 - angle);
+            }
+            if (Float.isNaN(yaw) && mp != null && eyeDistance > 0) {
+                // 嘴相对双眼中点在双眼连线方向上的偏移，正脸时接近0，侧脸90度时约为半个眼距
+                double mx = mp.x - (le.x + re.x) / 2.0;
+                double my = mp.y - (le.y + re.y) / 2.0;
+                double offset = Math.abs((mx * dx + my * dy) / eyeDistance) / (eyeDistance / 2);
+                yaw = (float) Math.toDegrees(Math.asin(Math.min(1, offset)));
+            }
+        }
+        if (yaw > this.maxYaw || pitch > this.maxPitch || roll > this.maxRoll) {
+            return -RejectPose;
+        }
+        // 人脸区域
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int bottom = Integer.MIN_VALUE;
+        List<UniPoint> points = face.getPolygon() == null ? null : face.getPolygon().getPoints();
+        int count = points == null ? 0 : points.size();
+        for (int i = 0; i < count; i++) {
+            UniPoint p = points.get(i);
+            left = Math.min(left, p.x);
+            top = Math.min(top, p.y);
+            right = Math.max(right, p.x);
+            bottom = Math.max(bottom, p.y);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        left = Math.max(left, 1);
+        top = Math.max(top, 1);
+        right = Math.min(right, width - 2);
+        bottom = Math.min(bottom, height - 2);
+        if (count == 0 || right - left < MIN_FACE_SIZE || bottom - top < MIN_FACE_SIZE || image.getImageData() == null) {
+            return -RejectRegion;
+        }
+        // 按固定采样点数计算亮度均值和拉普拉斯响应的方差
+        int stepX = Math.max(1, (right - left) / SAMPLES);
+        int stepY = Math.max(1, (bottom - top) / SAMPLES);
+        long sum = 0;
+        long lapSum = 0;
+        long lapSquareSum = 0;
+        int n = 0;
+        for (int y = top; y <= bottom; y += stepY) {
+            for (int x = left; x <= right; x += stepX) {
+                int c = luma(image, x, y);
+                int lap = luma(image, x - 1, y) + luma(image, x + 1, y) + luma(image, x, y - 1) + luma(image, x, y + 1) - 4 * c;
+                sum += c;
+                lapSum += lap;
+                lapSquareSum += (long) lap * lap;
+                n++;
+            }
+        }
+        float brightness = (float) sum / n;
+        if (brightness < this.minBrightness) {
+            return -RejectDark;
+        }
+        if (brightness > this.maxBrightness) {
+            return -RejectBright;
+        }
+        double lapMean = (double) lapSum / n;
+        float sharpness = (float) ((double) lapSquareSum / n - lapMean * lapMean);
+        if (sharpness < this.minSharpness) {
+            return -RejectBlur;
+        }
+        if (face.getClarity() == null) {
+            face.setClarity(sharpness);
+        }
+        // 质量分：清晰度、亮度居中程度、正脸程度各占三分之一
+        float sharpnessScore = sharpness / (sharpness + this.minSharpness * 2);
+        float middle = (this.minBrightness + this.maxBrightness) / 2;
+        float brightnessScore = 1 - Math.abs(brightness - middle) / Math.max(1, (this.maxBrightness - this.minBrightness) / 2);
+        float poseScore = 1 - ((Float.isNaN(yaw) ? 0 : yaw / this.maxYaw) + (Float.isNaN(roll) ? 0 : roll / this.maxRoll)) / 2;
+        return (sharpnessScore + brightnessScore + poseScore) / 3;
+    }
+    /**
+     * 取一个像素的亮度值，YUV帧图直接取Y分量
+     */
+    static int luma(UniImage image, int x, int y) {
+        byte[] data = image.getImageData();
+        int w = image.getWidth();
+        if (image instanceof UniYUVImage) {
+            UniYUVImage.YUVType type = ((UniYUVImage) image).getType();
+            return data[type.ysi + (y * w + x) * type.ys] & 0xFF;
+        }
+        if (image instanceof UniGrayYImage) {
+            return data[y * w + x] & 0xFF;
+        }
+        UniRGBImage.RGBType type = ((UniRGBImage) image).getType();
+        if (type == null) {
+            type = UniRGBImage.RGB;
+        }
+        int p = (y * w + x) * (type.bits / 8);
+        // BT.601亮度的整数近似
+        return ((data[p + type.ri] & 0xFF) * 77 + (data[p + type.gi] & 0xFF) * 150 + (data[p + type.bi] & 0xFF) * 29) >> 8;
+    }
+    /**
+     * @param reason 拒绝原因，Accepted表示通过的数量
+     * @return 累计数量
+     */
+    public long getCount(int reason) {
+        return reason >= 0 && reason < REASONS ? this.counts[reason].get() : 0;
+    }
+    /**
+     * @return 累计拒绝的人脸数量
+     */
+    public long getRejectedCount() {
+        long rejected = 0;
+        for (int i = 1; i < REASONS; i++) {
+            rejected += this.counts[i].get();
+        }
+        return rejected;
+    }
+}
@@ -0,0 +1,353 @@
+package uniface.android.pipeline;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import uniface.UniFaceFeature;
+import uniimage.UniRect;
+
+/**
+ * 先检测后跟踪的人脸跟踪器<br>
+ * 1. 每隔detectInterval帧，或者跟踪置信度下降（出现新人脸、跟踪的人脸丢失、摄像头人脸得分过低）时，才需要人脸引擎做完整的人脸分析；
+ * 画面中没有人脸时也只按detectInterval检测，不逐帧调用人脸引擎；<br>
+ * 2. 其余帧通过摄像头检测的人脸（几何图层中的Face图层）与已跟踪人脸的交并比（IoU）传递人脸位置，不调用人脸引擎；<br>
+ * 3. 每个跟踪的人脸有稳定的跟踪ID（通过UniFaceFeature.faceId输出）；<br>
+ * 4. 检测与提取特征值分开的分析器（如UniBatchFaceAnalyzer）在检测以后调用onDetected()，已有特征值的跟踪人脸直接复用，
+ * 每个跟踪只提取一次特征值；TFLieFaceApi.analyse()没有只检测的模式，每次分析都会提取所有人脸的特征值，
+ * 这种情况调用onAnalysed()，只保留跟踪过程中清晰度最高的一次分析结果。<br>
+ * 跟踪器不是线程安全的，应当只在人脸分析线程中使用。
+ */
+public class UniFaceTracker {
+    /**
+     * 一个被跟踪的人脸
+     */
+    public static class Track {
+        private final int trackId;
+        private UniFaceFeature feature; // 最近一次完整分析所得的人脸特征，特征值和人脸小图在跟踪过程中复用
+        private UniRect rect; // 最近一次的人脸位置
+        private int missedFrames; // 连续未匹配的帧数
+        private int analysedCount; // 完整分析的次数
+        private Track(int trackId) {
+            this.trackId = trackId;
+        }
+        public int getTrackId() {
+            return this.trackId;
+        }
+        public UniFaceFeature getFeature() {
+            return this.feature;
+        }
+        public UniRect getRect() {
+            return this.rect;
+        }
+        public int getAnalysedCount() {
+            return this.analysedCount;
+        }
+    }
+    private final int detectInterval;
+    private final float minIou;
+    private final int maxMissedFrames;
+    private int minScore = 0;
+    private final List<Track> tracks = new ArrayList<Track>();
+    private int nextTrackId = 1;
+    private int framesSinceAnalyse;
+    private long analysedFrames;
+    private long trackedFrames;
+    private long reusedFeatures;
+
+    /**
+     * @param detectInterval 最多每隔多少帧做一次完整的人脸分析，最小为1（每帧都分析）
+     * @param minIou 判定为同一人脸的最小交并比，取值(0, 1]
+     * @param maxMissedFrames 跟踪的人脸连续多少帧未匹配以后放弃跟踪
+     */
+    public UniFaceTracker(int detectInterval, float minIou, int maxMissedFrames) {
+        this.detectInterval = detectInterval < 1 ? 1 : detectInterval;
+        this.minIou = minIou;
+        this.maxMissedFrames = maxMissedFrames < 0 ? 0 : maxMissedFrames;
+    }
+    /**
+     * 设置摄像头人脸得分的下限，得分低于下限时认为跟踪置信度下降，需要完整分析
+     * @param minScore 得分下限，0表示不检查
+     * @return 当前对象
+     */
+    public UniFaceTracker setMinScore(int minScore) {
+        this.minScore = minScore;
+        return this;
+    }
+    /**
+     * 两个人脸矩形的交并比：交集面积与并集面积之比
+     */
+    static float iou(UniRect rect, UniRect other) {
+        if (rect == null || other == null) {
+            return 0f;
+        }
+        long w = (long) Math.min(rect.x + rect.width, other.x + other.width) - Math.max(rect.x, other.x);
+        long h = (long) Math.min(rect.y + rect.height, other.y + other.height) - Math.max(rect.y, other.y);
+        if (w <= 0 || h <= 0) {
+            return 0f;
+        }
+        long intersection = w * h;
+        long union = (long) rect.width * rect.height + (long) other.width * other.height - intersection;
+        return union <= 0 ? 0f : (float) intersection / union;
+    }
+    /**
+     * 查找与指定人脸位置交并比最高的跟踪人脸
+     * @param rect 人脸位置
+     * @param used 已被匹配的跟踪人脸，不参与查找
+     * @return 交并比不低于minIou的跟踪人脸，没有则返回null
+     */
+    private Track match(UniRect rect, boolean[] used) {
+        int best = -1;
+        float bestIou = this.minIou;
+        for (int i = 0; i < this.tracks.size(); i++) {
+            if (used[i]) {
+                continue;
+            }
+            float o = iou(rect, this.tracks.get(i).rect);
+            if (o >= bestIou) {
+                best = i;
+                bestIou = o;
+            }
+        }
+        if (best < 0) {
+            return null;
+        }
+        used[best] = true;
+        return this.tracks.get(best);
+    }
+
+    /**
+     * 判断当前帧是否需要完整的人脸分析，每帧调用一次
+     * @param cameraFaces 摄像头检测的人脸，通常由几何图层解析所得，null与空数组一样表示摄像头没有检测到人脸
+     * @return true表示需要调用人脸引擎分析当前帧，然后调用onAnalysed()；false表示可以调用propagate()传递人脸位置
+     */
+    public boolean needAnalyse(UniFaceFeature[] cameraFaces) {
+        if (++this.framesSinceAnalyse >= this.detectInterval) {
+            // 到达检测间隔，摄像头没有检测到的人脸也能被人脸引擎发现
+            return true;
+        }
+        int cameraCount = cameraFaces == null ? 0 : cameraFaces.length;
+        if (cameraCount != this.tracks.size()) {
+            // 出现新人脸或者有人脸离开
+            return true;
+        }
+        if (cameraCount == 0) {
+            // 画面中没有人脸，等到检测间隔再分析
+            return false;
+        }
+        boolean[] used = new boolean[this.tracks.size()];
+        for (UniFaceFeature face : cameraFaces) {
+            if (this.minScore > 0 && (face.getScore() == null || face.getScore() < this.minScore)) {
+                return true;
+            }
+            if (this.match(face.getRectangle(), used) == null) {
+                // 人脸移动过快或者是新人脸
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * 完整分析以后更新跟踪的人脸<br>
+     * 分析所得的人脸与跟踪的人脸按交并比匹配，匹配上的沿用原有跟踪ID，未匹配的建立新的跟踪。
+     * @param analysedFaces 人脸引擎分析所得的人脸特征
+     * @return analysedFaces，其中每个人脸的faceId被设置为跟踪ID；人脸特征值替换为跟踪过程中清晰度最高的一次分析结果
+     */
+    public UniFaceFeature[] onAnalysed(UniFaceFeature[] analysedFaces) {
+        this.framesSinceAnalyse = 0;
+        this.analysedFrames++;
+        boolean[] used = new boolean[this.tracks.size()];
+        List<Track> created = null;
+        if (analysedFaces != null) {
+            for (UniFaceFeature face : analysedFaces) {
+                UniRect rect = face.getRectangle();
+                Track track = this.match(rect, used);
+                if (track == null) {
+                    track = new Track(this.nextTrackId++);
+                    track.feature = face;
+                    if (created == null) {
+                        created = new ArrayList<Track>();
+                    }
+                    created.add(track);
+                } else if (track.feature.getFeatureCode() != null && !isClearer(face, track.feature)) {
+                    // 沿用跟踪过程中更清晰的人脸特征值和人脸小图
+                    face.setFeatureCode(track.feature.getFeatureCode());
+                    face.setFaceImage(track.feature.getFaceImage());
+                    face.setClarity(track.feature.getClarity());
+                    track.feature = face;
+                } else {
+                    track.feature = face;
+                }
+                track.rect = rect;
+                track.missedFrames = 0;
+                track.analysedCount++;
+                face.setFaceId(track.trackId);
+            }
+        }
+        this.expire(used);
+        if (created != null) {
+            this.tracks.addAll(created);
+        }
+        return analysedFaces;
+    }
+    /**
+     * 只检测、还没有提取特征值的人脸与跟踪的人脸匹配<br>
+     * 匹配上的沿用原有跟踪ID，跟踪已有特征值时直接复用（featureCode非null），不需要再提取；未匹配的建立新的跟踪。
+     * 随后提取的特征值写入同一个人脸对象，跟踪随之得到特征值；未能提取的（如被质量门限拒绝）留到之后的帧再提取。
+     * @param detectedFaces 人脸引擎检测所得的人脸，featureCode为null
+     * @return 仍然需要提取特征值的人脸数量
+     */
+    public int onDetected(UniFaceFeature[] detectedFaces) {
+        this.framesSinceAnalyse = 0;
+        this.analysedFrames++;
+        boolean[] used = new boolean[this.tracks.size()];
+        List<Track> created = null;
+        int extractCount = 0;
+        if (detectedFaces != null) {
+            for (UniFaceFeature face : detectedFaces) {
+                UniRect rect = face.getRectangle();
+                Track track = this.match(rect, used);
+                if (track == null) {
+                    track = new Track(this.nextTrackId++);
+                    if (created == null) {
+                        created = new ArrayList<Track>();
+                    }
+                    created.add(track);
+                } else if (track.feature.getFeatureCode() != null) {
+                    face.setFeatureCode(track.feature.getFeatureCode());
+                    this.reusedFeatures++;
+                }
+                if (face.getFeatureCode() == null) {
+                    extractCount++;
+                }
+                track.feature = face;
+                track.rect = rect;
+                track.missedFrames = 0;
+                track.analysedCount++;
+                face.setFaceId(track.trackId);
+            }
+        }
+        this.expire(used);
+        if (created != null) {
+            this.tracks.addAll(created);
+        }
+        return extractCount;
+    }
+    /**
+     * 通知跟踪器一个人脸已经提取了特征值，用于在之后的帧中提取的人脸（如最佳帧选择器延后输出的人脸）
+     * @param face faceId为跟踪ID、已经提取了特征值的人脸
+     */
+    public void onExtracted(UniFaceFeature face) {
+        if (face.getFaceId() == null || face.getFeatureCode() == null) {
+            return;
+        }
+        for (Track track : this.tracks) {
+            if (track.trackId == face.getFaceId()) {
+                if (track.feature.getFeatureCode() == null) {
+                    track.feature.setFeatureCode(face.getFeatureCode());
+                }
+                return;
+            }
+        }
+    }
+    private static boolean isClearer(UniFaceFeature face, UniFaceFeature other) {
+        if (face.getClarity() == null) {
+            return false;
+        }
+        return other.getClarity() == null || face.getClarity() > other.getClarity();
+    }
+    /**
+     * 不做完整分析的帧，通过摄像头检测的人脸传递跟踪人脸的位置
+     * @param cameraFaces 摄像头检测的人脸
+     * @return 跟踪的人脸特征，位置取自匹配的摄像头人脸，特征值、人脸小图等分析结果沿用跟踪人脸的（共享引用，不应修改）
+     */
+    public UniFaceFeature[] propagate(UniFaceFeature[] cameraFaces) {
+        this.trackedFrames++;
+        boolean[] used = new boolean[this.tracks.size()];
+        List<UniFaceFeature> features = new ArrayList<UniFaceFeature>(this.tracks.size());
+        if (cameraFaces != null) {
+            for (UniFaceFeature face : cameraFaces) {
+                UniRect rect = face.getRectangle();
+                Track track = this.match(rect, used);
+                if (track == null) {
+                    continue;
+                }
+                track.rect = rect;
+                track.missedFrames = 0;
+                features.add(propagated(track, face));
+            }
+        }
+        this.expire(used);
+        return features.toArray(new UniFaceFeature[features.size()]);
+    }
+    /**
+     * 以摄像头人脸的位置信息和跟踪人脸的分析结果组合出当前帧的人脸特征，不复制特征值和人脸小图
+     */
+    private static UniFaceFeature propagated(Track track, UniFaceFeature cameraFace) {
+        UniFaceFeature src = track.feature;
+        UniFaceFeature feature = new UniFaceFeature();
+        feature.setFaceId(track.trackId);
+        feature.setKeyId(src.getKeyId());
+        feature.setPolygon(cameraFace.getPolygon());
+        feature.setLeftEyePoint(cameraFace.getLeftEyePoint());
+        feature.setRightEyePoint(cameraFace.getRightEyePoint());
+        feature.setMouthPoint(cameraFace.getMouthPoint());
+        feature.setScore(src.getScore());
+        feature.setClarity(src.getClarity());
+        feature.setOrient(src.getOrient());
+        feature.setPitch(src.getPitch());
+        feature.setYaw(src.getYaw());
+        feature.setRoll(src.getRoll());
+        feature.setGender(src.getGender());
+        feature.setAge(src.getAge());
+        feature.setLiveness(src.getLiveness());
+        feature.setTag(src.getTag());
+        feature.setFeatureCode(src.getFeatureCode());
+        feature.setFaceImage(src.getFaceImage());
+        return feature;
+    }
+    /**
+     * 未匹配的跟踪人脸累计丢失帧数，超过maxMissedFrames的放弃跟踪
+     */
+    private void expire(boolean[] used) {
+        Iterator<Track> it = this.tracks.iterator();
+        int i = 0;
+        while (it.hasNext()) {
+            Track track = it.next();
+            if (!used[i++] && ++track.missedFrames > this.maxMissedFrames) {
+                it.remove();
+            }
+        }
+    }
+    /**
+     * 清除所有跟踪的人脸，下一帧将做完整分析
+     */
+    public void reset() {
+        this.tracks.clear();
+        this.framesSinceAnalyse = 0;
+    }
+    /**
+     * @return 当前跟踪的人脸，仅供在人脸分析线程中查看
+     */
+    public List<Track> getTracks() {
+        return this.tracks;
+    }
+    /**
+     * @return 完整分析的总帧数
+     */
+    public long getAnalysedFrames() {
+        return this.analysedFrames;
+    }
+    /**
+     * @return onDetected()中复用跟踪已有特征值、跳过提取的人脸总数
+     */
+    public long getReusedFeatures() {
+        return this.reusedFeatures;
+    }
+    /**
+     * @return 通过跟踪跳过完整分析的总帧数
+     */
+    public long getTrackedFrames() {
+        return this.trackedFrames;
+    }
+}
@@ -0,0 +1,33 @@
+package uniface.android.pipeline;
+
+import android.media.Image;
+
+import uniface.android.image.UniPlaneYUVImage;
+import uniimage.UniYUVImage;
+
+/**
+ * Camera2 ImageReader帧与UniPlaneYUVImage之间的适配<br>
+ * uniface.android.image包不依赖android，以便基准测试模块在纯JVM中复用，依赖android.media.Image的部分放在这里。
+ */
+public class UniImagePlanes {
+    /**
+     * 引用ImageReader获取的YUV_420_888帧，不拷贝任何平面；release()时关闭Image，把缓冲区归还给ImageReader
+     * @param image ImageReader.acquireLatestImage()等方法获取的帧
+     * @param type 颜色转换系数所取自的YUV格式，null表示UniYUVImage.YUV_420_888
+     * @return 引用Image分量平面的帧图
+     */
+    public static UniPlaneYUVImage wrap(final Image image, UniYUVImage.YUVType type) {
+        Image.Plane[] planes = image.getPlanes();
+        UniPlaneYUVImage img = new UniPlaneYUVImage(image.getWidth(), image.getHeight(), type == null ? UniYUVImage.YUV_420_888 : type,
+                planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                new UniPlaneYUVImage.Releaser() {
+                    @Override
+                    public void release(UniPlaneYUVImage img) {
+                        image.close();
+                    }
+                });
+        img.setTimestamp(image.getTimestamp());
+        return img;
+    }
+}
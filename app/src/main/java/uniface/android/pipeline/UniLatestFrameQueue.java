@@ -0,0 +1,102 @@
+package uniface.android.pipeline;
+
+import java.util.ArrayDeque;
+
+/**
+ * 流水线处理阶段之间的有界交接队列<br>
+ * 队列满时新帧优先：丢弃队列中最旧的一帧，为新帧腾出位置，被丢弃的帧返回给生产者回收复用。
+ * @param <T> 帧对象类型
+ */
+public class UniLatestFrameQueue<T> {
+    private final ArrayDeque<T> frames;
+    private final int capacity;
+    private boolean closed;
+    private long droppedCount;
+
+    /**
+     * @param capacity 队列容量，最小为1
+     */
+    public UniLatestFrameQueue(int capacity) {
+        this.capacity = capacity < 1 ? 1 : capacity;
+        this.frames = new ArrayDeque<T>(this.capacity);
+    }
+    /**
+     * 放入一帧，不阻塞
+     * @param frame 待交接的帧
+     * @return 因队列已满被丢弃的最旧一帧；如果队列已关闭则返回frame本身；没有帧被丢弃则返回null
+     */
+    public T offer(T frame) {
+        synchronized (this.frames) {
+            if (this.closed) {
+                return frame;
+            }
+            T dropped = null;
+            if (this.frames.size() >= this.capacity) {
+                dropped = this.frames.pollFirst();
+                this.droppedCount++;
+            }
+            this.frames.addLast(frame);
+            this.frames.notifyAll(); // 通知消费者有新帧
+            return dropped;
+        }
+    }
+    /**
+     * 取走最早放入的一帧，队列为空时阻塞等待
+     * @return 帧对象，如果队列已关闭或等待被中断则返回null
+     */
+    public T take() {
+        synchronized (this.frames) {
+            while (!this.closed && this.frames.isEmpty()) {
+                try {
+                    this.frames.wait();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            return this.closed ? null : this.frames.pollFirst();
+        }
+    }
+    /**
+     * 取走最早放入的一帧，不阻塞
+     * @return 帧对象，队列为空时返回null
+     */
+    public T poll() {
+        synchronized (this.frames) {
+            return this.frames.pollFirst();
+        }
+    }
+    /**
+     * 重新开放队列
+     * @return 当前对象
+     */
+    public UniLatestFrameQueue<T> open() {
+        synchronized (this.frames) {
+            this.closed = false;
+        }
+        return this;
+    }
+    /**
+     * 关闭队列，唤醒阻塞在take()中的消费者。队列中剩余的帧可以通过poll()取出回收。
+     * @return 当前对象
+     */
+    public UniLatestFrameQueue<T> close() {
+        synchronized (this.frames) {
+            this.closed = true;
+            this.frames.notifyAll();
+        }
+        return this;
+    }
+    public int size() {
+        synchronized (this.frames) {
+            return this.frames.size();
+        }
+    }
+    /**
+     * @return 因队列已满而被丢弃的总帧数
+     */
+    public long getDroppedCount() {
+        synchronized (this.frames) {
+            return this.droppedCount;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package uniface.android.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import uniface.android.image.UniPlaneImageUtil;
+import uniface.android.image.UniPlaneYUVImage;
+import uniimage.UniYUVImage;
+
+/**
+ * 抓帧线程与帧图处理线程之间循环复用的YUV帧图缓存环<br>
+ * 1. 预先分配固定数量的帧图槽位，新抓取的帧图数据被拷贝进空闲槽位，槽位的帧图数据空间循环复用，尺寸稳定以后不再分配内存；<br>
+ * 2. 仅支持单个生产者（抓帧线程）和单个消费者（帧图处理线程），槽位状态通过CAS切换，不使用锁；<br>
+ * 3. 消费者总是取走最新的一帧，比它更早的未处理帧直接丢弃，生产者找不到空闲槽位时覆盖最旧的未处理帧。<br>
+ * 注意：缓存环只能让流水线自身不再分配帧图内存。UniCamera2Grabber在预编译库中，每帧仍然分配新的byte[]交给onGrabbed()，
+ * 这部分分配和offer(UniYUVImage, long)的整帧拷贝在抓帧器能够复用外部缓冲区之前无法去掉；
+ * 要去掉抓帧器的分配，需改用ImageReader直接取得分量平面，通过offer(UniPlaneYUVImage, YUVType)放入。
+ */
+public class UniYUVFrameRing {
+    /**
+     * 槽位状态，与帧序号一起编码在slots的一个long值中：低2位是状态，其余高位是帧序号<br>
+     * 这样CAS切换状态时同时校验帧序号，避免槽位被覆盖以后的ABA问题
+     */
+    private final static int FREE = 0; // 空闲，生产者可以写入
+    private final static int WRITING = 1; // 生产者正在写入
+    private final static int READY = 2; // 已写入，等待消费者取走
+    private final static int READING = 3; // 已被消费者取走，正在处理
+    /**
+     * 缓存环中的一个帧图槽位
+     */
+    public static class Frame {
+        private final int index;
+        private final UniYUVImage image = new UniYUVImage();
+        private long sequence;
+        private long timestamp;
+        private long time;
+        private long nanoTime;
+        private Frame(int index) {
+            this.index = index;
+        }
+        /**
+         * @return 槽位中复用的帧图对象，仅在release()之前有效
+         */
+        public UniYUVImage getImage() {
+            return this.image;
+        }
+        /**
+         * @return 帧序号，从1开始递增
+         */
+        public long getSequence() {
+            return this.sequence;
+        }
+        /**
+         * @return 摄像头给出的帧时间戳
+         */
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+        /**
+         * @return 帧图放入缓存环时的系统时间毫秒值
+         */
+        public long getTime() {
+            return this.time;
+        }
+        /**
+         * @return 帧图放入缓存环时的System.nanoTime()值，用于计算等待时间
+         */
+        public long getNanoTime() {
+            return this.nanoTime;
+        }
+    }
+    private final Frame[] frames;
+    private final AtomicLongArray slots;
+    private long lastSequence; // 仅由生产者线程读写
+    private long lastTakenSequence; // 仅由消费者线程读写
+    private volatile Thread waitingThread;
+    private volatile boolean closed;
+    private final AtomicLong offeredCount = new AtomicLong();
+    private final AtomicLong takenCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong overwrittenCount = new AtomicLong();
+
+    /**
+     * @param capacity 槽位数量，至少为3：消费者处理中占一个，生产者写入中占一个，至少还要有一个用于交接
+     */
+    public UniYUVFrameRing(int capacity) {
+        if (capacity < 3) {
+            capacity = 3;
+        }
+        this.frames = new Frame[capacity];
+        this.slots = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            this.frames[i] = new Frame(i);
+        }
+    }
+    private static long slot(long sequence, int state) {
+        return (sequence << 2) | state;
+    }
+    private static int stateOf(long slot) {
+        return (int) (slot & 3);
+    }
+    private static long sequenceOf(long slot) {
+        return slot >>> 2;
+    }
+
+    /**
+     * 生产者放入一帧（在抓帧回调线程中调用）<br>
+     * 帧图数据被整帧拷贝进槽位，调用返回后frameImage可以被抓帧器继续使用。<br>
+     * 这是为UniCamera2Grabber保留的过渡路径：抓帧器每帧新分配的byte[]仍会成为垃圾，这里只是不再额外分配，
+     * 并且多了一次整帧拷贝；不要在能直接取得分量平面的场合使用。
+     * @param frameImage 新抓取的帧图
+     * @param timestamp 帧时间戳
+     * @return 是否成功放入，缓存环已关闭或没有可用槽位时返回false
+     */
+    public boolean offer(UniYUVImage frameImage, long timestamp) {
+        if (this.closed) {
+            return false;
+        }
+        this.offeredCount.incrementAndGet();
+        int index = this.claimForWrite();
+        if (index < 0) {
+            // 所有槽位都在使用中，只能丢弃这一帧
+            this.droppedCount.incrementAndGet();
+            return false;
+        }
+        Frame frame = this.frames[index];
+        UniYUVImage image = frame.image;
+        byte[] src = frameImage.getImageData();
+        byte[] dst = image.getImageData();
+        if (dst == null || dst.length != src.length) {
+            // 仅在帧图尺寸变化时重新分配
+            dst = new byte[src.length];
+            image.setImageData(dst);
+        }
+        System.arraycopy(src, 0, dst, 0, src.length);
+        image.setType(frameImage.getType());
+        image.setWidth(frameImage.getWidth());
+        image.setHeight(frameImage.getHeight());
+        image.setOrientation(frameImage.getOrientation());
+        image.setDegree(frameImage.getDegree());
+        image.setMirror(frameImage.isMirror());
+        // 抓帧器每帧都会创建新的几何图层，直接引用即可
+        image.setInsideGeometryGraph(frameImage.getInsideGeometryGraph());
+        this.publish(frame, index, timestamp);
+        return true;
+    }
+    /**
+     * 生产者放入一帧直接引用摄像头分量平面的帧图（在ImageReader回调线程中调用）<br>
+     * 分量平面按行跨度和像素跨度直接拷贝进槽位，只拷贝一次；无论是否放入成功，返回前都会release()帧图，
+     * 把缓冲区及时归还给ImageReader，ImageReader可以用最少的maxImages运转。
+     * @param frameImage 新抓取的帧图
+     * @param type 槽位中帧图的YUV格式
+     * @return 是否成功放入，缓存环已关闭或没有可用槽位时返回false
+     */
+    public boolean offer(UniPlaneYUVImage frameImage, UniYUVImage.YUVType type) {
+        try {
+            if (this.closed) {
+                return false;
+            }
+            this.offeredCount.incrementAndGet();
+            int index = this.claimForWrite();
+            if (index < 0) {
+                this.droppedCount.incrementAndGet();
+                return false;
+            }
+            Frame frame = this.frames[index];
+            frame.image.setType(type);
+            UniPlaneImageUtil.toYUVImage(frameImage, frame.image);
+            this.publish(frame, index, frameImage.getTimestamp());
+            return true;
+        } finally {
+            frameImage.release();
+        }
+    }
+    /**
+     * 发布已写入帧图数据的槽位，唤醒等待中的消费者
+     */
+    private void publish(Frame frame, int index, long timestamp) {
+        frame.timestamp = timestamp;
+        frame.time = System.currentTimeMillis();
+        frame.nanoTime = System.nanoTime();
+        frame.sequence = ++this.lastSequence;
+        // volatile写，发布槽位内容
+        this.slots.set(index, slot(frame.sequence, READY));
+        Thread waiting = this.waitingThread;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+    /**
+     * 生产者申请一个可写入的槽位，优先使用空闲槽位，其次覆盖最旧的未处理帧
+     * @return 槽位索引，-1表示没有可用槽位
+     */
+    private int claimForWrite() {
+        for (int retry = 0; retry < this.frames.length; retry++) {
+            int oldest = -1;
+            long oldestSlot = 0;
+            for (int i = 0; i < this.frames.length; i++) {
+                long s = this.slots.get(i);
+                int state = stateOf(s);
+                if (state == FREE) {
+                    if (this.slots.compareAndSet(i, s, slot(sequenceOf(s), WRITING))) {
+                        return i;
+                    }
+                } else if (state == READY && (oldest < 0 || sequenceOf(s) < sequenceOf(oldestSlot))) {
+                    oldest = i;
+                    oldestSlot = s;
+                }
+            }
+            if (oldest < 0) {
+                return -1;
+            }
+            if (this.slots.compareAndSet(oldest, oldestSlot, slot(sequenceOf(oldestSlot), WRITING))) {
+                this.overwrittenCount.incrementAndGet();
+                return oldest;
+            }
+            // 消费者抢先取走了这一帧，重新查找
+        }
+        return -1;
+    }
+
+    /**
+     * 消费者取走最新的一帧，不等待
+     * @return 最新的帧，没有新帧时返回null。处理完成后必须调用release()归还。
+     */
+    public Frame poll() {
+        while (true) {
+            int newest = -1;
+            long newestSlot = 0;
+            for (int i = 0; i < this.frames.length; i++) {
+                long s = this.slots.get(i);
+                if (stateOf(s) == READY && (newest < 0 || sequenceOf(s) > sequenceOf(newestSlot))) {
+                    newest = i;
+                    newestSlot = s;
+                }
+            }
+            if (newest < 0) {
+                return null;
+            }
+            if (!this.slots.compareAndSet(newest, newestSlot, slot(sequenceOf(newestSlot), READING))) {
+                // 生产者覆盖了这个槽位，重新查找
+                continue;
+            }
+            long sequence = sequenceOf(newestSlot);
+            // 比取走的帧更早的未处理帧不再有处理价值，直接释放
+            for (int i = 0; i < this.frames.length; i++) {
+                long s = this.slots.get(i);
+                if (stateOf(s) == READY && sequenceOf(s) < sequence
+                        && this.slots.compareAndSet(i, s, slot(sequenceOf(s), FREE))) {
+                    this.droppedCount.incrementAndGet();
+                }
+            }
+            if (sequence <= this.lastTakenSequence) {
+                // 理论上不会出现：帧序号倒退的帧直接丢弃
+                this.slots.set(newest, slot(sequence, FREE));
+                this.droppedCount.incrementAndGet();
+                continue;
+            }
+            this.lastTakenSequence = sequence;
+            this.takenCount.incrementAndGet();
+            return this.frames[newest];
+        }
+    }
+    /**
+     * 消费者取走最新的一帧，没有新帧时阻塞等待
+     * @return 最新的帧，如果缓存环被关闭或等待线程被中断则返回null。处理完成后必须调用release()归还。
+     */
+    public Frame take() {
+        Frame frame = this.poll();
+        if (frame != null) {
+            return frame;
+        }
+        this.waitingThread = Thread.currentThread();
+        try {
+            while (!this.closed) {
+                // 登记等待线程以后再检查一次，避免错过生产者的unpark
+                frame = this.poll();
+                if (frame != null) {
+                    return frame;
+                }
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    return null;
+                }
+            }
+        } finally {
+            this.waitingThread = null;
+        }
+        return null;
+    }
+    /**
+     * 消费者归还处理完成的帧，槽位重新变为空闲
+     * @param frame 由poll()或take()取得的帧
+     */
+    public void release(Frame frame) {
+        if (frame != null) {
+            this.slots.set(frame.index, slot(frame.sequence, FREE));
+        }
+    }
+
+    /**
+     * 重新开放缓存环，丢弃所有未处理帧
+     * @return 当前对象
+     */
+    public UniYUVFrameRing open() {
+        for (int i = 0; i < this.frames.length; i++) {
+            long s = this.slots.get(i);
+            if (stateOf(s) == READY) {
+                this.slots.compareAndSet(i, s, slot(sequenceOf(s), FREE));
+            }
+        }
+        this.closed = false;
+        return this;
+    }
+    /**
+     * 关闭缓存环，不再接收新帧，并唤醒阻塞在take()中的消费者
+     * @return 当前对象
+     */
+    public UniYUVFrameRing close() {
+        this.closed = true;
+        Thread waiting = this.waitingThread;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+        return this;
+    }
+    public boolean isClosed() {
+        return this.closed;
+    }
+    public int getCapacity() {
+        return this.frames.length;
+    }
+    /**
+     * @return 生产者放入的总帧数
+     */
+    public long getOfferedCount() {
+        return this.offeredCount.get();
+    }
+    /**
+     * @return 消费者取走的总帧数
+     */
+    public long getTakenCount() {
+        return this.takenCount.get();
+    }
+    /**
+     * @return 没有进入缓存环或因出现更新的帧而未被处理就释放的帧数
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+    /**
+     * @return 未被处理就被生产者新帧覆盖的帧数
+     */
+    public long getOverwrittenCount() {
+        return this.overwrittenCount.get();
+    }
+}
@@ -0,0 +1,297 @@
+package uniface.android.recognition;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import thread.WhileThread;
+import uniface.UniFaceEngine;
+import uniface.UniFaceEngineFactory;
+import uniface.UniFaceFeature;
+import uniface.android.metrics.UniPipelineMetrics;
+import univideo.UniVideoFrame;
+import univideo.UniVideoSource;
+
+/**
+ * 视频人脸识别服务，用来替代uniface.util.UniFaceRecognitionService<br>
+ * 1. 帧在有界无锁的UniRecognitionFrameRing中流转：抓帧回调写入，多个识别线程各自持有一个人脸引擎认领并分析，
+ * 回调线程按帧序号依次发布，各环节之间没有共享的锁，等待时挂起而不是轮询；<br>
+ * 2. 抓帧回调从不阻塞：未认领的帧积压超过队列深度时丢弃最旧的帧，环被占满时丢弃新帧；<br>
+ * 3. 固定跳帧模式与原服务一致：setSkipFrames()指定每分析一帧之前跳过的帧数，-1表示总是分析最新帧；<br>
+ * 4. 自适应模式：setTargetLatency()指定目标端到端延迟，由UniFrameSkipController根据实测的分析耗时和帧到达间隔
+ * 自动调整跳帧数和队列深度；<br>
+ * 5. 分析耗时、端到端延迟、丢帧和跳帧数以及控制器的决策都记录在UniPipelineMetrics中。
+ */
+public class UniFaceRecognitionService implements UniVideoSource.GrabCallback {
+    // 控制器决策指标，通过getMetrics()同步
+    public final static String MetricSkipFrames     = "recognition.skip"; // 当前跳帧数
+    public final static String MetricMaxQueue       = "recognition.queue"; // 当前队列深度
+    public final static String MetricEstimatedLatency = "recognition.estimated.us"; // 估算的端到端延迟微秒值
+    public final static String MetricAdjustCount    = "recognition.adjust"; // 控制器调整次数
+
+    public interface RecognitionCallback {
+        void onRecognized(UniVideoSource source, UniVideoFrame frame, UniFaceFeature[] features);
+    }
+    private final static int DEFAULT_MAX_QUEUE = 30;
+
+    private final UniRecognitionFrameRing frameRing = new UniRecognitionFrameRing(DEFAULT_MAX_QUEUE + 2);
+    private UniPipelineMetrics metrics = new UniPipelineMetrics();
+    private volatile UniFrameSkipController controller;
+
+    @Override
+    public void onVideoFrameGrabbed(UniVideoSource source, UniVideoFrame frame) {
+        long now = System.nanoTime();
+        UniFrameSkipController controller = this.controller;
+        int maxQueue = DEFAULT_MAX_QUEUE;
+        if (controller != null) {
+            controller.onFrameArrived(now);
+            maxQueue = controller.getMaxQueue();
+        } else if (this.skipFrames >= 0) {
+            maxQueue = this.skipFrames + 1;
+        }
+        this.frameRing.offer(source, frame, now, maxQueue);
+    }
+    private RecognitionCallback recognitionCallback;
+
+    protected void callbackThreadLoop() {
+        // 按帧序号取下一个已识别的帧，没有时挂起等待
+        UniRecognitionFrameRing.Entry entry = this.frameRing.take();
+        if (entry == null) {
+            return;
+        }
+        try {
+            RecognitionCallback callback = this.recognitionCallback;
+            if (callback != null) {
+                // 回调
+                callback.onRecognized(entry.getSource(), entry.getFrame(), entry.getFeatures());
+            }
+            this.metrics.record(UniPipelineMetrics.EndToEnd, System.nanoTime() - entry.getArrivalNanos());
+        } finally {
+            this.frameRing.release(entry);
+        }
+    }
+    private boolean enableRecognize = true;
+    public boolean isEnableRecognize() {
+        return enableRecognize;
+    }
+    public void setEnableRecognize(boolean enableRecognize) {
+        this.enableRecognize = enableRecognize;
+    }
+
+    private final AtomicLong recognizeCount = new AtomicLong();
+    private volatile int skipFrames = -1;
+    // 识别线程挂起期间控制器可能调整跳帧数，每次被唤醒都重新读取
+    private final UniRecognitionFrameRing.SkipFrames currentSkipFrames = new UniRecognitionFrameRing.SkipFrames() {
+        @Override
+        public int getSkipFrames() {
+            return UniFaceRecognitionService.this.getSkipFrames();
+        }
+    };
+    protected void recognitionThreadLoop(UniFaceEngine engine) {
+        // 认领一组帧，组内最后一帧需要分析，没有可认领的帧时挂起等待
+        UniRecognitionFrameRing.Entry target = this.frameRing.claim(this.currentSkipFrames);
+        if (target == null) {
+            return;
+        }
+        try {
+            // 识别目标帧
+            if (this.enableRecognize) {
+                long time = System.nanoTime();
+                target.setFeatures(engine.analyse(target.getFrame().getImage()));
+                time = System.nanoTime() - time;
+                this.metrics.record(UniPipelineMetrics.Analyse, time);
+                UniFrameSkipController controller = this.controller;
+                if (controller != null) {
+                    controller.onAnalysed(time);
+                }
+            }
+            this.recognizeCount.incrementAndGet();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            // 无论结果如何都表示目标帧已经识别过了，同组跳过的帧随之可以发布
+            this.frameRing.complete(target);
+        }
+    }
+
+    private volatile UniFaceEngineFactory faceEngineFactory;
+
+    private final WhileThread callbackThread = new WhileThread() {
+        @Override
+        public void run() {
+            while (super.running()) {
+                callbackThreadLoop();
+            }
+        }
+        @Override
+        protected void stopping() {
+            UniFaceRecognitionService.this.frameRing.close();
+        }
+        @Override
+        protected void pausing() {
+        }};
+    /**
+     * 识别线程，每个线程持有一个人脸引擎
+     */
+    private class RecognitionThread extends WhileThread {
+        @Override
+        public void run() {
+            UniFaceEngine engine = null;
+            UniFaceEngineFactory factory = null;
+            try {
+                while (super.running()) {
+                    if (engine == null) {
+                        factory = faceEngineFactory;
+                        if (factory != null) {
+                            engine = factory.createEngine(true);
+                        }
+                    }
+                    if (engine == null) {
+                        // 工厂未设置或没能创建引擎时挂起，直到setFactory()设置了新的工厂或者stop()
+                        synchronized (super.threadRunnable) {
+                            while (faceEngineFactory == factory && super.lastCmd != ControlCommand.Stop) {
+                                super.threadRunnable.wait();
+                            }
+                        }
+                        continue;
+                    }
+                    recognitionThreadLoop(engine);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                if (factory != null && engine != null) {
+                    factory.destoryEngine(engine);
+                }
+            }
+        }
+        @Override
+        protected void stopping() {
+            UniFaceRecognitionService.this.frameRing.close();
+        }
+        @Override
+        protected void pausing() {
+        }
+        /**
+         * 唤醒等待工厂的线程
+         */
+        void factoryChanged() {
+            synchronized (super.threadRunnable) {
+                super.threadRunnable.notifyAll();
+            }
+        }
+    }
+    private RecognitionThread[] recognitionThreads = new RecognitionThread[] {new RecognitionThread()};
+    public UniFaceRecognitionService start() {
+        this.frameRing.open();
+        UniFrameSkipController controller = this.controller;
+        if (controller != null) {
+            controller.reset();
+        }
+        this.callbackThread.start();
+        for (RecognitionThread thread : this.recognitionThreads) {
+            thread.start();
+        }
+        return this;
+    }
+    public UniFaceRecognitionService stop() {
+        this.frameRing.close();
+        this.callbackThread.stop();
+        for (RecognitionThread thread : this.recognitionThreads) {
+            thread.stop();
+        }
+        return this;
+    }
+    public UniFaceRecognitionService setRecognitionCallback(RecognitionCallback recognitionCallback) {
+        this.recognitionCallback = recognitionCallback;
+        return this;
+    }
+    public UniFaceRecognitionService setFactory(UniFaceEngineFactory factory) {
+        this.faceEngineFactory = factory;
+        for (RecognitionThread thread : this.recognitionThreads) {
+            thread.factoryChanged();
+        }
+        return this;
+    }
+    /**
+     * 设置识别线程数量，每个线程创建一个人脸引擎，需要在start()之前设置
+     * @param recognitionThreads 识别线程数量，最小为1
+     */
+    public UniFaceRecognitionService setRecognitionThreads(int recognitionThreads) {
+        RecognitionThread[] threads = new RecognitionThread[recognitionThreads < 1 ? 1 : recognitionThreads];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new RecognitionThread();
+        }
+        this.recognitionThreads = threads;
+        UniFrameSkipController controller = this.controller;
+        if (controller != null) {
+            controller.setParallelism(threads.length);
+        }
+        return this;
+    }
+    public int getRecognitionThreads() {
+        return this.recognitionThreads.length;
+    }
+    /**
+     * @return 当前的跳帧数，自适应模式下是控制器最近一次计算的值
+     */
+    public int getSkipFrames() {
+        UniFrameSkipController controller = this.controller;
+        return controller == null ? this.skipFrames : controller.getSkipFrames();
+    }
+    /**
+     * 设置固定跳帧数，同时关闭自适应模式
+     * @param skipFrames 每分析一帧之前跳过的帧数，-1表示总是分析最新帧
+     */
+    public UniFaceRecognitionService setSkipFrames(int skipFrames) {
+        this.skipFrames = skipFrames;
+        this.controller = null;
+        return this;
+    }
+    /**
+     * 开启自适应模式，由控制器根据实测数据调整跳帧数和队列深度
+     * @param targetLatency 目标端到端延迟毫秒值，小于等于0表示关闭自适应模式，恢复固定跳帧数
+     */
+    public UniFaceRecognitionService setTargetLatency(long targetLatency) {
+        this.controller = targetLatency > 0
+                ? new UniFrameSkipController(targetLatency, DEFAULT_MAX_QUEUE).setParallelism(this.recognitionThreads.length)
+                : null;
+        return this;
+    }
+    /**
+     * @return 自适应跳帧控制器，非自适应模式下返回null
+     */
+    public UniFrameSkipController getController() {
+        return this.controller;
+    }
+    /**
+     * 设置记录运行指标的对象，便于与其他处理阶段共用
+     */
+    public UniFaceRecognitionService setMetrics(UniPipelineMetrics metrics) {
+        this.metrics = metrics == null ? new UniPipelineMetrics() : metrics;
+        return this;
+    }
+    /**
+     * 取运行指标，帧计数和控制器的决策同步为计数器的当前值
+     * @return 运行指标
+     */
+    public UniPipelineMetrics getMetrics() {
+        this.metrics.setCounter(UniPipelineMetrics.FramesDropped, this.frameRing.getDroppedCount() + this.frameRing.getExpiredCount());
+        this.metrics.setCounter(UniPipelineMetrics.FramesSkipped, this.frameRing.getSkippedCount());
+        UniFrameSkipController controller = this.controller;
+        if (controller != null) {
+            this.metrics.setCounter(MetricSkipFrames, controller.getSkipFrames());
+            this.metrics.setCounter(MetricMaxQueue, controller.getMaxQueue());
+            this.metrics.setCounter(MetricEstimatedLatency, controller.getEstimatedLatency() / 1000);
+            this.metrics.setCounter(MetricAdjustCount, controller.getAdjustCount());
+        }
+        return this.metrics;
+    }
+    public long getRecognizeCount() {
+        return this.recognizeCount.get();
+    }
+    /**
+     * @return 已放入但还没有回调的帧数
+     */
+    public int getBuffedCount() {
+        return this.frameRing.size();
+    }
+}
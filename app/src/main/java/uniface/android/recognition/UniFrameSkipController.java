@@ -0,0 +1,154 @@
+package uniface.android.recognition;
+
+/**
+ * 自适应跳帧控制器<br>
+ * 根据实测的人脸分析耗时和帧到达间隔，计算在目标端到端延迟内识别率最高的跳帧数和队列深度：<br>
+ * 1. 跳帧数取能让分析跟上帧到达速度的最小值：每skip+1帧分析一帧，分析耗时不超过这段时间乘以利用率上限；<br>
+ * 2. 一组帧中最早的帧要等到组内被分析的帧完成分析才能回调，端到端延迟约为skip*帧间隔+分析耗时；<br>
+ * 3. 队列深度取目标延迟内最多能积压的帧数，超出的旧帧直接丢弃，不再阻塞抓帧回调。<br>
+ * 耗时和间隔都取指数加权平均，方法可以在多个线程中调用。
+ */
+public class UniFrameSkipController {
+    private final static double ALPHA = 0.2; // 指数加权平均的新样本权重
+    private final static long MAX_INTERVAL = 1000000000L; // 超过1秒的帧间隔视为视频暂停，不参与统计
+
+    private final long targetLatency;
+    private final int maxQueueLimit;
+    private float utilisation = 0.9f;
+    private int parallelism = 1;
+
+    private double analyseNanos;
+    private double intervalNanos;
+    private long lastArrivalNanos;
+    private int skipFrames;
+    private int maxQueue;
+    private long adjustCount;
+
+    /**
+     * @param targetLatency 目标端到端延迟毫秒值，从抓帧到回调
+     * @param maxQueueLimit 队列深度上限
+     */
+    public UniFrameSkipController(long targetLatency, int maxQueueLimit) {
+        this.targetLatency = targetLatency * 1000000L;
+        this.maxQueueLimit = maxQueueLimit < 2 ? 2 : maxQueueLimit;
+        this.maxQueue = this.maxQueueLimit;
+    }
+    /**
+     * 设置分析线程利用率上限，留出余量吸收分析耗时的波动
+     * @param utilisation 0-1之间，默认0.9
+     */
+    public synchronized UniFrameSkipController setUtilisation(float utilisation) {
+        this.utilisation = utilisation <= 0 || utilisation > 1 ? 0.9f : utilisation;
+        this.adjust();
+        return this;
+    }
+    /**
+     * 设置并发分析的引擎数量
+     */
+    public synchronized UniFrameSkipController setParallelism(int parallelism) {
+        this.parallelism = parallelism < 1 ? 1 : parallelism;
+        this.adjust();
+        return this;
+    }
+
+    /**
+     * 新帧到达时调用
+     * @param nanoTime 到达时的System.nanoTime()值
+     */
+    public synchronized void onFrameArrived(long nanoTime) {
+        if (this.lastArrivalNanos != 0) {
+            long interval = nanoTime - this.lastArrivalNanos;
+            if (interval > 0 && interval < MAX_INTERVAL) {
+                this.intervalNanos = this.intervalNanos == 0 ? interval : this.intervalNanos + ALPHA * (interval - this.intervalNanos);
+                this.adjust();
+            }
+        }
+        this.lastArrivalNanos = nanoTime;
+    }
+    /**
+     * 完成一次人脸分析时调用
+     * @param latencyNanos 这次分析的耗时纳秒值
+     */
+    public synchronized void onAnalysed(long latencyNanos) {
+        if (latencyNanos <= 0) {
+            return;
+        }
+        this.analyseNanos = this.analyseNanos == 0 ? latencyNanos : this.analyseNanos + ALPHA * (latencyNanos - this.analyseNanos);
+        this.adjust();
+    }
+    private void adjust() {
+        if (this.intervalNanos <= 0 || this.analyseNanos <= 0) {
+            return;
+        }
+        // 每个引擎每分析一帧的时间内到达的帧数，分析跟上到达速度所需的最小跳帧数
+        double perEngine = this.analyseNanos / this.parallelism;
+        int skip = (int) Math.ceil(perEngine / (this.intervalNanos * this.utilisation)) - 1;
+        skip = skip < 0 ? 0 : skip;
+        // 目标延迟内能积压的帧数，至少要容纳一组跳帧
+        int queue = (int) ((this.targetLatency - this.analyseNanos) / this.intervalNanos) + 1;
+        if (queue < skip + 1) {
+            queue = skip + 1;
+        }
+        if (queue > this.maxQueueLimit) {
+            queue = this.maxQueueLimit;
+        }
+        if (skip > queue - 1) {
+            skip = queue - 1;
+        }
+        if (skip != this.skipFrames || queue != this.maxQueue) {
+            this.skipFrames = skip;
+            this.maxQueue = queue;
+            this.adjustCount++;
+        }
+    }
+
+    /**
+     * @return 当前的跳帧数：每分析一帧之前跳过的帧数
+     */
+    public synchronized int getSkipFrames() {
+        return this.skipFrames;
+    }
+    /**
+     * @return 当前的队列深度，队列满时丢弃最旧的帧
+     */
+    public synchronized int getMaxQueue() {
+        return this.maxQueue;
+    }
+    /**
+     * @return 按当前跳帧数估算的端到端延迟纳秒值，统计数据不足时返回0
+     */
+    public synchronized long getEstimatedLatency() {
+        return (long) (this.skipFrames * this.intervalNanos + this.analyseNanos);
+    }
+    /**
+     * @return 估算的目标延迟能否达到，跳帧已经让分析跟上到达速度但延迟仍然超过目标时返回false
+     */
+    public synchronized boolean isTargetReachable() {
+        return this.getEstimatedLatency() <= this.targetLatency;
+    }
+    public synchronized long getAnalyseNanos() {
+        return (long) this.analyseNanos;
+    }
+    public synchronized long getIntervalNanos() {
+        return (long) this.intervalNanos;
+    }
+    /**
+     * @return 跳帧数或队列深度的调整次数
+     */
+    public synchronized long getAdjustCount() {
+        return this.adjustCount;
+    }
+    public long getTargetLatency() {
+        return this.targetLatency / 1000000L;
+    }
+    /**
+     * 清空统计数据，视频源切换时调用
+     */
+    public synchronized void reset() {
+        this.analyseNanos = 0;
+        this.intervalNanos = 0;
+        this.lastArrivalNanos = 0;
+        this.skipFrames = 0;
+        this.maxQueue = this.maxQueueLimit;
+    }
+}
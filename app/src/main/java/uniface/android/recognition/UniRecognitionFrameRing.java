@@ -0,0 +1,382 @@
+package uniface.android.recognition;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import uniface.UniFaceFeature;
+import univideo.UniVideoFrame;
+import univideo.UniVideoSource;
+
+/**
+ * 识别服务中按帧序号流转的有界无锁帧环<br>
+ * 1. 单个生产者（抓帧回调）按序号依次写入，多个识别线程通过CAS推进认领游标认领帧，单个回调线程按序号依次发布；<br>
+ * 2. 识别线程每次认领一组帧：组内最后一帧交给人脸引擎分析，之前的帧标记为跳过，发布时沿用分析帧的结果；<br>
+ * 3. 未认领的帧积压超过队列深度时，生产者认领并丢弃最旧的帧；环被占满时丢弃新帧，生产者从不等待；<br>
+ * 4. 槽位状态与帧序号编码在同一个long中，通过CAS和volatile读写切换，没有锁，也不需要遍历整个队列；
+ * 等待中的线程通过LockSupport挂起，由状态变化的一方唤醒，不轮询；<br>
+ * 5. 自适应模式下跳帧数和队列深度随时变化，识别线程每次被唤醒都重新读取跳帧数，
+ * 并且跳帧数不超过生产者最近一次使用的队列深度减1，否则一组帧永远凑不齐，识别线程再也不会被分配到帧。
+ */
+public class UniRecognitionFrameRing {
+    /**
+     * 跳帧数的来源，识别线程每次检查可认领的帧时读取
+     */
+    public interface SkipFrames {
+        /**
+         * @return 分析帧之前跳过的帧数，-1表示跳过所有积压帧，只分析最新帧
+         */
+        int getSkipFrames();
+    }
+    /**
+     * 环中的一帧
+     */
+    public static class Entry {
+        private UniVideoSource source;
+        private UniVideoFrame frame;
+        private long arrivalNanos;
+        private long sequence;
+        private long targetSequence; // 跳过的帧沿用其分析结果的帧序号
+        private int skipped; // 认领时同组被跳过的帧数，仅对分析帧有效
+        private UniFaceFeature[] features;
+        public UniVideoSource getSource() {
+            return this.source;
+        }
+        public UniVideoFrame getFrame() {
+            return this.frame;
+        }
+        /**
+         * @return 帧放入环时的System.nanoTime()值
+         */
+        public long getArrivalNanos() {
+            return this.arrivalNanos;
+        }
+        public long getSequence() {
+            return this.sequence;
+        }
+        /**
+         * @return 认领时同组被跳过的帧数
+         */
+        public int getSkipped() {
+            return this.skipped;
+        }
+        public UniFaceFeature[] getFeatures() {
+            return this.features;
+        }
+        /**
+         * 识别线程写入分析结果，随后调用complete()
+         */
+        public void setFeatures(UniFaceFeature[] features) {
+            this.features = features;
+        }
+    }
+    private final static int READY = 1; // 已写入，等待认领
+    private final static int ANALYSING = 2; // 已认领，正在分析
+    private final static int SKIPPED = 3; // 已认领，等待同组分析帧完成
+    private final static int DONE = 4; // 分析完成
+    private final static int DROPPED = 5; // 已丢弃，不回调
+    private final static long SHARE_FEATURES_TIME = 300; // 跳过的帧与分析帧的时间戳相差小于这个毫秒值才沿用分析结果
+
+    private final Entry[] entries;
+    private final AtomicLongArray slots;
+    private final int mask;
+    private volatile long tail; // 下一个写入的帧序号，仅由生产者写
+    private volatile long published; // 下一个发布的帧序号，仅由回调线程写
+    private volatile int maxQueue = Integer.MAX_VALUE; // 生产者最近一次使用的队列深度
+    private final AtomicLong claimCursor = new AtomicLong(); // 下一个未认领的帧序号
+    private final ConcurrentLinkedQueue<Thread> idleWorkers = new ConcurrentLinkedQueue<Thread>();
+    private volatile Thread publisherThread;
+    private volatile boolean closed;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    /**
+     * @param capacity 环的容量，会向上取整为2的幂
+     */
+    public UniRecognitionFrameRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.entries = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            this.entries[i] = new Entry();
+        }
+        this.slots = new AtomicLongArray(size);
+        this.mask = size - 1;
+        // 序号从1开始，避免与初始的0值槽位混淆
+        this.tail = 1;
+        this.published = 1;
+        this.claimCursor.set(1);
+    }
+    private static long slot(long sequence, int state) {
+        return (sequence << 3) | state;
+    }
+    private static long sequenceOf(long slot) {
+        return slot >>> 3;
+    }
+    private static int stateOf(long slot) {
+        return (int) (slot & 7);
+    }
+    private void setState(long sequence, int state) {
+        this.slots.set((int) (sequence & this.mask), slot(sequence, state));
+    }
+    private void wakePublisher() {
+        Thread publisher = this.publisherThread;
+        if (publisher != null) {
+            LockSupport.unpark(publisher);
+        }
+    }
+    private void wakeWorker() {
+        Thread worker = this.idleWorkers.poll();
+        if (worker != null) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * 生产者放入一帧，不阻塞，只能在单个线程中调用
+     * @param maxQueue 未认领帧的最大积压数，超出时丢弃最旧的未认领帧
+     * @return 是否放入，环被占满时返回false
+     */
+    public boolean offer(UniVideoSource source, UniVideoFrame frame, long arrivalNanos, int maxQueue) {
+        if (this.closed) {
+            return false;
+        }
+        long s = this.tail;
+        if (s - this.published >= this.entries.length) {
+            // 所有槽位都在等待分析或发布
+            this.droppedCount.incrementAndGet();
+            return false;
+        }
+        // 丢弃超出积压上限的最旧未认领帧，与识别线程竞争同一个认领游标
+        if (maxQueue < 1) {
+            maxQueue = 1;
+        }
+        this.maxQueue = maxQueue;
+        long c;
+        while (s - (c = this.claimCursor.get()) >= maxQueue) {
+            if (this.claimCursor.compareAndSet(c, c + 1)) {
+                this.setState(c, DROPPED);
+                this.expiredCount.incrementAndGet();
+                this.wakePublisher();
+            }
+        }
+        Entry entry = this.entries[(int) (s & this.mask)];
+        entry.source = source;
+        entry.frame = frame;
+        entry.arrivalNanos = arrivalNanos;
+        entry.sequence = s;
+        entry.targetSequence = s;
+        entry.skipped = 0;
+        entry.features = null;
+        this.setState(s, READY);
+        // volatile写，发布槽位内容
+        this.tail = s + 1;
+        this.wakeWorker();
+        return true;
+    }
+
+    /**
+     * 识别线程按固定的跳帧数认领一组帧，没有可认领的帧时挂起等待
+     * @param skipFrames 分析帧之前跳过的帧数，-1表示跳过所有积压帧，只分析最新帧
+     * @return 需要分析的帧，环被关闭或线程被中断时返回null。分析完成后必须调用complete()。
+     */
+    public Entry claim(final int skipFrames) {
+        return this.claim(new SkipFrames() {
+            @Override
+            public int getSkipFrames() {
+                return skipFrames;
+            }
+        });
+    }
+    /**
+     * 识别线程认领一组帧，没有可认领的帧时挂起等待
+     * @param skipFrames 跳帧数的来源，每次被唤醒都重新读取
+     * @return 需要分析的帧，环被关闭或线程被中断时返回null。分析完成后必须调用complete()。
+     */
+    public Entry claim(SkipFrames skipFrames) {
+        Thread current = Thread.currentThread();
+        while (!this.closed) {
+            long c = this.claimCursor.get();
+            long t = this.tail;
+            long target = this.targetOf(skipFrames.getSkipFrames(), c, t);
+            if (c < t && target < t) {
+                if (!this.claimCursor.compareAndSet(c, target + 1)) {
+                    continue;
+                }
+                for (long i = c; i < target; i++) {
+                    this.entries[(int) (i & this.mask)].targetSequence = target;
+                    this.setState(i, SKIPPED);
+                }
+                Entry entry = this.entries[(int) (target & this.mask)];
+                entry.skipped = (int) (target - c);
+                this.skippedCount.addAndGet(target - c);
+                this.setState(target, ANALYSING);
+                if (target + 1 < t) {
+                    // 还有帧可认领，交给其他空闲的识别线程
+                    this.wakeWorker();
+                }
+                return entry;
+            }
+            // 登记为空闲以后再检查一次，避免错过生产者的唤醒
+            this.idleWorkers.offer(current);
+            c = this.claimCursor.get();
+            t = this.tail;
+            target = this.targetOf(skipFrames.getSkipFrames(), c, t);
+            if (!(c < t && target < t) && !this.closed) {
+                LockSupport.park(this);
+            }
+            this.idleWorkers.remove(current);
+            if (Thread.interrupted()) {
+                return null;
+            }
+        }
+        return null;
+    }
+    /**
+     * 计算一组帧中需要分析的帧序号，跳帧数不超过队列深度减1：生产者积压的未认领帧不会超过队列深度
+     */
+    private long targetOf(int skipFrames, long claimCursor, long tail) {
+        if (skipFrames < 0) {
+            return tail - 1;
+        }
+        int maxSkip = this.maxQueue - 1;
+        return claimCursor + (skipFrames > maxSkip ? maxSkip : skipFrames);
+    }
+    /**
+     * 识别线程完成一帧的分析
+     * @param entry 由claim()取得的帧
+     */
+    public void complete(Entry entry) {
+        this.setState(entry.sequence, DONE);
+        this.wakePublisher();
+    }
+
+    /**
+     * 检查下一个待发布的帧是否可以发布
+     * @return 可以发布的帧；没有可发布的帧时返回null
+     */
+    private Entry nextPublishable() {
+        while (true) {
+            long p = this.published;
+            int index = (int) (p & this.mask);
+            long s = this.slots.get(index);
+            if (sequenceOf(s) != p) {
+                return null;
+            }
+            switch (stateOf(s)) {
+                case DROPPED:
+                    this.release(this.entries[index]);
+                    continue;
+                case DONE:
+                    return this.entries[index];
+                case SKIPPED:
+                    Entry entry = this.entries[index];
+                    long target = entry.targetSequence;
+                    int targetIndex = (int) (target & this.mask);
+                    long ts = this.slots.get(targetIndex);
+                    if (sequenceOf(ts) != target || stateOf(ts) != DONE) {
+                        return null;
+                    }
+                    Entry targetEntry = this.entries[targetIndex];
+                    if (targetEntry.frame.getTimestamp() - entry.frame.getTimestamp() < SHARE_FEATURES_TIME) {
+                        entry.features = targetEntry.features;
+                    }
+                    return entry;
+                default:
+                    return null;
+            }
+        }
+    }
+    /**
+     * 回调线程按帧序号取下一个已识别的帧，没有时挂起等待，只能在单个线程中调用
+     * @return 已识别的帧，环被关闭或线程被中断时返回null。回调完成后必须调用release()。
+     */
+    public Entry take() {
+        this.publisherThread = Thread.currentThread();
+        try {
+            while (!this.closed) {
+                Entry entry = this.nextPublishable();
+                if (entry != null) {
+                    return entry;
+                }
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    return null;
+                }
+            }
+        } finally {
+            this.publisherThread = null;
+        }
+        return null;
+    }
+    /**
+     * 回调线程发布完一帧，槽位可以被生产者复用
+     * @param entry 由take()取得的帧
+     */
+    public void release(Entry entry) {
+        entry.source = null;
+        entry.frame = null;
+        entry.features = null;
+        this.published = entry.sequence + 1;
+    }
+
+    /**
+     * 清空并重新开放，只能在生产者、识别线程和回调线程都停止时调用
+     */
+    public UniRecognitionFrameRing open() {
+        long s = this.tail;
+        for (int i = 0; i < this.entries.length; i++) {
+            this.entries[i].source = null;
+            this.entries[i].frame = null;
+            this.entries[i].features = null;
+            this.slots.set(i, 0);
+        }
+        this.claimCursor.set(s);
+        this.published = s;
+        this.closed = false;
+        return this;
+    }
+    /**
+     * 关闭，不再接收新帧，并唤醒所有等待中的线程
+     */
+    public UniRecognitionFrameRing close() {
+        this.closed = true;
+        this.wakePublisher();
+        Thread worker;
+        while ((worker = this.idleWorkers.poll()) != null) {
+            LockSupport.unpark(worker);
+        }
+        return this;
+    }
+    public boolean isClosed() {
+        return this.closed;
+    }
+    public int getCapacity() {
+        return this.entries.length;
+    }
+    /**
+     * @return 已放入但还没有发布的帧数
+     */
+    public int size() {
+        return (int) (this.tail - this.published);
+    }
+    /**
+     * @return 环被占满而没有放入的帧数
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+    /**
+     * @return 积压超过队列深度而被丢弃的帧数
+     */
+    public long getExpiredCount() {
+        return this.expiredCount.get();
+    }
+    /**
+     * @return 认领时跳过分析的帧数
+     */
+    public long getSkippedCount() {
+        return this.skippedCount.get();
+    }
+}
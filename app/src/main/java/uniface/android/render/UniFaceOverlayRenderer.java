@@ -0,0 +1,380 @@
+package uniface.android.render;
+
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+
+import java.util.List;
+
+import uniface.UniFaceFeature;
+import uniface.android.image.UniFlatGeometryGraph;
+import uniimage.UniPoint;
+import uniimage.UniPolygon;
+
+/**
+ * 在预览视图上叠加绘制人脸信息的渲染器<br>
+ * 1. 帧图坐标按成像方向旋转到预览图、预览图缩放到绘制视图以及前置摄像头镜像合并为一个Matrix，
+ * 只在帧图尺寸、成像方向、预览尺寸、视图尺寸或镜像状态变化时重新计算；<br>
+ * 2. 人脸多边形、矩形、嘴眼点位都先读入复用的坐标数组再整体映射，不修改、不克隆传入的人脸特征，
+ * 摄像头检测的人脸直接从扁平人脸图层的坐标数组中读取，不解析为UniFaceFeature；<br>
+ * 3. 文字通过复用的StringBuilder拼接，浮点数按固定小数位自行格式化，绘制时拷贝进复用的字符数组，
+ * 每帧绘制不分配任何对象。<br>
+ * 不是线程安全的，只能在绘图线程中使用。
+ */
+public class UniFaceOverlayRenderer {
+    private final static int MAX_DECIMALS = 6;
+    private final static long[] POW10 = {1, 10, 100, 1000, 10000, 100000, 1000000};
+
+    private final Matrix transform = new Matrix();
+    private int imageWidth;
+    private int imageHeight;
+    private int orientation;
+    private int previewWidth;
+    private int previewHeight;
+    private int viewWidth;
+    private int viewHeight;
+    private boolean mirror;
+    private boolean transformValid;
+
+    private float[] points = new float[16]; // 预览图坐标
+    private float[] mappedPoints = new float[16]; // 视图坐标
+    private final float[] marks = new float[6]; // 嘴、左眼、右眼
+    private final UniPoint mark = new UniPoint();
+    private final Path path = new Path();
+    private final RectF rect = new RectF();
+    private final StringBuilder text = new StringBuilder(128);
+    private char[] chars = new char[128];
+
+    /**
+     * 设置预览图到绘制视图的坐标变换，用于已经在预览图坐标系中的人脸，参数没有变化时不重新计算
+     * @param previewWidth 预览图宽度
+     * @param previewHeight 预览图高度
+     * @param viewWidth 绘制视图宽度
+     * @param viewHeight 绘制视图高度
+     * @param mirror 是否水平镜像，前置摄像头的预览是镜像的
+     * @return 变换是否有效，任一尺寸不大于0时返回false
+     */
+    public boolean setTransform(int previewWidth, int previewHeight, int viewWidth, int viewHeight, boolean mirror) {
+        return this.setTransform(previewWidth, previewHeight, 0, previewWidth, previewHeight, viewWidth, viewHeight, mirror);
+    }
+    /**
+     * 设置帧图到绘制视图的坐标变换，参数没有变化时不重新计算<br>
+     * 帧图坐标先按成像方向绕帧图中心旋转为正图，与UniGeometryGraph.rotate()的旋转一致，再缩放到预览图和绘制视图，
+     * 代替逐帧调用TFLieFaceApi.adjustFaceFeaturesAngleForPreview()生成旋转以后的人脸特征副本
+     * @param imageWidth 人脸坐标所在帧图的宽度
+     * @param imageHeight 人脸坐标所在帧图的高度
+     * @param orientation 帧图的成像方向，旋转这个角度以后是正图
+     * @param previewWidth 预览图宽度
+     * @param previewHeight 预览图高度
+     * @param viewWidth 绘制视图宽度
+     * @param viewHeight 绘制视图高度
+     * @param mirror 是否水平镜像，前置摄像头的预览是镜像的
+     * @return 变换是否有效，任一尺寸不大于0时返回false
+     */
+    public boolean setTransform(int imageWidth, int imageHeight, int orientation, int previewWidth, int previewHeight,
+                                int viewWidth, int viewHeight, boolean mirror) {
+        orientation %= 360;
+        if (orientation < 0) {
+            orientation += 360;
+        }
+        if (this.imageWidth == imageWidth && this.imageHeight == imageHeight && this.orientation == orientation
+                && this.previewWidth == previewWidth && this.previewHeight == previewHeight
+                && this.viewWidth == viewWidth && this.viewHeight == viewHeight && this.mirror == mirror) {
+            return this.transformValid;
+        }
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.orientation = orientation;
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+        this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+        this.mirror = mirror;
+        this.transformValid = imageWidth > 0 && imageHeight > 0 && previewWidth > 0 && previewHeight > 0 && viewWidth > 0 && viewHeight > 0;
+        this.transform.reset();
+        if (this.transformValid) {
+            // 旋转90、270度时宽高互换
+            boolean swap = orientation == 90 || orientation == 270;
+            int rotatedWidth = swap ? imageHeight : imageWidth;
+            int rotatedHeight = swap ? imageWidth : imageHeight;
+            if (orientation != 0) {
+                this.transform.postRotate(orientation, imageWidth >> 1, imageHeight >> 1);
+                this.transform.postTranslate((rotatedWidth - imageWidth) >> 1, (rotatedHeight - imageHeight) >> 1);
+            }
+            this.transform.postScale((float) previewWidth / rotatedWidth, (float) previewHeight / rotatedHeight);
+            this.transform.postScale((float) viewWidth / previewWidth, (float) viewHeight / previewHeight);
+            if (mirror) {
+                // x' = viewWidth - x
+                this.transform.postScale(-1, 1);
+                this.transform.postTranslate(viewWidth, 0);
+            }
+        }
+        return this.transformValid;
+    }
+    public Matrix getTransform() {
+        return this.transform;
+    }
+
+    /**
+     * 绘制一组人脸
+     * @param canvas 绘制视图的画布
+     * @param features 与setTransform()的帧图同一坐标系中的人脸特征，可以为null
+     * @param polygonPaint 人脸多边形和嘴眼连线的画笔
+     * @param rectPaint 非矩形人脸多边形的调正矩形的画笔
+     * @param textPaint 可信度、清晰度文字的画笔
+     * @param topTip 文字绘制在人脸上方还是下方
+     */
+    public void drawFaces(Canvas canvas, UniFaceFeature[] features, Paint polygonPaint, Paint rectPaint, Paint textPaint, boolean topTip) {
+        if (features == null || !this.transformValid) {
+            return;
+        }
+        for (int i = 0; i < features.length; i++) {
+            if (features[i] != null) {
+                this.drawFace(canvas, features[i], polygonPaint, rectPaint, textPaint, topTip);
+            }
+        }
+    }
+    /**
+     * 绘制一个人脸，参数同drawFaces()
+     */
+    public void drawFace(Canvas canvas, UniFaceFeature feature, Paint polygonPaint, Paint rectPaint, Paint textPaint, boolean topTip) {
+        UniPolygon polygon = feature.getPolygon();
+        List<UniPoint> polygonPoints = polygon == null ? null : polygon.getPoints();
+        int count = polygonPoints == null ? 0 : polygonPoints.size();
+        if (count == 0) {
+            return;
+        }
+        this.ensurePoints(count);
+        // 按下标读取，避免每帧创建迭代器
+        for (int i = 0; i < count; i++) {
+            UniPoint point = polygonPoints.get(i);
+            this.points[i * 2] = point.x;
+            this.points[i * 2 + 1] = point.y;
+        }
+        UniPoint mp = feature.getMouthPoint();
+        UniPoint lep = feature.getLeftEyePoint();
+        UniPoint rep = feature.getRightEyePoint();
+        boolean hasMarks = mp != null && lep != null && rep != null;
+        if (hasMarks) {
+            this.marks[0] = mp.x;
+            this.marks[1] = mp.y;
+            this.marks[2] = lep.x;
+            this.marks[3] = lep.y;
+            this.marks[4] = rep.x;
+            this.marks[5] = rep.y;
+        }
+        Integer score = feature.getScore();
+        Float clarity = feature.getClarity();
+        this.drawFace(canvas, count, hasMarks, score == null ? -1 : score.intValue(), clarity == null ? -1f : clarity.floatValue(),
+                polygonPaint, rectPaint, textPaint, topTip);
+    }
+    /**
+     * 绘制扁平人脸图层中摄像头检测的所有人脸，直接读取图层的坐标，不解析为UniFaceFeature
+     * @param canvas 绘制视图的画布
+     * @param graph 与setTransform()的帧图同一坐标系中的人脸图层，可以为null
+     * @param polygonPaint 人脸多边形和嘴眼连线的画笔
+     * @param rectPaint 非矩形人脸多边形的调正矩形的画笔
+     * @param textPaint 可信度文字的画笔
+     * @param topTip 文字绘制在人脸上方还是下方
+     */
+    public void drawFaces(Canvas canvas, UniFlatGeometryGraph graph, Paint polygonPaint, Paint rectPaint, Paint textPaint, boolean topTip) {
+        if (graph == null || !this.transformValid) {
+            return;
+        }
+        int faces = graph.findInside(UniFlatGeometryGraph.ROOT, UniFlatGeometryGraph.FaceName);
+        if (faces < 0) {
+            return;
+        }
+        for (int i = 0; i < graph.getInsideCount(faces); i++) {
+            int face = graph.getInside(faces, i);
+            int count = graph.getPointCount(face);
+            if (count == 0) {
+                continue;
+            }
+            this.ensurePoints(count);
+            for (int j = 0; j < count; j++) {
+                this.points[j * 2] = graph.getX(face, j);
+                this.points[j * 2 + 1] = graph.getY(face, j);
+            }
+            // 嘴、左眼、右眼点位都存在时才绘制连线
+            int found = 0;
+            for (int j = 0; j < graph.getInsideCount(face); j++) {
+                int node = graph.getInside(face, j);
+                int nameId = graph.getNameId(node);
+                int mark = nameId == UniFlatGeometryGraph.FacePolygonMouthPointName ? 0
+                        : (nameId == UniFlatGeometryGraph.FacePolygonLeftEyePointName ? 1
+                        : (nameId == UniFlatGeometryGraph.FacePolygonRightEyePointName ? 2 : -1));
+                if (mark >= 0) {
+                    graph.asPoint(node, this.mark);
+                    this.marks[mark * 2] = this.mark.x;
+                    this.marks[mark * 2 + 1] = this.mark.y;
+                    found |= 1 << mark;
+                }
+            }
+            int score = graph.getScoreValue(face);
+            this.drawFace(canvas, count, found == 7, score == UniFlatGeometryGraph.NULL_INT ? -1 : score, -1f,
+                    polygonPaint, rectPaint, textPaint, topTip);
+        }
+    }
+    private void ensurePoints(int count) {
+        if (this.points.length < count * 2) {
+            this.points = new float[count * 2];
+            this.mappedPoints = new float[count * 2];
+        }
+    }
+    /**
+     * 绘制已读入points的人脸多边形，以及已读入marks的嘴眼点位
+     * @param count 多边形点数
+     * @param hasMarks marks中是否有嘴眼点位
+     */
+    private void drawFace(Canvas canvas, int count, boolean hasMarks, int score, float clarity,
+                          Paint polygonPaint, Paint rectPaint, Paint textPaint, boolean topTip) {
+        this.transform.mapPoints(this.mappedPoints, 0, this.points, 0, count);
+        // 按人脸区域的多边形数据绘制
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        this.path.rewind();
+        for (int i = 0; i < count; i++) {
+            float x = this.mappedPoints[i * 2];
+            float y = this.mappedPoints[i * 2 + 1];
+            if (minX > x) {
+                minX = x;
+            }
+            if (minY > y) {
+                minY = y;
+            }
+            if (maxY < y) {
+                maxY = y;
+            }
+            if (i == 0) {
+                this.path.moveTo(x, y);
+            } else {
+                this.path.lineTo(x, y);
+            }
+        }
+        if (count > 1) {
+            this.path.close();
+            canvas.drawPath(this.path, polygonPaint);
+        }
+        // 按人脸区域的矩形数据绘制
+        if (count >= 3 && !this.isRect(count)) {
+            this.faceRect(count);
+            this.transform.mapRect(this.rect);
+            this.rect.right -= 1;
+            this.rect.bottom -= 1;
+            canvas.drawRect(this.rect, rectPaint);
+        }
+        // 绘制人脸的嘴眼点位
+        if (hasMarks) {
+            this.transform.mapPoints(this.marks);
+            canvas.drawLine(this.marks[0], this.marks[1], this.marks[2], this.marks[3], polygonPaint);
+            canvas.drawLine(this.marks[2], this.marks[3], this.marks[4], this.marks[5], polygonPaint);
+            canvas.drawLine(this.marks[0], this.marks[1], this.marks[4], this.marks[5], polygonPaint);
+        }
+        StringBuilder line = this.beginText().append("置信:").append(score).append(",清晰:");
+        appendFixed(line, clarity, 2);
+        this.drawText(canvas, minX, (topTip ? minY : maxY) - 8, textPaint);
+    }
+    /**
+     * 与UniGeometryGraph.isRect()的判断一致：4个顶点，且第一个顶点可以找到X同轴点和Y同轴点
+     */
+    private boolean isRect(int count) {
+        if (count != 4) {
+            return false;
+        }
+        boolean coaxialX = false;
+        boolean coaxialY = false;
+        for (int i = 1; i < count; i++) {
+            if (this.points[i * 2] == this.points[0]) {
+                coaxialX = true;
+            } else if (this.points[i * 2 + 1] == this.points[1]) {
+                coaxialY = true;
+            }
+        }
+        return coaxialX && coaxialY;
+    }
+    /**
+     * 在帧图坐标系中计算非矩形人脸多边形的调正矩形，写入rect<br>
+     * 与UniFaceFeature.getRectangle()的计算一致：外接矩形按多边形与外接矩形的面积差等比缩减
+     */
+    private void faceRect(int count) {
+        float left = Float.MAX_VALUE;
+        float top = Float.MAX_VALUE;
+        float right = -Float.MAX_VALUE;
+        float bottom = -Float.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            float x = this.points[i * 2];
+            float y = this.points[i * 2 + 1];
+            left = Math.min(left, x);
+            top = Math.min(top, y);
+            right = Math.max(right, x);
+            bottom = Math.max(bottom, y);
+        }
+        int width = (int) (right - left) + 1;
+        int height = (int) (bottom - top) + 1;
+        // l1、l2是矩形多边形两条邻边的边长
+        double l1 = Math.hypot(this.points[2] - this.points[0], this.points[3] - this.points[1]);
+        double l2 = Math.hypot(this.points[4] - this.points[2], this.points[5] - this.points[3]);
+        double a2 = (double) width * height;
+        double adr = (a2 - l1 * l2) / 1.5f / a2;
+        int wd = (int) (width * adr + 0.5f);
+        int hd = (int) (height * adr + 0.5f);
+        int x = (int) left + (wd >> 1);
+        int y = (int) top + (wd >> 1);
+        this.rect.set(x, y, x + width - wd, y + height - hd);
+    }
+
+    /**
+     * 开始拼接一行文字
+     * @return 清空以后的复用StringBuilder，拼接完成后调用drawText()绘制
+     */
+    public StringBuilder beginText() {
+        this.text.setLength(0);
+        return this.text;
+    }
+    /**
+     * 绘制beginText()以后拼接的文字
+     */
+    public void drawText(Canvas canvas, float x, float y, Paint paint) {
+        int length = this.text.length();
+        if (this.chars.length < length) {
+            this.chars = new char[length * 2];
+        }
+        this.text.getChars(0, length, this.chars, 0);
+        canvas.drawText(this.chars, 0, length, x, y, paint);
+    }
+    /**
+     * 按固定小数位拼接浮点数，不经过String.format()和Float.toString()，不分配对象
+     * @param builder 拼接目标
+     * @param value 浮点数
+     * @param decimals 小数位数，0-6
+     * @return builder
+     */
+    public static StringBuilder appendFixed(StringBuilder builder, double value, int decimals) {
+        if (Double.isNaN(value)) {
+            return builder.append("NaN");
+        }
+        if (Double.isInfinite(value)) {
+            return builder.append(value > 0 ? "Infinity" : "-Infinity");
+        }
+        decimals = decimals < 0 ? 0 : (decimals > MAX_DECIMALS ? MAX_DECIMALS : decimals);
+        long scale = POW10[decimals];
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0) {
+            builder.append('-');
+        }
+        builder.append(scaled / scale);
+        if (decimals > 0) {
+            builder.append('.');
+            long fraction = scaled % scale;
+            for (long p = scale / 10; p > 1 && fraction < p; p /= 10) {
+                builder.append('0');
+            }
+            builder.append(fraction);
+        }
+        return builder;
+    }
+}
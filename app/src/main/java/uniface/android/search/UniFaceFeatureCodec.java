@@ -0,0 +1,521 @@
+package uniface.android.search;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import uniface.UniFaceFeature;
+import uniface.UniFaceGender;
+import uniimage.UniPoint;
+import uniimage.UniPolygon;
+import uniimage.UniRGBImage;
+
+/**
+ * UniFaceFeature的二进制编解码器，不使用反射，用于在采集设备和特征库服务之间传输人脸特征或写入文件<br>
+ * 1. 每个特征编码为一条记录，字段按固定顺序排列，用一个int的位标志记录哪些字段不为null，null字段不占空间；<br>
+ * 2. 人脸小图是可选的，编码时以Deflater压缩的字节存放，压缩以后不比原始数据小或者压缩级别为Deflater.NO_COMPRESSION时存放原始数据；UniFaceFeature本身通过ObjectOutputStream序列化时，
+ * 带人脸小图的特征会因UniRGBImage.RGBType不可序列化而失败；<br>
+ * 3. encode()、decode()直接读写ByteBuffer，缓冲区空间或数据不足一条记录时不改变position并返回false、null，
+ * 调用者腾出空间或读入更多数据以后重试，可以用于流式收发；encodeBatch()、decodeBatch()用于批量传输。<br>
+ * 不是线程安全的，每个线程使用各自的编解码器，不再使用时调用close()释放压缩器占用的本地内存。keyId仅支持String、Integer、Long类型。<br>
+ * 记录格式（小端字节序）：记录体长度(int) 记录体，记录体为版本(byte) 位标志(int)，之后依次为不为null的字段：<br>
+ * keyId：类型(byte)和值；featureCode：长度(int)和字节；polygon：点数(int)和每个点的x、y(int)；
+ * mouthPoint、leftEyePoint、rightEyePoint：x、y(int)；score(int)；clarity(float)；orient(int)；faceId(int)；
+ * pitch、yaw、roll(float)；gender(byte)；age(int)；liveness(byte)；tag：长度(int)和UTF-8字节；
+ * faceImage：RGB格式序号(byte) 宽(int) 高(int) 存放方式(byte，0原始数据，1 Deflater压缩) 原始长度(int) 存放长度(int) 存放的字节。<br>
+ * 同一版本以后只在记录体末尾追加字段并使用新的位标志，解码时跳过记录体中不认识的剩余部分。<br>
+ * 批量格式：MAGIC(int) 记录数(int)，之后依次为各条记录。
+ */
+public class UniFaceFeatureCodec {
+    public final static int MAGIC = 0x55464643; // "UFFC"
+    public final static byte VERSION = 1;
+    private final static int BATCH_HEADER_SIZE = 8;
+    private final static byte KEY_STRING = 1;
+    private final static byte KEY_INTEGER = 2;
+    private final static byte KEY_LONG = 3;
+    private final static int F_KEY_ID = 1;
+    private final static int F_FEATURE_CODE = 1 << 1;
+    private final static int F_POLYGON = 1 << 2;
+    private final static int F_MOUTH_POINT = 1 << 3;
+    private final static int F_LEFT_EYE_POINT = 1 << 4;
+    private final static int F_RIGHT_EYE_POINT = 1 << 5;
+    private final static int F_SCORE = 1 << 6;
+    private final static int F_CLARITY = 1 << 7;
+    private final static int F_ORIENT = 1 << 8;
+    private final static int F_FACE_ID = 1 << 9;
+    private final static int F_PITCH = 1 << 10;
+    private final static int F_YAW = 1 << 11;
+    private final static int F_ROLL = 1 << 12;
+    private final static int F_GENDER = 1 << 13;
+    private final static int F_AGE = 1 << 14;
+    private final static int F_LIVENESS = 1 << 15;
+    private final static int F_TAG = 1 << 16;
+    private final static int F_FACE_IMAGE = 1 << 17;
+    private final static byte IMAGE_RAW = 0;
+    private final static byte IMAGE_DEFLATE = 1;
+    private final static int MAX_DEFLATE_RATIO = 1032;
+    private final static UniRGBImage.RGBType[] RGB_TYPES = {UniRGBImage.RGB, UniRGBImage.GBR, UniRGBImage.GRAY};
+    private final static UniFaceGender[] GENDERS = UniFaceGender.values();
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private final boolean encodeFaceImage;
+    private final Deflater deflater; // 不压缩时为null
+    private final Inflater inflater = new Inflater();
+    private ByteBuffer record = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN); // 正在编码的记录
+    private byte[] compressed = new byte[1024];
+
+    /**
+     * 编码人脸小图，使用最快的压缩级别
+     */
+    public UniFaceFeatureCodec() {
+        this(true, Deflater.BEST_SPEED);
+    }
+    /**
+     * @param encodeFaceImage 是否编码人脸小图，为false时解码所得特征的faceImage为null
+     * @param compressionLevel 人脸小图的压缩级别，Deflater.BEST_SPEED至Deflater.BEST_COMPRESSION，Deflater.NO_COMPRESSION表示存放原始数据
+     */
+    public UniFaceFeatureCodec(boolean encodeFaceImage, int compressionLevel) {
+        this.encodeFaceImage = encodeFaceImage;
+        this.deflater = compressionLevel == Deflater.NO_COMPRESSION ? null : new Deflater(compressionLevel);
+    }
+
+    /**
+     * 编码一个特征，写入out的当前位置
+     * @param feature 人脸特征
+     * @param out 目标缓冲区
+     * @return 剩余空间不足一条记录时返回false，out不变
+     */
+    public boolean encode(UniFaceFeature feature, ByteBuffer out) {
+        this.encodeRecord(feature);
+        if (out.remaining() < this.record.remaining()) {
+            return false;
+        }
+        out.put(this.record);
+        return true;
+    }
+    /**
+     * 依次编码多个特征，直到全部写入或缓冲区空间不足
+     * @param features 人脸特征
+     * @param offset 第一个特征在数组中的下标
+     * @param count 特征数
+     * @param out 目标缓冲区
+     * @return 写入的特征数
+     */
+    public int encode(UniFaceFeature[] features, int offset, int count, ByteBuffer out) {
+        for (int i = 0; i < count; i++) {
+            if (!this.encode(features[offset + i], out)) {
+                return i;
+            }
+        }
+        return count;
+    }
+    /**
+     * 从in的当前位置解码一个特征
+     * @param in 源缓冲区
+     * @return 人脸特征，剩余数据不足一条记录时返回null，in不变
+     * @throws IllegalArgumentException 记录损坏时抛出，in不变
+     */
+    public UniFaceFeature decode(ByteBuffer in) {
+        if (in.remaining() < 4) {
+            return null;
+        }
+        // 在限定为记录体范围的副本上解码，损坏的记录不会读到下一条记录，失败时in也不变
+        ByteBuffer body = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = in.position();
+        int length = body.getInt(start);
+        if (length < 0) {
+            throw new IllegalArgumentException("corrupted face feature record length: " + length);
+        }
+        if (in.remaining() - 4 < length) {
+            return null;
+        }
+        int end = start + 4 + length;
+        body.limit(end).position(start + 4);
+        UniFaceFeature feature;
+        try {
+            feature = this.decodeBody(body);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("corrupted face feature record: fields exceed record length " + length, e);
+        }
+        in.position(end);
+        return feature;
+    }
+    /**
+     * 批量编码，用于整批传输或写入文件
+     * @param features 人脸特征
+     * @return 包含批量头和所有记录的缓冲区，position为0，limit为数据长度
+     */
+    public ByteBuffer encodeBatch(UniFaceFeature[] features) {
+        ByteBuffer out = ByteBuffer.allocate(BATCH_HEADER_SIZE + features.length * 64).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(features.length);
+        for (UniFaceFeature feature : features) {
+            this.encodeRecord(feature);
+            if (out.remaining() < this.record.remaining()) {
+                int capacity = Math.max(out.capacity() << 1, out.position() + this.record.remaining());
+                ByteBuffer grown = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+                out.flip();
+                grown.put(out);
+                out = grown;
+            }
+            out.put(this.record);
+        }
+        out.flip();
+        return out;
+    }
+    /**
+     * 批量解码encodeBatch()的结果
+     * @param in 源缓冲区，从当前位置开始是完整的一批数据
+     * @return 人脸特征
+     * @throws IllegalArgumentException 数据不完整或损坏时抛出，in不变
+     */
+    public UniFaceFeature[] decodeBatch(ByteBuffer in) {
+        int start = in.position();
+        if (in.remaining() < BATCH_HEADER_SIZE) {
+            throw new IllegalArgumentException("truncated face feature batch header");
+        }
+        ByteBuffer header = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int magic = header.getInt(start);
+        int count = header.getInt(start + 4);
+        if (magic != MAGIC) {
+            throw new IllegalArgumentException("not a face feature batch");
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("corrupted face feature batch count: " + count);
+        }
+        in.position(start + BATCH_HEADER_SIZE);
+        try {
+            UniFaceFeature[] features = new UniFaceFeature[count];
+            for (int i = 0; i < count; i++) {
+                features[i] = this.decode(in);
+                if (features[i] == null) {
+                    throw new IllegalArgumentException("truncated face feature batch: " + i + " of " + count);
+                }
+            }
+            return features;
+        } catch (RuntimeException e) {
+            in.position(start);
+            throw e;
+        }
+    }
+    /**
+     * 释放压缩器和解压器占用的本地内存，之后不能再使用这个编解码器，可以重复调用
+     */
+    public void close() {
+        if (this.deflater != null) {
+            this.deflater.end();
+        }
+        this.inflater.end();
+    }
+
+    /**
+     * 把一条完整的记录编码到this.record，编码完成以后record的position为0，limit为记录长度
+     */
+    private void encodeRecord(UniFaceFeature feature) {
+        this.record.clear();
+        this.record.putInt(0).put(VERSION).putInt(0);
+        int fields = 0;
+        Object keyId = feature.getKeyId();
+        if (keyId != null) {
+            fields |= F_KEY_ID;
+            if (keyId instanceof String) {
+                byte[] bytes = ((String) keyId).getBytes(UTF8);
+                this.ensure(5 + bytes.length).put(KEY_STRING).putInt(bytes.length).put(bytes);
+            } else if (keyId instanceof Integer) {
+                this.ensure(5).put(KEY_INTEGER).putInt((Integer) keyId);
+            } else if (keyId instanceof Long) {
+                this.ensure(9).put(KEY_LONG).putLong((Long) keyId);
+            } else {
+                throw new IllegalArgumentException("unsupported keyId type: " + keyId.getClass().getName());
+            }
+        }
+        byte[] featureCode = feature.getFeatureCode();
+        if (featureCode != null) {
+            fields |= F_FEATURE_CODE;
+            this.ensure(4 + featureCode.length).putInt(featureCode.length).put(featureCode);
+        }
+        UniPolygon polygon = feature.getPolygon();
+        if (polygon != null && polygon.getPoints() != null) {
+            fields |= F_POLYGON;
+            List<UniPoint> points = polygon.getPoints();
+            ByteBuffer buffer = this.ensure(4 + points.size() * 8).putInt(points.size());
+            for (UniPoint point : points) {
+                buffer.putInt(point.x).putInt(point.y);
+            }
+        }
+        fields |= this.putPoint(feature.getMouthPoint(), F_MOUTH_POINT);
+        fields |= this.putPoint(feature.getLeftEyePoint(), F_LEFT_EYE_POINT);
+        fields |= this.putPoint(feature.getRightEyePoint(), F_RIGHT_EYE_POINT);
+        fields |= this.putInt(feature.getScore(), F_SCORE);
+        fields |= this.putFloat(feature.getClarity(), F_CLARITY);
+        fields |= this.putInt(feature.getOrient(), F_ORIENT);
+        fields |= this.putInt(feature.getFaceId(), F_FACE_ID);
+        fields |= this.putFloat(feature.getPitch(), F_PITCH);
+        fields |= this.putFloat(feature.getYaw(), F_YAW);
+        fields |= this.putFloat(feature.getRoll(), F_ROLL);
+        if (feature.getGender() != null) {
+            fields |= F_GENDER;
+            this.ensure(1).put((byte) feature.getGender().ordinal());
+        }
+        fields |= this.putInt(feature.getAge(), F_AGE);
+        if (feature.getLiveness() != null) {
+            fields |= F_LIVENESS;
+            this.ensure(1).put(feature.getLiveness() ? (byte) 1 : (byte) 0);
+        }
+        if (feature.getTag() != null) {
+            fields |= F_TAG;
+            byte[] bytes = feature.getTag().getBytes(UTF8);
+            this.ensure(4 + bytes.length).putInt(bytes.length).put(bytes);
+        }
+        UniRGBImage faceImage = feature.getFaceImage();
+        if (this.encodeFaceImage && faceImage != null && faceImage.getImageData() != null) {
+            fields |= F_FACE_IMAGE;
+            this.putFaceImage(faceImage);
+        }
+        this.record.putInt(0, this.record.position() - 4);
+        this.record.putInt(5, fields);
+        this.record.flip();
+    }
+    private int putPoint(UniPoint point, int field) {
+        if (point == null) {
+            return 0;
+        }
+        this.ensure(8).putInt(point.x).putInt(point.y);
+        return field;
+    }
+    private int putInt(Integer value, int field) {
+        if (value == null) {
+            return 0;
+        }
+        this.ensure(4).putInt(value);
+        return field;
+    }
+    private int putFloat(Float value, int field) {
+        if (value == null) {
+            return 0;
+        }
+        this.ensure(4).putFloat(value);
+        return field;
+    }
+    private void putFaceImage(UniRGBImage image) {
+        int type = -1;
+        for (int i = 0; i < RGB_TYPES.length; i++) {
+            if (RGB_TYPES[i] == image.getType()) {
+                type = i;
+            }
+        }
+        if (type < 0) {
+            throw new IllegalArgumentException("unsupported face image type");
+        }
+        byte[] data = image.getImageData();
+        if (data.length != (long) image.getWidth() * image.getHeight() * (image.getType().bits >> 3)) {
+            // 解码时按尺寸校验数据长度
+            throw new IllegalArgumentException("face image data length mismatch: " + data.length + " for " + image.getWidth() + "x" + image.getHeight());
+        }
+        int length = this.deflater == null ? data.length : this.deflate(data);
+        ByteBuffer buffer = this.ensure(18 + Math.min(length, data.length))
+                .put((byte) type).putInt(image.getWidth()).putInt(image.getHeight());
+        if (length < data.length) {
+            buffer.put(IMAGE_DEFLATE).putInt(data.length).putInt(length).put(this.compressed, 0, length);
+        } else {
+            // 噪声较多的小图压缩以后可能反而变大
+            buffer.put(IMAGE_RAW).putInt(data.length).putInt(data.length).put(data);
+        }
+    }
+    /**
+     * 压缩到this.compressed，压缩以后的长度达到原始长度时提前结束
+     * @return 压缩以后的长度，不小于原始长度时表示不需要压缩
+     */
+    private int deflate(byte[] data) {
+        if (this.compressed.length < data.length) {
+            this.compressed = new byte[data.length];
+        }
+        Deflater deflater = this.deflater;
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished() && length < data.length) {
+            length += deflater.deflate(this.compressed, length, data.length - length);
+        }
+        return deflater.finished() ? length : data.length;
+    }
+    /**
+     * 保证正在编码的记录至少还有指定的剩余空间
+     */
+    private ByteBuffer ensure(int size) {
+        if (this.record.remaining() < size) {
+            int capacity = Math.max(this.record.capacity() << 1, this.record.position() + size);
+            ByteBuffer grown = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+            this.record.flip();
+            grown.put(this.record);
+            this.record = grown;
+        }
+        return this.record;
+    }
+
+    private UniFaceFeature decodeBody(ByteBuffer in) {
+        byte version = in.get();
+        if (version < 1 || version > VERSION) {
+            throw new IllegalArgumentException("unsupported face feature codec version: " + version);
+        }
+        int fields = in.getInt();
+        UniFaceFeature feature = new UniFaceFeature();
+        if ((fields & F_KEY_ID) != 0) {
+            byte type = in.get();
+            if (type == KEY_STRING) {
+                feature.setKeyId(new String(getBytes(in, in.getInt()), UTF8));
+            } else if (type == KEY_INTEGER) {
+                feature.setKeyId(in.getInt());
+            } else if (type == KEY_LONG) {
+                feature.setKeyId(in.getLong());
+            } else {
+                throw new IllegalArgumentException("unknown keyId type: " + type);
+            }
+        }
+        if ((fields & F_FEATURE_CODE) != 0) {
+            feature.setFeatureCode(getBytes(in, in.getInt()));
+        }
+        if ((fields & F_POLYGON) != 0) {
+            int count = in.getInt();
+            List<UniPoint> points = new LinkedList<UniPoint>();
+            for (int i = 0; i < count; i++) {
+                points.add(new UniPoint(in.getInt(), in.getInt()));
+            }
+            feature.setPolygon(new UniPolygon(points));
+        }
+        if ((fields & F_MOUTH_POINT) != 0) {
+            feature.setMouthPoint(new UniPoint(in.getInt(), in.getInt()));
+        }
+        if ((fields & F_LEFT_EYE_POINT) != 0) {
+            feature.setLeftEyePoint(new UniPoint(in.getInt(), in.getInt()));
+        }
+        if ((fields & F_RIGHT_EYE_POINT) != 0) {
+            feature.setRightEyePoint(new UniPoint(in.getInt(), in.getInt()));
+        }
+        if ((fields & F_SCORE) != 0) {
+            feature.setScore(in.getInt());
+        }
+        if ((fields & F_CLARITY) != 0) {
+            feature.setClarity(in.getFloat());
+        }
+        if ((fields & F_ORIENT) != 0) {
+            feature.setOrient(in.getInt());
+        }
+        if ((fields & F_FACE_ID) != 0) {
+            feature.setFaceId(in.getInt());
+        }
+        if ((fields & F_PITCH) != 0) {
+            feature.setPitch(in.getFloat());
+        }
+        if ((fields & F_YAW) != 0) {
+            feature.setYaw(in.getFloat());
+        }
+        if ((fields & F_ROLL) != 0) {
+            feature.setRoll(in.getFloat());
+        }
+        if ((fields & F_GENDER) != 0) {
+            feature.setGender(GENDERS[ordinal(in.get(), GENDERS.length, "gender")]);
+        }
+        if ((fields & F_AGE) != 0) {
+            feature.setAge(in.getInt());
+        }
+        if ((fields & F_LIVENESS) != 0) {
+            feature.setLiveness(in.get() != 0);
+        }
+        if ((fields & F_TAG) != 0) {
+            feature.setTag(new String(getBytes(in, in.getInt()), UTF8));
+        }
+        if ((fields & F_FACE_IMAGE) != 0) {
+            UniRGBImage.RGBType type = RGB_TYPES[ordinal(in.get(), RGB_TYPES.length, "face image type")];
+            int width = in.getInt();
+            int height = in.getInt();
+            byte method = in.get();
+            int dataLength = in.getInt();
+            int length = in.getInt();
+            this.checkFaceImage(in, type, width, height, method, dataLength, length);
+            if (this.encodeFaceImage) {
+                byte[] data = new byte[dataLength];
+                if (method == IMAGE_DEFLATE) {
+                    this.inflate(in, length, data);
+                } else {
+                    in.get(data);
+                }
+                feature.setFaceImage(new UniRGBImage(type, width, height, data));
+            } else {
+                in.position(in.position() + length);
+            }
+        }
+        return feature;
+    }
+    /**
+     * 在分配人脸小图的数据空间之前校验记录中的长度，损坏的长度不会导致分配过大的数组
+     */
+    private void checkFaceImage(ByteBuffer in, UniRGBImage.RGBType type, int width, int height, byte method, int dataLength, int length) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("corrupted face image size: " + width + "x" + height);
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("corrupted face image length: " + length + " of " + in.remaining());
+        }
+        long expected = (long) width * height * (type.bits >> 3);
+        if (method == IMAGE_RAW) {
+            if (dataLength != expected || length != dataLength) {
+                throw new IllegalArgumentException("corrupted face image data length: " + dataLength + ", expected " + expected);
+            }
+        } else if (method == IMAGE_DEFLATE) {
+            // Deflater的压缩比不超过约1032:1，解压以后的长度同时受图片尺寸和压缩数据长度的限制
+            if (dataLength < 0 || dataLength > expected || dataLength > (long) length * MAX_DEFLATE_RATIO) {
+                throw new IllegalArgumentException("corrupted face image data length: " + dataLength + ", expected " + expected);
+            }
+        } else {
+            throw new IllegalArgumentException("unknown face image method: " + method);
+        }
+    }
+    /**
+     * 校验记录中的枚举序号
+     */
+    private static int ordinal(byte value, int count, String name) {
+        if (value < 0 || value >= count) {
+            throw new IllegalArgumentException("corrupted " + name + ": " + value);
+        }
+        return value;
+    }
+    private void inflate(ByteBuffer in, int length, byte[] data) {
+        if (this.compressed.length < length) {
+            this.compressed = new byte[length];
+        }
+        in.get(this.compressed, 0, length);
+        Inflater inflater = this.inflater;
+        inflater.reset();
+        inflater.setInput(this.compressed, 0, length);
+        try {
+            int n = 0;
+            while (n < data.length && !inflater.finished()) {
+                int r = inflater.inflate(data, n, data.length - n);
+                if (r == 0 && inflater.needsInput()) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != data.length) {
+                throw new IllegalArgumentException("corrupted face image: " + n + " != " + data.length);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("corrupted face image", e);
+        }
+    }
+    private static byte[] getBytes(ByteBuffer in, int length) {
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("corrupted field length: " + length + " of " + in.remaining());
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+}
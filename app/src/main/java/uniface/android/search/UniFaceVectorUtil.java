@@ -0,0 +1,82 @@
+package uniface.android.search;
+
+import uniimage.util.UniImageUtil;
+
+/**
+ * 人脸特征向量工具<br>
+ * 人脸特征值（UniFaceFeature.featureCode）是UniImageUtil.floatsToBytes()编码的浮点数组，
+ * 搜索器预先将其解码并归一化为单位向量，这样余弦相似度就简化为点积。
+ */
+public class UniFaceVectorUtil {
+    /**
+     * 获取人脸特征值对应的向量维数
+     * @param featureCode 人脸特征值
+     * @return 向量维数
+     */
+    public static int dimensionOf(byte[] featureCode) {
+        if (featureCode == null || featureCode.length < 4 || featureCode.length % 4 != 0) {
+            throw new IllegalArgumentException("invalid feature code");
+        }
+        return featureCode.length / 4;
+    }
+    /**
+     * 将人脸特征值解码为归一化的向量
+     * @param featureCode 人脸特征值
+     * @param vector 用来保存向量的数组，null表示新建，长度必须与向量维数一致
+     * @return 归一化的向量
+     */
+    public static float[] toNormalizedVector(byte[] featureCode, float[] vector) {
+        int dim = dimensionOf(featureCode);
+        if (vector == null) {
+            vector = new float[dim];
+        } else if (vector.length != dim) {
+            throw new IllegalArgumentException("dimension mismatch: " + vector.length + " != " + dim);
+        }
+        UniImageUtil.floatsFromBytes(featureCode, vector);
+        normalize(vector, 0, dim);
+        return vector;
+    }
+    /**
+     * 将向量归一化为单位向量，零向量保持不变
+     * @param vector 向量数组
+     * @param offset 向量在数组中的起始位置
+     * @param dim 向量维数
+     */
+    public static void normalize(float[] vector, int offset, int dim) {
+        double s = 0;
+        for (int i = offset, end = offset + dim; i < end; i++) {
+            s += vector[i] * vector[i];
+        }
+        if (s <= 0) {
+            return;
+        }
+        float r = (float) (1.0 / Math.sqrt(s));
+        for (int i = offset, end = offset + dim; i < end; i++) {
+            vector[i] *= r;
+        }
+    }
+    /**
+     * 两个向量的点积，归一化以后即余弦相似度<br>
+     * 使用4个独立的累加器展开循环，打破浮点累加的依赖链，便于JIT生成向量化或流水化的指令。
+     * @param a 第一个向量所在数组
+     * @param aOffset 第一个向量的起始位置
+     * @param b 第二个向量所在数组
+     * @param bOffset 第二个向量的起始位置
+     * @param dim 向量维数
+     * @return 点积
+     */
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset, int dim) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int n = dim & ~3; i < n; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < dim; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+}
@@ -0,0 +1,379 @@
+package uniface.android.search;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import uniface.UniFaceFeature;
+import uniface.UniFaceSearchResult;
+import uniface.UniFaceSearcher;
+import uniimage.util.UniImageUtil;
+
+/**
+ * 连续存储的人脸特征库搜索器<br>
+ * 1. 特征库中的人脸特征值预先解码并归一化，全部连续存放在一个float[]中，keyId存放在平行的数组中，不保留UniFaceFeature对象；<br>
+ * 2. 1:N搜索是对连续数组的顺序点积扫描，没有对象间接访问，缓存命中率高，便于JIT优化；<br>
+ * 3. 搜索只需读锁，多个线程可以同时搜索，注册、更新、删除需要写锁。<br>
+ * 相似度是余弦相似度，与UniImageUtil.cosDistance()一致。
+ */
+public class UniFlatFaceSearcher implements UniFaceSearcher {
+    private final static int CANCEL_CHECK_INTERVAL = 1024; // 每扫描多少个特征检查一次是否被取消
+    private final float passSimilar;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int dim; // 向量维数，由第一个注册的特征决定
+    private float[] vectors = new float[0];
+    private Object[] keyIds = new Object[0];
+    private int count;
+    private final Map<Object, Integer> indexes = new HashMap<Object, Integer>();
+
+    /**
+     * @param passSimilar 判定为匹配通过的最低相似度
+     */
+    public UniFlatFaceSearcher(float passSimilar) {
+        this.passSimilar = passSimilar;
+    }
+    /**
+     * @param passSimilar 判定为匹配通过的最低相似度
+     * @param initialCapacity 预分配的特征数量
+     * @param dim 向量维数
+     */
+    public UniFlatFaceSearcher(float passSimilar, int initialCapacity, int dim) {
+        this.passSimilar = passSimilar;
+        this.dim = dim;
+        this.vectors = new float[initialCapacity * dim];
+        this.keyIds = new Object[initialCapacity];
+    }
+    public float getPassSimilar() {
+        return this.passSimilar;
+    }
+    /**
+     * @return 向量维数，特征库为空时可能为0
+     */
+    public int getDimension() {
+        this.lock.readLock().lock();
+        try {
+            return this.dim;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public UniFaceSearchResult search(UniFaceFeature feature, UniFaceSearchResult searchResult) throws Exception {
+        UniFaceSearchResult result = searchResult == null ? new UniFaceSearchResult() : searchResult;
+        try {
+            float[] query = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+            UniTopK topK = new UniTopK(1);
+            this.lock.readLock().lock();
+            try {
+                result.setSearchCount(this.scan(query, topK, result));
+                if (topK.size() > 0) {
+                    result.setFeature(this.keyFeature(topK.indexAt(0)));
+                    result.setSimilar(topK.similarAt(0));
+                    result.setPass(topK.similarAt(0) >= this.passSimilar);
+                }
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        } catch (Exception e) {
+            result.setException(e);
+            if (searchResult == null) {
+                throw e;
+            }
+        } finally {
+            result.completed();
+        }
+        return result;
+    }
+    /**
+     * 搜索相似度最高的K个特征
+     * @param feature 目标人脸特征
+     * @param k 最多返回的结果数
+     * @return 按相似度降序排列的搜索结果，每个结果的特征对象只包含keyId
+     */
+    public UniFaceSearchResult[] search(UniFaceFeature feature, int k) {
+        float[] query = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+        UniTopK topK = new UniTopK(k);
+        UniFaceSearchResult[] results;
+        this.lock.readLock().lock();
+        try {
+            int searchCount = this.scan(query, topK, null);
+            results = new UniFaceSearchResult[topK.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = new UniFaceSearchResult(this.keyFeature(topK.indexAt(i)), topK.similarAt(i));
+                results[i].setPass(topK.similarAt(i) >= this.passSimilar);
+                results[i].setSearchCount(searchCount);
+                results[i].completed();
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        return results;
+    }
+    /**
+     * 顺序扫描特征库，调用者必须持有读锁
+     * @param query 归一化的目标向量
+     * @param topK 结果收集器
+     * @param cancelResult 用来检查是否被取消的搜索结果对象，可以为null
+     * @return 比对的特征数量
+     */
+    private int scan(float[] query, UniTopK topK, UniFaceSearchResult cancelResult) {
+        int n = this.count;
+        int d = this.dim;
+        if (n == 0) {
+            return 0;
+        }
+        if (query.length != d) {
+            throw new IllegalArgumentException("dimension mismatch: " + query.length + " != " + d);
+        }
+        float[] vs = this.vectors;
+        float threshold = topK.threshold();
+        for (int i = 0, off = 0; i < n; i++, off += d) {
+            if (cancelResult != null && (i % CANCEL_CHECK_INTERVAL) == 0 && i > 0 && cancelResult.isCancelled()) {
+                return i;
+            }
+            float s = UniFaceVectorUtil.dot(query, 0, vs, off, d);
+            if (s > threshold && topK.offer(i, s)) {
+                threshold = topK.threshold();
+            }
+        }
+        return n;
+    }
+    /**
+     * 以归一化的向量搜索，供组合了多个特征库的搜索器使用
+     * @param query 归一化的目标向量
+     * @param topK 结果收集器，收集的是特征在库中的索引，通过getKeyId()获取keyId
+     * @param cancelResult 用来检查是否被取消的搜索结果对象，可以为null
+     * @return 比对的特征数量
+     */
+    int searchVector(float[] query, UniTopK topK, UniFaceSearchResult cancelResult) {
+        this.lock.readLock().lock();
+        try {
+            return this.scan(query, topK, cancelResult);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    /**
+     * @return 特征库的读锁，供组合搜索器在多次调用之间保持特征库不变
+     */
+    ReentrantReadWriteLock.ReadLock readLock() {
+        return this.lock.readLock();
+    }
+    /**
+     * 扫描特征库中的一段，供分区并行搜索使用<br>
+     * 本方法不加锁，调用者必须在所有分区扫描完成之前一直持有readLock()，各分区看到的是同一个特征库，
+     * 删除时的换位不会让一个特征被漏掉或者扫描两次；扫描可以在持有读锁的线程以外的线程中进行。
+     * @param query 归一化的目标向量
+     * @param from 起始索引
+     * @param to 终止索引（不含），超出特征数量的部分忽略
+     * @param topK 结果收集器
+     * @param keyIds 用来返回topK中各项的keyId，长度不小于topK的容量
+     * @param stop 提前终止标志，扫描过程中定期检查，找到相似度不低于stopSimilar的特征时置为true
+     * @param stopSimilar 提前终止的相似度，大于1表示不提前终止
+     * @return 比对的特征数量
+     */
+    int scanRange(float[] query, int from, int to, UniTopK topK, Object[] keyIds, AtomicBoolean stop, float stopSimilar) {
+        int n = Math.min(to, this.count);
+        int d = this.dim;
+        if (from >= n) {
+            return 0;
+        }
+        if (query.length != d) {
+            throw new IllegalArgumentException("dimension mismatch: " + query.length + " != " + d);
+        }
+        float[] vs = this.vectors;
+        float threshold = topK.threshold();
+        int i = from;
+        for (int off = from * d; i < n; i++, off += d) {
+            if (((i - from) & 255) == 0 && stop.get()) {
+                break;
+            }
+            float s = UniFaceVectorUtil.dot(query, 0, vs, off, d);
+            if (s > threshold && topK.offer(i, s)) {
+                threshold = topK.threshold();
+                if (s >= stopSimilar) {
+                    stop.set(true);
+                }
+            }
+        }
+        for (int k = 0; k < topK.size(); k++) {
+            keyIds[k] = this.keyIds[topK.indexAt(k)];
+        }
+        return i - from;
+    }
+    /**
+     * @param index 特征在库中的索引，注册和删除会改变索引，调用者需要保证期间没有修改
+     * @return keyId
+     */
+    Object getKeyId(int index) {
+        this.lock.readLock().lock();
+        try {
+            return this.keyIds[index];
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    /**
+     * 复制特征库中的向量
+     * @param index 特征在库中的索引
+     * @param vector 用来保存向量的数组
+     */
+    void getVector(int index, float[] vector) {
+        this.lock.readLock().lock();
+        try {
+            System.arraycopy(this.vectors, index * this.dim, vector, 0, this.dim);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    /**
+     * @param keyId 特征的keyId
+     * @return 特征在库中的索引，不存在时返回-1
+     */
+    int indexOf(Object keyId) {
+        this.lock.readLock().lock();
+        try {
+            Integer index = this.indexes.get(keyId);
+            return index == null ? -1 : index;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    /**
+     * 创建只包含keyId的轻量特征对象作为搜索结果
+     */
+    private UniFaceFeature keyFeature(int index) {
+        UniFaceFeature feature = new UniFaceFeature();
+        feature.setKeyId(this.keyIds[index]);
+        return feature;
+    }
+
+    @Override
+    public UniFaceSearcher registerFaceFeature(UniFaceFeature feature) throws Exception {
+        Object keyId = feature.getKeyId();
+        if (keyId == null) {
+            throw new IllegalArgumentException("keyId is null");
+        }
+        float[] vector = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+        this.lock.writeLock().lock();
+        try {
+            if (this.indexes.containsKey(keyId)) {
+                throw new IllegalArgumentException("keyId already registered: " + keyId);
+            }
+            if (this.count == 0 && this.dim != vector.length) {
+                this.dim = vector.length;
+                this.vectors = new float[this.keyIds.length * this.dim];
+            } else if (this.dim != vector.length) {
+                throw new IllegalArgumentException("dimension mismatch: " + vector.length + " != " + this.dim);
+            }
+            if (this.count >= this.keyIds.length) {
+                this.grow();
+            }
+            int index = this.count++;
+            System.arraycopy(vector, 0, this.vectors, index * this.dim, this.dim);
+            this.keyIds[index] = keyId;
+            this.indexes.put(keyId, index);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        return this;
+    }
+    private void grow() {
+        int capacity = this.keyIds.length < 16 ? 16 : this.keyIds.length + (this.keyIds.length >> 1);
+        float[] vs = new float[capacity * this.dim];
+        System.arraycopy(this.vectors, 0, vs, 0, this.count * this.dim);
+        Object[] ks = new Object[capacity];
+        System.arraycopy(this.keyIds, 0, ks, 0, this.count);
+        this.vectors = vs;
+        this.keyIds = ks;
+    }
+
+    @Override
+    public UniFaceSearcher updateFaceFeature(UniFaceFeature feature) throws Exception {
+        float[] vector = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+        this.lock.writeLock().lock();
+        try {
+            Integer index = this.indexes.get(feature.getKeyId());
+            if (index == null) {
+                throw new IllegalArgumentException("keyId not registered: " + feature.getKeyId());
+            }
+            if (this.dim != vector.length) {
+                throw new IllegalArgumentException("dimension mismatch: " + vector.length + " != " + this.dim);
+            }
+            System.arraycopy(vector, 0, this.vectors, index * this.dim, this.dim);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    /**
+     * 删除特征，最后一个特征移入被删除的位置，保持存储连续
+     * @return 被删除的特征，只包含keyId和归一化以后的特征值
+     */
+    @Override
+    public UniFaceFeature removeFaceFeature(Object keyId) throws Exception {
+        this.lock.writeLock().lock();
+        try {
+            Integer index = this.indexes.remove(keyId);
+            if (index == null) {
+                return null;
+            }
+            UniFaceFeature removed = this.keyFeature(index);
+            float[] vector = new float[this.dim];
+            System.arraycopy(this.vectors, index * this.dim, vector, 0, this.dim);
+            byte[] featureCode = new byte[this.dim * 4];
+            UniImageUtil.floatsToBytes(vector, featureCode);
+            removed.setFeatureCode(featureCode);
+            int last = --this.count;
+            if (index != last) {
+                System.arraycopy(this.vectors, last * this.dim, this.vectors, index * this.dim, this.dim);
+                this.keyIds[index] = this.keyIds[last];
+                this.indexes.put(this.keyIds[index], index);
+            }
+            this.keyIds[last] = null;
+            return removed;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int getFaceFeatureCount() {
+        this.lock.readLock().lock();
+        try {
+            return this.count;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    /**
+     * @return 特征库向量数组占用的字节数
+     */
+    public long getVectorMemoryBytes() {
+        this.lock.readLock().lock();
+        try {
+            return (long) this.vectors.length * 4;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    /**
+     * 清空特征库
+     * @return 当前对象
+     */
+    public UniFlatFaceSearcher clear() {
+        this.lock.writeLock().lock();
+        try {
+            this.indexes.clear();
+            this.vectors = new float[0];
+            this.keyIds = new Object[0];
+            this.count = 0;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        return this;
+    }
+}
@@ -0,0 +1,250 @@
+package uniface.android.search;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import uniface.UniFaceFeature;
+import uniface.UniFaceSearchResult;
+import uniface.UniFaceSearcher;
+
+/**
+ * 分区并行的人脸搜索器，用来替代UniFaceParallelSearcher<br>
+ * 1. 特征库连续存储在一个UniFlatFaceSearcher中，搜索时按固定大小的索引区间划分分区，各分区大小一致，与注册顺序无关；<br>
+ * 2. 分区由ForkJoinPool以工作窃取的方式并行扫描，空闲线程不轮询，由线程池调度；<br>
+ * 3. 同一次搜索的所有分区共享一个原子标志，任一分区找到匹配通过的特征或搜索被取消时，其余分区尽快停止扫描；<br>
+ * 4. 每个分区产生各自的前K项结果，在fork/join的合并过程中两两归并，不需要加锁；<br>
+ * 5. 发起搜索的线程在所有分区扫描完成之前一直持有特征库的读锁，特征数量和各分区看到的特征库是同一个快照，
+ * 扫描分区的线程不再加锁，不会因为有写者在等待而阻塞。
+ */
+public class UniForkJoinFaceSearcher implements UniFaceSearcher {
+    /**
+     * 一个或多个分区的搜索结果，按相似度降序排列
+     */
+    private static class Partial {
+        final Object[] keyIds;
+        final float[] similars;
+        final int size;
+        final int searchCount;
+        Partial(Object[] keyIds, float[] similars, int size, int searchCount) {
+            this.keyIds = keyIds;
+            this.similars = similars;
+            this.size = size;
+            this.searchCount = searchCount;
+        }
+        /**
+         * 归并两个分区的结果，保留前k项
+         */
+        static Partial merge(Partial a, Partial b, int k) {
+            int n = Math.min(k, a.size + b.size);
+            Object[] keyIds = new Object[n];
+            float[] similars = new float[n];
+            for (int i = 0, ai = 0, bi = 0; i < n; i++) {
+                if (bi >= b.size || (ai < a.size && a.similars[ai] >= b.similars[bi])) {
+                    keyIds[i] = a.keyIds[ai];
+                    similars[i] = a.similars[ai++];
+                } else {
+                    keyIds[i] = b.keyIds[bi];
+                    similars[i] = b.similars[bi++];
+                }
+            }
+            return new Partial(keyIds, similars, n, a.searchCount + b.searchCount);
+        }
+    }
+    /**
+     * 搜索[from, to)索引区间的任务，区间大于分区大小时对半拆分
+     */
+    private class SearchTask extends RecursiveTask<Partial> {
+        private final static long serialVersionUID = 1L;
+        private final float[] query;
+        private final int from;
+        private final int to;
+        private final int k;
+        private final AtomicBoolean stop;
+        private final float stopSimilar;
+        private final UniFaceSearchResult cancelResult;
+        SearchTask(float[] query, int from, int to, int k, AtomicBoolean stop, float stopSimilar, UniFaceSearchResult cancelResult) {
+            this.query = query;
+            this.from = from;
+            this.to = to;
+            this.k = k;
+            this.stop = stop;
+            this.stopSimilar = stopSimilar;
+            this.cancelResult = cancelResult;
+        }
+        @Override
+        protected Partial compute() {
+            if (this.cancelResult != null && this.cancelResult.isCancelled()) {
+                this.stop.set(true);
+            }
+            int partitionSize = UniForkJoinFaceSearcher.this.partitionSize;
+            if (this.to - this.from <= partitionSize || this.stop.get()) {
+                UniTopK topK = new UniTopK(this.k);
+                Object[] keyIds = new Object[this.k];
+                int searchCount = this.stop.get() ? 0 : UniForkJoinFaceSearcher.this.gallery.scanRange(
+                        this.query, this.from, this.to, topK, keyIds, this.stop, this.stopSimilar);
+                float[] similars = new float[topK.size()];
+                for (int i = 0; i < similars.length; i++) {
+                    similars[i] = topK.similarAt(i);
+                }
+                return new Partial(keyIds, similars, topK.size(), searchCount);
+            }
+            // 在分区边界上对半拆分
+            int partitions = (this.to - this.from + partitionSize - 1) / partitionSize;
+            int mid = this.from + (partitions >> 1) * partitionSize;
+            SearchTask left = new SearchTask(this.query, this.from, mid, this.k, this.stop, this.stopSimilar, this.cancelResult);
+            SearchTask right = new SearchTask(this.query, mid, this.to, this.k, this.stop, this.stopSimilar, this.cancelResult);
+            left.fork();
+            Partial r = right.compute();
+            return Partial.merge(left.join(), r, this.k);
+        }
+    }
+    private final UniFlatFaceSearcher gallery;
+    private final ForkJoinPool pool;
+    private final boolean ownPool;
+    private final int partitionSize;
+
+    /**
+     * @param passSimilar 判定为匹配通过的最低相似度
+     * @param parallelNum 并行线程数，小于1时使用CPU核数减1
+     * @param partitionSize 每个分区的特征数量，通常取数千，过小时任务调度开销占比上升
+     */
+    public UniForkJoinFaceSearcher(float passSimilar, int parallelNum, int partitionSize) {
+        this(passSimilar, new ForkJoinPool(parallelNum < 1 ? Math.max(1, Runtime.getRuntime().availableProcessors() - 1) : parallelNum), true, partitionSize);
+    }
+    /**
+     * @param passSimilar 判定为匹配通过的最低相似度
+     * @param pool 共享的ForkJoinPool，close()时不关闭
+     * @param partitionSize 每个分区的特征数量
+     */
+    public UniForkJoinFaceSearcher(float passSimilar, ForkJoinPool pool, int partitionSize) {
+        this(passSimilar, pool, false, partitionSize);
+    }
+    private UniForkJoinFaceSearcher(float passSimilar, ForkJoinPool pool, boolean ownPool, int partitionSize) {
+        this.gallery = new UniFlatFaceSearcher(passSimilar);
+        this.pool = pool;
+        this.ownPool = ownPool;
+        this.partitionSize = partitionSize < 64 ? 64 : partitionSize;
+    }
+    public float getPassSimilar() {
+        return this.gallery.getPassSimilar();
+    }
+    public int getPartitionSize() {
+        return this.partitionSize;
+    }
+    public int getParallelism() {
+        return this.pool.getParallelism();
+    }
+
+    /**
+     * 执行分区并行搜索
+     * @param stopOnPass 是否在找到匹配通过的特征以后停止其余分区的扫描
+     */
+    private Partial searchPartitions(float[] query, int k, boolean stopOnPass, UniFaceSearchResult cancelResult) {
+        Lock readLock = this.gallery.readLock();
+        readLock.lock();
+        try {
+            int count = this.gallery.getFaceFeatureCount();
+            float stopSimilar = stopOnPass ? this.gallery.getPassSimilar() : Float.POSITIVE_INFINITY;
+            SearchTask task = new SearchTask(query, 0, count, k, new AtomicBoolean(), stopSimilar, cancelResult);
+            if (count <= this.partitionSize) {
+                // 只有一个分区时直接在调用线程中扫描，省去线程切换
+                return task.compute();
+            }
+            return this.pool.invoke(task);
+        } finally {
+            readLock.unlock();
+        }
+    }
+    private void fillResult(UniFaceSearchResult result, Partial partial) {
+        result.setSearchCount(partial.searchCount);
+        if (partial.size > 0) {
+            UniFaceFeature feature = new UniFaceFeature();
+            feature.setKeyId(partial.keyIds[0]);
+            result.setFeature(feature);
+            result.setSimilar(partial.similars[0]);
+            result.setPass(partial.similars[0] >= this.gallery.getPassSimilar());
+        }
+    }
+
+    /**
+     * 搜索，找到匹配通过的特征以后立即停止其余分区的扫描<br>
+     * searchResult为null时在调用线程中等待搜索完成；否则立即返回，搜索在线程池中完成以后调用searchResult.completed()，
+     * 期间其他线程可以通过searchResult.cancel()取消搜索。
+     */
+    @Override
+    public UniFaceSearchResult search(UniFaceFeature feature, UniFaceSearchResult searchResult) throws Exception {
+        final float[] query = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+        if (searchResult == null) {
+            UniFaceSearchResult result = new UniFaceSearchResult();
+            this.fillResult(result, this.searchPartitions(query, 1, true, null));
+            return result.completed();
+        }
+        final UniFaceSearchResult result = searchResult;
+        this.pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    UniForkJoinFaceSearcher.this.fillResult(result,
+                            UniForkJoinFaceSearcher.this.searchPartitions(query, 1, true, result));
+                } catch (Exception e) {
+                    result.setException(e);
+                } finally {
+                    result.completed();
+                }
+            }
+        });
+        return result;
+    }
+    /**
+     * 搜索相似度最高的K个特征，扫描全部分区
+     * @param feature 目标人脸特征
+     * @param k 最多返回的结果数
+     * @return 按相似度降序排列的搜索结果，每个结果的特征对象只包含keyId
+     */
+    public UniFaceSearchResult[] search(UniFaceFeature feature, int k) {
+        float[] query = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+        Partial partial = this.searchPartitions(query, k < 1 ? 1 : k, false, null);
+        UniFaceSearchResult[] results = new UniFaceSearchResult[partial.size];
+        for (int i = 0; i < results.length; i++) {
+            UniFaceFeature keyFeature = new UniFaceFeature();
+            keyFeature.setKeyId(partial.keyIds[i]);
+            results[i] = new UniFaceSearchResult(keyFeature, partial.similars[i]);
+            results[i].setPass(partial.similars[i] >= this.gallery.getPassSimilar());
+            results[i].setSearchCount(partial.searchCount);
+            results[i].completed();
+        }
+        return results;
+    }
+
+    @Override
+    public UniFaceSearcher registerFaceFeature(UniFaceFeature feature) throws Exception {
+        this.gallery.registerFaceFeature(feature);
+        return this;
+    }
+
+    @Override
+    public UniFaceSearcher updateFaceFeature(UniFaceFeature feature) throws Exception {
+        this.gallery.updateFaceFeature(feature);
+        return this;
+    }
+
+    @Override
+    public UniFaceFeature removeFaceFeature(Object keyId) throws Exception {
+        return this.gallery.removeFaceFeature(keyId);
+    }
+
+    @Override
+    public int getFaceFeatureCount() {
+        return this.gallery.getFaceFeatureCount();
+    }
+    /**
+     * 关闭搜索器自己创建的线程池，共享的线程池不关闭
+     */
+    public void close() {
+        if (this.ownPool) {
+            this.pool.shutdown();
+        }
+    }
+}
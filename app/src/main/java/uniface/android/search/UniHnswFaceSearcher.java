@@ -0,0 +1,719 @@
+package uniface.android.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import uniface.UniFaceFeature;
+import uniface.UniFaceSearchResult;
+import uniface.UniFaceSearcher;
+import uniimage.util.UniImageUtil;
+
+/**
+ * 基于HNSW（Hierarchical Navigable Small World）图索引的近似最近邻人脸搜索器<br>
+ * 1. 每个特征是图中的一个节点，随机分配层数，高层稀疏用于快速定位，第0层稠密用于精确搜索，1:N搜索的比对次数约为O(log N)；<br>
+ * 2. 召回率与耗时通过m、efConstruction、efSearch调节：m是每层的最大邻居数（第0层为2m），
+ * efConstruction是建图时的候选集大小，efSearch是搜索时的候选集大小，越大召回率越高、耗时越长；<br>
+ * 3. 删除只标记节点，节点仍参与图的导航但不占用候选集、不会出现在结果中；更新是删除后重新插入；<br>
+ * 4. 已删除节点超过一半时在后台线程中重建索引：在读锁下复制有效的特征，不持有锁建图，重建期间的修改记录下来，
+ * 最后在写锁下重放到新图中并替换，写锁只覆盖重放和替换；也可以调用compact()在当前线程中重建；<br>
+ * 5. 特征值与UniFlatFaceSearcher一样预先归一化并连续存储，相似度是余弦相似度，搜索结果的searchCount是实际比对的特征数量。
+ */
+public class UniHnswFaceSearcher implements UniFaceSearcher {
+    /**
+     * 节点与相似度组成的二叉堆，maxHeap为true时堆顶是相似度最高的节点，否则是最低的
+     */
+    static class NodeHeap {
+        private final boolean maxHeap;
+        private int[] nodes;
+        private float[] similars;
+        private int size;
+        NodeHeap(int capacity, boolean maxHeap) {
+            this.maxHeap = maxHeap;
+            this.nodes = new int[capacity < 4 ? 4 : capacity];
+            this.similars = new float[this.nodes.length];
+        }
+        private boolean above(float a, float b) {
+            return this.maxHeap ? a > b : a < b;
+        }
+        void push(int node, float similar) {
+            if (this.size >= this.nodes.length) {
+                int capacity = this.nodes.length << 1;
+                int[] ns = new int[capacity];
+                float[] ss = new float[capacity];
+                System.arraycopy(this.nodes, 0, ns, 0, this.size);
+                System.arraycopy(this.similars, 0, ss, 0, this.size);
+                this.nodes = ns;
+                this.similars = ss;
+            }
+            int i = this.size++;
+            while (i > 0) {
+                int p = (i - 1) >> 1;
+                if (!this.above(similar, this.similars[p])) {
+                    break;
+                }
+                this.nodes[i] = this.nodes[p];
+                this.similars[i] = this.similars[p];
+                i = p;
+            }
+            this.nodes[i] = node;
+            this.similars[i] = similar;
+        }
+        int peekNode() {
+            return this.nodes[0];
+        }
+        float peekSimilar() {
+            return this.similars[0];
+        }
+        /**
+         * 移除堆顶
+         * @return 堆顶节点
+         */
+        int pop() {
+            int top = this.nodes[0];
+            int n = --this.size;
+            int node = this.nodes[n];
+            float similar = this.similars[n];
+            int i = 0;
+            while (true) {
+                int c = (i << 1) + 1;
+                if (c >= n) {
+                    break;
+                }
+                if (c + 1 < n && this.above(this.similars[c + 1], this.similars[c])) {
+                    c++;
+                }
+                if (!this.above(this.similars[c], similar)) {
+                    break;
+                }
+                this.nodes[i] = this.nodes[c];
+                this.similars[i] = this.similars[c];
+                i = c;
+            }
+            this.nodes[i] = node;
+            this.similars[i] = similar;
+            return top;
+        }
+        int size() {
+            return this.size;
+        }
+        void clear() {
+            this.size = 0;
+        }
+    }
+    /**
+     * 每个搜索线程复用的搜索上下文：访问标记、候选堆和比对计数
+     */
+    private static class SearchContext {
+        int[] marks = new int[0];
+        int stamp;
+        int searchCount;
+        final NodeHeap candidates = new NodeHeap(64, true);
+        final NodeHeap results = new NodeHeap(64, false);
+        void reset(int nodeCount) {
+            if (this.marks.length < nodeCount) {
+                this.marks = new int[Math.max(nodeCount, this.marks.length << 1)];
+                this.stamp = 0;
+            }
+            if (++this.stamp == 0) {
+                Arrays.fill(this.marks, 0);
+                this.stamp = 1;
+            }
+            this.candidates.clear();
+            this.results.clear();
+        }
+        boolean visit(int node) {
+            if (this.marks[node] == this.stamp) {
+                return false;
+            }
+            this.marks[node] = this.stamp;
+            return true;
+        }
+    }
+    /**
+     * 重建索引期间的一次修改，vector为null表示删除
+     */
+    private static class PendingOp {
+        final Object keyId;
+        final float[] vector;
+        PendingOp(Object keyId, float[] vector) {
+            this.keyId = keyId;
+            this.vector = vector;
+        }
+    }
+    private final ThreadLocal<SearchContext> contexts = new ThreadLocal<SearchContext>() {
+        @Override
+        protected SearchContext initialValue() {
+            return new SearchContext();
+        }
+    };
+    private final float passSimilar;
+    private final int m;
+    private final int m0;
+    private final int efConstruction;
+    private volatile int efSearch;
+    private final double levelFactor;
+    private final Random random;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int dim;
+    private float[] vectors = new float[0];
+    private Object[] keyIds = new Object[0];
+    private int[][][] links = new int[0][][]; // links[节点][层] = {邻居数, 邻居1, 邻居2, ...}
+    private boolean[] deleted = new boolean[0];
+    private int count; // 节点数量，包括已删除的节点
+    private int deletedCount;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private Map<Object, Integer> indexes = new HashMap<Object, Integer>();
+    private final ReentrantLock rebuildLock = new ReentrantLock(); // 同一时间只有一个重建
+    private List<PendingOp> pendingOps; // 非null表示正在重建，记录重建期间的修改，在写锁下访问
+    private boolean rebuildScheduled; // 后台重建已经启动，在写锁下访问
+
+    /**
+     * 使用默认参数：m=16，efConstruction=200，efSearch=64
+     * @param passSimilar 判定为匹配通过的最低相似度
+     */
+    public UniHnswFaceSearcher(float passSimilar) {
+        this(passSimilar, 16, 200, 64);
+    }
+    /**
+     * @param passSimilar 判定为匹配通过的最低相似度
+     * @param m 每层的最大邻居数，第0层为2m，通常取8-48
+     * @param efConstruction 建图时的候选集大小，不小于m
+     * @param efSearch 搜索时的候选集大小
+     */
+    public UniHnswFaceSearcher(float passSimilar, int m, int efConstruction, int efSearch) {
+        this.passSimilar = passSimilar;
+        this.m = m < 2 ? 2 : m;
+        this.m0 = this.m * 2;
+        this.efConstruction = efConstruction < this.m ? this.m : efConstruction;
+        this.efSearch = efSearch < 1 ? 1 : efSearch;
+        this.levelFactor = 1.0 / Math.log(this.m);
+        this.random = new Random(42);
+    }
+    public float getPassSimilar() {
+        return this.passSimilar;
+    }
+    public int getEfSearch() {
+        return this.efSearch;
+    }
+    /**
+     * 调整搜索时的候选集大小，可以在运行过程中随时调整
+     * @param efSearch 候选集大小，越大召回率越高、耗时越长
+     * @return 当前对象
+     */
+    public UniHnswFaceSearcher setEfSearch(int efSearch) {
+        this.efSearch = efSearch < 1 ? 1 : efSearch;
+        return this;
+    }
+
+    private float similar(float[] query, int node) {
+        return UniFaceVectorUtil.dot(query, 0, this.vectors, node * this.dim, this.dim);
+    }
+    private float similar(int node1, int node2) {
+        return UniFaceVectorUtil.dot(this.vectors, node1 * this.dim, this.vectors, node2 * this.dim, this.dim);
+    }
+    /**
+     * 在高层贪心地向目标靠近
+     */
+    private int greedy(float[] query, int ep, int level, SearchContext context) {
+        float best = this.similar(query, ep);
+        context.searchCount++;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] ns = this.links[ep][level];
+            for (int i = 1, n = ns[0]; i <= n; i++) {
+                float s = this.similar(query, ns[i]);
+                context.searchCount++;
+                if (s > best) {
+                    best = s;
+                    ep = ns[i];
+                    changed = true;
+                }
+            }
+        }
+        return ep;
+    }
+    /**
+     * 在指定层从入口节点开始搜索，结果保存在context.results中（堆顶是相似度最低的）
+     * @param skipDeleted 已删除的节点只用于导航，不进入结果，也就不占用ef个结果位置
+     * @param cancelResult 用来检查是否被取消的搜索结果对象，可以为null
+     */
+    private void searchLayer(float[] query, int ep, int ef, int level, boolean skipDeleted, SearchContext context, UniFaceSearchResult cancelResult) {
+        context.reset(this.count);
+        NodeHeap candidates = context.candidates;
+        NodeHeap results = context.results;
+        float s = this.similar(query, ep);
+        context.searchCount++;
+        context.visit(ep);
+        candidates.push(ep, s);
+        if (!skipDeleted || !this.deleted[ep]) {
+            results.push(ep, s);
+        }
+        int expanded = 0;
+        while (candidates.size() > 0) {
+            float cs = candidates.peekSimilar();
+            if (results.size() >= ef && cs < results.peekSimilar()) {
+                break;
+            }
+            int c = candidates.pop();
+            if (cancelResult != null && (++expanded & 63) == 0 && cancelResult.isCancelled()) {
+                break;
+            }
+            int[] ns = this.links[c][level];
+            for (int i = 1, n = ns[0]; i <= n; i++) {
+                int e = ns[i];
+                if (!context.visit(e)) {
+                    continue;
+                }
+                s = this.similar(query, e);
+                context.searchCount++;
+                if (results.size() < ef || s > results.peekSimilar()) {
+                    candidates.push(e, s);
+                    if (skipDeleted && this.deleted[e]) {
+                        continue;
+                    }
+                    results.push(e, s);
+                    if (results.size() > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+    }
+    /**
+     * 启发式选择邻居：优先选择与目标相似、且与已选邻居不过于相似的节点，使邻居分布在不同方向上
+     * @param nodes 候选节点，按相似度降序排列
+     * @param similars 候选节点与目标的相似度
+     * @param n 候选数量
+     * @param max 最多选择的邻居数
+     * @param out 输出数组，格式与links相同
+     */
+    private void selectNeighbors(int[] nodes, float[] similars, int n, int max, int[] out) {
+        int selected = 0;
+        boolean[] pruned = new boolean[n];
+        for (int i = 0; i < n && selected < max; i++) {
+            boolean good = true;
+            for (int j = 1; j <= selected; j++) {
+                if (this.similar(nodes[i], out[j]) > similars[i]) {
+                    good = false;
+                    break;
+                }
+            }
+            if (good) {
+                out[++selected] = nodes[i];
+            } else {
+                pruned[i] = true;
+            }
+        }
+        // 邻居不足时用被剪掉的候选补足，保持图的连通性
+        for (int i = 0; i < n && selected < max; i++) {
+            if (pruned[i]) {
+                out[++selected] = nodes[i];
+            }
+        }
+        out[0] = selected;
+    }
+    /**
+     * 取出堆中所有节点，按相似度降序排列
+     */
+    private static int drainDescending(NodeHeap heap, int[] nodes, float[] similars) {
+        int n = heap.size();
+        for (int i = n - 1; i >= 0; i--) {
+            similars[i] = heap.peekSimilar();
+            nodes[i] = heap.pop();
+        }
+        return n;
+    }
+    /**
+     * 为节点添加一个邻居，邻居已满时重新选择
+     */
+    private void addLink(int node, int neighbor, int level) {
+        int[] ns = this.links[node][level];
+        int n = ns[0];
+        if (n < ns.length - 1) {
+            ns[++n] = neighbor;
+            ns[0] = n;
+            return;
+        }
+        int[] nodes = new int[n + 1];
+        float[] similars = new float[n + 1];
+        NodeHeap heap = new NodeHeap(n + 1, false);
+        for (int i = 1; i <= n; i++) {
+            heap.push(ns[i], this.similar(node, ns[i]));
+        }
+        heap.push(neighbor, this.similar(node, neighbor));
+        int size = drainDescending(heap, nodes, similars);
+        this.selectNeighbors(nodes, similars, size, ns.length - 1, ns);
+    }
+    private int randomLevel() {
+        double r = this.random.nextDouble();
+        return (int) (-Math.log(r <= 0 ? Double.MIN_VALUE : r) * this.levelFactor);
+    }
+    /**
+     * 插入一个节点，调用者必须持有写锁
+     */
+    private void insert(float[] vector, Object keyId) {
+        if (this.count >= this.keyIds.length) {
+            this.grow();
+        }
+        int node = this.count++;
+        System.arraycopy(vector, 0, this.vectors, node * this.dim, this.dim);
+        this.keyIds[node] = keyId;
+        this.deleted[node] = false;
+        this.indexes.put(keyId, node);
+        int level = this.randomLevel();
+        int[][] nodeLinks = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            nodeLinks[l] = new int[(l == 0 ? this.m0 : this.m) + 1];
+        }
+        this.links[node] = nodeLinks;
+        if (this.entryPoint < 0) {
+            this.entryPoint = node;
+            this.maxLevel = level;
+            return;
+        }
+        SearchContext context = this.contexts.get();
+        int ep = this.entryPoint;
+        for (int l = this.maxLevel; l > level; l--) {
+            ep = this.greedy(vector, ep, l, context);
+        }
+        int[] nodes = new int[this.efConstruction + 1];
+        float[] similars = new float[this.efConstruction + 1];
+        for (int l = Math.min(level, this.maxLevel); l >= 0; l--) {
+            this.searchLayer(vector, ep, this.efConstruction, l, false, context, null);
+            int n = drainDescending(context.results, nodes, similars);
+            ep = nodes[0];
+            this.selectNeighbors(nodes, similars, n, this.m, nodeLinks[l]);
+            int[] ns = nodeLinks[l];
+            for (int i = 1; i <= ns[0]; i++) {
+                this.addLink(ns[i], node, l);
+            }
+        }
+        if (level > this.maxLevel) {
+            this.entryPoint = node;
+            this.maxLevel = level;
+        }
+    }
+    private void grow() {
+        int capacity = this.keyIds.length < 16 ? 16 : this.keyIds.length + (this.keyIds.length >> 1);
+        float[] vs = new float[capacity * this.dim];
+        System.arraycopy(this.vectors, 0, vs, 0, this.count * this.dim);
+        Object[] ks = new Object[capacity];
+        System.arraycopy(this.keyIds, 0, ks, 0, this.count);
+        int[][][] ls = new int[capacity][][];
+        System.arraycopy(this.links, 0, ls, 0, this.count);
+        boolean[] ds = new boolean[capacity];
+        System.arraycopy(this.deleted, 0, ds, 0, this.count);
+        this.vectors = vs;
+        this.keyIds = ks;
+        this.links = ls;
+        this.deleted = ds;
+    }
+    /**
+     * 搜索，结果保存在topK中，比对的特征数量保存在context.searchCount中，调用者必须持有读锁
+     */
+    private void searchNodes(float[] query, UniTopK topK, SearchContext context, UniFaceSearchResult cancelResult) {
+        context.searchCount = 0;
+        if (this.entryPoint < 0) {
+            return;
+        }
+        if (query.length != this.dim) {
+            throw new IllegalArgumentException("dimension mismatch: " + query.length + " != " + this.dim);
+        }
+        int ep = this.entryPoint;
+        for (int l = this.maxLevel; l > 0; l--) {
+            ep = this.greedy(query, ep, l, context);
+        }
+        int ef = Math.max(this.efSearch, topK.capacity());
+        this.searchLayer(query, ep, ef, 0, true, context, cancelResult);
+        NodeHeap results = context.results;
+        while (results.size() > 0) {
+            float s = results.peekSimilar();
+            topK.offer(results.pop(), s);
+        }
+    }
+
+    @Override
+    public UniFaceSearchResult search(UniFaceFeature feature, UniFaceSearchResult searchResult) throws Exception {
+        UniFaceSearchResult result = searchResult == null ? new UniFaceSearchResult() : searchResult;
+        try {
+            float[] query = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+            UniTopK topK = new UniTopK(1);
+            SearchContext context = this.contexts.get();
+            this.lock.readLock().lock();
+            try {
+                this.searchNodes(query, topK, context, result);
+                result.setSearchCount(context.searchCount);
+                if (topK.size() > 0) {
+                    result.setFeature(this.keyFeature(topK.indexAt(0)));
+                    result.setSimilar(topK.similarAt(0));
+                    result.setPass(topK.similarAt(0) >= this.passSimilar);
+                }
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        } catch (Exception e) {
+            result.setException(e);
+            if (searchResult == null) {
+                throw e;
+            }
+        } finally {
+            result.completed();
+        }
+        return result;
+    }
+    /**
+     * 搜索相似度最高的K个特征
+     * @param feature 目标人脸特征
+     * @param k 最多返回的结果数
+     * @return 按相似度降序排列的搜索结果，每个结果的特征对象只包含keyId
+     */
+    public UniFaceSearchResult[] search(UniFaceFeature feature, int k) {
+        float[] query = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+        UniTopK topK = new UniTopK(k);
+        SearchContext context = this.contexts.get();
+        UniFaceSearchResult[] results;
+        this.lock.readLock().lock();
+        try {
+            this.searchNodes(query, topK, context, null);
+            results = new UniFaceSearchResult[topK.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = new UniFaceSearchResult(this.keyFeature(topK.indexAt(i)), topK.similarAt(i));
+                results[i].setPass(topK.similarAt(i) >= this.passSimilar);
+                results[i].setSearchCount(context.searchCount);
+                results[i].completed();
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        return results;
+    }
+    private UniFaceFeature keyFeature(int node) {
+        UniFaceFeature feature = new UniFaceFeature();
+        feature.setKeyId(this.keyIds[node]);
+        return feature;
+    }
+    @Override
+    public UniFaceSearcher registerFaceFeature(UniFaceFeature feature) throws Exception {
+        Object keyId = feature.getKeyId();
+        if (keyId == null) {
+            throw new IllegalArgumentException("keyId is null");
+        }
+        float[] vector = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+        this.lock.writeLock().lock();
+        try {
+            if (this.indexes.containsKey(keyId)) {
+                throw new IllegalArgumentException("keyId already registered: " + keyId);
+            }
+            if (this.count == 0 && this.dim != vector.length) {
+                this.dim = vector.length;
+                this.vectors = new float[this.keyIds.length * this.dim];
+            } else if (this.dim != vector.length) {
+                throw new IllegalArgumentException("dimension mismatch: " + vector.length + " != " + this.dim);
+            }
+            this.insert(vector, keyId);
+            this.recordPending(keyId, vector);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    @Override
+    public UniFaceSearcher updateFaceFeature(UniFaceFeature feature) throws Exception {
+        Object keyId = feature.getKeyId();
+        float[] vector = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+        this.lock.writeLock().lock();
+        try {
+            Integer node = this.indexes.get(keyId);
+            if (node == null) {
+                throw new IllegalArgumentException("keyId not registered: " + keyId);
+            }
+            if (this.dim != vector.length) {
+                throw new IllegalArgumentException("dimension mismatch: " + vector.length + " != " + this.dim);
+            }
+            // 图中的邻居关系依赖特征值，不能原地修改，删除以后重新插入
+            this.markDeleted(node);
+            this.insert(vector, keyId);
+            this.recordPending(keyId, vector);
+            this.compactIfNeeded();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    /**
+     * @return 被删除的特征，只包含keyId和归一化以后的特征值
+     */
+    @Override
+    public UniFaceFeature removeFaceFeature(Object keyId) throws Exception {
+        this.lock.writeLock().lock();
+        try {
+            Integer node = this.indexes.remove(keyId);
+            if (node == null) {
+                return null;
+            }
+            UniFaceFeature removed = this.keyFeature(node);
+            float[] vector = new float[this.dim];
+            System.arraycopy(this.vectors, node * this.dim, vector, 0, this.dim);
+            byte[] featureCode = new byte[this.dim * 4];
+            UniImageUtil.floatsToBytes(vector, featureCode);
+            removed.setFeatureCode(featureCode);
+            this.markDeleted(node);
+            this.recordPending(keyId, null);
+            this.compactIfNeeded();
+            return removed;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+    private void markDeleted(int node) {
+        this.deleted[node] = true;
+        this.deletedCount++;
+    }
+    /**
+     * 正在重建时记录修改，调用者必须持有写锁
+     */
+    private void recordPending(Object keyId, float[] vector) {
+        if (this.pendingOps != null) {
+            this.pendingOps.add(new PendingOp(keyId, vector));
+        }
+    }
+    /**
+     * 已删除节点超过一半时启动后台重建，调用者必须持有写锁
+     */
+    private void compactIfNeeded() {
+        if (this.rebuildScheduled || this.deletedCount == 0 || this.deletedCount * 2 <= this.count) {
+            return;
+        }
+        this.rebuildScheduled = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    UniHnswFaceSearcher.this.rebuild();
+                } finally {
+                    UniHnswFaceSearcher.this.lock.writeLock().lock();
+                    UniHnswFaceSearcher.this.rebuildScheduled = false;
+                    UniHnswFaceSearcher.this.lock.writeLock().unlock();
+                }
+            }
+        }, "HnswRebuildThread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    /**
+     * 重建索引，清除已删除的节点<br>
+     * 1. 在读锁下复制有效的特征，并开始记录修改；<br>
+     * 2. 不持有锁，在新的图中插入有效的特征，搜索和修改照常进行；<br>
+     * 3. 在写锁下将记录的修改重放到新图中，然后替换当前的图。
+     */
+    private void rebuild() {
+        this.rebuildLock.lock();
+        try {
+            int dim;
+            float[] vs;
+            Object[] ks;
+            int live = 0;
+            this.lock.readLock().lock();
+            try {
+                if (this.deletedCount == 0) {
+                    return;
+                }
+                dim = this.dim;
+                vs = new float[(this.count - this.deletedCount) * dim];
+                ks = new Object[this.count - this.deletedCount];
+                for (int i = 0; i < this.count; i++) {
+                    if (!this.deleted[i]) {
+                        System.arraycopy(this.vectors, i * dim, vs, live * dim, dim);
+                        ks[live++] = this.keyIds[i];
+                    }
+                }
+                // 写者都被读锁挡住，由写者在写锁下读取
+                this.pendingOps = new ArrayList<PendingOp>();
+            } finally {
+                this.lock.readLock().unlock();
+            }
+            boolean replaced = false;
+            try {
+                UniHnswFaceSearcher graph = new UniHnswFaceSearcher(this.passSimilar, this.m, this.efConstruction, this.efSearch);
+                graph.dim = dim;
+                float[] vector = new float[dim];
+                for (int i = 0; i < live; i++) {
+                    System.arraycopy(vs, i * dim, vector, 0, dim);
+                    graph.insert(vector, ks[i]);
+                }
+                this.lock.writeLock().lock();
+                try {
+                    for (PendingOp op : this.pendingOps) {
+                        Integer node = graph.indexes.remove(op.keyId);
+                        if (node != null) {
+                            graph.markDeleted(node);
+                        }
+                        if (op.vector != null) {
+                            graph.insert(op.vector, op.keyId);
+                        }
+                    }
+                    this.pendingOps = null;
+                    this.vectors = graph.vectors;
+                    this.keyIds = graph.keyIds;
+                    this.links = graph.links;
+                    this.deleted = graph.deleted;
+                    this.count = graph.count;
+                    this.deletedCount = graph.deletedCount;
+                    this.entryPoint = graph.entryPoint;
+                    this.maxLevel = graph.maxLevel;
+                    this.indexes = graph.indexes;
+                    replaced = true;
+                } finally {
+                    this.lock.writeLock().unlock();
+                }
+            } finally {
+                if (!replaced) {
+                    this.lock.writeLock().lock();
+                    this.pendingOps = null;
+                    this.lock.writeLock().unlock();
+                }
+            }
+        } finally {
+            this.rebuildLock.unlock();
+        }
+    }
+    /**
+     * 立即在当前线程中重建索引，清除所有已删除的节点，重建期间不阻塞搜索和修改
+     * @return 当前对象
+     */
+    public UniHnswFaceSearcher compact() {
+        this.rebuild();
+        return this;
+    }
+
+    @Override
+    public int getFaceFeatureCount() throws Exception {
+        this.lock.readLock().lock();
+        try {
+            return this.count - this.deletedCount;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    /**
+     * @return 已删除但尚未清除的节点数量
+     */
+    public int getDeletedCount() {
+        this.lock.readLock().lock();
+        try {
+            return this.deletedCount;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,884 @@
+package uniface.android.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import thread.WhileThread;
+import uniface.UniFaceFeature;
+import uniface.UniFaceSearchResult;
+import uniface.UniFaceSearcher;
+import uniimage.util.UniImageUtil;
+
+/**
+ * 基于内存映射文件的持久化人脸特征库搜索器<br>
+ * 1. 特征库文件由文件头、定长的特征向量块和keyId索引块组成，打开时通过FileChannel.map()映射特征向量块，
+ * 不需要反序列化UniFaceFeature对象，也不需要重新注册，打开以后就可以搜索；<br>
+ * 2. 注册、更新、删除追加写入日志文件（特征库文件名加.log），同时更新内存中的增量特征库，重新打开时重放日志；<br>
+ * 3. 日志记录数达到compactThreshold时在后台线程中合并，或者调用compact()合并：将特征库文件中有效的特征和增量特征
+ * 写入新的特征库文件，替换原文件并清空日志。写入新文件期间注册、更新、删除等待，搜索照常进行，
+ * 只有切换到新文件时短暂持有写锁；<br>
+ * 4. 替换特征库文件时不会先删除原文件：不能直接覆盖时先把原文件改名为.bak，打开时如果只剩.bak就恢复它，
+ * 与之匹配的日志随后被重放；未完成合并留下的.tmp文件在打开时删除。<br>
+ * 使用了自动合并时，不再使用以后必须调用close()停止后台合并线程。<br>
+ * keyId仅支持String、Integer、Long类型。<br>
+ * 特征库文件格式（小端字节序）：<br>
+ * 文件头64字节：magic(int) version(int) dim(int) count(int) generation(long) vectorOffset(long) keyIndexOffset(long) 保留<br>
+ * 特征向量块：count * dim个float，归一化的特征向量，第i个向量位于vectorOffset + i * dim * 4<br>
+ * keyId索引块：count个keyId，依次为类型(byte)和值<br>
+ * 日志文件格式：文件头magic(int) version(int) dim(int) generation(long)，
+ * 之后每条记录为长度(int) crc32(int) 记录体，记录体为操作(byte) keyId [dim个float]
+ */
+public class UniMappedFaceGallery implements UniFaceSearcher {
+    public final static int MAGIC = 0x5546474C; // "UFGL"
+    public final static int LOG_MAGIC = 0x55464C47; // "UFLG"
+    public final static int VERSION = 1;
+    private final static int HEADER_SIZE = 64;
+    private final static int LOG_HEADER_SIZE = 20;
+    private final static byte OP_PUT = 1;
+    private final static byte OP_REMOVE = 2;
+    private final static byte KEY_STRING = 1;
+    private final static byte KEY_INTEGER = 2;
+    private final static byte KEY_LONG = 3;
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * 映射的特征库文件内容
+     */
+    private static class MappedGallery {
+        int dim;
+        long generation;
+        FloatBuffer vectors;
+        Object[] keyIds = new Object[0];
+        int count;
+        final Map<Object, Integer> indexes = new HashMap<Object, Integer>();
+    }
+
+    private final File file;
+    private final File logFile;
+    private final File tmpFile;
+    private final File backupFile;
+    private final float passSimilar;
+    private volatile int compactThreshold = 10000;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // 搜索持有读锁，修改内存中的特征库持有写锁
+    private final ReentrantLock updateLock = new ReentrantLock(); // 串行化注册、更新、删除与合并，合并写文件期间不阻塞搜索
+    private int dim;
+    private long generation;
+    private FloatBuffer baseVectors; // 映射的特征向量块
+    private Object[] baseKeyIds = new Object[0];
+    private int baseCount;
+    private final BitSet baseDeleted = new BitSet(); // 已被更新或删除的特征库文件中的特征
+    private int baseDeletedCount;
+    private final Map<Object, Integer> baseIndexes = new HashMap<Object, Integer>();
+    private UniFlatFaceSearcher delta; // 增量特征库
+    private FileChannel logChannel;
+    private long logPosition;
+    private int logRecords;
+    private final Object compactSignal = new Object();
+    private boolean compactRequested;
+    private boolean compactStopped;
+    private final WhileThread compactThread = new WhileThread() {
+        @Override
+        public void run() {
+            while (super.running()) {
+                synchronized (UniMappedFaceGallery.this.compactSignal) {
+                    // 在同一个监视器内检查停止标记再等待，不会错过stopping()的通知
+                    if (UniMappedFaceGallery.this.compactStopped) {
+                        break;
+                    }
+                    if (!UniMappedFaceGallery.this.compactRequested) {
+                        try {
+                            UniMappedFaceGallery.this.compactSignal.wait();
+                        } catch (InterruptedException e) {
+                        }
+                        continue;
+                    }
+                    UniMappedFaceGallery.this.compactRequested = false;
+                }
+                try {
+                    UniMappedFaceGallery.this.compactIfNeeded();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        @Override
+        protected void stopping() {
+            synchronized (UniMappedFaceGallery.this.compactSignal) {
+                UniMappedFaceGallery.this.compactStopped = true;
+                UniMappedFaceGallery.this.compactSignal.notifyAll();
+            }
+        }
+        @Override
+        protected void pausing() {
+        }
+    };
+
+    /**
+     * 打开特征库文件，文件不存在时在第一次注册特征时创建
+     * @param file 特征库文件
+     * @param passSimilar 判定为匹配通过的最低相似度
+     * @throws IOException 读取特征库文件或重放日志出错
+     */
+    public UniMappedFaceGallery(File file, float passSimilar) throws IOException {
+        this.file = file;
+        this.logFile = new File(file.getPath() + ".log");
+        this.tmpFile = new File(file.getPath() + ".tmp");
+        this.backupFile = new File(file.getPath() + ".bak");
+        this.passSimilar = passSimilar;
+        this.delta = new UniFlatFaceSearcher(passSimilar);
+        this.recoverFiles();
+        MappedGallery mapped = this.mapGallery();
+        this.lock.writeLock().lock();
+        try {
+            this.applyMapped(mapped);
+            this.replayLog();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+    /**
+     * 设置自动合并的日志记录数
+     * @param compactThreshold 日志记录数达到这个值时在后台线程中合并，0表示不自动合并
+     * @return 当前对象
+     */
+    public UniMappedFaceGallery setCompactThreshold(int compactThreshold) {
+        this.compactThreshold = compactThreshold;
+        return this;
+    }
+    public File getFile() {
+        return this.file;
+    }
+    public float getPassSimilar() {
+        return this.passSimilar;
+    }
+
+    /**
+     * 处理合并替换特征库文件时中断留下的文件
+     */
+    private void recoverFiles() throws IOException {
+        if (this.backupFile.exists()) {
+            if (this.file.exists()) {
+                // 新特征库文件已经就位，.bak是原文件
+                this.backupFile.delete();
+            } else if (!this.backupFile.renameTo(this.file)) {
+                throw new IOException("failed to restore face gallery file: " + this.backupFile);
+            }
+        }
+        if (this.tmpFile.exists()) {
+            // 还没有替换特征库文件，合并的结果不完整或者已经作废
+            this.tmpFile.delete();
+        }
+    }
+    /**
+     * 替换特征库文件，任何时刻磁盘上都有一个完整的特征库文件或者.bak
+     */
+    private void replaceGallery() throws IOException {
+        if (this.tmpFile.renameTo(this.file)) {
+            return;
+        }
+        // 不能直接覆盖已有文件的文件系统
+        this.backupFile.delete();
+        if (this.file.exists() && !this.file.renameTo(this.backupFile)) {
+            throw new IOException("failed to replace face gallery file: " + this.file);
+        }
+        if (!this.tmpFile.renameTo(this.file)) {
+            this.backupFile.renameTo(this.file);
+            throw new IOException("failed to replace face gallery file: " + this.file);
+        }
+        this.backupFile.delete();
+    }
+    /**
+     * 使用映射的特征库文件，调用者必须持有写锁
+     */
+    private void applyMapped(MappedGallery mapped) {
+        this.dim = mapped.dim;
+        this.generation = mapped.generation;
+        this.baseVectors = mapped.vectors;
+        this.baseKeyIds = mapped.keyIds;
+        this.baseCount = mapped.count;
+        this.baseDeleted.clear();
+        this.baseDeletedCount = 0;
+        this.baseIndexes.clear();
+        this.baseIndexes.putAll(mapped.indexes);
+    }
+    /**
+     * 映射特征库文件，读取keyId索引
+     */
+    private MappedGallery mapGallery() throws IOException {
+        MappedGallery mapped = new MappedGallery();
+        mapped.dim = this.dim;
+        if (!this.file.exists() || this.file.length() < HEADER_SIZE) {
+            return mapped;
+        }
+        RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("not a face gallery file: " + this.file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported face gallery version: " + version);
+            }
+            mapped.dim = header.getInt();
+            int count = header.getInt();
+            mapped.generation = header.getLong();
+            long vectorOffset = header.getLong();
+            long keyIndexOffset = header.getLong();
+            if (count > 0) {
+                MappedByteBuffer vectors = channel.map(FileChannel.MapMode.READ_ONLY, vectorOffset, (long) count * mapped.dim * 4);
+                mapped.vectors = vectors.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+                ByteBuffer keys = channel.map(FileChannel.MapMode.READ_ONLY, keyIndexOffset, channel.size() - keyIndexOffset)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                mapped.keyIds = new Object[count];
+                for (int i = 0; i < count; i++) {
+                    Object keyId = readKey(keys);
+                    mapped.keyIds[i] = keyId;
+                    mapped.indexes.put(keyId, i);
+                }
+            }
+            mapped.count = count;
+        } finally {
+            // 映射在通道关闭以后仍然有效
+            raf.close();
+        }
+        return mapped;
+    }
+    /**
+     * 重放日志，日志尾部不完整或校验失败的记录被截掉
+     */
+    private void replayLog() throws IOException {
+        this.logRecords = 0;
+        if (!this.logFile.exists()) {
+            return;
+        }
+        FileChannel channel = new RandomAccessFile(this.logFile, "rw").getChannel();
+        boolean replayed = false;
+        try {
+            this.replayLog(channel);
+            replayed = true;
+        } finally {
+            if (!replayed) {
+                channel.close();
+            }
+        }
+    }
+    /**
+     * 重放日志，出错时由调用者关闭日志通道
+     */
+    private void replayLog(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (channel.size() < LOG_HEADER_SIZE) {
+            // 创建日志时中断，还没有写入任何记录
+            channel.close();
+            return;
+        }
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != LOG_MAGIC || header.getInt() != VERSION) {
+            throw new IOException("not a face gallery log file: " + this.logFile);
+        }
+        int logDim = header.getInt();
+        long logGeneration = header.getLong();
+        if (logGeneration != this.generation) {
+            // 合并以后替换特征库文件成功、但清空日志之前中断时留下的旧日志，内容已经合并
+            channel.close();
+            return;
+        }
+        if (this.baseCount > 0 && logDim != this.dim) {
+            throw new IOException("dimension mismatch between gallery and log: " + logDim + " != " + this.dim);
+        }
+        this.dim = logDim;
+        ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, LOG_HEADER_SIZE, channel.size() - LOG_HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        float[] vector = new float[this.dim];
+        long end = LOG_HEADER_SIZE;
+        while (data.remaining() >= 8) {
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length <= 0 || length > data.remaining()) {
+                break;
+            }
+            byte[] body = new byte[length];
+            data.get(body);
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+            byte op = record.get();
+            Object keyId = readKey(record);
+            if (op == OP_PUT) {
+                record.asFloatBuffer().get(vector);
+                this.applyPut(keyId, vector);
+            } else {
+                this.applyRemove(keyId);
+            }
+            this.logRecords++;
+            end += 8 + length;
+        }
+        // 截掉不完整的尾部记录
+        channel.truncate(end);
+        this.logChannel = channel;
+        this.logPosition = end;
+    }
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            position += n;
+        }
+    }
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+    private static Object readKey(ByteBuffer buffer) throws IOException {
+        byte type = buffer.get();
+        if (type == KEY_STRING) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, UTF8);
+        } else if (type == KEY_INTEGER) {
+            return buffer.getInt();
+        } else if (type == KEY_LONG) {
+            return buffer.getLong();
+        }
+        throw new IOException("unknown keyId type: " + type);
+    }
+    private static byte[] keyBytes(Object keyId) {
+        ByteBuffer buffer;
+        if (keyId instanceof String) {
+            byte[] bytes = ((String) keyId).getBytes(UTF8);
+            buffer = ByteBuffer.allocate(5 + bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(KEY_STRING).putInt(bytes.length).put(bytes);
+        } else if (keyId instanceof Integer) {
+            buffer = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(KEY_INTEGER).putInt((Integer) keyId);
+        } else if (keyId instanceof Long) {
+            buffer = ByteBuffer.allocate(9).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(KEY_LONG).putLong((Long) keyId);
+        } else {
+            throw new IllegalArgumentException("unsupported keyId type: " + (keyId == null ? null : keyId.getClass().getName()));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * 调用者必须持有锁
+     */
+    private boolean contains(Object keyId) {
+        Integer row = this.baseIndexes.get(keyId);
+        if (row != null && !this.baseDeleted.get(row)) {
+            return true;
+        }
+        return this.delta.indexOf(keyId) >= 0;
+    }
+    private void applyPut(Object keyId, float[] vector) throws IOException {
+        Integer row = this.baseIndexes.get(keyId);
+        if (row != null && !this.baseDeleted.get(row)) {
+            this.baseDeleted.set(row);
+            this.baseDeletedCount++;
+        }
+        try {
+            this.delta.removeFaceFeature(keyId);
+            this.delta.registerFaceFeature(vectorFeature(keyId, vector));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+    private boolean applyRemove(Object keyId) throws IOException {
+        boolean removed = false;
+        Integer row = this.baseIndexes.get(keyId);
+        if (row != null && !this.baseDeleted.get(row)) {
+            this.baseDeleted.set(row);
+            this.baseDeletedCount++;
+            removed = true;
+        }
+        try {
+            removed |= this.delta.removeFaceFeature(keyId) != null;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        return removed;
+    }
+    private static UniFaceFeature vectorFeature(Object keyId, float[] vector) {
+        UniFaceFeature feature = new UniFaceFeature();
+        feature.setKeyId(keyId);
+        byte[] featureCode = new byte[vector.length * 4];
+        UniImageUtil.floatsToBytes(vector, featureCode);
+        feature.setFeatureCode(featureCode);
+        return feature;
+    }
+    /**
+     * 追加一条日志记录，调用者必须持有写锁
+     */
+    private void appendLog(byte op, Object keyId, float[] vector) throws IOException {
+        if (this.logChannel == null) {
+            this.resetLog();
+        }
+        byte[] key = keyBytes(keyId);
+        int length = 1 + key.length + (vector == null ? 0 : vector.length * 4);
+        ByteBuffer record = ByteBuffer.allocate(8 + length).order(ByteOrder.LITTLE_ENDIAN);
+        record.position(8);
+        record.put(op).put(key);
+        if (vector != null) {
+            for (float v : vector) {
+                record.putFloat(v);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        writeFully(this.logChannel, record, this.logPosition);
+        this.logPosition += 8 + length;
+        this.logRecords++;
+    }
+    /**
+     * 创建空的日志文件
+     */
+    private void resetLog() throws IOException {
+        if (this.logChannel != null) {
+            FileChannel old = this.logChannel;
+            this.logChannel = null;
+            old.close();
+        }
+        FileChannel channel = new RandomAccessFile(this.logFile, "rw").getChannel();
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOG_MAGIC).putInt(VERSION).putInt(this.dim).putLong(this.generation);
+        header.flip();
+        writeFully(channel, header, 0);
+        channel.force(true);
+        this.logChannel = channel;
+        this.logPosition = LOG_HEADER_SIZE;
+        this.logRecords = 0;
+    }
+    /**
+     * 日志记录数达到自动合并的阈值时通知后台合并线程，调用者必须持有updateLock
+     */
+    private void requestCompact() {
+        if (this.compactThreshold > 0 && this.logRecords >= this.compactThreshold) {
+            synchronized (this.compactSignal) {
+                this.compactRequested = true;
+                this.compactSignal.notifyAll();
+            }
+            this.compactThread.start();
+        }
+    }
+    /**
+     * 后台合并线程调用，合并期间的写入可能已经触发过合并
+     */
+    private void compactIfNeeded() throws IOException {
+        this.updateLock.lock();
+        try {
+            if (this.compactThreshold > 0 && this.logRecords >= this.compactThreshold) {
+                this.compactGallery();
+            }
+        } finally {
+            this.updateLock.unlock();
+        }
+    }
+
+    /**
+     * 搜索，调用者必须持有读锁
+     * @param query 归一化的目标向量
+     * @param k 最多返回的结果数
+     * @param cancelResult 用来检查是否被取消的搜索结果对象，可以为null
+     * @param searchCount 用来返回比对的特征数量
+     * @return 按相似度降序排列的搜索结果
+     */
+    private UniFaceSearchResult[] searchVector(float[] query, int k, UniFaceSearchResult cancelResult, int[] searchCount) {
+        int d = this.dim;
+        if (d > 0 && query.length != d) {
+            throw new IllegalArgumentException("dimension mismatch: " + query.length + " != " + d);
+        }
+        UniTopK baseTopK = new UniTopK(k);
+        FloatBuffer vs = this.baseVectors;
+        int count = 0;
+        float threshold = baseTopK.threshold();
+        for (int i = 0, off = 0; i < this.baseCount; i++, off += d) {
+            if ((i & 1023) == 0 && i > 0 && cancelResult != null && cancelResult.isCancelled()) {
+                break;
+            }
+            if (this.baseDeletedCount > 0 && this.baseDeleted.get(i)) {
+                continue;
+            }
+            // 映射缓冲区按绝对位置读取，不改变缓冲区状态，多个线程可以同时读取
+            float s0 = 0, s1 = 0;
+            int j = 0;
+            for (int n = d & ~1; j < n; j += 2) {
+                s0 += query[j] * vs.get(off + j);
+                s1 += query[j + 1] * vs.get(off + j + 1);
+            }
+            if (j < d) {
+                s0 += query[j] * vs.get(off + j);
+            }
+            float s = s0 + s1;
+            count++;
+            if (s > threshold && baseTopK.offer(i, s)) {
+                threshold = baseTopK.threshold();
+            }
+        }
+        UniTopK deltaTopK = new UniTopK(k);
+        count += this.delta.searchVector(query, deltaTopK, cancelResult);
+        searchCount[0] = count;
+        // 合并两部分的结果
+        int n = Math.min(k, baseTopK.size() + deltaTopK.size());
+        UniFaceSearchResult[] results = new UniFaceSearchResult[n];
+        for (int i = 0, bi = 0, di = 0; i < n; i++) {
+            UniFaceFeature feature = new UniFaceFeature();
+            float similar;
+            if (di >= deltaTopK.size() || (bi < baseTopK.size() && baseTopK.similarAt(bi) >= deltaTopK.similarAt(di))) {
+                feature.setKeyId(this.baseKeyIds[baseTopK.indexAt(bi)]);
+                similar = baseTopK.similarAt(bi++);
+            } else {
+                feature.setKeyId(this.delta.getKeyId(deltaTopK.indexAt(di)));
+                similar = deltaTopK.similarAt(di++);
+            }
+            results[i] = new UniFaceSearchResult(feature, similar);
+            results[i].setPass(similar >= this.passSimilar);
+            results[i].setSearchCount(count);
+            results[i].completed();
+        }
+        return results;
+    }
+
+    @Override
+    public UniFaceSearchResult search(UniFaceFeature feature, UniFaceSearchResult searchResult) throws Exception {
+        UniFaceSearchResult result = searchResult == null ? new UniFaceSearchResult() : searchResult;
+        try {
+            float[] query = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+            int[] searchCount = new int[1];
+            UniFaceSearchResult[] results;
+            this.lock.readLock().lock();
+            try {
+                results = this.searchVector(query, 1, result, searchCount);
+            } finally {
+                this.lock.readLock().unlock();
+            }
+            result.setSearchCount(searchCount[0]);
+            if (results.length > 0) {
+                result.setFeature(results[0].getFeature());
+                result.setSimilar(results[0].getSimilar());
+                result.setPass(results[0].getPass());
+            }
+        } catch (Exception e) {
+            result.setException(e);
+            if (searchResult == null) {
+                throw e;
+            }
+        } finally {
+            result.completed();
+        }
+        return result;
+    }
+    /**
+     * 搜索相似度最高的K个特征
+     * @param feature 目标人脸特征
+     * @param k 最多返回的结果数
+     * @return 按相似度降序排列的搜索结果，每个结果的特征对象只包含keyId
+     */
+    public UniFaceSearchResult[] search(UniFaceFeature feature, int k) {
+        float[] query = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+        this.lock.readLock().lock();
+        try {
+            return this.searchVector(query, k, null, new int[1]);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public UniFaceSearcher registerFaceFeature(UniFaceFeature feature) throws Exception {
+        Object keyId = feature.getKeyId();
+        keyBytes(keyId); // 检查keyId类型
+        float[] vector = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+        this.updateLock.lock();
+        this.lock.writeLock().lock();
+        try {
+            if (this.contains(keyId)) {
+                throw new IllegalArgumentException("keyId already registered: " + keyId);
+            }
+            this.checkDimension(vector);
+            this.appendLog(OP_PUT, keyId, vector);
+            this.applyPut(keyId, vector);
+            this.requestCompact();
+        } finally {
+            this.lock.writeLock().unlock();
+            this.updateLock.unlock();
+        }
+        return this;
+    }
+    private void checkDimension(float[] vector) throws IOException {
+        if (this.baseCount == 0 && this.delta.getFaceFeatureCount() == 0 && this.dim != vector.length) {
+            // 空库可以改变维数，日志头记录了维数，需要重建日志
+            this.dim = vector.length;
+            this.resetLog();
+        } else if (this.dim != vector.length) {
+            throw new IllegalArgumentException("dimension mismatch: " + vector.length + " != " + this.dim);
+        }
+    }
+
+    @Override
+    public UniFaceSearcher updateFaceFeature(UniFaceFeature feature) throws Exception {
+        Object keyId = feature.getKeyId();
+        float[] vector = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+        this.updateLock.lock();
+        this.lock.writeLock().lock();
+        try {
+            if (!this.contains(keyId)) {
+                throw new IllegalArgumentException("keyId not registered: " + keyId);
+            }
+            this.checkDimension(vector);
+            this.appendLog(OP_PUT, keyId, vector);
+            this.applyPut(keyId, vector);
+            this.requestCompact();
+        } finally {
+            this.lock.writeLock().unlock();
+            this.updateLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * @return 被删除的特征，只包含keyId和归一化以后的特征值
+     */
+    @Override
+    public UniFaceFeature removeFaceFeature(Object keyId) throws Exception {
+        this.updateLock.lock();
+        this.lock.writeLock().lock();
+        try {
+            float[] vector = this.vectorOf(keyId);
+            if (vector == null) {
+                return null;
+            }
+            this.appendLog(OP_REMOVE, keyId, null);
+            this.applyRemove(keyId);
+            this.requestCompact();
+            return vectorFeature(keyId, vector);
+        } finally {
+            this.lock.writeLock().unlock();
+            this.updateLock.unlock();
+        }
+    }
+    /**
+     * 获取keyId对应的向量，调用者必须持有锁
+     * @return 向量，不存在时返回null
+     */
+    private float[] vectorOf(Object keyId) {
+        Integer row = this.baseIndexes.get(keyId);
+        if (row != null && !this.baseDeleted.get(row)) {
+            float[] vector = new float[this.dim];
+            for (int i = 0, off = row * this.dim; i < this.dim; i++) {
+                vector[i] = this.baseVectors.get(off + i);
+            }
+            return vector;
+        }
+        int index = this.delta.indexOf(keyId);
+        if (index >= 0) {
+            float[] vector = new float[this.dim];
+            this.delta.getVector(index, vector);
+            return vector;
+        }
+        return null;
+    }
+
+    @Override
+    public int getFaceFeatureCount() {
+        this.lock.readLock().lock();
+        try {
+            return this.baseCount - this.baseDeletedCount + this.delta.getFaceFeatureCount();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    /**
+     * @return 日志中尚未合并的记录数
+     */
+    public int getLogRecordCount() {
+        this.lock.readLock().lock();
+        try {
+            return this.logRecords;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    /**
+     * @return 特征库文件的版本代数，每次合并加1
+     */
+    public long getGeneration() {
+        this.lock.readLock().lock();
+        try {
+            return this.generation;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 合并特征库文件和日志：写入新的特征库文件，替换原文件，清空日志<br>
+     * 写入新文件期间注册、更新、删除等待，搜索照常进行
+     * @return 当前对象
+     * @throws IOException 写入文件出错，出错时原特征库文件和日志保持不变
+     */
+    public UniMappedFaceGallery compact() throws IOException {
+        this.updateLock.lock();
+        try {
+            this.compactGallery();
+        } finally {
+            this.updateLock.unlock();
+        }
+        return this;
+    }
+    /**
+     * 合并，调用者必须持有updateLock：内存中的特征库只会被合并自己修改，写文件时不需要持有读写锁
+     */
+    private void compactGallery() throws IOException {
+        File tmp = this.tmpFile;
+        int deltaCount = this.delta.getFaceFeatureCount();
+        int count = this.baseCount - this.baseDeletedCount + deltaCount;
+        long vectorBytes = (long) count * this.dim * 4;
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            long position = HEADER_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            float[] vector = new float[this.dim];
+            Object[] keyIds = new Object[count];
+            int n = 0;
+            for (int i = 0; i < this.baseCount; i++) {
+                if (this.baseDeleted.get(i)) {
+                    continue;
+                }
+                for (int j = 0, off = i * this.dim; j < this.dim; j++) {
+                    vector[j] = this.baseVectors.get(off + j);
+                }
+                position = writeVector(channel, buffer, vector, position);
+                keyIds[n++] = this.baseKeyIds[i];
+            }
+            for (int i = 0; i < deltaCount; i++) {
+                this.delta.getVector(i, vector);
+                position = writeVector(channel, buffer, vector, position);
+                keyIds[n++] = this.delta.getKeyId(i);
+            }
+            position = flush(channel, buffer, position);
+            long keyIndexOffset = position;
+            for (Object keyId : keyIds) {
+                byte[] key = keyBytes(keyId);
+                if (buffer.remaining() < key.length) {
+                    position = flush(channel, buffer, position);
+                }
+                if (buffer.remaining() < key.length) {
+                    position = writeBytes(channel, ByteBuffer.wrap(key), position);
+                } else {
+                    buffer.put(key);
+                }
+            }
+            flush(channel, buffer, position);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(this.dim).putInt(count)
+                    .putLong(this.generation + 1).putLong(HEADER_SIZE).putLong(keyIndexOffset);
+            header.clear();
+            writeFully(channel, header, 0);
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+        if (HEADER_SIZE + vectorBytes > tmp.length()) {
+            throw new IOException("failed to write face gallery file: " + tmp);
+        }
+        // 先替换特征库文件再清空日志：如果中间中断，重新打开时旧日志的代数与新特征库文件不一致，会被忽略
+        this.replaceGallery();
+        MappedGallery mapped = this.mapGallery();
+        // 正在进行的搜索继续使用原来的映射，切换时才持有写锁
+        this.lock.writeLock().lock();
+        try {
+            this.delta = new UniFlatFaceSearcher(this.passSimilar);
+            this.applyMapped(mapped);
+            this.resetLog();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+    private static long writeVector(FileChannel channel, ByteBuffer buffer, float[] vector, long position) throws IOException {
+        if (buffer.remaining() < vector.length * 4) {
+            position = flush(channel, buffer, position);
+        }
+        for (float v : vector) {
+            buffer.putFloat(v);
+        }
+        return position;
+    }
+    private static long flush(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        position = writeBytes(channel, buffer, position);
+        buffer.clear();
+        return position;
+    }
+    private static long writeBytes(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+    /**
+     * 将日志写入存储设备
+     * @throws IOException 写入出错
+     */
+    public void sync() throws IOException {
+        this.lock.writeLock().lock();
+        try {
+            if (this.logChannel != null) {
+                this.logChannel.force(false);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+    /**
+     * 停止后台合并线程并关闭日志文件，关闭以后不能再使用当前对象
+     * @throws IOException 写入出错
+     */
+    public void close() throws IOException {
+        this.compactThread.stop();
+        this.updateLock.lock();
+        this.lock.writeLock().lock();
+        try {
+            if (this.logChannel != null) {
+                this.logChannel.force(false);
+                this.logChannel.close();
+                this.logChannel = null;
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+            this.updateLock.unlock();
+        }
+    }
+}
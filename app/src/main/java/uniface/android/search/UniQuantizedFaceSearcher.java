@@ -0,0 +1,423 @@
+package uniface.android.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import uniface.UniFaceFeature;
+import uniface.UniFaceSearchResult;
+import uniface.UniFaceSearcher;
+import uniimage.util.UniImageUtil;
+
+/**
+ * int8量化存储的人脸特征库搜索器<br>
+ * 1. 每个归一化的特征向量按自身的最大分量对称量化为int8，加一个浮点缩放系数，扫描的数据量约为浮点存储的1/4；<br>
+ * 2. 搜索时目标向量也量化为int8，先用整数点积对全库打分，取近似相似度最高的reRankCount个候选，
+ * 再用UniImageUtil.cosDistance()以原始精度重新计算相似度排序，结果的相似度是精确值；<br>
+ * 3. 原始精度的向量只在重排时按需读取，可以保存在内存中，也可以保存在文件中（通过exactFile指定），
+ * 保存在文件中时常驻内存的只有量化码和缩放系数；<br>
+ * 4. reRankCount为0时不重排，也不保存原始精度的向量，结果的相似度是量化近似值。
+ */
+public class UniQuantizedFaceSearcher implements UniFaceSearcher {
+    private final static int CANCEL_CHECK_INTERVAL = 1024;
+    private final float passSimilar;
+    private final int reRankCount;
+    private final File exactFile;
+    private FileChannel exactChannel;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int dim;
+    private byte[] codes = new byte[0];
+    private float[] scales = new float[0];
+    private float[] exactVectors; // 原始精度的向量，exactFile为null且需要重排时使用
+    private Object[] keyIds = new Object[0];
+    private int count;
+    private final Map<Object, Integer> indexes = new HashMap<Object, Integer>();
+
+    /**
+     * 原始精度的向量保存在内存中
+     * @param passSimilar 判定为匹配通过的最低相似度
+     * @param reRankCount 以原始精度重排的候选数量，0表示不重排
+     */
+    public UniQuantizedFaceSearcher(float passSimilar, int reRankCount) {
+        this(passSimilar, reRankCount, null);
+    }
+    /**
+     * @param passSimilar 判定为匹配通过的最低相似度
+     * @param reRankCount 以原始精度重排的候选数量，0表示不重排
+     * @param exactFile 保存原始精度向量的文件，null表示保存在内存中；文件内容会被覆盖
+     */
+    public UniQuantizedFaceSearcher(float passSimilar, int reRankCount, File exactFile) {
+        this.passSimilar = passSimilar;
+        this.reRankCount = reRankCount < 0 ? 0 : reRankCount;
+        this.exactFile = this.reRankCount > 0 ? exactFile : null;
+        if (this.reRankCount > 0 && exactFile == null) {
+            this.exactVectors = new float[0];
+        }
+    }
+    public float getPassSimilar() {
+        return this.passSimilar;
+    }
+    public int getReRankCount() {
+        return this.reRankCount;
+    }
+
+    /**
+     * 将归一化的向量量化为int8
+     * @param vector 归一化的向量
+     * @param codes 量化码数组
+     * @param offset 量化码的起始位置
+     * @return 缩放系数，原始分量约等于量化码乘以缩放系数
+     */
+    static float quantize(float[] vector, byte[] codes, int offset) {
+        float max = 0;
+        for (float v : vector) {
+            float a = v < 0 ? -v : v;
+            if (a > max) {
+                max = a;
+            }
+        }
+        if (max == 0) {
+            for (int i = 0; i < vector.length; i++) {
+                codes[offset + i] = 0;
+            }
+            return 0;
+        }
+        float r = 127f / max;
+        for (int i = 0; i < vector.length; i++) {
+            codes[offset + i] = (byte) Math.round(vector[i] * r);
+        }
+        return max / 127f;
+    }
+    /**
+     * 两组int8量化码的整数点积
+     */
+    static int dot(byte[] a, int aOffset, byte[] b, int bOffset, int dim) {
+        int s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int n = dim & ~3; i < n; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < dim; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return s0 + s1 + s2 + s3;
+    }
+
+    private void writeExact(int index, float[] vector) throws IOException {
+        if (this.exactVectors != null) {
+            System.arraycopy(vector, 0, this.exactVectors, index * this.dim, this.dim);
+        } else if (this.exactFile != null) {
+            if (this.exactChannel == null) {
+                this.exactChannel = new RandomAccessFile(this.exactFile, "rw").getChannel();
+                this.exactChannel.truncate(0);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(this.dim * 4).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asFloatBuffer().put(vector);
+            long position = (long) index * this.dim * 4;
+            while (buffer.hasRemaining()) {
+                position += this.exactChannel.write(buffer, position);
+            }
+        }
+    }
+    private void readExact(int index, float[] vector, ByteBuffer buffer) throws IOException {
+        if (this.exactVectors != null) {
+            System.arraycopy(this.exactVectors, index * this.dim, vector, 0, this.dim);
+            return;
+        }
+        buffer.clear();
+        long position = (long) index * this.dim * 4;
+        while (buffer.hasRemaining()) {
+            int n = this.exactChannel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("unexpected end of exact vector file");
+            }
+            position += n;
+        }
+        buffer.flip();
+        buffer.asFloatBuffer().get(vector);
+    }
+
+    /**
+     * 搜索，调用者必须持有读锁
+     * @return 比对的特征数量
+     */
+    private int searchIndexes(float[] query, UniTopK topK, UniFaceSearchResult cancelResult) throws IOException {
+        int n = this.count;
+        int d = this.dim;
+        if (n == 0) {
+            return 0;
+        }
+        if (query.length != d) {
+            throw new IllegalArgumentException("dimension mismatch: " + query.length + " != " + d);
+        }
+        byte[] q = new byte[d];
+        float qs = quantize(query, q, 0);
+        boolean reRank = this.reRankCount > 0;
+        UniTopK candidates = reRank ? new UniTopK(Math.max(this.reRankCount, topK.capacity())) : topK;
+        byte[] cs = this.codes;
+        float[] ss = this.scales;
+        float threshold = candidates.threshold();
+        int searchCount = n;
+        for (int i = 0, off = 0; i < n; i++, off += d) {
+            if (cancelResult != null && (i % CANCEL_CHECK_INTERVAL) == 0 && i > 0 && cancelResult.isCancelled()) {
+                searchCount = i;
+                break;
+            }
+            float s = dot(q, 0, cs, off, d) * qs * ss[i];
+            if (s > threshold && candidates.offer(i, s)) {
+                threshold = candidates.threshold();
+            }
+        }
+        if (reRank) {
+            // 以原始精度重新计算候选的相似度
+            float[] exact = new float[d];
+            ByteBuffer buffer = this.exactVectors == null ? ByteBuffer.allocate(d * 4).order(ByteOrder.LITTLE_ENDIAN) : null;
+            for (int i = 0; i < candidates.size(); i++) {
+                int index = candidates.indexAt(i);
+                this.readExact(index, exact, buffer);
+                topK.offer(index, UniImageUtil.cosDistance(query, exact));
+            }
+        }
+        return searchCount;
+    }
+
+    @Override
+    public UniFaceSearchResult search(UniFaceFeature feature, UniFaceSearchResult searchResult) throws Exception {
+        UniFaceSearchResult result = searchResult == null ? new UniFaceSearchResult() : searchResult;
+        try {
+            float[] query = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+            UniTopK topK = new UniTopK(1);
+            this.lock.readLock().lock();
+            try {
+                result.setSearchCount(this.searchIndexes(query, topK, result));
+                if (topK.size() > 0) {
+                    result.setFeature(this.keyFeature(topK.indexAt(0)));
+                    result.setSimilar(topK.similarAt(0));
+                    result.setPass(topK.similarAt(0) >= this.passSimilar);
+                }
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        } catch (Exception e) {
+            result.setException(e);
+            if (searchResult == null) {
+                throw e;
+            }
+        } finally {
+            result.completed();
+        }
+        return result;
+    }
+    /**
+     * 搜索相似度最高的K个特征
+     * @param feature 目标人脸特征
+     * @param k 最多返回的结果数
+     * @return 按相似度降序排列的搜索结果，每个结果的特征对象只包含keyId
+     * @throws IOException 读取原始精度向量文件出错
+     */
+    public UniFaceSearchResult[] search(UniFaceFeature feature, int k) throws IOException {
+        float[] query = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+        UniTopK topK = new UniTopK(k);
+        UniFaceSearchResult[] results;
+        this.lock.readLock().lock();
+        try {
+            int searchCount = this.searchIndexes(query, topK, null);
+            results = new UniFaceSearchResult[topK.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = new UniFaceSearchResult(this.keyFeature(topK.indexAt(i)), topK.similarAt(i));
+                results[i].setPass(topK.similarAt(i) >= this.passSimilar);
+                results[i].setSearchCount(searchCount);
+                results[i].completed();
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        return results;
+    }
+    private UniFaceFeature keyFeature(int index) {
+        UniFaceFeature feature = new UniFaceFeature();
+        feature.setKeyId(this.keyIds[index]);
+        return feature;
+    }
+
+    @Override
+    public UniFaceSearcher registerFaceFeature(UniFaceFeature feature) throws Exception {
+        Object keyId = feature.getKeyId();
+        if (keyId == null) {
+            throw new IllegalArgumentException("keyId is null");
+        }
+        float[] vector = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+        this.lock.writeLock().lock();
+        try {
+            if (this.indexes.containsKey(keyId)) {
+                throw new IllegalArgumentException("keyId already registered: " + keyId);
+            }
+            if (this.count == 0 && this.dim != vector.length) {
+                this.dim = vector.length;
+                this.codes = new byte[this.keyIds.length * this.dim];
+                if (this.exactVectors != null) {
+                    this.exactVectors = new float[this.keyIds.length * this.dim];
+                }
+            } else if (this.dim != vector.length) {
+                throw new IllegalArgumentException("dimension mismatch: " + vector.length + " != " + this.dim);
+            }
+            if (this.count >= this.keyIds.length) {
+                this.grow();
+            }
+            int index = this.count;
+            this.writeExact(index, vector);
+            this.scales[index] = quantize(vector, this.codes, index * this.dim);
+            this.keyIds[index] = keyId;
+            this.indexes.put(keyId, index);
+            this.count++;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        return this;
+    }
+    private void grow() {
+        int capacity = this.keyIds.length < 16 ? 16 : this.keyIds.length + (this.keyIds.length >> 1);
+        byte[] cs = new byte[capacity * this.dim];
+        System.arraycopy(this.codes, 0, cs, 0, this.count * this.dim);
+        float[] ss = new float[capacity];
+        System.arraycopy(this.scales, 0, ss, 0, this.count);
+        Object[] ks = new Object[capacity];
+        System.arraycopy(this.keyIds, 0, ks, 0, this.count);
+        if (this.exactVectors != null) {
+            float[] es = new float[capacity * this.dim];
+            System.arraycopy(this.exactVectors, 0, es, 0, this.count * this.dim);
+            this.exactVectors = es;
+        }
+        this.codes = cs;
+        this.scales = ss;
+        this.keyIds = ks;
+    }
+
+    @Override
+    public UniFaceSearcher updateFaceFeature(UniFaceFeature feature) throws Exception {
+        float[] vector = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+        this.lock.writeLock().lock();
+        try {
+            Integer index = this.indexes.get(feature.getKeyId());
+            if (index == null) {
+                throw new IllegalArgumentException("keyId not registered: " + feature.getKeyId());
+            }
+            if (this.dim != vector.length) {
+                throw new IllegalArgumentException("dimension mismatch: " + vector.length + " != " + this.dim);
+            }
+            this.writeExact(index, vector);
+            this.scales[index] = quantize(vector, this.codes, index * this.dim);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    /**
+     * 删除特征，最后一个特征移入被删除的位置，保持存储连续
+     * @return 被删除的特征，只包含keyId；保存了原始精度向量时还包含归一化以后的特征值
+     */
+    @Override
+    public UniFaceFeature removeFaceFeature(Object keyId) throws Exception {
+        this.lock.writeLock().lock();
+        try {
+            Integer index = this.indexes.remove(keyId);
+            if (index == null) {
+                return null;
+            }
+            UniFaceFeature removed = this.keyFeature(index);
+            int last = --this.count;
+            if (this.reRankCount > 0) {
+                float[] vector = new float[this.dim];
+                ByteBuffer buffer = ByteBuffer.allocate(this.dim * 4).order(ByteOrder.LITTLE_ENDIAN);
+                this.readExact(index, vector, buffer);
+                byte[] featureCode = new byte[this.dim * 4];
+                UniImageUtil.floatsToBytes(vector, featureCode);
+                removed.setFeatureCode(featureCode);
+                if (index != last) {
+                    this.readExact(last, vector, buffer);
+                    this.writeExact(index, vector);
+                }
+            }
+            if (index != last) {
+                System.arraycopy(this.codes, last * this.dim, this.codes, index * this.dim, this.dim);
+                this.scales[index] = this.scales[last];
+                this.keyIds[index] = this.keyIds[last];
+                this.indexes.put(this.keyIds[index], index);
+            }
+            this.keyIds[last] = null;
+            return removed;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int getFaceFeatureCount() throws Exception {
+        this.lock.readLock().lock();
+        try {
+            return this.count;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    /**
+     * @return 常驻内存并参与全库扫描的量化码和缩放系数占用的字节数
+     */
+    public long getCodeMemoryBytes() {
+        this.lock.readLock().lock();
+        try {
+            return (long) this.count * this.dim + (long) this.count * 4;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    /**
+     * @return 内存中原始精度向量占用的字节数，保存在文件中或不重排时为0
+     */
+    public long getExactMemoryBytes() {
+        this.lock.readLock().lock();
+        try {
+            return this.exactVectors == null ? 0 : (long) this.count * this.dim * 4;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    /**
+     * @return 与浮点存储（UniFlatFaceSearcher）相比节省的内存字节数
+     */
+    public long getSavedMemoryBytes() {
+        this.lock.readLock().lock();
+        try {
+            long floatBytes = (long) this.count * this.dim * 4;
+            long usedBytes = (long) this.count * this.dim + (long) this.count * 4
+                    + (this.exactVectors == null ? 0 : floatBytes);
+            return floatBytes - usedBytes;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+    /**
+     * 关闭原始精度向量文件，关闭以后不能再使用当前搜索器
+     */
+    public void close() throws IOException {
+        this.lock.writeLock().lock();
+        try {
+            if (this.exactChannel != null) {
+                this.exactChannel.close();
+                this.exactChannel = null;
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,620 @@
+package uniface.android.search;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import thread.WhileThread;
+import uniface.UniFaceFeature;
+import uniface.UniFaceSearchResult;
+import uniface.UniFaceSearcher;
+import uniimage.util.UniImageUtil;
+
+/**
+ * 快照隔离的人脸特征库搜索器，注册、更新、删除不阻塞搜索，搜索也不阻塞写入<br>
+ * UniFaceParallelSearcher的注册、更新、删除与搜索争用同一个引擎锁，搜索扫描分片期间写入只能等待，反之亦然；
+ * clear()还要停止并重建线程。这里把特征库组织为不可变的快照：<br>
+ * 1. 特征向量按注册顺序追加到定长的特征段中，当前段写满以后封存并新建一段，已发布的槽位不再修改；<br>
+ * 2. 写入在写锁内追加向量、更新keyId索引，然后以一次volatile写发布新的快照，快照记录各段可见的槽位数和删除标记；<br>
+ * 3. 搜索读取一次当前快照，此后只扫描快照中可见的槽位，不加任何锁，期间发布的新快照不影响正在进行的搜索；<br>
+ * 4. 删除只在快照中设置删除标记（墓碑），更新是删除旧槽位并追加新向量，两者在同一个快照中发布；<br>
+ * 5. 封存段的删除比例达到mergeDeletedRatio时，后台合并线程把稀疏的封存段中仍然有效的特征复制为紧凑的新段，
+ * 合并期间写入照常进行，发布合并结果时补上合并期间新增的删除标记，使扫描保持连续。<br>
+ * 相似度是余弦相似度，与UniFlatFaceSearcher一致。
+ */
+public class UniSnapshotFaceSearcher implements UniFaceSearcher {
+    private final static int CANCEL_CHECK_INTERVAL = 1024; // 每扫描多少个特征检查一次是否被取消
+    public final static int DEFAULT_SEGMENT_CAPACITY = 4096;
+    public final static float DEFAULT_MERGE_DELETED_RATIO = 0.25f;
+
+    /**
+     * 定长的特征段，已发布的槽位不再修改，搜索线程可以不加锁地读取
+     */
+    private static class Segment {
+        final float[] vectors;
+        final Object[] keyIds;
+        Segment(int capacity, int dim) {
+            this.vectors = new float[capacity * dim];
+            this.keyIds = new Object[capacity];
+        }
+    }
+    /**
+     * 特征在段中的位置，只在写锁内读写
+     */
+    private static class Location {
+        final Segment segment;
+        final int slot;
+        Location(Segment segment, int slot) {
+            this.segment = segment;
+            this.slot = slot;
+        }
+    }
+    /**
+     * 不可变的特征库快照，数组在发布以后不再修改，修改时复制
+     */
+    private static class Snapshot {
+        final int dim;
+        final Segment[] segments;
+        final int[] counts; // 各段可见的槽位数
+        final long[][] deleted; // 各段的删除标记，null表示没有删除
+        final int[] deletedCounts;
+        final int liveCount;
+        Snapshot(int dim, Segment[] segments, int[] counts, long[][] deleted, int[] deletedCounts, int liveCount) {
+            this.dim = dim;
+            this.segments = segments;
+            this.counts = counts;
+            this.deleted = deleted;
+            this.deletedCounts = deletedCounts;
+            this.liveCount = liveCount;
+        }
+        int indexOf(Segment segment) {
+            for (int i = 0; i < this.segments.length; i++) {
+                if (this.segments[i] == segment) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        boolean isDeleted(int segment, int slot) {
+            long[] bits = this.deleted[segment];
+            return bits != null && (bits[slot >> 6] & (1L << slot)) != 0;
+        }
+    }
+    /**
+     * 在写锁内修改的快照副本，commit()时生成新的不可变快照
+     */
+    private static class SnapshotBuilder {
+        final int dim;
+        final List<Segment> segments = new ArrayList<Segment>();
+        final List<Integer> counts = new ArrayList<Integer>();
+        final List<long[]> deleted = new ArrayList<long[]>();
+        final List<Integer> deletedCounts = new ArrayList<Integer>();
+        int liveCount;
+        private boolean[] copied; // 删除标记是否已经复制，复制以后才能修改
+        SnapshotBuilder(Snapshot snapshot) {
+            this.dim = snapshot.dim;
+            for (int i = 0; i < snapshot.segments.length; i++) {
+                this.segments.add(snapshot.segments[i]);
+                this.counts.add(snapshot.counts[i]);
+                this.deleted.add(snapshot.deleted[i]);
+                this.deletedCounts.add(snapshot.deletedCounts[i]);
+            }
+            this.liveCount = snapshot.liveCount;
+            this.copied = new boolean[snapshot.segments.length];
+        }
+        void add(int index, Segment segment, int count, long[] deleted, int deletedCount) {
+            this.segments.add(index, segment);
+            this.counts.add(index, count);
+            this.deleted.add(index, deleted);
+            this.deletedCounts.add(index, deletedCount);
+            boolean[] copied = new boolean[this.copied.length + 1];
+            System.arraycopy(this.copied, 0, copied, 0, index);
+            System.arraycopy(this.copied, index, copied, index + 1, this.copied.length - index);
+            copied[index] = deleted != null;
+            this.copied = copied;
+        }
+        void remove(int index) {
+            this.segments.remove(index);
+            this.counts.remove(index);
+            this.deleted.remove(index);
+            this.deletedCounts.remove(index);
+            boolean[] copied = new boolean[this.copied.length - 1];
+            System.arraycopy(this.copied, 0, copied, 0, index);
+            System.arraycopy(this.copied, index + 1, copied, index, copied.length - index);
+            this.copied = copied;
+        }
+        void delete(int index, int slot, int capacity) {
+            long[] bits = this.deleted.get(index);
+            if (bits == null) {
+                bits = new long[(capacity + 63) >> 6];
+            } else if (!this.copied[index]) {
+                bits = bits.clone();
+            }
+            this.copied[index] = true;
+            this.deleted.set(index, bits);
+            bits[slot >> 6] |= 1L << slot;
+            this.deletedCounts.set(index, this.deletedCounts.get(index) + 1);
+            this.liveCount--;
+        }
+        Snapshot commit() {
+            int n = this.segments.size();
+            int[] counts = new int[n];
+            int[] deletedCounts = new int[n];
+            for (int i = 0; i < n; i++) {
+                counts[i] = this.counts.get(i);
+                deletedCounts[i] = this.deletedCounts.get(i);
+            }
+            return new Snapshot(this.dim, this.segments.toArray(new Segment[n]), counts,
+                    this.deleted.toArray(new long[n][]), deletedCounts, this.liveCount);
+        }
+    }
+
+    private final float passSimilar;
+    private final int segmentCapacity;
+    private final float mergeDeletedRatio;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile Snapshot snapshot = new Snapshot(0, new Segment[0], new int[0], new long[0][], new int[0], 0);
+    // 以下字段只在写锁内读写
+    private Segment active; // 当前追加的段，总是快照中的最后一段
+    private final Map<Object, Location> indexes = new HashMap<Object, Location>();
+    private final Object mergeSignal = new Object();
+    private boolean mergeRequested;
+    private boolean mergeStopped;
+    private long mergeCount;
+    private final WhileThread mergeThread = new WhileThread() {
+        @Override
+        public void run() {
+            Thread.currentThread().setName("SnapshotMergeThread_" + Thread.currentThread().getId());
+            while (super.running()) {
+                synchronized (UniSnapshotFaceSearcher.this.mergeSignal) {
+                    // 在同一个监视器内检查停止标记再等待，不会错过stopping()的通知
+                    if (UniSnapshotFaceSearcher.this.mergeStopped) {
+                        break;
+                    }
+                    if (!UniSnapshotFaceSearcher.this.mergeRequested) {
+                        try {
+                            UniSnapshotFaceSearcher.this.mergeSignal.wait();
+                        } catch (InterruptedException e) {
+                        }
+                        continue;
+                    }
+                    UniSnapshotFaceSearcher.this.mergeRequested = false;
+                }
+                while (super.running() && UniSnapshotFaceSearcher.this.merge()) {
+                    // 合并结果可能又产生可以合并的稀疏段
+                }
+            }
+        }
+        @Override
+        protected void stopping() {
+            synchronized (UniSnapshotFaceSearcher.this.mergeSignal) {
+                UniSnapshotFaceSearcher.this.mergeStopped = true;
+                UniSnapshotFaceSearcher.this.mergeSignal.notifyAll();
+            }
+        }
+        @Override
+        protected void pausing() {
+        }
+    };
+
+    /**
+     * 使用默认的段容量和合并阈值，启动后台合并线程，不再使用时必须调用close()停止
+     * @param passSimilar 判定为匹配通过的最低相似度
+     */
+    public UniSnapshotFaceSearcher(float passSimilar) {
+        this(passSimilar, DEFAULT_SEGMENT_CAPACITY, DEFAULT_MERGE_DELETED_RATIO);
+    }
+    /**
+     * @param passSimilar 判定为匹配通过的最低相似度
+     * @param segmentCapacity 每个特征段的容量，通常取数千
+     * @param mergeDeletedRatio 封存段中被删除的特征达到这个比例时在后台合并，不大于0时不启动后台合并线程，只能调用merge()合并；
+     * 大于0时启动后台合并线程，不再使用时必须调用close()停止
+     */
+    public UniSnapshotFaceSearcher(float passSimilar, int segmentCapacity, float mergeDeletedRatio) {
+        this.passSimilar = passSimilar;
+        this.segmentCapacity = segmentCapacity < 64 ? 64 : segmentCapacity;
+        this.mergeDeletedRatio = mergeDeletedRatio;
+        if (mergeDeletedRatio > 0) {
+            this.mergeThread.start();
+        }
+    }
+    public float getPassSimilar() {
+        return this.passSimilar;
+    }
+    public int getSegmentCapacity() {
+        return this.segmentCapacity;
+    }
+    /**
+     * @return 当前快照中的特征段数量
+     */
+    public int getSegmentCount() {
+        return this.snapshot.segments.length;
+    }
+    /**
+     * @return 当前快照中已被删除但还没有合并掉的槽位数量
+     */
+    public int getDeletedCount() {
+        int deleted = 0;
+        for (int count : this.snapshot.deletedCounts) {
+            deleted += count;
+        }
+        return deleted;
+    }
+    /**
+     * @return 已完成的合并次数
+     */
+    public long getMergeCount() {
+        this.writeLock.lock();
+        try {
+            return this.mergeCount;
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    @Override
+    public UniFaceSearchResult search(UniFaceFeature feature, UniFaceSearchResult searchResult) throws Exception {
+        UniFaceSearchResult result = searchResult == null ? new UniFaceSearchResult() : searchResult;
+        try {
+            float[] query = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+            UniTopK topK = new UniTopK(1);
+            Snapshot snapshot = this.snapshot;
+            result.setSearchCount(this.scan(snapshot, query, topK, result));
+            if (topK.size() > 0) {
+                result.setFeature(this.keyFeature(snapshot, topK.indexAt(0)));
+                result.setSimilar(topK.similarAt(0));
+                result.setPass(topK.similarAt(0) >= this.passSimilar);
+            }
+        } catch (Exception e) {
+            result.setException(e);
+            if (searchResult == null) {
+                throw e;
+            }
+        } finally {
+            result.completed();
+        }
+        return result;
+    }
+    /**
+     * 搜索相似度最高的K个特征
+     * @param feature 目标人脸特征
+     * @param k 最多返回的结果数
+     * @return 按相似度降序排列的搜索结果，每个结果的特征对象只包含keyId
+     */
+    public UniFaceSearchResult[] search(UniFaceFeature feature, int k) {
+        float[] query = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+        UniTopK topK = new UniTopK(k);
+        Snapshot snapshot = this.snapshot;
+        int searchCount = this.scan(snapshot, query, topK, null);
+        UniFaceSearchResult[] results = new UniFaceSearchResult[topK.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = new UniFaceSearchResult(this.keyFeature(snapshot, topK.indexAt(i)), topK.similarAt(i));
+            results[i].setPass(topK.similarAt(i) >= this.passSimilar);
+            results[i].setSearchCount(searchCount);
+            results[i].completed();
+        }
+        return results;
+    }
+    /**
+     * 顺序扫描快照中所有可见且未删除的槽位，topK中的索引为段序号 * 段容量 + 槽位
+     * @return 比对的特征数量
+     */
+    private int scan(Snapshot snapshot, float[] query, UniTopK topK, UniFaceSearchResult cancelResult) {
+        int d = snapshot.dim;
+        if (snapshot.liveCount == 0) {
+            return 0;
+        }
+        if (query.length != d) {
+            throw new IllegalArgumentException("dimension mismatch: " + query.length + " != " + d);
+        }
+        float threshold = topK.threshold();
+        int searchCount = 0;
+        for (int s = 0; s < snapshot.segments.length; s++) {
+            float[] vs = snapshot.segments[s].vectors;
+            long[] deleted = snapshot.deleted[s];
+            int n = snapshot.counts[s];
+            int base = s * this.segmentCapacity;
+            for (int i = 0, off = 0; i < n; i++, off += d) {
+                if (deleted != null && (deleted[i >> 6] & (1L << i)) != 0) {
+                    continue;
+                }
+                if (cancelResult != null && (searchCount % CANCEL_CHECK_INTERVAL) == 0 && searchCount > 0 && cancelResult.isCancelled()) {
+                    return searchCount;
+                }
+                searchCount++;
+                float similar = UniFaceVectorUtil.dot(query, 0, vs, off, d);
+                if (similar > threshold && topK.offer(base + i, similar)) {
+                    threshold = topK.threshold();
+                }
+            }
+        }
+        return searchCount;
+    }
+    /**
+     * 创建只包含keyId的轻量特征对象作为搜索结果
+     */
+    private UniFaceFeature keyFeature(Snapshot snapshot, int index) {
+        UniFaceFeature feature = new UniFaceFeature();
+        feature.setKeyId(snapshot.segments[index / this.segmentCapacity].keyIds[index % this.segmentCapacity]);
+        return feature;
+    }
+
+    @Override
+    public UniFaceSearcher registerFaceFeature(UniFaceFeature feature) throws Exception {
+        return this.registerFaceFeatures(new UniFaceFeature[] {feature});
+    }
+    /**
+     * 批量注册，所有特征在同一个快照中发布，用于批量导入
+     * @param features 人脸特征，keyId不能为null也不能重复
+     * @return 当前对象
+     */
+    public UniSnapshotFaceSearcher registerFaceFeatures(UniFaceFeature[] features) {
+        float[][] vectors = new float[features.length][];
+        for (int i = 0; i < features.length; i++) {
+            if (features[i].getKeyId() == null) {
+                throw new IllegalArgumentException("keyId is null");
+            }
+            vectors[i] = UniFaceVectorUtil.toNormalizedVector(features[i].getFeatureCode(), null);
+        }
+        this.writeLock.lock();
+        try {
+            Snapshot current = this.snapshot;
+            int dim = current.liveCount == 0 && current.segments.length == 0 && vectors.length > 0 ? vectors[0].length : current.dim;
+            Map<Object, Boolean> batchKeys = new HashMap<Object, Boolean>();
+            for (int i = 0; i < features.length; i++) {
+                Object keyId = features[i].getKeyId();
+                if (this.indexes.containsKey(keyId) || batchKeys.put(keyId, Boolean.TRUE) != null) {
+                    throw new IllegalArgumentException("keyId already registered: " + keyId);
+                }
+                if (vectors[i].length != dim) {
+                    throw new IllegalArgumentException("dimension mismatch: " + vectors[i].length + " != " + dim);
+                }
+            }
+            SnapshotBuilder builder = new SnapshotBuilder(dim == current.dim ? current
+                    : new Snapshot(dim, current.segments, current.counts, current.deleted, current.deletedCounts, current.liveCount));
+            for (int i = 0; i < features.length; i++) {
+                this.append(builder, features[i].getKeyId(), vectors[i]);
+            }
+            this.snapshot = builder.commit();
+        } finally {
+            this.writeLock.unlock();
+        }
+        return this;
+    }
+    /**
+     * 在写锁内追加一个向量，当前段写满时封存并新建一段
+     */
+    private void append(SnapshotBuilder builder, Object keyId, float[] vector) {
+        int last = builder.segments.size() - 1;
+        if (this.active == null || last < 0 || builder.segments.get(last) != this.active || builder.counts.get(last) >= this.segmentCapacity) {
+            // 写满的段在封存前可能已经有删除标记
+            Segment sealed = this.active;
+            this.active = new Segment(this.segmentCapacity, builder.dim);
+            if (sealed != null && last >= 0 && builder.segments.get(last) == sealed) {
+                this.requestMerge(builder, last);
+            }
+            builder.add(++last, this.active, 0, null, 0);
+        }
+        int slot = builder.counts.get(last);
+        System.arraycopy(vector, 0, this.active.vectors, slot * builder.dim, builder.dim);
+        this.active.keyIds[slot] = keyId;
+        builder.counts.set(last, slot + 1);
+        builder.liveCount++;
+        this.indexes.put(keyId, new Location(this.active, slot));
+    }
+    /**
+     * 在写锁内设置删除标记
+     */
+    private void delete(SnapshotBuilder builder, Location location) {
+        int index = builder.segments.indexOf(location.segment);
+        builder.delete(index, location.slot, this.segmentCapacity);
+        this.requestMerge(builder, index);
+    }
+    /**
+     * 封存段的删除比例达到合并阈值时通知后台合并线程
+     */
+    private void requestMerge(SnapshotBuilder builder, int index) {
+        if (this.mergeDeletedRatio > 0 && builder.segments.get(index) != this.active
+                && builder.deletedCounts.get(index) >= this.segmentCapacity * this.mergeDeletedRatio) {
+            synchronized (this.mergeSignal) {
+                this.mergeRequested = true;
+                this.mergeSignal.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 更新特征：旧槽位设置删除标记并追加新向量，在同一个快照中发布，搜索不会看到特征缺失或重复
+     */
+    @Override
+    public UniFaceSearcher updateFaceFeature(UniFaceFeature feature) throws Exception {
+        float[] vector = UniFaceVectorUtil.toNormalizedVector(feature.getFeatureCode(), null);
+        this.writeLock.lock();
+        try {
+            Location location = this.indexes.get(feature.getKeyId());
+            if (location == null) {
+                throw new IllegalArgumentException("keyId not registered: " + feature.getKeyId());
+            }
+            SnapshotBuilder builder = new SnapshotBuilder(this.snapshot);
+            if (builder.dim != vector.length) {
+                throw new IllegalArgumentException("dimension mismatch: " + vector.length + " != " + builder.dim);
+            }
+            this.delete(builder, location);
+            this.append(builder, feature.getKeyId(), vector);
+            this.snapshot = builder.commit();
+        } finally {
+            this.writeLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * 删除特征，只设置删除标记，槽位在合并时回收
+     * @return 被删除的特征，只包含keyId和归一化以后的特征值
+     */
+    @Override
+    public UniFaceFeature removeFaceFeature(Object keyId) throws Exception {
+        this.writeLock.lock();
+        try {
+            Location location = this.indexes.remove(keyId);
+            if (location == null) {
+                return null;
+            }
+            SnapshotBuilder builder = new SnapshotBuilder(this.snapshot);
+            this.delete(builder, location);
+            this.snapshot = builder.commit();
+            UniFaceFeature removed = new UniFaceFeature();
+            removed.setKeyId(keyId);
+            float[] vector = new float[builder.dim];
+            System.arraycopy(location.segment.vectors, location.slot * builder.dim, vector, 0, builder.dim);
+            byte[] featureCode = new byte[builder.dim * 4];
+            UniImageUtil.floatsToBytes(vector, featureCode);
+            removed.setFeatureCode(featureCode);
+            return removed;
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    @Override
+    public int getFaceFeatureCount() {
+        return this.snapshot.liveCount;
+    }
+
+    /**
+     * 合并一次稀疏的封存段：有效特征数低于段容量 * (1 - mergeDeletedRatio)的封存段，至少两段或者其中有删除标记时才合并<br>
+     * 复制有效特征在写锁外进行，只有发布合并结果时短暂持有写锁；正在进行的搜索继续读取旧的段。
+     * @return 是否合并了特征段
+     */
+    public boolean merge() {
+        Snapshot base;
+        List<Segment> candidates = new ArrayList<Segment>();
+        this.writeLock.lock();
+        try {
+            base = this.snapshot;
+            float ratio = this.mergeDeletedRatio > 0 ? this.mergeDeletedRatio : DEFAULT_MERGE_DELETED_RATIO;
+            int deleted = 0;
+            for (int i = 0; i < base.segments.length; i++) {
+                int live = base.counts[i] - base.deletedCounts[i];
+                if (base.segments[i] != this.active && live < this.segmentCapacity * (1 - ratio)) {
+                    candidates.add(base.segments[i]);
+                    deleted += base.deletedCounts[i];
+                }
+            }
+            if (candidates.isEmpty() || (candidates.size() == 1 && deleted == 0)) {
+                return false;
+            }
+        } finally {
+            this.writeLock.unlock();
+        }
+
+        // 把候选段中的有效特征依次复制到新段中，moved记录每个原槽位的新位置：新段序号 * 段容量 + 新槽位，-1表示已删除
+        int d = base.dim;
+        List<Segment> merged = new ArrayList<Segment>();
+        List<Integer> mergedCounts = new ArrayList<Integer>();
+        int[][] moved = new int[candidates.size()][];
+        Segment out = null;
+        int outCount = this.segmentCapacity;
+        for (int c = 0; c < candidates.size(); c++) {
+            Segment segment = candidates.get(c);
+            int index = base.indexOf(segment);
+            int n = base.counts[index];
+            moved[c] = new int[n];
+            for (int slot = 0; slot < n; slot++) {
+                if (base.isDeleted(index, slot)) {
+                    moved[c][slot] = -1;
+                    continue;
+                }
+                if (outCount == this.segmentCapacity) {
+                    out = new Segment(this.segmentCapacity, d);
+                    merged.add(out);
+                    mergedCounts.add(0);
+                    outCount = 0;
+                }
+                System.arraycopy(segment.vectors, slot * d, out.vectors, outCount * d, d);
+                out.keyIds[outCount] = segment.keyIds[slot];
+                moved[c][slot] = (merged.size() - 1) * this.segmentCapacity + outCount;
+                outCount++;
+                mergedCounts.set(merged.size() - 1, outCount);
+            }
+        }
+
+        this.writeLock.lock();
+        try {
+            Snapshot current = this.snapshot;
+            SnapshotBuilder builder = new SnapshotBuilder(current);
+            int insertAt = -1;
+            for (Segment segment : candidates) {
+                int index = builder.segments.indexOf(segment);
+                if (index < 0) {
+                    // 合并期间特征库被清空
+                    return false;
+                }
+                insertAt = insertAt < 0 ? index : Math.min(insertAt, index);
+            }
+            int[] mergedDeleted = new int[merged.size()];
+            long[][] mergedBits = new long[merged.size()][];
+            for (int c = 0; c < candidates.size(); c++) {
+                Segment segment = candidates.get(c);
+                int currentIndex = current.indexOf(segment);
+                for (int slot = 0; slot < moved[c].length; slot++) {
+                    int to = moved[c][slot];
+                    if (to < 0) {
+                        continue;
+                    }
+                    int outIndex = to / this.segmentCapacity;
+                    int outSlot = to % this.segmentCapacity;
+                    if (current.isDeleted(currentIndex, slot)) {
+                        // 合并期间被删除或更新的特征
+                        if (mergedBits[outIndex] == null) {
+                            mergedBits[outIndex] = new long[(this.segmentCapacity + 63) >> 6];
+                        }
+                        mergedBits[outIndex][outSlot >> 6] |= 1L << outSlot;
+                        mergedDeleted[outIndex]++;
+                        continue;
+                    }
+                    Object keyId = segment.keyIds[slot];
+                    Location location = this.indexes.get(keyId);
+                    if (location != null && location.segment == segment && location.slot == slot) {
+                        this.indexes.put(keyId, new Location(merged.get(outIndex), outSlot));
+                    }
+                }
+            }
+            for (Segment segment : candidates) {
+                builder.remove(builder.segments.indexOf(segment));
+            }
+            for (int i = 0; i < merged.size(); i++) {
+                builder.add(insertAt + i, merged.get(i), mergedCounts.get(i), mergedBits[i], mergedDeleted[i]);
+            }
+            this.snapshot = builder.commit();
+            this.mergeCount++;
+            return true;
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * 清空特征库，发布空快照，正在进行的搜索继续读取原来的快照
+     * @return 当前对象
+     */
+    public UniSnapshotFaceSearcher clear() {
+        this.writeLock.lock();
+        try {
+            this.indexes.clear();
+            this.active = null;
+            this.snapshot = new Snapshot(0, new Segment[0], new int[0], new long[0][], new int[0], 0);
+        } finally {
+            this.writeLock.unlock();
+        }
+        return this;
+    }
+    /**
+     * 停止后台合并线程，可以重复调用；停止以后仍然可以搜索和写入，但不再自动合并
+     */
+    public void close() {
+        this.mergeThread.stop();
+    }
+}
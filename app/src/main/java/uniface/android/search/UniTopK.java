@@ -0,0 +1,84 @@
+package uniface.android.search;
+
+/**
+ * 固定容量的相似度最高K项收集器<br>
+ * 按相似度降序保存在两个平行的基本类型数组中，插入时就地移动，收集过程不分配内存。K通常很小，插入排序足够快。
+ */
+public class UniTopK {
+    private final int[] indexes;
+    private final float[] similars;
+    private int size;
+
+    /**
+     * @param k 最多保留的项数，最小为1
+     */
+    public UniTopK(int k) {
+        k = k < 1 ? 1 : k;
+        this.indexes = new int[k];
+        this.similars = new float[k];
+    }
+    /**
+     * @return 当前可以进入前K项的最低相似度，未满K项时返回负无穷
+     */
+    public float threshold() {
+        return this.size < this.indexes.length ? Float.NEGATIVE_INFINITY : this.similars[this.size - 1];
+    }
+    /**
+     * 尝试加入一项
+     * @param index 项的索引
+     * @param similar 相似度
+     * @return 是否进入前K项
+     */
+    public boolean offer(int index, float similar) {
+        int k = this.indexes.length;
+        if (this.size >= k && similar <= this.similars[k - 1]) {
+            return false;
+        }
+        int i = this.size < k ? this.size++ : k - 1;
+        while (i > 0 && this.similars[i - 1] < similar) {
+            this.similars[i] = this.similars[i - 1];
+            this.indexes[i] = this.indexes[i - 1];
+            i--;
+        }
+        this.similars[i] = similar;
+        this.indexes[i] = index;
+        return true;
+    }
+    /**
+     * 合并另一个收集器的结果
+     * @param other 另一个收集器
+     * @return 当前对象
+     */
+    public UniTopK merge(UniTopK other) {
+        for (int i = 0; i < other.size; i++) {
+            if (!this.offer(other.indexes[i], other.similars[i])) {
+                break; // other也是降序的，后面的更不可能进入
+            }
+        }
+        return this;
+    }
+    public UniTopK clear() {
+        this.size = 0;
+        return this;
+    }
+    public int size() {
+        return this.size;
+    }
+    public int capacity() {
+        return this.indexes.length;
+    }
+    /**
+     * @param i 名次，从0开始
+     * @return 第i名的索引
+     */
+    public int indexAt(int i) {
+        return this.indexes[i];
+    }
+    /**
+     * @param i 名次，从0开始
+     * @return 第i名的相似度
+     */
+    public float similarAt(int i) {
+        return this.similars[i];
+    }
+}
@@ -0,0 +1,338 @@
+package uniface.android.video;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import thread.WhileThread;
+import uniface.android.image.UniFusedImageUtil;
+import uniimage.UniImage;
+import uniimage.UniRGBImage;
+import uniimage.UniSize;
+import uniimage.UniYUVImage;
+import uniimage.util.UniImageUtil;
+import univideo.UniVideoFrame;
+import univideo.UniVideoInfo;
+import univideo.UniVideoSource;
+
+/**
+ * 回放帧图转储文件的视频源，用于在没有摄像头的环境中对人脸识别做压力测试和回归测试<br>
+ * 1. 支持UniFrameDumpWriter录制的转储文件，以及原始YUV数据文件（通过打开参数指定格式、尺寸和帧率）；<br>
+ * 2. 抓帧速度为1时按录制时的时间戳实时回放，为其他正数时按倍数加快或减慢，<=0时不等待、尽可能快地回放；<br>
+ * 3. YUV帧转换为RGB帧图交给抓帧回调，原始的帧图通过UniVideoFrame.getRawFrame()取得，
+ * 几何图层随帧图一起回放，可以直接驱动UniFaceRecognitionService；<br>
+ * 4. 每帧的帧图都是新分配的，回调可以把帧交给其他线程持有。
+ */
+public class UniFileVideoSource implements UniVideoSource {
+    // 打开参数
+    public final static String PropertyWidth        = "width"; // 原始YUV数据文件的帧宽
+    public final static String PropertyHeight       = "height"; // 原始YUV数据文件的帧高
+    public final static String PropertyYuvType      = "yuvType"; // 原始YUV数据文件的格式：YUV_420_888、NV21、NV12、NV21_TV、NV12_TV
+    public final static String PropertyFrameRate    = "frameRate"; // 原始YUV数据文件的帧率，默认为30
+    public final static String PropertyLoop         = "loop"; // 到达文件末尾以后是否从头循环回放，默认为false
+
+    private final static String FORMAT_DUMP = "uniface-dump";
+    private final static String FORMAT_RAW = "raw-";
+
+    private GrabCallback grabCallback;
+    private OpenCallback openCallback;
+    private volatile float grabSpeed = 1;
+    private boolean mirrorImage;
+    private boolean invertedImage;
+    private UniVideoInfo videoInfo;
+    private volatile UniVideoFrame videoFrame;
+    private volatile double grabFrameRate;
+    private ReplayThread replayThread;
+
+    private class ReplayThread extends WhileThread {
+        private final UniFrameDumpReader reader;
+        private final boolean loop;
+        private final Object pacing = new Object();
+        private long anchorNanos; // 节奏锚点的System.nanoTime()值
+        private long anchorTimestamp; // 锚点对应的帧时间戳
+        private float anchorSpeed; // 锚点时的抓帧速度
+        private long timestampOffset; // 循环回放时累加的时间戳偏移，保证输出的时间戳递增
+        private long lastDeliverNanos;
+        private volatile boolean stopped;
+        private ReplayThread(UniFrameDumpReader reader, boolean loop) {
+            this.reader = reader;
+            this.loop = loop;
+        }
+        @Override
+        public void run() {
+            Thread.currentThread().setName("FileVideoSourceThread_" + Thread.currentThread().getId());
+            CloseCause cause = CloseCause.Close;
+            Exception exception = null;
+            int index = 0;
+            long lastTimestamp = 0; // 上一帧输出的时间戳
+            long frameInterval = 0; // 最近的帧间隔，循环回放时接在最后一帧之后
+            try {
+                while (super.running()) {
+                    if (!this.reader.next()) {
+                        if (!this.loop || index == 0) {
+                            cause = CloseCause.End;
+                            break;
+                        }
+                        this.reader.rewind();
+                        if (!this.reader.next()) {
+                            cause = CloseCause.End;
+                            break;
+                        }
+                        this.timestampOffset = lastTimestamp + frameInterval - this.reader.getTimestamp();
+                    }
+                    long timestamp = this.reader.getTimestamp() + this.timestampOffset;
+                    if (index > 0) {
+                        frameInterval = Math.max(0, timestamp - lastTimestamp);
+                    }
+                    lastTimestamp = timestamp;
+                    this.await(timestamp);
+                    if (!super.running()) {
+                        break;
+                    }
+                    this.deliver(this.reader.getImage(), timestamp, index++);
+                }
+            } catch (Exception e) {
+                cause = CloseCause.Error;
+                exception = e;
+            }
+            try {
+                this.reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            OpenCallback callback = UniFileVideoSource.this.openCallback;
+            if (callback != null) {
+                callback.onClose(UniFileVideoSource.this, UniFileVideoSource.this.videoInfo, cause, exception);
+            }
+        }
+        /**
+         * 按抓帧速度等待到帧的回放时刻，速度改变时以当前帧重新锚定
+         */
+        private void await(long timestamp) {
+            float speed = UniFileVideoSource.this.grabSpeed;
+            if (speed <= 0) {
+                this.anchorNanos = 0;
+                return;
+            }
+            long now = System.nanoTime();
+            if (this.anchorNanos == 0 || speed != this.anchorSpeed || timestamp < this.anchorTimestamp) {
+                this.anchorNanos = now;
+                this.anchorTimestamp = timestamp;
+                this.anchorSpeed = speed;
+                return;
+            }
+            long due = this.anchorNanos + (long) ((timestamp - this.anchorTimestamp) * 1000000L / speed);
+            synchronized (this.pacing) {
+                // 持有pacing时不能调用running()，stop()持有线程锁时会在stopping()中获取pacing
+                while (!this.stopped && UniFileVideoSource.this.grabSpeed == speed) {
+                    long wait = (due - System.nanoTime()) / 1000000L;
+                    if (wait <= 0) {
+                        break;
+                    }
+                    try {
+                        this.pacing.wait(wait);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        private void deliver(UniImage image, long timestamp, int index) {
+            UniVideoFrame frame = new UniVideoFrame();
+            frame.setIndex(index);
+            frame.setTimestamp(timestamp);
+            frame.setRawFrame(image);
+            frame.setImage(UniFileVideoSource.this.toRGB(image));
+            UniFileVideoSource.this.videoFrame = frame;
+            long now = System.nanoTime();
+            if (this.lastDeliverNanos != 0 && now > this.lastDeliverNanos) {
+                // 实际回放帧率的指数移动平均
+                double rate = 1000000000.0 / (now - this.lastDeliverNanos);
+                double last = UniFileVideoSource.this.grabFrameRate;
+                UniFileVideoSource.this.grabFrameRate = last == 0 ? rate : last * 0.9 + rate * 0.1;
+            }
+            this.lastDeliverNanos = now;
+            GrabCallback callback = UniFileVideoSource.this.grabCallback;
+            if (callback != null) {
+                callback.onVideoFrameGrabbed(UniFileVideoSource.this, frame);
+            }
+        }
+        private void wakeup() {
+            synchronized (this.pacing) {
+                this.pacing.notifyAll();
+            }
+        }
+        @Override
+        protected void stopping() {
+            this.stopped = true;
+            this.wakeup();
+        }
+        @Override
+        protected void pausing() {
+        }
+    }
+
+    private UniRGBImage toRGB(UniImage image) {
+        if (image instanceof UniYUVImage) {
+            UniRGBImage rgb = UniFusedImageUtil.yuv2rgb((UniYUVImage) image, this.invertedImage ? 180 : 0, null, null);
+            rgb.setMirror(image.isMirror() ^ this.mirrorImage);
+            return rgb;
+        }
+        UniRGBImage rgb = (UniRGBImage) image;
+        if (this.invertedImage) {
+            rgb = UniImageUtil.rotateImage(rgb, 180, (byte) 0, new UniSize());
+        }
+        rgb.setMirror(image.isMirror() ^ this.mirrorImage);
+        return rgb;
+    }
+
+    @Override
+    public UniVideoSource setGrabCallback(GrabCallback callback) {
+        this.grabCallback = callback;
+        return this;
+    }
+    @Override
+    public UniVideoSource setOpenCallback(OpenCallback callback) {
+        this.openCallback = callback;
+        return this;
+    }
+    @Override
+    public float getGrabSpeed() {
+        return this.grabSpeed;
+    }
+    /**
+     * 设置抓帧速度，1为实时，2为两倍速，<=0为尽可能快，回放过程中可以随时调整
+     */
+    @Override
+    public UniVideoSource setGrabSpeed(float grabSpeed) {
+        this.grabSpeed = grabSpeed;
+        ReplayThread thread = this.replayThread;
+        if (thread != null) {
+            thread.wakeup();
+        }
+        return this;
+    }
+    /**
+     * @return 是否翻转帧图的镜像标志
+     */
+    @Override
+    public boolean isMirrorImage() {
+        return this.mirrorImage;
+    }
+    @Override
+    public UniVideoSource setMirrorImage(boolean mirrorImage) {
+        this.mirrorImage = mirrorImage;
+        return this;
+    }
+    /**
+     * @return 是否将帧图旋转180度
+     */
+    @Override
+    public boolean isInvertedImage() {
+        return this.invertedImage;
+    }
+    @Override
+    public UniVideoSource setInvertedImage(boolean invertedImage) {
+        this.invertedImage = invertedImage;
+        return this;
+    }
+
+    /**
+     * 打开转储文件并开始回放，已经打开时先关闭
+     * @param url 文件路径，可以带file://前缀
+     * @param properties 打开参数，回放转储文件时可以为null，回放原始YUV数据文件时必须指定宽、高和格式
+     */
+    @Override
+    public synchronized UniVideoSource open(String url, Properties properties) {
+        this.close();
+        String path = url.startsWith("file://") ? url.substring("file://".length()) : url;
+        UniFrameDumpReader reader = null;
+        try {
+            Properties p = properties == null ? new Properties() : properties;
+            String yuvType = p.getProperty(PropertyYuvType);
+            double frameRate = Double.parseDouble(p.getProperty(PropertyFrameRate, "30"));
+            if (yuvType != null) {
+                reader = new UniFrameDumpReader(new File(path), yuvType(yuvType),
+                        Integer.parseInt(p.getProperty(PropertyWidth)), Integer.parseInt(p.getProperty(PropertyHeight)), frameRate);
+            } else {
+                reader = new UniFrameDumpReader(new File(path));
+            }
+            long[] info = reader.scan();
+            UniVideoInfo videoInfo = new UniVideoInfo()
+                    .setUrl(url)
+                    .setFormat(yuvType == null ? FORMAT_DUMP : FORMAT_RAW + yuvType)
+                    .setFrames((int) info[0])
+                    .setWidth((int) info[1])
+                    .setHeight((int) info[2])
+                    .setDuration(info[3]);
+            videoInfo.setFrameRate(yuvType != null ? frameRate : (info[0] < 2 || info[3] <= 0 ? 0 : (info[0] - 1) * 1000.0 / info[3]));
+            this.videoInfo = videoInfo;
+        } catch (Exception e) {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+            OpenCallback callback = this.openCallback;
+            if (callback != null) {
+                callback.onOpenFailed(this, e.getMessage(), e);
+            }
+            return this;
+        }
+        OpenCallback callback = this.openCallback;
+        if (callback != null) {
+            callback.onOpened(this, this.videoInfo);
+        }
+        this.grabFrameRate = 0;
+        this.replayThread = new ReplayThread(reader, Boolean.parseBoolean(properties == null ? null : properties.getProperty(PropertyLoop)));
+        this.replayThread.start();
+        return this;
+    }
+    private static UniYUVImage.YUVType yuvType(String name) {
+        String[] names = {"YUV_420_888", "NV21", "NV12", "NV21_TV", "NV12_TV"};
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(name)) {
+                return UniFrameDumpWriter.YUV_TYPES[i];
+            }
+        }
+        throw new IllegalArgumentException("unsupported yuv type: " + name);
+    }
+    @Override
+    public UniVideoInfo getVideoInfo() {
+        return this.videoInfo;
+    }
+    /**
+     * @return 实际回放帧率
+     */
+    @Override
+    public double getGrabFrameRate() {
+        return this.grabFrameRate;
+    }
+    /**
+     * @return 最近一次回放的帧
+     */
+    @Override
+    public UniVideoFrame getVideoFrame() {
+        return this.videoFrame;
+    }
+    /**
+     * 停止回放，回放线程退出时通过OpenCallback.onClose()通知
+     */
+    @Override
+    public synchronized UniVideoSource close() {
+        ReplayThread thread = this.replayThread;
+        this.replayThread = null;
+        if (thread != null) {
+            thread.stop();
+        }
+        return this;
+    }
+    /**
+     * @return 是否正在回放
+     */
+    public boolean isPlaying() {
+        ReplayThread thread = this.replayThread;
+        return thread != null && thread.isRunning();
+    }
+}
@@ -0,0 +1,268 @@
+package uniface.android.video;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import uniimage.UniGeometryGraph;
+import uniimage.UniGrayYImage;
+import uniimage.UniImage;
+import uniimage.UniPoint;
+import uniimage.UniRGBImage;
+import uniimage.UniYUVImage;
+
+/**
+ * 帧图转储文件的读取器，支持两种文件：<br>
+ * 1. UniFrameDumpWriter写入的转储文件，每帧自带格式、尺寸、时间戳和几何图层；<br>
+ * 2. 逐帧首尾相接的原始YUV数据文件，格式、尺寸和帧率由调用者指定，时间戳按帧率推算。<br>
+ * 录制中断（如进程被杀）时文件末尾可能只有半帧，不完整的最后一帧被当作文件末尾，之前的帧照常读取。<br>
+ * 每次next()读出的帧图都是新分配的，可以交给其他线程持有。不是线程安全的。
+ */
+public class UniFrameDumpReader {
+    private final File file;
+    private final UniYUVImage.YUVType rawType;
+    private final int rawWidth;
+    private final int rawHeight;
+    private final double rawFrameRate;
+    private DataInputStream in;
+    private int index;
+    private UniImage image;
+    private long timestamp;
+    private boolean truncated; // 读到了不完整的最后一帧
+
+    /**
+     * 读取UniFrameDumpWriter写入的转储文件
+     */
+    public UniFrameDumpReader(File file) throws IOException {
+        this(file, null, 0, 0, 0);
+    }
+    /**
+     * 读取原始YUV数据文件
+     * @param file 数据文件
+     * @param rawType YUV格式
+     * @param rawWidth 帧宽
+     * @param rawHeight 帧高
+     * @param rawFrameRate 录制时的帧率，用来推算时间戳
+     */
+    public UniFrameDumpReader(File file, UniYUVImage.YUVType rawType, int rawWidth, int rawHeight, double rawFrameRate) throws IOException {
+        this.file = file;
+        this.rawType = rawType;
+        this.rawWidth = rawWidth;
+        this.rawHeight = rawHeight;
+        this.rawFrameRate = rawFrameRate > 0 ? rawFrameRate : 30;
+        this.rewind();
+    }
+    /**
+     * 回到第一帧
+     */
+    public void rewind() throws IOException {
+        this.close();
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file), 1 << 16));
+        this.index = -1;
+        this.image = null;
+        this.truncated = false;
+        if (this.rawType == null) {
+            if (this.in.readInt() != UniFrameDumpWriter.MAGIC) {
+                throw new IOException("not a frame dump file: " + this.file);
+            }
+            short version = this.in.readShort();
+            if (version != UniFrameDumpWriter.VERSION) {
+                throw new IOException("unsupported frame dump version: " + version);
+            }
+        }
+    }
+    /**
+     * 读取下一帧
+     * @return 是否读到了一帧，false表示已经到达文件末尾
+     */
+    public boolean next() throws IOException {
+        if (this.truncated) {
+            return false;
+        }
+        try {
+            return this.rawType != null ? this.nextRaw() : this.nextFrame();
+        } catch (EOFException e) {
+            // 不完整的最后一帧，流的位置已经在帧的中间，之后的next()都返回false，直到rewind()
+            this.truncated = true;
+            return false;
+        }
+    }
+    /**
+     * 是否已经到达文件末尾，帧与帧的边界上没有更多数据时才是正常结束
+     */
+    private boolean atEnd() throws IOException {
+        this.in.mark(1);
+        if (this.in.read() < 0) {
+            return true;
+        }
+        this.in.reset();
+        return false;
+    }
+    private boolean nextFrame() throws IOException {
+        if (this.atEnd()) {
+            return false;
+        }
+        long timestamp = this.in.readLong();
+        byte pixel = this.in.readByte();
+        int type = this.in.readByte();
+        int width = this.in.readInt();
+        int height = this.in.readInt();
+        int orientation = this.in.readInt();
+        int degree = this.in.readInt();
+        boolean mirror = this.in.readBoolean();
+        UniGeometryGraph graph = this.in.readBoolean() ? readGraph(this.in) : null;
+        byte[] data = new byte[this.in.readInt()];
+        this.in.readFully(data);
+        UniImage image;
+        if (pixel == UniFrameDumpWriter.PIXEL_YUV) {
+            image = new UniYUVImage(UniFrameDumpWriter.YUV_TYPES[type], width, height, data);
+        } else if (UniFrameDumpWriter.RGB_TYPES[type] == UniRGBImage.GRAY) {
+            image = new UniGrayYImage(width, height, data);
+        } else {
+            image = new UniRGBImage(UniFrameDumpWriter.RGB_TYPES[type], width, height, data);
+        }
+        image.setOrientation(orientation == UniFrameDumpWriter.NULL_INT ? null : orientation);
+        image.setDegree(degree == UniFrameDumpWriter.NULL_INT ? null : degree);
+        image.setMirror(mirror);
+        image.setInsideGeometryGraph(graph);
+        this.image = image;
+        this.timestamp = timestamp;
+        this.index++;
+        return true;
+    }
+    private boolean nextRaw() throws IOException {
+        byte[] data = new byte[this.rawFrameSize()];
+        try {
+            this.in.readFully(data);
+        } catch (EOFException e) {
+            return false;
+        }
+        this.index++;
+        this.image = new UniYUVImage(this.rawType, this.rawWidth, this.rawHeight, data);
+        this.timestamp = (long) (this.index * 1000 / this.rawFrameRate);
+        return true;
+    }
+    private int rawFrameSize() {
+        return this.rawWidth * this.rawHeight * this.rawType.bits / 8;
+    }
+    static UniGeometryGraph readGraph(DataInputStream in) throws IOException {
+        UniGeometryGraph graph = new UniGeometryGraph();
+        int id = in.readInt();
+        int score = in.readInt();
+        graph.setId(id == UniFrameDumpWriter.NULL_INT ? null : id);
+        graph.setScore(score == UniFrameDumpWriter.NULL_INT ? null : score);
+        if (in.readBoolean()) {
+            graph.setName(in.readUTF());
+        }
+        int type = in.readByte();
+        graph.setType(type < 0 ? null : UniGeometryGraph.GeometryType.values()[type]);
+        int count = in.readInt();
+        if (count >= 0) {
+            List<UniPoint> points = new ArrayList<UniPoint>(count);
+            for (int i = 0; i < count; i++) {
+                points.add(new UniPoint(in.readInt(), in.readInt()));
+            }
+            graph.setPoints(points);
+        }
+        count = in.readInt();
+        if (count >= 0) {
+            List<UniGeometryGraph> insideGraphs = new ArrayList<UniGeometryGraph>(count);
+            for (int i = 0; i < count; i++) {
+                insideGraphs.add(readGraph(in));
+            }
+            graph.setInsideGraphs(insideGraphs);
+        }
+        return graph;
+    }
+    /**
+     * 从头到尾扫描一遍，统计帧数、首帧尺寸和时长，完成后回到第一帧
+     * @return {帧数, 首帧宽, 首帧高, 首尾帧时间戳之差毫秒值}
+     */
+    public long[] scan() throws IOException {
+        this.rewind();
+        long[] info = new long[4];
+        if (this.rawType != null) {
+            long frames = this.file.length() / this.rawFrameSize();
+            info[0] = frames;
+            info[1] = this.rawWidth;
+            info[2] = this.rawHeight;
+            info[3] = frames < 2 ? 0 : (long) ((frames - 1) * 1000 / this.rawFrameRate);
+            return info;
+        }
+        long first = 0;
+        while (!this.atEnd()) {
+            long timestamp;
+            int width;
+            int height;
+            try {
+                timestamp = this.in.readLong();
+                this.in.readByte();
+                this.in.readByte();
+                width = this.in.readInt();
+                height = this.in.readInt();
+                this.in.readInt();
+                this.in.readInt();
+                this.in.readBoolean();
+                if (this.in.readBoolean()) {
+                    readGraph(this.in);
+                }
+                int length = this.in.readInt();
+                if (this.in.skipBytes(length) != length) {
+                    // 图片数据不完整的最后一帧
+                    break;
+                }
+            } catch (EOFException e) {
+                // 帧头或者几何图层不完整的最后一帧
+                break;
+            }
+            if (info[0] == 0) {
+                first = timestamp;
+                info[1] = width;
+                info[2] = height;
+            }
+            info[0]++;
+            info[3] = timestamp - first;
+        }
+        this.rewind();
+        return info;
+    }
+    /**
+     * @return 最近一次next()读出的帧图
+     */
+    public UniImage getImage() {
+        return this.image;
+    }
+    /**
+     * @return 最近一次next()读出的帧的时间戳毫秒值
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+    /**
+     * @return 最近一次next()读出的帧的序号，从0开始
+     */
+    public int getIndex() {
+        return this.index;
+    }
+    /**
+     * @return next()是否遇到了不完整的最后一帧
+     */
+    public boolean isTruncated() {
+        return this.truncated;
+    }
+    public boolean isRaw() {
+        return this.rawType != null;
+    }
+    public void close() throws IOException {
+        DataInputStream in = this.in;
+        this.in = null;
+        if (in != null) {
+            in.close();
+        }
+    }
+}
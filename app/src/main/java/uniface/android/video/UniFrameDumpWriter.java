@@ -0,0 +1,134 @@
+package uniface.android.video;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import uniimage.UniGeometryGraph;
+import uniimage.UniImage;
+import uniimage.UniPoint;
+import uniimage.UniRGBImage;
+import uniimage.UniYUVImage;
+
+/**
+ * 帧图转储文件的写入器，用来把摄像头的实时帧录制下来，在没有摄像头的环境中通过UniFileVideoSource回放<br>
+ * 文件格式（DataOutputStream，大端）：<br>
+ * 文件头：int MAGIC，short VERSION；<br>
+ * 每帧：long 时间戳毫秒值，byte 像素类型（0:YUV，1:RGB），byte 格式序号（YUV_TYPES或RGB_TYPES中的下标），
+ * int 宽，int 高，int 方向，int 角度（null记为NULL_INT），boolean 镜像，boolean 是否有几何图层，[几何图层]，
+ * int 图片数据长度，byte[] 图片数据。<br>
+ * 几何图层递归写入：int id，int 得分（null记为NULL_INT），boolean 是否有名称，[UTF 名称]，byte 类型序号（null记为-1），
+ * int 点数（null记为-1），每个点int x、int y，int 内部图层数（null记为-1），内部图层。
+ */
+public class UniFrameDumpWriter {
+    final static int MAGIC = 0x55465244; // "UFRD"
+    final static short VERSION = 1;
+    final static int NULL_INT = Integer.MIN_VALUE;
+    final static byte PIXEL_YUV = 0;
+    final static byte PIXEL_RGB = 1;
+    final static UniYUVImage.YUVType[] YUV_TYPES = {
+            UniYUVImage.YUV_420_888, UniYUVImage.NV21, UniYUVImage.NV12, UniYUVImage.NV21_TV, UniYUVImage.NV12_TV};
+    final static UniRGBImage.RGBType[] RGB_TYPES = {UniRGBImage.RGB, UniRGBImage.GBR, UniRGBImage.GRAY};
+
+    private final DataOutputStream out;
+    private int frames;
+    private boolean closed;
+
+    /**
+     * @param file 转储文件，已存在时覆盖
+     */
+    public UniFrameDumpWriter(File file) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        this.out.writeInt(MAGIC);
+        this.out.writeShort(VERSION);
+    }
+    /**
+     * 写入一帧，图片数据和几何图层在返回时已经写入缓冲区，调用者可以立即复用图片
+     * @param image 帧图，UniYUVImage或UniRGBImage
+     * @param timestamp 时间戳毫秒值，回放时按相邻帧的时间戳之差控制节奏
+     */
+    public synchronized void write(UniImage image, long timestamp) throws IOException {
+        if (this.closed) {
+            throw new IOException("frame dump closed");
+        }
+        byte pixel;
+        int type;
+        if (image instanceof UniYUVImage) {
+            pixel = PIXEL_YUV;
+            type = indexOf(YUV_TYPES, ((UniYUVImage) image).getType());
+        } else {
+            pixel = PIXEL_RGB;
+            type = indexOf(RGB_TYPES, ((UniRGBImage) image).getType());
+        }
+        if (type < 0) {
+            throw new IllegalArgumentException("unsupported pixel type");
+        }
+        this.out.writeLong(timestamp);
+        this.out.writeByte(pixel);
+        this.out.writeByte(type);
+        this.out.writeInt(image.getWidth());
+        this.out.writeInt(image.getHeight());
+        this.out.writeInt(image.getOrientation() == null ? NULL_INT : image.getOrientation());
+        this.out.writeInt(image.getDegree() == null ? NULL_INT : image.getDegree());
+        this.out.writeBoolean(image.isMirror());
+        UniGeometryGraph graph = image.getInsideGeometryGraph();
+        this.out.writeBoolean(graph != null);
+        if (graph != null) {
+            writeGraph(this.out, graph);
+        }
+        byte[] data = image.getImageData();
+        this.out.writeInt(data.length);
+        this.out.write(data);
+        this.frames++;
+    }
+    private static int indexOf(Object[] types, Object type) {
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    static void writeGraph(DataOutputStream out, UniGeometryGraph graph) throws IOException {
+        out.writeInt(graph.getId() == null ? NULL_INT : graph.getId());
+        out.writeInt(graph.getScore() == null ? NULL_INT : graph.getScore());
+        out.writeBoolean(graph.getName() != null);
+        if (graph.getName() != null) {
+            out.writeUTF(graph.getName());
+        }
+        out.writeByte(graph.getType() == null ? -1 : graph.getType().ordinal());
+        List<UniPoint> points = graph.getPoints();
+        out.writeInt(points == null ? -1 : points.size());
+        if (points != null) {
+            for (UniPoint point : points) {
+                out.writeInt(point.x);
+                out.writeInt(point.y);
+            }
+        }
+        List<UniGeometryGraph> insideGraphs = graph.getInsideGraphs();
+        out.writeInt(insideGraphs == null ? -1 : insideGraphs.size());
+        if (insideGraphs != null) {
+            for (UniGeometryGraph insideGraph : insideGraphs) {
+                writeGraph(out, insideGraph);
+            }
+        }
+    }
+    /**
+     * @return 已写入的帧数
+     */
+    public synchronized int getFrames() {
+        return this.frames;
+    }
+    public synchronized void flush() throws IOException {
+        this.out.flush();
+    }
+    public synchronized void close() throws IOException {
+        if (!this.closed) {
+            this.closed = true;
+            this.out.close();
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package uniface.android.engine;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import uniface.UniFaceAnalysisItem;
+import uniface.UniFaceAnalyzer;
+import uniface.UniFaceEngine;
+import uniface.UniFaceEngineFactory;
+import uniface.UniFaceFeature;
+import uniface.UniFaceSearchResult;
+import uniface.UniFaceSearcher;
+import uniface.android.pipeline.UniBestShotSelector;
+import uniface.android.pipeline.UniFaceTracker;
+import uniimage.UniGrayYImage;
+import uniimage.UniImage;
+import uniimage.UniRGBImage;
+import uniimage.UniRect;
+import uniimage.UniYUVImage;
+
+import static org.junit.Assert.*;
+
+/**
+ * 批量分析器的凑批、等待截止时间以及关闭时清空队列的测试，人脸引擎和提取器都是假的
+ */
+public class UniBatchFaceAnalyzerTest {
+    /**
+     * 高度为1的帧图的宽度就是检测出的人脸数量，其他帧图检测出中间的一个人脸；第一帧可以被阻塞，让之后的帧在队列中排队<br>
+     * 与真实引擎一样，分析项目包含FaceImage时才截取人脸小图
+     */
+    private static class FakeEngine implements UniFaceEngine {
+        private final CountDownLatch firstFrame;
+        private UniFaceAnalysisItem[] items;
+        private boolean first = true;
+        private int itemChanges;
+        FakeEngine(CountDownLatch firstFrame) {
+            this.firstFrame = firstFrame;
+        }
+        @Override
+        public UniFaceFeature[] analyse(UniImage image) throws Exception {
+            if (this.first && this.firstFrame != null) {
+                this.firstFrame.await();
+            }
+            this.first = false;
+            boolean faceImage = false;
+            for (int i = 0; this.items != null && i < this.items.length; i++) {
+                faceImage |= this.items[i] == UniFaceAnalysisItem.FaceImage;
+            }
+            int w = image.getWidth();
+            int h = image.getHeight();
+            UniFaceFeature[] faces = new UniFaceFeature[h == 1 ? w : 1];
+            for (int i = 0; i < faces.length; i++) {
+                faces[i] = new UniFaceFeature();
+                faces[i].setRectangle(h == 1 ? new UniRect(i * 100, 0, 80, 80) : new UniRect(w >> 2, h >> 2, w >> 1, h >> 1));
+                if (faceImage) {
+                    faces[i].setFaceImage(new UniRGBImage(UniRGBImage.RGB, 4, 4));
+                }
+            }
+            return faces;
+        }
+        @Override
+        public UniFaceEngine open(Properties properties) {
+            return this;
+        }
+        @Override
+        public UniFaceEngine close() {
+            return this;
+        }
+        @Override
+        public UniFaceAnalysisItem[] getAnalysisItems() {
+            return this.items;
+        }
+        @Override
+        public UniFaceAnalysisItem[] setAnalysisItems(UniFaceAnalysisItem[] items) {
+            UniFaceAnalysisItem[] old = this.items;
+            this.items = items;
+            this.itemChanges++;
+            return old;
+        }
+        @Override
+        public Float compare(UniFaceFeature feature1, UniFaceFeature feature2) {
+            return null;
+        }
+        @Override
+        public UniFaceSearchResult search(UniFaceFeature feature, UniFaceSearchResult searchResult) {
+            return searchResult;
+        }
+        @Override
+        public UniFaceSearcher registerFaceFeature(UniFaceFeature feature) {
+            return this;
+        }
+        @Override
+        public UniFaceSearcher updateFaceFeature(UniFaceFeature feature) {
+            return this;
+        }
+        @Override
+        public UniFaceFeature removeFaceFeature(Object keyId) {
+            return null;
+        }
+        @Override
+        public int getFaceFeatureCount() {
+            return 0;
+        }
+    }
+    private static class FakeFactory implements UniFaceEngineFactory {
+        private final CountDownLatch firstFrame;
+        private FakeEngine engine;
+        FakeFactory(CountDownLatch firstFrame) {
+            this.firstFrame = firstFrame;
+        }
+        @Override
+        public Properties getPropertiesForAutoOpen() {
+            return null;
+        }
+        @Override
+        public UniFaceEngineFactory setPropertiesForAutoOpen(Properties properties) {
+            return this;
+        }
+        @Override
+        public UniFaceAnalysisItem[] getAnalysisItemsForAutoOpen() {
+            return null;
+        }
+        @Override
+        public UniFaceEngineFactory setAnalysisItemsForAutoOpen(UniFaceAnalysisItem[] items) {
+            return this;
+        }
+        @Override
+        public UniFaceEngine createEngine(boolean autoOpen) {
+            this.engine = new FakeEngine(this.firstFrame);
+            return this.engine;
+        }
+        @Override
+        public UniFaceEngineFactory destoryEngine(UniFaceEngine engine) {
+            engine.close();
+            return this;
+        }
+    }
+    /**
+     * 记录每次推理的人脸数量，特征值写入人脸所在的位置；与真实提取器一样跳过没有人脸小图的人脸
+     */
+    private static class FakeExtractor implements UniBatchFaceExtractor {
+        final List<Integer> batches = new ArrayList<Integer>();
+        @Override
+        public int getMaxBatchSize() {
+            return 8;
+        }
+        @Override
+        public synchronized int extract(UniFaceFeature[] faces, int offset, int count) {
+            for (int i = offset; i < offset + count; i++) {
+                if (faces[i].getFaceImage() != null) {
+                    faces[i].setFeatureCode(new byte[] {(byte) i});
+                }
+            }
+            this.batches.add(count);
+            return count;
+        }
+        synchronized List<Integer> getBatches() {
+            return new ArrayList<Integer>(this.batches);
+        }
+        @Override
+        public void close() {
+        }
+    }
+    /**
+     * 收集回调结果
+     */
+    private static class Results implements UniFaceAnalyzer.AnalysedCallback {
+        final UniFaceFeature[][] features;
+        final Exception[] exceptions;
+        final long[] completedNanos;
+        final CountDownLatch completed;
+        Results(int frames) {
+            this.features = new UniFaceFeature[frames][];
+            this.exceptions = new Exception[frames];
+            this.completedNanos = new long[frames];
+            this.completed = new CountDownLatch(frames);
+        }
+        @Override
+        public void onCompleted(Object custom, UniFaceFeature[] features, Exception exception) {
+            int i = (Integer) custom;
+            this.features[i] = features;
+            this.exceptions[i] = exception;
+            this.completedNanos[i] = System.nanoTime();
+            this.completed.countDown();
+        }
+        void await() throws InterruptedException {
+            assertTrue(this.completed.await(10, TimeUnit.SECONDS));
+        }
+    }
+    private static UniImage frame(int faces) {
+        return new UniGrayYImage(faces, 1, new byte[faces]);
+    }
+    private static Thread findBatchThread() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("BatchAnalyseThread_") && thread.isAlive()) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void queuedFrames_mergeUntilMaxBatchSize() throws Exception {
+        CountDownLatch firstFrame = new CountDownLatch(1);
+        FakeExtractor extractor = new FakeExtractor();
+        UniBatchFaceAnalyzer analyzer = new UniBatchFaceAnalyzer(new FakeFactory(firstFrame), extractor, 0, 10000, 0);
+        try {
+            // 第一帧检测期间其余帧排队，2+3+3达到最大批量8，第4帧进入下一批
+            Results results = new Results(5);
+            int[] faces = {2, 3, 3, 1, 2};
+            for (int i = 0; i < faces.length; i++) {
+                analyzer.analyse(frame(faces[i]), i, results);
+            }
+            for (int i = 0; i < 100 && analyzer.getWaitings() > 4; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(4, analyzer.getWaitings());
+            firstFrame.countDown();
+            for (int i = 0; i < 100 && results.completed.getCount() > 2; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, results.completed.getCount());
+            assertEquals(1, extractor.getBatches().size());
+            assertEquals(Integer.valueOf(8), extractor.getBatches().get(0));
+            assertEquals(8f, analyzer.getAverageBatchSize(), 0);
+            for (int i = 0; i < 3; i++) {
+                assertNull(results.exceptions[i]);
+                assertEquals(faces[i], results.features[i].length);
+                for (UniFaceFeature face : results.features[i]) {
+                    assertNotNull(face.getFeatureCode());
+                }
+            }
+            // 第二批达不到最大批量，还在等待截止时间，关闭分析器时立即提取
+            analyzer.close();
+            results.await();
+            assertEquals(2, extractor.getBatches().size());
+            assertEquals(Integer.valueOf(3), extractor.getBatches().get(1));
+            for (int i = 3; i < 5; i++) {
+                assertEquals(faces[i], results.features[i].length);
+                assertNotNull(results.features[i][0].getFeatureCode());
+            }
+        } finally {
+            firstFrame.countDown();
+            analyzer.close();
+        }
+    }
+
+    @Test
+    public void partialBatch_extractedAtDeadline() throws Exception {
+        FakeExtractor extractor = new FakeExtractor();
+        UniBatchFaceAnalyzer analyzer = new UniBatchFaceAnalyzer(new FakeFactory(null), extractor, 8, 100, 0);
+        try {
+            Results results = new Results(2);
+            long start = System.nanoTime();
+            analyzer.analyse(frame(1), 0, results);
+            analyzer.analyse(frame(2), 1, results);
+            results.await();
+            long elapsed = (results.completedNanos[0] - start) / 1000000L;
+            assertTrue("elapsed " + elapsed, elapsed >= 90);
+            assertEquals(1, extractor.getBatches().size());
+            assertEquals(Integer.valueOf(3), extractor.getBatches().get(0));
+            assertEquals(2, results.features[1].length);
+            assertNotNull(results.features[1][1].getFeatureCode());
+        } finally {
+            analyzer.close();
+        }
+
+        // 等待时间为0时只合并已经排队的帧，不等待
+        extractor = new FakeExtractor();
+        analyzer = new UniBatchFaceAnalyzer(new FakeFactory(null), extractor, 8, 0, 0);
+        try {
+            Results results = new Results(1);
+            long start = System.nanoTime();
+            analyzer.analyse(frame(1), 0, results);
+            results.await();
+            assertTrue((results.completedNanos[0] - start) / 1000000L < 90);
+            assertEquals(Integer.valueOf(1), extractor.getBatches().get(0));
+        } finally {
+            analyzer.close();
+        }
+    }
+
+    @Test
+    public void idleThreadBlocks_closeFlushesQueue() throws Exception {
+        CountDownLatch firstFrame = new CountDownLatch(1);
+        FakeExtractor extractor = new FakeExtractor();
+        UniBatchFaceAnalyzer analyzer = new UniBatchFaceAnalyzer(new FakeFactory(null), extractor, 8, 0, 0);
+        Results first = new Results(1);
+        analyzer.analyse(frame(1), 0, first);
+        first.await();
+        // 没有待提取的批次时不设超时地等待新任务
+        Thread thread = null;
+        for (int i = 0; i < 100; i++) {
+            thread = findBatchThread();
+            if (thread != null && thread.getState() == Thread.State.WAITING) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        assertNotNull(thread);
+        assertEquals(Thread.State.WAITING, thread.getState());
+        analyzer.close();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        // 关闭以后的任务立即以空结果回调
+        Results after = new Results(1);
+        analyzer.analyse(frame(1), 0, after);
+        after.await();
+        assertNull(after.features[0]);
+        assertNull(after.exceptions[0]);
+        assertEquals(1, extractor.getBatches().size());
+
+        // 关闭时排队中的任务以空结果回调，正在检测的帧照常完成
+        analyzer = new UniBatchFaceAnalyzer(new FakeFactory(firstFrame), extractor, 8, 0, 0);
+        Results results = new Results(3);
+        for (int i = 0; i < 3; i++) {
+            analyzer.analyse(frame(1), i, results);
+        }
+        for (int i = 0; i < 100 && analyzer.getWaitings() > 2; i++) {
+            Thread.sleep(10);
+        }
+        analyzer.close();
+        assertEquals(1, results.completed.getCount());
+        assertNull(results.features[1]);
+        assertNull(results.features[2]);
+        firstFrame.countDown();
+        results.await();
+        assertEquals(1, results.features[0].length);
+        assertNotNull(results.features[0][0].getFeatureCode());
+    }
+
+    @Test
+    public void bestShots_keyedOnTrackerIds() throws Exception {
+        FakeExtractor extractor = new FakeExtractor();
+        final List<UniFaceFeature> bestShots = new ArrayList<UniFaceFeature>();
+        UniBatchFaceAnalyzer analyzer = new UniBatchFaceAnalyzer(new FakeFactory(null), extractor, 8, 0, 0)
+                .setFaceTracker(new UniFaceTracker(1, 0.4f, 3))
+                .setBestShotSelector(new UniBestShotSelector(3, 2), new UniBatchFaceAnalyzer.BestShotCallback() {
+                    @Override
+                    public void onBestShot(UniFaceFeature face) {
+                        bestShots.add(face);
+                    }
+                });
+        try {
+            // 两个位置不变的人脸：前3帧是最佳帧窗口，窗口结束时每个跟踪提取一次，之后的帧复用跟踪的特征值
+            for (int i = 0; i < 6; i++) {
+                Results results = new Results(1);
+                analyzer.analyse(frame(2), 0, results);
+                results.await();
+                assertEquals(Integer.valueOf(1), results.features[0][0].getFaceId());
+                assertEquals(Integer.valueOf(2), results.features[0][1].getFaceId());
+                if (i >= 3) {
+                    assertNotNull(results.features[0][0].getFeatureCode());
+                    assertNotNull(results.features[0][1].getFeatureCode());
+                }
+            }
+            assertEquals(1, extractor.getBatches().size());
+            assertEquals(Integer.valueOf(2), extractor.getBatches().get(0));
+            assertEquals(2, bestShots.size());
+            assertEquals(Integer.valueOf(1), bestShots.get(0).getFaceId());
+            assertEquals(Integer.valueOf(2), bestShots.get(1).getFaceId());
+        } finally {
+            analyzer.close();
+        }
+    }
+
+    @Test
+    public void pyramid_mixedFrameTypesAllGetFaceImages() throws Exception {
+        FakeExtractor extractor = new FakeExtractor();
+        FakeFactory factory = new FakeFactory(null);
+        UniBatchFaceAnalyzer analyzer = new UniBatchFaceAnalyzer(factory, extractor, 8, 0, 0).setPyramid(64, 0.1f);
+        try {
+            // YUV帧图在金字塔上检测并从原图截取人脸小图，灰度帧图由引擎截取人脸小图
+            UniImage[] images = {new UniYUVImage(UniYUVImage.NV21, 32, 16, new byte[32 * 16 * 3 / 2]), frame(2), frame(1),
+                    new UniYUVImage(UniYUVImage.NV21, 32, 16, new byte[32 * 16 * 3 / 2])};
+            Results results = new Results(images.length);
+            for (int i = 0; i < images.length; i++) {
+                analyzer.analyse(images[i], i, results);
+                // 逐帧等待，使每帧单独成批，引擎的分析项目按帧图格式切换
+                for (int j = 0; j < 500 && results.completed.getCount() > images.length - 1 - i; j++) {
+                    Thread.sleep(10);
+                }
+            }
+            results.await();
+            int[] faces = {1, 2, 1, 1};
+            for (int i = 0; i < images.length; i++) {
+                assertNull(results.exceptions[i]);
+                assertEquals(faces[i], results.features[i].length);
+                for (UniFaceFeature face : results.features[i]) {
+                    assertNotNull("frame " + i, face.getFaceImage());
+                    assertNotNull("frame " + i, face.getFeatureCode());
+                }
+            }
+            // YUV帧图的人脸小图按原分辨率截取，位置从16x8的第0层映射回原图：4 * 2 + 1
+            assertTrue(results.features[0][0].getFaceImage().getWidth() > 4);
+            assertEquals(9, results.features[0][0].getRectangle().x);
+            // 初始设置为由引擎截取人脸小图，之后按YUV、灰度、灰度、YUV的顺序切换三次
+            assertEquals(4, factory.engine.itemChanges);
+        } finally {
+            analyzer.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package uniface.android.image;
+
+import org.junit.Test;
+
+import uniimage.UniGeometryGraph;
+import uniimage.UniPoint;
+import uniimage.UniRect;
+import uniimage.UniYUVImage;
+
+import static org.junit.Assert.*;
+
+/**
+ * UniFlatGeometryGraph与UniGeometryGraph的一致性测试
+ */
+public class UniFlatGeometryGraphTest {
+    /**
+     * 与摄像头人脸图层结构相同：root -> face容器 -> 每个人脸的多边形及嘴、眼睛点
+     */
+    private static UniGeometryGraph faceGraph() {
+        UniGeometryGraph root = new UniGeometryGraph(UniGeometryGraph.Root);
+        UniGeometryGraph faces = root.createInsideNamedContainer(UniGeometryGraph.Face);
+        for (int i = 0; i < 3; i++) {
+            UniGeometryGraph face = faces.createInsideRect(40 + i * 150, 30 + i * 20, 120, 140);
+            face.setId(i + 1);
+            face.setScore(90 - i);
+            face.createInsidePoint(100 + i * 150, 140 + i * 20).setName(UniGeometryGraph.FacePolygonMouthPoint);
+            face.createInsidePoint(70 + i * 150, 80 + i * 20).setName(UniGeometryGraph.FacePolygonLeftEyePoint);
+            face.createInsidePoint(130 + i * 150, 80 + i * 20).setName(UniGeometryGraph.FacePolygonRightEyePoint);
+        }
+        root.createInsideRect(5, 5, 10, 10);
+        return root;
+    }
+
+    @Test
+    public void flattenAndExpand_roundTrip() {
+        UniGeometryGraph graph = faceGraph();
+        UniFlatGeometryGraph flat = UniFlatGeometryGraph.of(graph);
+        assertEquals(graph.toString(), flat.toGeometryGraph().toString());
+        int faces = flat.findInside(UniFlatGeometryGraph.ROOT, UniFlatGeometryGraph.FaceName);
+        assertEquals(UniGeometryGraph.Face, flat.getName(faces));
+        assertEquals(3, flat.getInsideCount(faces));
+        UniGeometryGraph second = graph.findInsideGeometryGraph(UniGeometryGraph.Face).getInsideGraphs().get(1);
+        int face = flat.getInside(faces, 1);
+        assertEquals(second.getId(), flat.getId(face));
+        assertEquals(second.getScore(), flat.getScore(face));
+        assertEquals(second.getType(), flat.getType(face));
+        UniRect rect = flat.asRect(face, null);
+        UniRect expected = second.asRect();
+        assertEquals(expected.x, rect.x);
+        assertEquals(expected.y, rect.y);
+        assertEquals(expected.width, rect.width);
+        assertEquals(expected.height, rect.height);
+        int mouth = flat.findInside(face, UniFlatGeometryGraph.FacePolygonMouthPointName);
+        UniPoint point = flat.asPoint(mouth, null);
+        assertEquals(second.findInsideGeometryGraph(UniGeometryGraph.FacePolygonMouthPoint).asPoint().x, point.x);
+        assertEquals(-1, flat.findInside(face, UniFlatGeometryGraph.FaceName));
+        assertEquals(-1, flat.findInside(face, UniFlatGeometryGraph.FacePolygonMouthPointName, mouth));
+        assertNull(UniFlatGeometryGraph.of(null));
+    }
+
+    @Test
+    public void transforms_matchGeometryGraph() {
+        int[] degrees = {0, 90, 180, 270, 45, -90, 450};
+        for (int degree : degrees) {
+            UniGeometryGraph expected = faceGraph().rotate(320, 240, degree, -80, 80);
+            UniFlatGeometryGraph actual = UniFlatGeometryGraph.of(faceGraph()).rotate(320, 240, degree, -80, 80);
+            assertEquals("degree " + degree, expected.toString(), actual.toGeometryGraph().toString());
+        }
+        UniGeometryGraph expected = faceGraph().translate(-7, 9);
+        expected.resize(640, 480, 320, 180);
+        UniFlatGeometryGraph actual = UniFlatGeometryGraph.of(faceGraph()).translate(-7, 9).resize(640, 480, 320, 180);
+        assertEquals(expected.toString(), actual.toGeometryGraph().toString());
+    }
+
+    @Test
+    public void clone_isCopyOnWrite() {
+        UniFlatGeometryGraph graph = UniFlatGeometryGraph.of(faceGraph());
+        String original = graph.toGeometryGraph().toString();
+        UniFlatGeometryGraph rotated = graph.clone().rotate(320, 240, 90, 0, 0);
+        UniFlatGeometryGraph translated = graph.clone().translate(3, 4);
+        assertEquals(original, graph.toGeometryGraph().toString());
+        assertEquals(UniFlatGeometryGraph.of(faceGraph().rotate(320, 240, 90, 0, 0)).toGeometryGraph().toString(),
+                rotated.toGeometryGraph().toString());
+        assertEquals(faceGraph().translate(3, 4).toString(), translated.toGeometryGraph().toString());
+        // 原图层在克隆以后修改也不影响克隆
+        UniFlatGeometryGraph copy = graph.clone();
+        graph.translate(1, 1);
+        assertEquals(original, copy.toGeometryGraph().toString());
+        assertEquals(graph.getNodeCount(), copy.getNodeCount());
+    }
+
+    @Test
+    public void mapGraph_matchesYuv2rgb() {
+        UniYUVImage image = UniFusedImageUtilTest.createImage(UniYUVImage.NV21, 80, 60, 5);
+        image.setInsideGeometryGraph(faceGraph());
+        UniFlatGeometryGraph flat = UniFlatGeometryGraph.of(image.getInsideGeometryGraph());
+        UniRect roi = new UniRect(10, 6, 21, 17);
+        for (int degree = 0; degree < 360; degree += 90) {
+            assertEquals(UniFusedImageUtil.yuv2rgb(image, degree, roi, null).getInsideGeometryGraph().toString(),
+                    UniFusedImageUtil.mapGraph(flat, 80, 60, degree, roi).toGeometryGraph().toString());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package uniface.android.image;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import uniimage.UniGeometryGraph;
+import uniimage.UniRGBImage;
+import uniimage.UniRect;
+import uniimage.UniSize;
+import uniimage.UniYUVImage;
+import uniimage.util.UniImageUtil;
+
+import static org.junit.Assert.*;
+
+/**
+ * UniFusedImageUtil与UniImageUtil分步处理结果的一致性测试
+ */
+public class UniFusedImageUtilTest {
+    static UniYUVImage createImage(UniYUVImage.YUVType type, int width, int height, long seed) {
+        UniYUVImage image = new UniYUVImage(type, width, height);
+        new Random(seed).nextBytes(image.getImageData());
+        image.setOrientation(90);
+        image.setDegree(0);
+        UniGeometryGraph graph = new UniGeometryGraph(UniGeometryGraph.Root);
+        graph.createInsideRect(width / 4, height / 4, width / 2, height / 3);
+        image.setInsideGeometryGraph(graph);
+        return image;
+    }
+    /**
+     * 分步处理：旋转 -> 转换 -> 裁剪
+     */
+    static UniRGBImage stepByStep(UniYUVImage image, int degree, UniRect roi) {
+        UniYUVImage rotated = UniImageUtil.rotateImage(image, degree, (byte) 0, new UniSize());
+        UniRGBImage rgb = UniImageUtil.yuv2rgb(rotated);
+        return roi == null ? rgb : UniImageUtil.cutImage(rgb, roi);
+    }
+
+    @Test
+    public void rotateAndConvert_matchesStepByStep() {
+        UniYUVImage.YUVType[] types = {UniYUVImage.NV21, UniYUVImage.NV12, UniYUVImage.NV21_TV, UniYUVImage.NV12_TV};
+        for (UniYUVImage.YUVType type : types) {
+            UniYUVImage image = createImage(type, 64, 48, 7);
+            for (int degree = 0; degree < 360; degree += 90) {
+                UniRGBImage expected = stepByStep(image, degree, null);
+                UniRGBImage actual = UniFusedImageUtil.yuv2rgb(image, degree, null, null);
+                assertEquals(expected.getWidth(), actual.getWidth());
+                assertEquals(expected.getHeight(), actual.getHeight());
+                assertArrayEquals("degree " + degree, expected.getImageData(), actual.getImageData());
+                assertEquals(expected.getOrientation(), actual.getOrientation());
+                assertEquals(expected.getInsideGeometryGraph().toString(), actual.getInsideGeometryGraph().toString());
+            }
+        }
+    }
+
+    @Test
+    public void rotateConvertAndCut_matchesStepByStep() {
+        UniYUVImage image = createImage(UniYUVImage.NV21, 80, 60, 11);
+        UniRect[] rois = {new UniRect(10, 6, 21, 17), new UniRect(0, 0, 8, 8), new UniRect(-5, -3, 20, 20), new UniRect(50, 40, 40, 40)};
+        for (int degree = 0; degree < 360; degree += 90) {
+            for (UniRect roi : rois) {
+                UniRGBImage expected = stepByStep(image, degree, roi);
+                UniRGBImage actual = UniFusedImageUtil.yuv2rgb(image, degree, roi, null);
+                assertArrayEquals("degree " + degree + " roi " + roi.x + "," + roi.y, expected.getImageData(), actual.getImageData());
+                assertEquals(expected.getInsideGeometryGraph().toString(), actual.getInsideGeometryGraph().toString());
+            }
+        }
+    }
+
+    @Test
+    public void planarConvert_matchesYuv2rgb() {
+        UniYUVImage image = createImage(UniYUVImage.YUV_420_888, 64, 48, 3);
+        UniRGBImage expected = UniImageUtil.yuv2rgb(image);
+        UniRGBImage actual = UniFusedImageUtil.yuv2rgb(image, 0, null, null);
+        assertArrayEquals(expected.getImageData(), actual.getImageData());
+    }
+
+    @Test
+    public void desImage_isReused() {
+        UniYUVImage image = createImage(UniYUVImage.NV21, 64, 48, 5);
+        UniRGBImage des = UniFusedImageUtil.yuv2rgb(image, 90, null, null);
+        byte[] data = des.getImageData();
+        UniRGBImage again = UniFusedImageUtil.yuv2rgb(createImage(UniYUVImage.NV21, 64, 48, 6), 90, null, des);
+        assertSame(des, again);
+        assertSame(data, again.getImageData());
+    }
+}
@@ -0,0 +1,114 @@
+package uniface.android.image;
+
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import uniimage.UniRGBImage;
+import uniimage.UniRect;
+import uniimage.UniSize;
+import uniimage.UniYUVImage;
+import uniimage.util.UniImageUtil;
+
+import static org.junit.Assert.*;
+
+/**
+ * UniParallelImageUtil与串行实现结果的逐字节一致性测试
+ */
+public class UniParallelImageUtilTest {
+    /**
+     * 阈值设为0，测试用的小图也分行并行
+     */
+    private static ForkJoinPool parallel() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        UniParallelImageUtil.setPool(pool);
+        UniParallelImageUtil.setParallelThreshold(0);
+        return pool;
+    }
+    private static void serial(ForkJoinPool pool) {
+        UniParallelImageUtil.setPool(null);
+        UniParallelImageUtil.setParallelThreshold(UniParallelImageUtil.DEFAULT_PARALLEL_THRESHOLD);
+        pool.shutdown();
+    }
+
+    @Test
+    public void yuv2rgb_matchesFused() {
+        ForkJoinPool pool = parallel();
+        try {
+            UniYUVImage.YUVType[] types = {UniYUVImage.YUV_420_888, UniYUVImage.NV21, UniYUVImage.NV12, UniYUVImage.NV21_TV, UniYUVImage.NV12_TV};
+            UniRect[] rois = {null, new UniRect(10, 6, 21, 17), new UniRect(-5, -3, 90, 70)};
+            for (UniYUVImage.YUVType type : types) {
+                UniYUVImage image = UniFusedImageUtilTest.createImage(type, 80, 60, 23);
+                for (int degree = 0; degree < 360; degree += 90) {
+                    for (UniRect roi : rois) {
+                        UniRGBImage expected = UniFusedImageUtil.yuv2rgb(image, degree, roi, null);
+                        UniRGBImage actual = UniParallelImageUtil.yuv2rgb(image, degree, roi, null);
+                        assertEquals(expected.getWidth(), actual.getWidth());
+                        assertEquals(expected.getHeight(), actual.getHeight());
+                        assertArrayEquals("degree " + degree, expected.getImageData(), actual.getImageData());
+                        assertEquals(expected.getOrientation(), actual.getOrientation());
+                        assertEquals(expected.getInsideGeometryGraph().toString(), actual.getInsideGeometryGraph().toString());
+                    }
+                }
+            }
+        } finally {
+            serial(pool);
+        }
+    }
+
+    @Test
+    public void rotateImage_matchesSerial() {
+        ForkJoinPool pool = parallel();
+        try {
+            UniYUVImage.YUVType[] types = {UniYUVImage.NV21, UniYUVImage.NV12, UniYUVImage.NV21_TV, UniYUVImage.NV12_TV};
+            for (UniYUVImage.YUVType type : types) {
+                UniYUVImage image = UniFusedImageUtilTest.createImage(type, 64, 48, 29);
+                for (int degree = 0; degree < 360; degree += 90) {
+                    UniYUVImage expected = UniImageUtil.rotateImage(image, degree, (byte) 0, new UniSize());
+                    UniYUVImage actual = UniParallelImageUtil.rotateImage(image, degree, null);
+                    assertEquals(expected.getWidth(), actual.getWidth());
+                    assertEquals(expected.getHeight(), actual.getHeight());
+                    assertArrayEquals("degree " + degree, expected.getImageData(), actual.getImageData());
+                    assertEquals(expected.getOrientation(), actual.getOrientation());
+                    assertEquals(expected.getInsideGeometryGraph().toString(), actual.getInsideGeometryGraph().toString());
+                }
+            }
+        } finally {
+            serial(pool);
+        }
+    }
+
+    @Test
+    public void rotateImage_planar() {
+        ForkJoinPool pool = parallel();
+        try {
+            UniYUVImage image = UniFusedImageUtilTest.createImage(UniYUVImage.YUV_420_888, 64, 48, 31);
+            UniYUVImage des = null;
+            for (int degree = 0; degree < 360; degree += 90) {
+                des = UniParallelImageUtil.rotateImage(image, degree, des);
+                // 先旋转YUV再转换RGB，与转换时一并旋转的结果一致
+                assertArrayEquals("degree " + degree, UniFusedImageUtil.yuv2rgb(image, degree, null, null).getImageData(),
+                        UniFusedImageUtil.yuv2rgb(des, 0, null, null).getImageData());
+                UniYUVImage back = UniParallelImageUtil.rotateImage(des, 360 - degree, null);
+                assertArrayEquals("degree " + degree, image.getImageData(), back.getImageData());
+            }
+        } finally {
+            serial(pool);
+        }
+    }
+
+    @Test
+    public void rotateImage_rejectsArbitraryDegree() {
+        UniYUVImage image = UniFusedImageUtilTest.createImage(UniYUVImage.NV21, 64, 48, 37);
+        UniYUVImage des = UniParallelImageUtil.rotateImage(image, -90, null);
+        assertEquals(48, des.getWidth());
+        for (int degree : new int[]{45, -30, 450 + 1}) {
+            try {
+                UniParallelImageUtil.rotateImage(image, degree, des);
+                fail("degree " + degree);
+            } catch (IllegalArgumentException e) {
+                // 非90整数倍的角度不支持
+            }
+        }
+    }
+}
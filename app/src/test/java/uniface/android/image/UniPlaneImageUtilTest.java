@@ -0,0 +1,113 @@
+package uniface.android.image;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uniimage.UniRGBImage;
+import uniimage.UniRect;
+import uniimage.UniYUVImage;
+
+import static org.junit.Assert.*;
+
+/**
+ * UniPlaneImageUtil直接读取分量平面的结果与UniFusedImageUtil的一致性测试
+ */
+public class UniPlaneImageUtilTest {
+    /**
+     * 按Camera2 ImageReader的方式把NV21图片放进带行填充的直接缓冲区：Y平面一个缓冲区，uv分量交错存放在另一个缓冲区
+     */
+    private static UniPlaneYUVImage cameraPlanes(UniYUVImage image, int padding, UniPlaneYUVImage.Releaser releaser) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        byte[] data = image.getImageData();
+        int rowStride = w + padding;
+        ByteBuffer y = ByteBuffer.allocateDirect(rowStride * h);
+        for (int row = 0; row < h; row++) {
+            y.position(row * rowStride);
+            y.put(data, row * w, w);
+        }
+        ByteBuffer uv = ByteBuffer.allocateDirect(rowStride * h / 2);
+        for (int row = 0; row < h / 2; row++) {
+            uv.position(row * rowStride);
+            uv.put(data, w * h + row * w, w);
+        }
+        y.clear();
+        uv.clear();
+        UniYUVImage.YUVType type = image.getType();
+        uv.position(type.usi);
+        ByteBuffer u = uv.slice();
+        uv.position(type.vsi);
+        ByteBuffer v = uv.slice();
+        return new UniPlaneYUVImage(w, h, image.getType(), y, rowStride, 1, u, v, rowStride, 2, releaser)
+                .setOrientation(image.getOrientation())
+                .setInsideGeometryGraph(image.getInsideGeometryGraph());
+    }
+
+    @Test
+    public void wrappedYuv2rgb_matchesFused() {
+        UniYUVImage.YUVType[] types = {UniYUVImage.YUV_420_888, UniYUVImage.NV21, UniYUVImage.NV12, UniYUVImage.NV21_TV, UniYUVImage.NV12_TV};
+        UniRect[] rois = {null, new UniRect(10, 6, 21, 17), new UniRect(-5, -3, 90, 70)};
+        int[] bgr = new int[3];
+        for (UniYUVImage.YUVType type : types) {
+            UniYUVImage image = UniFusedImageUtilTest.createImage(type, 80, 60, 37);
+            UniPlaneYUVImage planes = UniPlaneYUVImage.wrap(image);
+            for (int degree = 0; degree < 360; degree += 90) {
+                for (UniRect roi : rois) {
+                    UniRGBImage expected = UniFusedImageUtil.yuv2rgb(image, degree, roi, null);
+                    UniRGBImage actual = UniPlaneImageUtil.yuv2rgb(planes, degree, roi, null);
+                    assertEquals(expected.getWidth(), actual.getWidth());
+                    assertArrayEquals("degree " + degree, expected.getImageData(), actual.getImageData());
+                    assertEquals(expected.getInsideGeometryGraph().toString(), actual.getInsideGeometryGraph().toString());
+                }
+                UniRGBImage rgb = UniFusedImageUtil.yuv2rgb(image, degree, null, null);
+                int x = rgb.getWidth() / 3;
+                int y = rgb.getHeight() / 2;
+                assertTrue(UniPlaneImageUtil.sample(planes, degree, x, y, bgr));
+                int p = (y * rgb.getWidth() + x) * 3;
+                assertEquals(rgb.getImageData()[p + rgb.getType().ri] & 0xFF, bgr[0]);
+                assertEquals(rgb.getImageData()[p + rgb.getType().gi] & 0xFF, bgr[1]);
+                assertEquals(rgb.getImageData()[p + rgb.getType().bi] & 0xFF, bgr[2]);
+                assertFalse(UniPlaneImageUtil.sample(planes, degree, -1, y, bgr));
+            }
+        }
+    }
+
+    @Test
+    public void paddedCameraPlanes_matchFused() {
+        UniYUVImage image = UniFusedImageUtilTest.createImage(UniYUVImage.NV21, 64, 48, 41);
+        UniPlaneYUVImage planes = cameraPlanes(image, 16, null);
+        UniParallelImageUtil.setParallelThreshold(0);
+        try {
+            for (int degree = 0; degree < 360; degree += 90) {
+                assertArrayEquals("degree " + degree, UniFusedImageUtil.yuv2rgb(image, degree, null, null).getImageData(),
+                        UniPlaneImageUtil.yuv2rgb(planes, degree, null, null).getImageData());
+            }
+        } finally {
+            UniParallelImageUtil.setParallelThreshold(UniParallelImageUtil.DEFAULT_PARALLEL_THRESHOLD);
+        }
+        // 拷贝为堆上的图片，半平面格式与原图逐字节一致，平面格式转换RGB的结果一致
+        assertArrayEquals(image.getImageData(), UniPlaneImageUtil.toYUVImage(planes, null).getImageData());
+        UniYUVImage planar = UniPlaneImageUtil.toYUVImage(planes, new UniYUVImage(UniYUVImage.YUV_420_888, 1, 1));
+        assertEquals(64, planar.getWidth());
+        assertArrayEquals(UniFusedImageUtil.yuv2rgb(image, 90, null, null).getImageData(),
+                UniFusedImageUtil.yuv2rgb(planar, 90, null, null).getImageData());
+    }
+
+    @Test
+    public void release_onlyOnce() {
+        final AtomicInteger released = new AtomicInteger();
+        UniPlaneYUVImage planes = cameraPlanes(UniFusedImageUtilTest.createImage(UniYUVImage.NV21, 16, 8, 43), 0, new UniPlaneYUVImage.Releaser() {
+            @Override
+            public void release(UniPlaneYUVImage image) {
+                released.incrementAndGet();
+            }
+        });
+        assertFalse(planes.isReleased());
+        assertTrue(planes.release());
+        assertFalse(planes.release());
+        assertTrue(planes.isReleased());
+        assertEquals(1, released.get());
+    }
+}
@@ -0,0 +1,70 @@
+package uniface.android.image;
+
+import org.junit.Test;
+
+import uniface.UniFaceFeature;
+import uniimage.UniGrayYImage;
+import uniimage.UniPolygon;
+import uniimage.UniRGBImage;
+import uniimage.UniRect;
+import uniimage.UniSize;
+import uniimage.UniYUVImage;
+import uniimage.util.UniImageUtil;
+
+import static org.junit.Assert.*;
+
+/**
+ * UniYPlanePyramid与UniImageUtil旋转结果的一致性测试
+ */
+public class UniYPlanePyramidTest {
+    private static int y(UniYUVImage image, int x, int y) {
+        UniYUVImage.YUVType type = image.getType();
+        return image.getImageData()[type.ysi + (y * image.getWidth() + x) * type.ys] & 0xFF;
+    }
+
+    @Test
+    public void firstLevel_matchesRotatedYPlane() {
+        UniYUVImage.YUVType[] types = {UniYUVImage.NV21, UniYUVImage.NV12_TV};
+        for (UniYUVImage.YUVType type : types) {
+            UniYUVImage image = UniFusedImageUtilTest.createImage(type, 64, 48, 13);
+            UniYPlanePyramid pyramid = new UniYPlanePyramid(3);
+            for (int degree = 0; degree < 360; degree += 90) {
+                UniYUVImage rotated = UniImageUtil.rotateImage(image, degree, (byte) 0, new UniSize());
+                pyramid.build(image, degree);
+                assertEquals(3, pyramid.getLevelCount());
+                UniGrayYImage level = pyramid.getLevel(0);
+                assertEquals(rotated.getWidth() / 2, level.getWidth());
+                assertEquals(rotated.getHeight() / 2, level.getHeight());
+                for (int dy = 0; dy < level.getHeight(); dy++) {
+                    for (int dx = 0; dx < level.getWidth(); dx++) {
+                        int sum = y(rotated, dx * 2, dy * 2) + y(rotated, dx * 2 + 1, dy * 2)
+                                + y(rotated, dx * 2, dy * 2 + 1) + y(rotated, dx * 2 + 1, dy * 2 + 1);
+                        assertEquals("degree " + degree, (sum + 2) >> 2, level.getImageData()[dy * level.getWidth() + dx] & 0xFF);
+                    }
+                }
+                assertEquals(level.getWidth() / 4, pyramid.getLevel(2).getWidth());
+            }
+        }
+    }
+
+    @Test
+    public void selectLevel_andCropFace() {
+        UniYUVImage image = UniFusedImageUtilTest.createImage(UniYUVImage.NV21, 80, 60, 17);
+        UniYPlanePyramid pyramid = new UniYPlanePyramid(4).build(image, 90);
+        assertEquals(0, pyramid.selectLevel(40));
+        assertEquals(1, pyramid.selectLevel(39));
+        assertEquals(3, pyramid.selectLevel(1));
+
+        UniFaceFeature face = new UniFaceFeature();
+        face.setPolygon(new UniPolygon(new UniRect(2, 3, 5, 5)));
+        pyramid.mapToFrame(face, 1);
+        UniRect roi = UniYPlanePyramid.cropRect(face, 0);
+        assertEquals(10, roi.x);
+        assertEquals(14, roi.y);
+        assertEquals(17, roi.width);
+        assertEquals(17, roi.height);
+        UniRGBImage faceImage = pyramid.cropFace(face, 0, null);
+        assertSame(faceImage, face.getFaceImage());
+        assertArrayEquals(UniFusedImageUtil.yuv2rgb(image, 90, roi, null).getImageData(), faceImage.getImageData());
+    }
+}
@@ -0,0 +1,145 @@
+package uniface.android.metrics;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * 延迟直方图的桶边界、分位数以及运行指标的清空测试
+ */
+public class UniLatencyHistogramTest {
+    @Test
+    public void buckets_areContiguousWithinRelativeError() {
+        // 小于32的值每个值一个桶
+        for (long v = 0; v < 32; v++) {
+            assertEquals(v, UniLatencyHistogram.bucketOf(v));
+            assertEquals(v, UniLatencyHistogram.upperBoundOf((int) v));
+        }
+        assertEquals(32, UniLatencyHistogram.bucketOf(32));
+        assertEquals(32, UniLatencyHistogram.bucketOf(33));
+        assertEquals(33, UniLatencyHistogram.upperBoundOf(32));
+        // 每个值落在上一个桶的上界之后、本桶的上界之内，量化误差不超过6.25%
+        for (long v = 1; v < (1L << 40); v += 1 + v / 37) {
+            int bucket = UniLatencyHistogram.bucketOf(v);
+            long upper = UniLatencyHistogram.upperBoundOf(bucket);
+            assertTrue("value " + v, upper >= v);
+            assertTrue("value " + v, UniLatencyHistogram.upperBoundOf(bucket - 1) < v);
+            assertTrue("value " + v, upper - v <= v / 16);
+        }
+        for (int shift = 5; shift < 40; shift++) {
+            long edge = 1L << shift;
+            assertEquals(edge - 1, UniLatencyHistogram.upperBoundOf(UniLatencyHistogram.bucketOf(edge - 1)));
+            assertEquals(UniLatencyHistogram.bucketOf(edge - 1) + 1, UniLatencyHistogram.bucketOf(edge));
+        }
+    }
+
+    @Test
+    public void percentile_returnsBucketUpperBound() {
+        UniLatencyHistogram histogram = new UniLatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (long v = 1; v <= 100; v++) {
+            histogram.record(v);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50.5, histogram.getMean(), 1e-9);
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals(1, histogram.getPercentile(1));
+        assertEquals(20, histogram.getPercentile(20));
+        // 50落在[50,51]桶中，返回桶上界，不低估
+        assertEquals(51, histogram.getPercentile(50));
+        assertEquals(99, histogram.getPercentile(99));
+        // 桶上界超过最大值时按最大值返回
+        assertEquals(100, histogram.getPercentile(99.9));
+        assertEquals(100, histogram.getPercentile(150));
+
+        // 大部分是快速的值，只有0.5%的慢值：p99不受影响，p999落在慢值的桶中
+        histogram.reset();
+        for (int i = 0; i < 995; i++) {
+            histogram.record(1000000);
+        }
+        for (int i = 0; i < 5; i++) {
+            histogram.record(50000000);
+        }
+        long p99 = histogram.getPercentile(99);
+        assertTrue(p99 >= 1000000 && p99 <= 1000000 + 1000000 / 16);
+        assertEquals(50000000, histogram.getPercentile(99.9));
+    }
+
+    @Test
+    public void record_clampsAndReset() {
+        UniLatencyHistogram histogram = new UniLatencyHistogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(100));
+        histogram.record(Long.MAX_VALUE);
+        assertEquals((1L << 40) - 1, histogram.getMax());
+        assertEquals((1L << 40) - 1, histogram.getPercentile(100));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getPercentile(99));
+        histogram.record(7);
+        assertEquals(7, histogram.getMin());
+        assertEquals(7, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void concurrentRecord_countsEveryValue() throws Exception {
+        final UniLatencyHistogram histogram = new UniLatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int base = t * 10000;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= 10000; i++) {
+                        histogram.record(base + i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(40000, histogram.getMax());
+        assertEquals(20000.5, histogram.getMean(), 1e-9);
+        assertEquals(40000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void metrics_resetKeepsStagesAndClearsValues() throws Exception {
+        UniPipelineMetrics metrics = new UniPipelineMetrics();
+        metrics.record(UniPipelineMetrics.Search, 2000);
+        metrics.record(UniPipelineMetrics.Analyse, 5000);
+        metrics.record(UniPipelineMetrics.Analyse, 7000);
+        metrics.increment(UniPipelineMetrics.FramesDropped);
+        metrics.setCounter(UniPipelineMetrics.FacesExtracted, 42);
+        assertSame(metrics.getHistogram(UniPipelineMetrics.Analyse), metrics.getHistogram(UniPipelineMetrics.Analyse));
+        assertEquals(2, metrics.getHistogram(UniPipelineMetrics.Analyse).getCount());
+        assertArrayEquals(new String[] {UniPipelineMetrics.Analyse, UniPipelineMetrics.Search}, metrics.getStages());
+
+        StringWriter writer = new StringWriter();
+        metrics.writeTo(writer, "device");
+        String text = writer.toString();
+        assertTrue(text.startsWith("# device\n"));
+        assertTrue(text.contains("\nanalyse\t2\t5\t"));
+        assertTrue(text.contains("\nframes.dropped\t1\n"));
+        assertTrue(text.contains("\nfaces.extracted\t42\n"));
+
+        metrics.reset();
+        assertArrayEquals(new String[] {UniPipelineMetrics.Analyse, UniPipelineMetrics.Search}, metrics.getStages());
+        assertEquals(0, metrics.getHistogram(UniPipelineMetrics.Analyse).getCount());
+        assertEquals(0, metrics.getCounter(UniPipelineMetrics.FramesDropped).get());
+        assertEquals(0, metrics.getCounter(UniPipelineMetrics.FacesExtracted).get());
+        assertTrue(metrics.getElapsedTime() < 1000);
+    }
+}
@@ -0,0 +1,106 @@
+package uniface.android.pipeline;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import uniface.UniFaceFeature;
+
+import static org.junit.Assert.*;
+
+/**
+ * 最佳帧选择器的窗口内替换、窗口结束以及人脸消失时的输出测试
+ */
+public class UniBestShotSelectorTest {
+    private static UniFaceFeature face(Integer faceId) {
+        UniFaceFeature face = new UniFaceFeature();
+        face.setFaceId(faceId);
+        return face;
+    }
+
+    @Test
+    public void window_keepsBestAndEmitsWhenFull() {
+        UniBestShotSelector selector = new UniBestShotSelector(3, 2);
+        UniFaceFeature[] shots = {face(1), face(1), face(1)};
+        float[] qualities = {0.4f, 0.7f, 0.5f};
+        for (int i = 0; i < shots.length; i++) {
+            selector.beginFrame();
+            selector.offer(shots[i], qualities[i]);
+            List<UniFaceFeature> selected = selector.endFrame();
+            if (i < shots.length - 1) {
+                assertEquals(0, selected.size());
+                assertEquals(1, selector.getWindowCount());
+            } else {
+                // 窗口已满，输出质量分最高的第二帧
+                assertEquals(1, selected.size());
+                assertSame(shots[1], selected.get(0));
+                assertEquals(0, selector.getWindowCount());
+            }
+        }
+        // 同一人脸开始新的窗口，质量分相同时保留先提交的
+        UniFaceFeature next = face(1);
+        for (int i = 0; i < 3; i++) {
+            selector.beginFrame();
+            selector.offer(i == 0 ? next : face(1), 0.5f);
+            List<UniFaceFeature> selected = selector.endFrame();
+            assertEquals(i == 2 ? 1 : 0, selected.size());
+        }
+        assertEquals(6, selector.getOfferedCount());
+        assertEquals(2, selector.getSelectedCount());
+    }
+
+    @Test
+    public void missedFace_emitsBestEarly() {
+        UniBestShotSelector selector = new UniBestShotSelector(10, 2);
+        UniFaceFeature best = face(7);
+        selector.beginFrame();
+        selector.offer(face(7), 0.2f);
+        selector.offer(face(8), 0.9f);
+        assertEquals(0, selector.endFrame().size());
+        selector.beginFrame();
+        selector.offer(best, 0.6f);
+        selector.offer(face(8), 0.1f);
+        assertEquals(0, selector.endFrame().size());
+        // 人脸7连续两帧没有出现，视为消失，提前输出；人脸8仍在窗口中
+        for (int i = 0; i < 2; i++) {
+            selector.beginFrame();
+            selector.offer(face(8), 0.1f);
+            List<UniFaceFeature> selected = selector.endFrame();
+            if (i == 0) {
+                assertEquals(0, selected.size());
+            } else {
+                assertEquals(1, selected.size());
+                assertSame(best, selected.get(0));
+            }
+        }
+        assertEquals(1, selector.getWindowCount());
+        // 输出列表在下一帧清空
+        selector.beginFrame();
+        assertEquals(0, selector.endFrame().size());
+    }
+
+    @Test
+    public void untrackedFace_passesThroughAndResetDropsWindows() {
+        UniBestShotSelector selector = new UniBestShotSelector(5, 3);
+        UniFaceFeature untracked = face(null);
+        selector.beginFrame();
+        selector.offer(untracked, 0.1f);
+        selector.offer(face(1), 0.5f);
+        List<UniFaceFeature> selected = selector.endFrame();
+        assertEquals(1, selected.size());
+        assertSame(untracked, selected.get(0));
+        assertEquals(1, selector.getWindowCount());
+
+        selector.reset();
+        assertEquals(0, selector.getWindowCount());
+        // 重置以后的窗口从头计算
+        for (int i = 0; i < 4; i++) {
+            selector.beginFrame();
+            selector.offer(face(1), 0.5f);
+            assertEquals(0, selector.endFrame().size());
+        }
+        selector.beginFrame();
+        selector.offer(face(1), 0.5f);
+        assertEquals(1, selector.endFrame().size());
+    }
+}
@@ -0,0 +1,102 @@
+package uniface.android.pipeline;
+
+import org.junit.Test;
+
+import uniface.UniFaceFeature;
+import uniimage.UniGrayYImage;
+import uniimage.UniPoint;
+import uniimage.UniPolygon;
+import uniimage.UniRect;
+
+import static org.junit.Assert.*;
+
+/**
+ * 人脸质量门限各项阈值的测试
+ */
+public class UniFaceQualityGateTest {
+    /**
+     * 人脸区域为两个灰度交替的棋盘格，其余为背景灰度
+     */
+    private static UniGrayYImage image(int dark, int light) {
+        int width = 100;
+        int height = 100;
+        byte[] data = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                data[y * width + x] = (byte) (((x + y) & 1) == 0 ? dark : light);
+            }
+        }
+        return new UniGrayYImage(width, height, data);
+    }
+    private static UniFaceFeature face(int size) {
+        UniFaceFeature face = new UniFaceFeature();
+        face.setPolygon(new UniPolygon(new UniRect(20, 20, size, size)));
+        return face;
+    }
+
+    @Test
+    public void thresholds_rejectWithReason() {
+        UniFaceQualityGate gate = new UniFaceQualityGate().setMinSharpness(40).setBrightness(50, 210).setMaxPose(35, 30, 30).setMinScore(60);
+        UniGrayYImage sharp = image(80, 170);
+
+        float quality = gate.evaluate(sharp, face(50));
+        assertTrue(quality > 0 && quality <= 1);
+
+        UniFaceFeature lowScore = face(50);
+        lowScore.setScore(59);
+        assertEquals(-UniFaceQualityGate.RejectScore, gate.evaluate(sharp, lowScore), 0);
+        lowScore.setScore(60);
+        assertTrue(gate.evaluate(sharp, lowScore) > 0);
+
+        assertEquals(-UniFaceQualityGate.RejectBlur, gate.evaluate(image(125, 125), face(50)), 0);
+        assertEquals(-UniFaceQualityGate.RejectDark, gate.evaluate(image(10, 40), face(50)), 0);
+        assertEquals(-UniFaceQualityGate.RejectBright, gate.evaluate(image(220, 250), face(50)), 0);
+        assertEquals(-UniFaceQualityGate.RejectRegion, gate.evaluate(sharp, face(10)), 0);
+        assertEquals(-UniFaceQualityGate.RejectRegion, gate.evaluate(sharp, new UniFaceFeature()), 0);
+
+        UniFaceFeature turned = face(50);
+        turned.setYaw(36f);
+        assertEquals(-UniFaceQualityGate.RejectPose, gate.evaluate(sharp, turned), 0);
+        turned.setYaw(-34f);
+        assertTrue(gate.evaluate(sharp, turned) > 0);
+
+        assertEquals(3, gate.getCount(UniFaceQualityGate.Accepted));
+        assertEquals(1, gate.getCount(UniFaceQualityGate.RejectScore));
+        assertEquals(2, gate.getCount(UniFaceQualityGate.RejectRegion));
+        assertEquals(7, gate.getRejectedCount());
+    }
+
+    @Test
+    public void poseFromLandmarks_andQualityOrdering() {
+        UniFaceQualityGate gate = new UniFaceQualityGate();
+        UniGrayYImage sharp = image(80, 170);
+        // 双眼连线倾斜45度，由点位估算的roll超过30度
+        UniFaceFeature tilted = face(50);
+        tilted.setLeftEyePoint(new UniPoint(30, 30));
+        tilted.setRightEyePoint(new UniPoint(50, 50));
+        assertEquals(-UniFaceQualityGate.RejectPose, gate.evaluate(sharp, tilted), 0);
+
+        // 嘴偏向一侧，由点位估算的yaw超过35度
+        UniFaceFeature turned = face(50);
+        turned.setLeftEyePoint(new UniPoint(30, 40));
+        turned.setRightEyePoint(new UniPoint(50, 40));
+        turned.setMouthPoint(new UniPoint(48, 60));
+        assertEquals(-UniFaceQualityGate.RejectPose, gate.evaluate(sharp, turned), 0);
+
+        // 正脸比略微侧脸的质量分高
+        UniFaceFeature frontal = face(50);
+        frontal.setLeftEyePoint(new UniPoint(30, 40));
+        frontal.setRightEyePoint(new UniPoint(50, 40));
+        frontal.setMouthPoint(new UniPoint(40, 60));
+        UniFaceFeature slight = face(50);
+        slight.setLeftEyePoint(new UniPoint(30, 40));
+        slight.setRightEyePoint(new UniPoint(50, 40));
+        slight.setMouthPoint(new UniPoint(43, 60));
+        float q1 = gate.evaluate(sharp, frontal);
+        float q2 = gate.evaluate(sharp, slight);
+        assertTrue(q2 > 0);
+        assertTrue(q1 > q2);
+        // 清晰度写入没有清晰度的人脸
+        assertNotNull(frontal.getClarity());
+    }
+}
@@ -0,0 +1,88 @@
+package uniface.android.pipeline;
+
+import org.junit.Test;
+
+import uniface.UniFaceFeature;
+import uniimage.UniRect;
+
+import static org.junit.Assert.*;
+
+/**
+ * 人脸跟踪器的交并比匹配、检测间隔以及特征值复用测试
+ */
+public class UniFaceTrackerTest {
+    private static UniFaceFeature face(int x, int y, int size) {
+        UniFaceFeature face = new UniFaceFeature();
+        face.setRectangle(new UniRect(x, y, size, size));
+        return face;
+    }
+
+    @Test
+    public void iou_isIntersectionOverUnion() {
+        UniRect rect = new UniRect(0, 0, 10, 10);
+        assertEquals(1f, UniFaceTracker.iou(rect, new UniRect(0, 0, 10, 10)), 1e-6f);
+        // 交集50，并集150
+        assertEquals(1f / 3, UniFaceTracker.iou(rect, new UniRect(5, 0, 10, 10)), 1e-6f);
+        // 小框完全包含在大框中：交集25，并集100，不是交集与大框之比的1
+        assertEquals(0.25f, UniFaceTracker.iou(rect, new UniRect(0, 0, 5, 5)), 1e-6f);
+        assertEquals(0f, UniFaceTracker.iou(rect, new UniRect(10, 0, 10, 10)), 1e-6f);
+        assertEquals(0f, UniFaceTracker.iou(rect, null), 1e-6f);
+    }
+
+    @Test
+    public void needAnalyse_emptySceneWaitsForInterval() {
+        UniFaceTracker tracker = new UniFaceTracker(5, 0.4f, 1);
+        tracker.onAnalysed(new UniFaceFeature[0]);
+        for (int i = 1; i < 5; i++) {
+            assertFalse(tracker.needAnalyse(i % 2 == 0 ? null : new UniFaceFeature[0]));
+        }
+        assertTrue(tracker.needAnalyse(null));
+        // 摄像头检测到新人脸时不等待检测间隔
+        tracker.onAnalysed(null);
+        assertTrue(tracker.needAnalyse(new UniFaceFeature[] {face(0, 0, 100)}));
+    }
+
+    @Test
+    public void needAnalyse_tracksByIou() {
+        UniFaceTracker tracker = new UniFaceTracker(100, 0.4f, 1);
+        tracker.onAnalysed(new UniFaceFeature[] {face(0, 0, 100)});
+        // 交并比约0.67
+        assertFalse(tracker.needAnalyse(new UniFaceFeature[] {face(20, 0, 100)}));
+        UniFaceFeature[] propagated = tracker.propagate(new UniFaceFeature[] {face(20, 0, 100)});
+        assertEquals(1, propagated.length);
+        assertEquals(Integer.valueOf(1), propagated[0].getFaceId());
+        // 交集与大框之比为0.5，交并比只有0.33，视为跟丢
+        assertTrue(tracker.needAnalyse(new UniFaceFeature[] {face(70, 0, 100)}));
+    }
+
+    @Test
+    public void onDetected_reusesTrackFeatures() {
+        UniFaceTracker tracker = new UniFaceTracker(1, 0.4f, 1);
+        UniFaceFeature[] first = {face(0, 0, 100), face(300, 0, 100)};
+        assertEquals(2, tracker.onDetected(first));
+        assertEquals(Integer.valueOf(1), first[0].getFaceId());
+        assertEquals(Integer.valueOf(2), first[1].getFaceId());
+        byte[] code = {1, 2, 3};
+        first[0].setFeatureCode(code);
+
+        // 第一个人脸已有特征值，第二个人脸还没有提取（如被质量门限拒绝），第三个是新人脸
+        UniFaceFeature[] second = {face(305, 5, 100), face(10, 0, 100), face(600, 0, 100)};
+        assertEquals(2, tracker.onDetected(second));
+        assertEquals(Integer.valueOf(2), second[0].getFaceId());
+        assertEquals(Integer.valueOf(1), second[1].getFaceId());
+        assertEquals(Integer.valueOf(3), second[2].getFaceId());
+        assertSame(code, second[1].getFeatureCode());
+        assertNull(second[0].getFeatureCode());
+        assertEquals(1, tracker.getReusedFeatures());
+
+        // 之前帧中的人脸延后提取出特征值，交给它所在的跟踪
+        UniFaceFeature late = face(300, 0, 100);
+        late.setFaceId(2);
+        late.setFeatureCode(new byte[] {4});
+        tracker.onExtracted(late);
+        UniFaceFeature[] third = {face(10, 0, 100), face(305, 5, 100), face(600, 0, 100)};
+        assertEquals(1, tracker.onDetected(third));
+        assertSame(late.getFeatureCode(), third[1].getFeatureCode());
+        assertEquals(3, tracker.getReusedFeatures());
+    }
+}
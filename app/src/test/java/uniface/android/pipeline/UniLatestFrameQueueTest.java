@@ -0,0 +1,92 @@
+package uniface.android.pipeline;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 新帧优先交接队列的替换、回收和阻塞唤醒测试
+ */
+public class UniLatestFrameQueueTest {
+    /**
+     * 等待线程进入阻塞状态
+     */
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        for (int i = 0; i < 100 && thread.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, thread.getState());
+    }
+
+    @Test
+    public void offer_newestReplacesPendingAndReturnsIt() {
+        UniLatestFrameQueue<String> queue = new UniLatestFrameQueue<String>(0);
+        assertNull(queue.offer("a"));
+        // 容量为1，新帧替换未取走的帧，被替换的帧返回给生产者回收
+        assertEquals("a", queue.offer("b"));
+        assertEquals("b", queue.offer("c"));
+        assertEquals(1, queue.size());
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals("c", queue.take());
+        assertNull(queue.poll());
+        assertNull(queue.offer("d"));
+        assertEquals(2, queue.getDroppedCount());
+
+        // 容量大于1时按放入顺序取出，满时丢弃最旧的
+        queue = new UniLatestFrameQueue<String>(2);
+        assertNull(queue.offer("a"));
+        assertNull(queue.offer("b"));
+        assertEquals("a", queue.offer("c"));
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.poll());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void take_wakesOnOffer() throws InterruptedException {
+        final UniLatestFrameQueue<String> queue = new UniLatestFrameQueue<String>(1);
+        final String[] taken = new String[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                taken[0] = queue.take();
+            }
+        });
+        consumer.start();
+        awaitWaiting(consumer);
+        assertNull(queue.offer("a"));
+        consumer.join(1000);
+        assertFalse(consumer.isAlive());
+        assertEquals("a", taken[0]);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void take_wakesOnClose() throws InterruptedException {
+        final UniLatestFrameQueue<String> queue = new UniLatestFrameQueue<String>(1);
+        final String[] taken = {"none"};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                taken[0] = queue.take();
+            }
+        });
+        consumer.start();
+        awaitWaiting(consumer);
+        queue.close();
+        consumer.join(1000);
+        assertFalse(consumer.isAlive());
+        assertNull(taken[0]);
+
+        // 关闭以后放入的帧直接退回，关闭前剩余的帧只能通过poll()回收
+        assertEquals("a", queue.offer("a"));
+        queue.open();
+        assertNull(queue.offer("b"));
+        queue.close();
+        assertNull(queue.take());
+        assertEquals("b", queue.poll());
+        queue.open();
+        assertNull(queue.offer("c"));
+        assertEquals("c", queue.take());
+    }
+}
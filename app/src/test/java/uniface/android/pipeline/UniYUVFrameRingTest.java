@@ -0,0 +1,150 @@
+package uniface.android.pipeline;
+
+import org.junit.Test;
+
+import uniimage.UniYUVImage;
+
+import static org.junit.Assert.*;
+
+/**
+ * YUV帧图缓存环的槽位复用、满时覆盖、归还和关闭测试
+ */
+public class UniYUVFrameRingTest {
+    private static UniYUVImage frame(int width, int height, int value) {
+        UniYUVImage image = new UniYUVImage(UniYUVImage.NV21, width, height);
+        image.getImageData()[0] = (byte) value;
+        image.setOrientation(90);
+        return image;
+    }
+
+    @Test
+    public void slotReuse_copiesIntoRecycledData() {
+        UniYUVFrameRing ring = new UniYUVFrameRing(3);
+        UniYUVImage source = frame(8, 4, 1);
+        assertTrue(ring.offer(source, 100));
+        UniYUVFrameRing.Frame first = ring.poll();
+        assertNotNull(first);
+        assertEquals(1, first.getSequence());
+        assertEquals(100, first.getTimestamp());
+        assertEquals(1, first.getImage().getImageData()[0]);
+        assertEquals(Integer.valueOf(90), first.getImage().getOrientation());
+        // 拷贝进槽位，不引用抓帧器的数据
+        assertFalse(source.getImageData() == first.getImage().getImageData());
+        byte[] data = first.getImage().getImageData();
+        ring.release(first);
+        assertNull(ring.poll());
+
+        // 取走即归还时总是复用同一个空闲槽位，尺寸不变时不重新分配
+        for (int i = 2; i <= 10; i++) {
+            assertTrue(ring.offer(frame(8, 4, i), i * 100));
+            UniYUVFrameRing.Frame frame = ring.poll();
+            assertSame(first, frame);
+            assertSame(data, frame.getImage().getImageData());
+            assertEquals(i, frame.getSequence());
+            assertEquals(i, frame.getImage().getImageData()[0]);
+            ring.release(frame);
+        }
+        // 尺寸变化时才重新分配
+        assertTrue(ring.offer(frame(16, 8, 11), 1100));
+        UniYUVFrameRing.Frame frame = ring.poll();
+        assertEquals(16 * 8 * 3 / 2, frame.getImage().getImageData().length);
+        assertEquals(16, frame.getImage().getWidth());
+        ring.release(frame);
+        assertEquals(11, ring.getOfferedCount());
+        assertEquals(11, ring.getTakenCount());
+        assertEquals(0, ring.getDroppedCount());
+        assertEquals(0, ring.getOverwrittenCount());
+    }
+
+    @Test
+    public void full_overwritesOldestAndTakesNewest() {
+        UniYUVFrameRing ring = new UniYUVFrameRing(1);
+        assertEquals(3, ring.getCapacity());
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(ring.offer(frame(8, 4, i), i));
+        }
+        // 没有空闲槽位，覆盖最旧的第1帧
+        assertTrue(ring.offer(frame(8, 4, 4), 4));
+        assertEquals(1, ring.getOverwrittenCount());
+        UniYUVFrameRing.Frame newest = ring.poll();
+        assertEquals(4, newest.getSequence());
+        assertEquals(4, newest.getImage().getImageData()[0]);
+        // 比取走的帧更早的第2、3帧被直接释放
+        assertEquals(2, ring.getDroppedCount());
+        assertNull(ring.poll());
+
+        // 消费者持有一帧时，其余槽位照常覆盖
+        for (int i = 5; i <= 8; i++) {
+            assertTrue(ring.offer(frame(8, 4, i), i));
+        }
+        assertEquals(3, ring.getOverwrittenCount());
+        assertEquals(4, newest.getImage().getImageData()[0]);
+        ring.release(newest);
+        UniYUVFrameRing.Frame frame = ring.poll();
+        assertEquals(8, frame.getSequence());
+        assertEquals(3, ring.getDroppedCount());
+
+        // 所有槽位都被消费者持有时丢弃新帧
+        assertTrue(ring.offer(frame(8, 4, 9), 9));
+        assertTrue(ring.offer(frame(8, 4, 10), 10));
+        UniYUVFrameRing.Frame second = ring.poll();
+        assertEquals(10, second.getSequence());
+        assertEquals(4, ring.getDroppedCount());
+        assertTrue(ring.offer(frame(8, 4, 11), 11));
+        UniYUVFrameRing.Frame third = ring.poll();
+        assertEquals(11, third.getSequence());
+        assertFalse(ring.offer(frame(8, 4, 12), 12));
+        assertEquals(5, ring.getDroppedCount());
+        assertEquals(12, ring.getOfferedCount());
+        ring.release(second);
+        assertTrue(ring.offer(frame(8, 4, 13), 13));
+        assertEquals(12, ring.poll().getSequence());
+    }
+
+    @Test
+    public void releaseAndClose() throws InterruptedException {
+        UniYUVFrameRing ring = new UniYUVFrameRing(3);
+        ring.release(null);
+        // 阻塞的消费者被新帧唤醒
+        final UniYUVFrameRing.Frame[] taken = new UniYUVFrameRing.Frame[2];
+        final UniYUVFrameRing waitingRing = ring;
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                taken[0] = waitingRing.take();
+                waitingRing.release(taken[0]);
+                taken[1] = waitingRing.take();
+            }
+        });
+        consumer.start();
+        Thread.sleep(50);
+        assertTrue(ring.offer(frame(8, 4, 1), 1));
+        for (int i = 0; i < 100 && (taken[0] == null || consumer.getState() != Thread.State.WAITING); i++) {
+            Thread.sleep(10);
+        }
+        // 消费者已取走第1帧并再次阻塞
+        assertEquals(Thread.State.WAITING, consumer.getState());
+        assertNotNull(taken[0]);
+        assertEquals(1, taken[0].getSequence());
+        // 关闭唤醒阻塞在take()中的消费者
+        ring.close();
+        consumer.join(1000);
+        assertFalse(consumer.isAlive());
+        assertNull(taken[1]);
+        assertTrue(ring.isClosed());
+        assertFalse(ring.offer(frame(8, 4, 2), 2));
+        assertEquals(1, ring.getOfferedCount());
+        assertNull(ring.take());
+
+        // 重新开放时丢弃关闭前未处理的帧
+        ring.open();
+        assertTrue(ring.offer(frame(8, 4, 3), 3));
+        ring.close().open();
+        assertNull(ring.poll());
+        assertTrue(ring.offer(frame(8, 4, 4), 4));
+        UniYUVFrameRing.Frame frame = ring.take();
+        assertEquals(4, frame.getImage().getImageData()[0]);
+        ring.release(frame);
+        assertNull(ring.poll());
+    }
+}
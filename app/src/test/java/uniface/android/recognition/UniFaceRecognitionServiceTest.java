@@ -0,0 +1,75 @@
+package uniface.android.recognition;
+
+import org.junit.Test;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uniface.UniFaceAnalysisItem;
+import uniface.UniFaceEngine;
+import uniface.UniFaceEngineFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * 识别线程等待人脸引擎工厂的唤醒测试
+ */
+public class UniFaceRecognitionServiceTest {
+    /**
+     * 总是创建失败的工厂，记录创建次数
+     */
+    private static class FailingFactory implements UniFaceEngineFactory {
+        final AtomicInteger created = new AtomicInteger();
+        final CountDownLatch createdLatch = new CountDownLatch(1);
+        @Override
+        public Properties getPropertiesForAutoOpen() {
+            return null;
+        }
+        @Override
+        public UniFaceEngineFactory setPropertiesForAutoOpen(Properties properties) {
+            return this;
+        }
+        @Override
+        public UniFaceAnalysisItem[] getAnalysisItemsForAutoOpen() {
+            return null;
+        }
+        @Override
+        public UniFaceEngineFactory setAnalysisItemsForAutoOpen(UniFaceAnalysisItem[] items) {
+            return this;
+        }
+        @Override
+        public UniFaceEngine createEngine(boolean autoOpen) {
+            this.created.incrementAndGet();
+            this.createdLatch.countDown();
+            return null;
+        }
+        @Override
+        public UniFaceEngineFactory destoryEngine(UniFaceEngine engine) {
+            return this;
+        }
+    }
+
+    @Test
+    public void recognitionThread_wakesOnSetFactory() throws InterruptedException {
+        UniFaceRecognitionService service = new UniFaceRecognitionService().setRecognitionThreads(2);
+        service.start();
+        try {
+            FailingFactory first = new FailingFactory();
+            service.setFactory(first);
+            assertTrue(first.createdLatch.await(1, TimeUnit.SECONDS));
+            // 没能创建引擎时挂起等待新的工厂，不反复重试
+            Thread.sleep(100);
+            assertTrue(first.created.get() <= 2);
+            FailingFactory second = new FailingFactory();
+            service.setFactory(second);
+            assertTrue(second.createdLatch.await(1, TimeUnit.SECONDS));
+            Thread.sleep(100);
+            assertTrue(second.created.get() <= 2);
+            assertTrue(first.created.get() <= 2);
+        } finally {
+            service.stop();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package uniface.android.recognition;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 自适应跳帧控制器对分析耗时、帧间隔变化的响应测试
+ */
+public class UniFrameSkipControllerTest {
+    private final static long MS = 1000000L;
+
+    /**
+     * 按固定间隔到达count帧，每帧完成一次固定耗时的分析，使加权平均收敛到给定值
+     * @return 最后一帧的到达时间
+     */
+    private static long feed(UniFrameSkipController controller, long start, long intervalMs, long analyseMs, int count) {
+        long time = start;
+        for (int i = 0; i < count; i++) {
+            time += intervalMs * MS;
+            controller.onFrameArrived(time);
+            controller.onAnalysed(analyseMs * MS);
+        }
+        return time;
+    }
+
+    @Test
+    public void noStatistics_keepsDefaults() {
+        UniFrameSkipController controller = new UniFrameSkipController(200, 8);
+        assertEquals(0, controller.getSkipFrames());
+        assertEquals(8, controller.getMaxQueue());
+        controller.onAnalysed(80 * MS);
+        controller.onFrameArrived(MS);
+        // 只有一帧时没有帧间隔
+        assertEquals(0, controller.getSkipFrames());
+        assertEquals(8, controller.getMaxQueue());
+        assertEquals(0, controller.getAdjustCount());
+        assertEquals(200, controller.getTargetLatency());
+        // 队列深度至少为2
+        assertEquals(2, new UniFrameSkipController(200, 0).getMaxQueue());
+    }
+
+    @Test
+    public void slowerAnalyse_skipsMoreAndShortensQueue() {
+        UniFrameSkipController controller = new UniFrameSkipController(200, 8);
+        // 30帧/秒，分析20毫秒跟得上，不跳帧；目标延迟内最多积压(200-20)/33+1帧
+        long time = feed(controller, 0, 33, 20, 50);
+        assertEquals(33 * MS, controller.getIntervalNanos());
+        assertEquals(20 * MS, controller.getAnalyseNanos());
+        assertEquals(0, controller.getSkipFrames());
+        assertEquals(6, controller.getMaxQueue());
+        assertTrue(controller.isTargetReachable());
+
+        // 分析变慢到80毫秒：每3帧分析1帧，80/(3*33*0.9)<1
+        time = feed(controller, time, 33, 80, 50);
+        assertEquals(2, controller.getSkipFrames());
+        assertEquals(4, controller.getMaxQueue());
+        assertEquals((2 * 33 + 80) * MS, controller.getEstimatedLatency(), MS);
+        assertTrue(controller.isTargetReachable());
+
+        // 分析耗时超过目标延迟：跳帧数受队列上限约束，目标不可达
+        feed(controller, time, 33, 300, 50);
+        assertEquals(8, controller.getMaxQueue());
+        assertEquals(7, controller.getSkipFrames());
+        assertFalse(controller.isTargetReachable());
+    }
+
+    @Test
+    public void longerInterval_skipsLess() {
+        UniFrameSkipController controller = new UniFrameSkipController(200, 8);
+        long time = feed(controller, 0, 33, 80, 50);
+        assertEquals(2, controller.getSkipFrames());
+        long adjusted = controller.getAdjustCount();
+
+        // 帧率降到15帧/秒：80/(2*66*0.9)<1，跳1帧；(200-80)/66+1=2
+        time = feed(controller, time, 66, 80, 50);
+        assertEquals(1, controller.getSkipFrames());
+        assertEquals(2, controller.getMaxQueue());
+        assertTrue(controller.getAdjustCount() > adjusted);
+
+        // 超过1秒的间隔视为暂停，不影响统计
+        long interval = controller.getIntervalNanos();
+        assertEquals(66 * MS, interval, MS);
+        controller.onFrameArrived(time + 5000 * MS);
+        assertEquals(interval, controller.getIntervalNanos());
+
+        // 切换视频源后重新统计
+        controller.reset();
+        assertEquals(0, controller.getSkipFrames());
+        assertEquals(8, controller.getMaxQueue());
+        assertEquals(0, controller.getIntervalNanos());
+        controller.onFrameArrived(1);
+        assertEquals(0, controller.getIntervalNanos());
+    }
+
+    @Test
+    public void parallelismAndUtilisation_changeSkip() {
+        UniFrameSkipController controller = new UniFrameSkipController(200, 8);
+        feed(controller, 0, 33, 80, 50);
+        assertEquals(2, controller.getSkipFrames());
+        // 两个引擎并发，每个引擎40毫秒分析一帧
+        controller.setParallelism(2);
+        assertEquals(1, controller.getSkipFrames());
+        // 利用率上限放宽到1：40/(33*2)<1；收紧到0.5：40/(33*0.5)>2
+        controller.setUtilisation(1f);
+        assertEquals(1, controller.getSkipFrames());
+        controller.setUtilisation(0.5f);
+        assertEquals(2, controller.getSkipFrames());
+        // 无效值恢复默认的0.9
+        controller.setUtilisation(0f);
+        assertEquals(1, controller.getSkipFrames());
+    }
+}
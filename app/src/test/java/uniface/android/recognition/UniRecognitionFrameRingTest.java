@@ -0,0 +1,120 @@
+package uniface.android.recognition;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import univideo.UniVideoFrame;
+
+import static org.junit.Assert.*;
+
+/**
+ * 识别帧环在跳帧数、队列深度变化时的认领测试
+ */
+public class UniRecognitionFrameRingTest {
+    private final static long MS = 1000000L;
+
+    private static UniVideoFrame frame(int index, long timestamp) {
+        UniVideoFrame frame = new UniVideoFrame();
+        frame.setIndex(index);
+        frame.setTimestamp(timestamp);
+        return frame;
+    }
+    /**
+     * 按固定的帧间隔和分析耗时驱动控制器，直到指数加权平均收敛
+     */
+    private static long drive(UniFrameSkipController controller, long now, long intervalMs, long analyseMs) {
+        for (int i = 0; i < 100; i++) {
+            now += intervalMs * MS;
+            controller.onFrameArrived(now);
+            controller.onAnalysed(analyseMs * MS);
+        }
+        return now;
+    }
+    /**
+     * 在新线程中认领一帧，返回认领到的帧
+     */
+    private static Thread claimAsync(final UniRecognitionFrameRing ring, final UniRecognitionFrameRing.SkipFrames skipFrames,
+                                     final AtomicReference<UniRecognitionFrameRing.Entry> claimed) {
+        Thread worker = new Thread() {
+            @Override
+            public void run() {
+                claimed.set(ring.claim(skipFrames));
+            }
+        };
+        worker.start();
+        return worker;
+    }
+    private static void waitParked(Thread worker) throws InterruptedException {
+        for (int i = 0; i < 200 && worker.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(5);
+        }
+        assertEquals(Thread.State.WAITING, worker.getState());
+    }
+
+    @Test
+    public void claim_afterQueueShrinksWhileParked() throws Exception {
+        final UniFrameSkipController controller = new UniFrameSkipController(300, 30);
+        long now = drive(controller, 0, 33, 200);
+        assertEquals(6, controller.getSkipFrames());
+        assertEquals(7, controller.getMaxQueue());
+
+        UniRecognitionFrameRing ring = new UniRecognitionFrameRing(32);
+        AtomicReference<UniRecognitionFrameRing.Entry> claimed = new AtomicReference<UniRecognitionFrameRing.Entry>();
+        Thread worker = claimAsync(ring, new UniRecognitionFrameRing.SkipFrames() {
+            @Override
+            public int getSkipFrames() {
+                return controller.getSkipFrames();
+            }
+        }, claimed);
+        try {
+            // 识别线程以skip=6挂起，此后帧间隔变长，控制器把队列深度缩小到5
+            waitParked(worker);
+            now = drive(controller, now, 50, 200);
+            assertEquals(4, controller.getSkipFrames());
+            assertEquals(5, controller.getMaxQueue());
+            for (int i = 0; i < 20; i++) {
+                ring.offer(null, frame(i, i * 50), now + i * 50 * MS, controller.getMaxQueue());
+            }
+            worker.join(2000);
+            assertNotNull(claimed.get());
+            assertEquals(4, claimed.get().getSkipped());
+            assertTrue(claimed.get().getFrame().getIndex() >= 4);
+        } finally {
+            ring.close();
+            worker.join(2000);
+        }
+    }
+
+    @Test
+    public void claim_skipLargerThanQueue_isClamped() throws Exception {
+        UniRecognitionFrameRing ring = new UniRecognitionFrameRing(32);
+        AtomicReference<UniRecognitionFrameRing.Entry> claimed = new AtomicReference<UniRecognitionFrameRing.Entry>();
+        // 固定的跳帧数大于生产者的队列深度
+        Thread worker = claimAsync(ring, new UniRecognitionFrameRing.SkipFrames() {
+            @Override
+            public int getSkipFrames() {
+                return 6;
+            }
+        }, claimed);
+        try {
+            waitParked(worker);
+            for (int i = 0; i < 3; i++) {
+                ring.offer(null, frame(i, i * 33), i * 33 * MS, 5);
+            }
+            // 积压不足一组时继续等待
+            Thread.sleep(50);
+            assertNull(claimed.get());
+            for (int i = 3; i < 10; i++) {
+                ring.offer(null, frame(i, i * 33), i * 33 * MS, 5);
+            }
+            worker.join(2000);
+            assertNotNull(claimed.get());
+            assertEquals(4, claimed.get().getSkipped());
+            assertEquals(4, ring.getSkippedCount());
+        } finally {
+            ring.close();
+            worker.join(2000);
+        }
+    }
+}
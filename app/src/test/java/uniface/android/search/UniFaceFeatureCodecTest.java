@@ -0,0 +1,293 @@
+package uniface.android.search;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import uniface.UniFaceFeature;
+import uniface.UniFaceGender;
+import uniimage.UniPoint;
+import uniimage.UniRGBImage;
+import uniimage.UniRect;
+
+import static org.junit.Assert.*;
+import static uniface.android.search.UniHnswFaceSearcherTest.feature;
+import static uniface.android.search.UniHnswFaceSearcherTest.syntheticEmbeddings;
+
+/**
+ * UniFaceFeatureCodec编解码的完整性及流式读写测试
+ */
+public class UniFaceFeatureCodecTest {
+    private static UniFaceFeature fullFeature(Object keyId, float[] vector, Random random) {
+        UniFaceFeature feature = feature(keyId, vector);
+        feature.setRectangle(new UniRect(random.nextInt(100), random.nextInt(100), 120, 140));
+        feature.setMouthPoint(new UniPoint(60, 120));
+        feature.setLeftEyePoint(new UniPoint(30, 50));
+        feature.setRightEyePoint(new UniPoint(90, 50));
+        feature.setScore(random.nextInt(100));
+        feature.setClarity(random.nextFloat());
+        feature.setOrient(90);
+        feature.setFaceId(random.nextInt(1000));
+        feature.setPitch(-3.5f);
+        feature.setYaw(12.25f);
+        feature.setRoll(0f);
+        feature.setGender(UniFaceGender.Female);
+        feature.setAge(31);
+        feature.setLiveness(true);
+        feature.setTag("访客-" + keyId);
+        // 平滑的小图，接近真实人脸小图的可压缩性
+        UniRGBImage image = new UniRGBImage(UniRGBImage.RGB, 56, 64);
+        byte[] data = image.getImageData();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ((i / 3 % 56) * 2 + (i / 168) + random.nextInt(4));
+        }
+        feature.setFaceImage(image);
+        return feature;
+    }
+    private static void assertFeatureEquals(UniFaceFeature expected, UniFaceFeature actual, boolean faceImage) {
+        assertEquals(expected.getKeyId(), actual.getKeyId());
+        assertArrayEquals(expected.getFeatureCode(), actual.getFeatureCode());
+        assertEquals(expected.getPolygon() == null, actual.getPolygon() == null);
+        if (expected.getPolygon() != null) {
+            assertEquals(expected.getPolygon().getPoints().size(), actual.getPolygon().getPoints().size());
+            for (int i = 0; i < expected.getPolygon().getPoints().size(); i++) {
+                assertPointEquals(expected.getPolygon().getPoints().get(i), actual.getPolygon().getPoints().get(i));
+            }
+        }
+        assertPointEquals(expected.getMouthPoint(), actual.getMouthPoint());
+        assertPointEquals(expected.getLeftEyePoint(), actual.getLeftEyePoint());
+        assertPointEquals(expected.getRightEyePoint(), actual.getRightEyePoint());
+        assertEquals(expected.getScore(), actual.getScore());
+        assertEquals(expected.getClarity(), actual.getClarity());
+        assertEquals(expected.getOrient(), actual.getOrient());
+        assertEquals(expected.getFaceId(), actual.getFaceId());
+        assertEquals(expected.getPitch(), actual.getPitch());
+        assertEquals(expected.getYaw(), actual.getYaw());
+        assertEquals(expected.getRoll(), actual.getRoll());
+        assertEquals(expected.getGender(), actual.getGender());
+        assertEquals(expected.getAge(), actual.getAge());
+        assertEquals(expected.getLiveness(), actual.getLiveness());
+        assertEquals(expected.getTag(), actual.getTag());
+        if (!faceImage || expected.getFaceImage() == null) {
+            assertNull(actual.getFaceImage());
+        } else {
+            assertSame(expected.getFaceImage().getType(), actual.getFaceImage().getType());
+            assertEquals(expected.getFaceImage().getWidth(), actual.getFaceImage().getWidth());
+            assertEquals(expected.getFaceImage().getHeight(), actual.getFaceImage().getHeight());
+            assertArrayEquals(expected.getFaceImage().getImageData(), actual.getFaceImage().getImageData());
+        }
+    }
+    private static void assertPointEquals(UniPoint expected, UniPoint actual) {
+        assertEquals(expected == null, actual == null);
+        if (expected != null) {
+            assertEquals(expected.x, actual.x);
+            assertEquals(expected.y, actual.y);
+        }
+    }
+
+    @Test
+    public void batch_roundTrip() {
+        float[][] vectors = syntheticEmbeddings(20, 1, 0f, 3);
+        Random random = new Random(4);
+        Object[] keyIds = {"张三", 7, 1L << 40, null};
+        UniFaceFeature[] features = new UniFaceFeature[vectors.length + 1];
+        for (int i = 0; i < vectors.length; i++) {
+            features[i] = fullFeature(keyIds[i % keyIds.length], vectors[i], random);
+        }
+        // 只有默认值的特征
+        features[vectors.length] = new UniFaceFeature();
+        UniFaceFeatureCodec codec = new UniFaceFeatureCodec();
+        ByteBuffer batch = codec.encodeBatch(features);
+        UniFaceFeature[] decoded = new UniFaceFeatureCodec().decodeBatch(batch);
+        assertFalse(batch.hasRemaining());
+        assertEquals(features.length, decoded.length);
+        for (int i = 0; i < features.length; i++) {
+            assertFeatureEquals(features[i], decoded[i], true);
+        }
+        // 不带人脸小图
+        UniFaceFeatureCodec withoutImage = new UniFaceFeatureCodec(false, 1);
+        ByteBuffer small = withoutImage.encodeBatch(features);
+        assertTrue(small.limit() < batch.limit());
+        decoded = withoutImage.decodeBatch(small);
+        for (int i = 0; i < features.length; i++) {
+            assertFeatureEquals(features[i], decoded[i], false);
+        }
+        // 不压缩人脸小图
+        UniFaceFeatureCodec raw = new UniFaceFeatureCodec(true, 0);
+        ByteBuffer rawBatch = raw.encodeBatch(features);
+        decoded = raw.decodeBatch(rawBatch);
+        for (int i = 0; i < features.length; i++) {
+            assertFeatureEquals(features[i], decoded[i], true);
+        }
+        // 平滑的人脸小图压缩以后更小
+        assertTrue(batch.limit() < rawBatch.limit());
+        codec.close();
+        codec.close();
+        withoutImage.close();
+        raw.close();
+    }
+
+    @Test
+    public void streaming_throughSmallBuffer() {
+        float[][] vectors = syntheticEmbeddings(50, 1, 0f, 8);
+        Random random = new Random(9);
+        UniFaceFeature[] features = new UniFaceFeature[vectors.length];
+        for (int i = 0; i < vectors.length; i++) {
+            features[i] = fullFeature(i, vectors[i], random);
+        }
+        UniFaceFeatureCodec encoder = new UniFaceFeatureCodec();
+        UniFaceFeatureCodec decoder = new UniFaceFeatureCodec();
+        // 模拟每次只能传输一小段的通道：发送缓冲区写满就按小块交给接收缓冲区，接收方能解码多少解码多少
+        ByteBuffer send = ByteBuffer.allocate(16 * 1024);
+        ByteBuffer receive = ByteBuffer.allocate(16 * 1024);
+        int encoded = 0;
+        int decoded = 0;
+        while (decoded < features.length) {
+            encoded += encoder.encode(features, encoded, features.length - encoded, send);
+            send.flip();
+            int chunk = Math.min(send.remaining(), Math.min(receive.remaining(), 777));
+            ByteBuffer slice = send.duplicate();
+            slice.limit(slice.position() + chunk);
+            receive.put(slice);
+            send.position(send.position() + chunk);
+            send.compact();
+            receive.flip();
+            UniFaceFeature feature;
+            while ((feature = decoder.decode(receive)) != null) {
+                assertFeatureEquals(features[decoded], feature, true);
+                decoded++;
+            }
+            receive.compact();
+        }
+        assertEquals(features.length, encoded);
+        assertEquals(0, receive.position());
+
+        // 空间不足时不写入
+        ByteBuffer tiny = ByteBuffer.allocate(64);
+        assertFalse(encoder.encode(features[0], tiny));
+        assertEquals(0, tiny.position());
+    }
+
+    @Test
+    public void corruptRecord_leavesBufferUnchanged() {
+        UniFaceFeatureCodec codec = new UniFaceFeatureCodec();
+        UniFaceFeature[] features = {
+                fullFeature(1, syntheticEmbeddings(1, 1, 0f, 10)[0], new Random(11)),
+                fullFeature(2, syntheticEmbeddings(1, 1, 0f, 12)[0], new Random(13))};
+        ByteBuffer batch = codec.encodeBatch(features);
+        int first = 8;
+        int second = first + 4 + batch.getInt(first);
+        ByteBuffer in = batch.duplicate();
+        in.position(first);
+
+        // 声明的记录体长度小于实际字段：不能越过记录读入下一条记录
+        ByteBuffer shortened = copy(in);
+        shortened.putInt(first, Integer.reverseBytes(40));
+        assertDecodeFails(codec, shortened, first);
+        // 不支持的版本
+        ByteBuffer version = copy(in);
+        version.put(first + 4, (byte) 9);
+        assertDecodeFails(codec, version, first);
+        // 特征值长度为负
+        ByteBuffer negative = copy(in);
+        negative.putInt(first + 4 + 1 + 4 + 1 + 4, -1);
+        assertDecodeFails(codec, negative, first);
+        // 记录长度为负
+        ByteBuffer length = copy(in);
+        length.putInt(first, -1);
+        assertDecodeFails(codec, length, first);
+
+        // 批量解码失败时回到批量头
+        ByteBuffer corrupted = copy(batch);
+        corrupted.put(second + 4, (byte) 9);
+        try {
+            codec.decodeBatch(corrupted);
+            fail("corrupted batch decoded");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(0, corrupted.position());
+        // 未损坏的记录照常解码
+        assertFeatureEquals(features[0], codec.decode(in), true);
+        assertEquals(second, in.position());
+        assertFeatureEquals(features[1], codec.decode(in), true);
+        assertFalse(in.hasRemaining());
+        codec.close();
+    }
+    @Test
+    public void corruptFaceImage_rejectedBeforeAllocating() {
+        UniFaceFeature feature = new UniFaceFeature();
+        feature.setKeyId(1);
+        feature.setGender(UniFaceGender.Female);
+        UniRGBImage image = new UniRGBImage(UniRGBImage.RGB, 16, 16);
+        byte[] data = image.getImageData();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i / 48);
+        }
+        feature.setFaceImage(image);
+        // 记录头(4) 版本(1) 位标志(4) keyId(5)以后依次为性别(1)、图片格式(1)、宽(4)、高(4)、存放方式(1)、原始长度(4)、存放长度(4)
+        int gender = 14;
+        int type = 15;
+        int dataLength = 25;
+        int length = 29;
+        UniFaceFeatureCodec raw = new UniFaceFeatureCodec(true, 0);
+        ByteBuffer rawRecord = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        assertTrue(raw.encode(feature, rawRecord));
+        rawRecord.flip();
+        UniFaceFeatureCodec deflate = new UniFaceFeatureCodec();
+        ByteBuffer deflateRecord = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        assertTrue(deflate.encode(feature, deflateRecord));
+        deflateRecord.flip();
+        assertTrue(deflateRecord.limit() < rawRecord.limit());
+        assertEquals(16, rawRecord.getInt(type + 1));
+        assertEquals(16, rawRecord.getInt(type + 5));
+        assertEquals(16 * 16 * 3, rawRecord.getInt(dataLength));
+        assertEquals(16 * 16 * 3, rawRecord.getInt(length));
+        assertEquals(16 * 16 * 3, deflateRecord.getInt(dataLength));
+        assertFeatureEquals(feature, raw.decode(copy(rawRecord)), true);
+        assertFeatureEquals(feature, deflate.decode(copy(deflateRecord)), true);
+
+        // 枚举序号越界
+        ByteBuffer corrupted = copy(rawRecord);
+        corrupted.put(gender, (byte) 100);
+        assertDecodeFails(raw, corrupted, 0);
+        corrupted = copy(rawRecord);
+        corrupted.put(type, (byte) -1);
+        assertDecodeFails(raw, corrupted, 0);
+        // 原始数据的长度与尺寸不符，即使过大也不会先分配
+        corrupted = copy(rawRecord).order(ByteOrder.LITTLE_ENDIAN);
+        corrupted.putInt(dataLength, Integer.MAX_VALUE);
+        corrupted.putInt(length, Integer.MAX_VALUE);
+        assertDecodeFails(raw, corrupted, 0);
+        corrupted = copy(rawRecord).order(ByteOrder.LITTLE_ENDIAN);
+        corrupted.putInt(dataLength, 16 * 16 * 3 - 1);
+        corrupted.putInt(length, 16 * 16 * 3 - 1);
+        assertDecodeFails(raw, corrupted, 0);
+        // 解压以后的长度超过尺寸
+        corrupted = copy(deflateRecord).order(ByteOrder.LITTLE_ENDIAN);
+        corrupted.putInt(dataLength, Integer.MAX_VALUE);
+        assertDecodeFails(deflate, corrupted, 0);
+        corrupted = copy(deflateRecord).order(ByteOrder.LITTLE_ENDIAN);
+        corrupted.putInt(dataLength, 16 * 16 * 3 + 1);
+        assertDecodeFails(deflate, corrupted, 0);
+        raw.close();
+        deflate.close();
+    }
+    private static ByteBuffer copy(ByteBuffer in) {
+        ByteBuffer copy = ByteBuffer.allocate(in.limit());
+        ByteBuffer source = in.duplicate();
+        source.position(0);
+        copy.put(source);
+        copy.position(in.position());
+        return copy;
+    }
+    private static void assertDecodeFails(UniFaceFeatureCodec codec, ByteBuffer in, int position) {
+        try {
+            codec.decode(in);
+            fail("corrupted record decoded");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(position, in.position());
+    }
+}
@@ -0,0 +1,92 @@
+package uniface.android.search;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import uniimage.util.UniImageUtil;
+
+import static org.junit.Assert.*;
+
+/**
+ * 特征向量解码、归一化和点积与逐项计算结果的对比测试
+ */
+public class UniFaceVectorUtilTest {
+    private static float[] random(int dim, Random random) {
+        float[] v = new float[dim];
+        for (int i = 0; i < dim; i++) {
+            v[i] = (float) random.nextGaussian();
+        }
+        return v;
+    }
+
+    @Test
+    public void dot_matchesScalarReference() {
+        Random random = new Random(1);
+        // 覆盖展开循环的各种余数以及向量在数组中的偏移
+        for (int dim = 1; dim <= 13; dim++) {
+            for (int offset = 0; offset < 3; offset++) {
+                float[] a = random(dim + offset, random);
+                float[] b = random(dim + 2 * offset, random);
+                double expected = 0;
+                for (int i = 0; i < dim; i++) {
+                    expected += (double) a[offset + i] * b[2 * offset + i];
+                }
+                assertEquals("dim " + dim, expected, UniFaceVectorUtil.dot(a, offset, b, 2 * offset, dim), 1e-4);
+            }
+        }
+        float[] a = random(512, random);
+        float[] b = random(512, random);
+        double expected = 0;
+        for (int i = 0; i < 512; i++) {
+            expected += (double) a[i] * b[i];
+        }
+        assertEquals(expected, UniFaceVectorUtil.dot(a, 0, b, 0, 512), 1e-3);
+    }
+
+    @Test
+    public void normalizedDot_matchesCosDistance() {
+        Random random = new Random(2);
+        for (int n = 0; n < 20; n++) {
+            float[] a = random(128, random);
+            float[] b = random(128, random);
+            byte[] ca = new byte[512];
+            byte[] cb = new byte[512];
+            UniImageUtil.floatsToBytes(a, ca);
+            UniImageUtil.floatsToBytes(b, cb);
+            float[] na = UniFaceVectorUtil.toNormalizedVector(ca, null);
+            float[] nb = UniFaceVectorUtil.toNormalizedVector(cb, new float[128]);
+            assertEquals(1f, UniFaceVectorUtil.dot(na, 0, na, 0, 128), 1e-5f);
+            assertEquals(UniImageUtil.cosDistance(a, b), UniFaceVectorUtil.dot(na, 0, nb, 0, 128), 1e-5f);
+        }
+    }
+
+    @Test
+    public void normalize_onlyTouchesRange() {
+        float[] v = {7, 3, 4, 0, 0, 9};
+        UniFaceVectorUtil.normalize(v, 1, 2);
+        assertArrayEquals(new float[] {7, 0.6f, 0.8f, 0, 0, 9}, v, 1e-6f);
+        // 零向量保持不变
+        UniFaceVectorUtil.normalize(v, 3, 2);
+        assertArrayEquals(new float[] {7, 0.6f, 0.8f, 0, 0, 9}, v, 0);
+    }
+
+    @Test
+    public void invalidFeatureCode_rejected() {
+        assertEquals(2, UniFaceVectorUtil.dimensionOf(new byte[8]));
+        for (byte[] code : new byte[][] {null, new byte[0], new byte[6]}) {
+            try {
+                UniFaceVectorUtil.dimensionOf(code);
+                fail("invalid feature code accepted");
+            } catch (IllegalArgumentException e) {
+                // 长度必须是4的正整数倍
+            }
+        }
+        try {
+            UniFaceVectorUtil.toNormalizedVector(new byte[8], new float[3]);
+            fail("dimension mismatch accepted");
+        } catch (IllegalArgumentException e) {
+            // 保存向量的数组长度与维数不一致
+        }
+    }
+}
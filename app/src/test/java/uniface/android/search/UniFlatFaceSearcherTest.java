@@ -0,0 +1,165 @@
+package uniface.android.search;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import uniface.UniFaceSearchResult;
+import uniimage.util.UniImageUtil;
+
+import static org.junit.Assert.*;
+import static uniface.android.search.UniHnswFaceSearcherTest.DIM;
+import static uniface.android.search.UniHnswFaceSearcherTest.feature;
+import static uniface.android.search.UniHnswFaceSearcherTest.syntheticEmbeddings;
+
+/**
+ * 连续存储搜索器的前K项排序、并列、删除换位测试
+ */
+public class UniFlatFaceSearcherTest {
+    /**
+     * 逐个计算余弦相似度，按相似度降序、相似度相同时按注册顺序排列
+     */
+    private static Integer[] reference(final float[][] vectors, final float[] query) {
+        Integer[] order = new Integer[vectors.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Float.compare(UniImageUtil.cosDistance(vectors[b], query), UniImageUtil.cosDistance(vectors[a], query));
+            }
+        });
+        return order;
+    }
+
+    @Test
+    public void searchTopK_matchesScalarReference() throws Exception {
+        float[][] vectors = syntheticEmbeddings(50, 4, 0.5f, 1);
+        UniFlatFaceSearcher searcher = new UniFlatFaceSearcher(0.8f);
+        for (int i = 0; i < vectors.length; i++) {
+            searcher.registerFaceFeature(feature(i, vectors[i]));
+        }
+        assertEquals(DIM, searcher.getDimension());
+        Random random = new Random(2);
+        for (int q = 0; q < 20; q++) {
+            float[] query = UniHnswFaceSearcherTest.noisy(vectors[random.nextInt(vectors.length)], 0.3f, random);
+            Integer[] expected = reference(vectors, query);
+            UniFaceSearchResult[] results = searcher.search(feature(null, query), 10);
+            assertEquals(10, results.length);
+            for (int i = 0; i < results.length; i++) {
+                assertEquals(expected[i], results[i].getFeature().getKeyId());
+                assertEquals(UniImageUtil.cosDistance(vectors[expected[i]], query), results[i].getSimilar(), 1e-5f);
+                assertEquals(results[i].getSimilar() >= 0.8f, results[i].getPass());
+                assertEquals(vectors.length, results[i].getSearchCount());
+                if (i > 0) {
+                    assertTrue(results[i - 1].getSimilar() >= results[i].getSimilar());
+                }
+            }
+            UniFaceSearchResult best = searcher.search(feature(null, query), null);
+            assertEquals(expected[0], best.getFeature().getKeyId());
+            assertTrue(best.isCompleted());
+        }
+    }
+
+    @Test
+    public void searchTopK_tiesAndLargeK() throws Exception {
+        float[][] vectors = syntheticEmbeddings(3, 1, 0f, 3);
+        UniFlatFaceSearcher searcher = new UniFlatFaceSearcher(0.9f);
+        // 同一向量以不同的keyId注册两次，并列的结果按注册顺序排列
+        searcher.registerFaceFeature(feature("a", vectors[0]));
+        searcher.registerFaceFeature(feature("b", vectors[1]));
+        searcher.registerFaceFeature(feature("a2", vectors[0]));
+        searcher.registerFaceFeature(feature("c", vectors[2]));
+        UniFaceSearchResult[] results = searcher.search(feature(null, vectors[0]), 2);
+        assertEquals("a", results[0].getFeature().getKeyId());
+        assertEquals("a2", results[1].getFeature().getKeyId());
+        assertEquals(results[0].getSimilar(), results[1].getSimilar(), 0);
+        assertTrue(results[1].getPass());
+
+        // K大于特征库时返回全部特征
+        results = searcher.search(feature(null, vectors[2]), 100);
+        assertEquals(4, results.length);
+        assertEquals("c", results[0].getFeature().getKeyId());
+        assertEquals(1f, results[0].getSimilar(), 1e-5f);
+        // 空特征库没有结果
+        assertEquals(0, new UniFlatFaceSearcher(0.9f).search(feature(null, vectors[0]), 5).length);
+    }
+
+    @Test
+    public void remove_movesLastIntoHole() throws Exception {
+        float[][] vectors = syntheticEmbeddings(6, 1, 0f, 4);
+        UniFlatFaceSearcher searcher = new UniFlatFaceSearcher(0.9f, 2, DIM);
+        for (int i = 0; i < vectors.length; i++) {
+            searcher.registerFaceFeature(feature("k" + i, vectors[i]));
+        }
+        assertEquals(6, searcher.getFaceFeatureCount());
+        // 删除中间的特征，最后一个特征移入被删除的位置
+        byte[] removed = searcher.removeFaceFeature("k1").getFeatureCode();
+        float[] expected = UniFaceVectorUtil.toNormalizedVector(feature(null, vectors[1]).getFeatureCode(), null);
+        float[] actual = new float[DIM];
+        UniImageUtil.floatsFromBytes(removed, actual);
+        assertArrayEquals(expected, actual, 1e-6f);
+        assertNull(searcher.removeFaceFeature("k1"));
+        assertEquals(5, searcher.getFaceFeatureCount());
+        assertEquals(-1, searcher.indexOf("k1"));
+        assertEquals(1, searcher.indexOf("k5"));
+        assertEquals("k5", searcher.getKeyId(1));
+        float[] moved = new float[DIM];
+        searcher.getVector(1, moved);
+        assertArrayEquals(UniFaceVectorUtil.toNormalizedVector(feature(null, vectors[5]).getFeatureCode(), null), moved, 0);
+        // 删除最后一个特征不需要换位
+        assertNotNull(searcher.removeFaceFeature("k4"));
+        assertEquals(3, searcher.indexOf("k3"));
+        assertEquals(4, searcher.getFaceFeatureCount());
+
+        for (int i : new int[] {0, 2, 3, 5}) {
+            UniFaceSearchResult result = searcher.search(feature(null, vectors[i]), null);
+            assertEquals("k" + i, result.getFeature().getKeyId());
+            assertEquals(4, result.getSearchCount());
+        }
+        UniFaceSearchResult[] results = searcher.search(feature(null, vectors[1]), 10);
+        assertEquals(4, results.length);
+        for (UniFaceSearchResult result : results) {
+            assertFalse("k1".equals(result.getFeature().getKeyId()));
+        }
+        // 删除以后可以重新注册，追加在末尾
+        searcher.registerFaceFeature(feature("k1", vectors[1]));
+        assertEquals(4, searcher.indexOf("k1"));
+        assertEquals("k1", searcher.search(feature(null, vectors[1]), null).getFeature().getKeyId());
+    }
+
+    @Test
+    public void invalidFeatures_rejected() throws Exception {
+        float[][] vectors = syntheticEmbeddings(2, 1, 0f, 5);
+        UniFlatFaceSearcher searcher = new UniFlatFaceSearcher(0.9f);
+        searcher.registerFaceFeature(feature("a", vectors[0]));
+        Object[][] cases = {
+                {"a", vectors[1]}, // keyId重复
+                {null, vectors[1]}, // keyId为空
+                {"b", new float[DIM / 2]}, // 维数不一致
+        };
+        for (Object[] c : cases) {
+            try {
+                searcher.registerFaceFeature(feature(c[0], (float[]) c[1]));
+                fail("registered " + c[0]);
+            } catch (IllegalArgumentException e) {
+                // 注册失败不改变特征库
+            }
+        }
+        try {
+            searcher.updateFaceFeature(feature("b", vectors[1]));
+            fail("updated unregistered keyId");
+        } catch (IllegalArgumentException e) {
+            // 只能更新已注册的特征
+        }
+        assertEquals(1, searcher.getFaceFeatureCount());
+        searcher.updateFaceFeature(feature("a", vectors[1]));
+        assertEquals(1f, searcher.search(feature(null, vectors[1]), null).getSimilar(), 1e-5f);
+        searcher.clear();
+        assertEquals(0, searcher.getFaceFeatureCount());
+        assertEquals(0, searcher.getVectorMemoryBytes());
+    }
+}
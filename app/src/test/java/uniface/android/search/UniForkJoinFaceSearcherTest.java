@@ -0,0 +1,131 @@
+package uniface.android.search;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import uniface.UniFaceFeature;
+import uniface.UniFaceSearchResult;
+
+import static org.junit.Assert.*;
+import static uniface.android.search.UniHnswFaceSearcherTest.feature;
+import static uniface.android.search.UniHnswFaceSearcherTest.noisy;
+import static uniface.android.search.UniHnswFaceSearcherTest.syntheticEmbeddings;
+
+/**
+ * 分区并行搜索器的归并结果、提前终止以及并发删除时的一致性测试
+ */
+public class UniForkJoinFaceSearcherTest {
+    @Test
+    public void partitionMerge_matchesFlatSearcher() throws Exception {
+        float[][] vectors = syntheticEmbeddings(1000, 1, 0f, 91);
+        UniFlatFaceSearcher flat = new UniFlatFaceSearcher(0.7f);
+        UniForkJoinFaceSearcher forkJoin = new UniForkJoinFaceSearcher(0.7f, 2, 64);
+        try {
+            for (int i = 0; i < vectors.length; i++) {
+                flat.registerFaceFeature(feature(i, vectors[i]));
+                forkJoin.registerFaceFeature(feature(i, vectors[i]));
+            }
+            Random random = new Random(92);
+            for (int i = 0; i < vectors.length; i += 7) {
+                flat.removeFaceFeature(i);
+                forkJoin.removeFaceFeature(i);
+            }
+            for (int i = 1; i < vectors.length; i += 11) {
+                if (i % 7 != 0) {
+                    float[] updated = noisy(vectors[i], 0.5f, random);
+                    flat.updateFaceFeature(feature(i, updated));
+                    forkJoin.updateFaceFeature(feature(i, updated));
+                }
+            }
+            assertEquals(flat.getFaceFeatureCount(), forkJoin.getFaceFeatureCount());
+            for (int q = 0; q < 50; q++) {
+                UniFaceFeature query = feature(null, noisy(vectors[random.nextInt(vectors.length)], 0.3f, random));
+                UniFaceSearchResult[] r1 = flat.search(query, 10);
+                UniFaceSearchResult[] r2 = forkJoin.search(query, 10);
+                assertEquals(r1.length, r2.length);
+                for (int i = 0; i < r1.length; i++) {
+                    assertEquals(r1[i].getFeature().getKeyId(), r2[i].getFeature().getKeyId());
+                    assertEquals(r1[i].getSimilar(), r2[i].getSimilar(), 1e-6f);
+                    assertEquals(r1[i].getPass(), r2[i].getPass());
+                }
+                assertEquals(flat.getFaceFeatureCount(), r2[0].getSearchCount());
+            }
+        } finally {
+            forkJoin.close();
+        }
+    }
+
+    @Test
+    public void passFound_stopsOtherPartitions() throws Exception {
+        float[][] vectors = syntheticEmbeddings(1024, 1, 0f, 93);
+        // 单线程时分区按从右到左的顺序扫描，最后一个分区最先扫描
+        UniForkJoinFaceSearcher forkJoin = new UniForkJoinFaceSearcher(0.9f, 1, 64);
+        try {
+            for (int i = 0; i < vectors.length; i++) {
+                forkJoin.registerFaceFeature(feature(i, vectors[i]));
+            }
+            UniFaceFeature query = feature(null, vectors[vectors.length - 1]);
+            UniFaceSearchResult result = forkJoin.search(query, null);
+            assertEquals(vectors.length - 1, result.getFeature().getKeyId());
+            assertTrue(result.getPass());
+            assertEquals(64, result.getSearchCount());
+
+            // 前K项搜索不提前终止
+            assertEquals(vectors.length, forkJoin.search(query, 3)[0].getSearchCount());
+            // 没有匹配通过的特征时扫描所有分区
+            result = forkJoin.search(feature(null, noisy(vectors[0], 2f, new Random(94))), null);
+            assertFalse(result.getPass());
+            assertEquals(vectors.length, result.getSearchCount());
+        } finally {
+            forkJoin.close();
+        }
+    }
+
+    @Test
+    public void concurrentRemove_neitherSkipsNorDuplicates() throws Exception {
+        final float[][] vectors = syntheticEmbeddings(20001, 1, 0f, 95);
+        final UniForkJoinFaceSearcher forkJoin = new UniForkJoinFaceSearcher(0.7f, 2, 1024);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        for (int i = 0; i < vectors.length; i++) {
+            forkJoin.registerFaceFeature(feature(i, vectors[i]));
+        }
+        // 反复删除、注册前面分区中的特征，删除时最后一个特征换位到前面的分区，注册时又回到最后
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int j = 0; !done.get(); j = (j + 1) % 1000) {
+                        forkJoin.removeFaceFeature(j);
+                        forkJoin.registerFaceFeature(feature(j, vectors[j]));
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        };
+        writer.start();
+        try {
+            UniFaceFeature query = feature(null, vectors[vectors.length - 1]);
+            for (int q = 0; q < 100; q++) {
+                UniFaceSearchResult[] results = forkJoin.search(query, vectors.length);
+                Set<Object> keys = new HashSet<Object>();
+                for (UniFaceSearchResult r : results) {
+                    assertTrue("scanned twice: " + r.getFeature().getKeyId(), keys.add(r.getFeature().getKeyId()));
+                }
+                // 最多缺少正在被删除、注册的一个特征
+                assertTrue("skipped: " + (vectors.length - keys.size()), keys.size() >= vectors.length - 1);
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+            forkJoin.close();
+        }
+        assertNull(error.get());
+    }
+}
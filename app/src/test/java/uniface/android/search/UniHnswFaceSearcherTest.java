@@ -0,0 +1,216 @@
+package uniface.android.search;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import uniface.UniFaceFeature;
+import uniface.UniFaceSearchResult;
+import uniimage.util.UniImageUtil;
+
+import static org.junit.Assert.*;
+
+/**
+ * HNSW搜索器与暴力搜索（UniFlatFaceSearcher）的召回率对比评估
+ */
+public class UniHnswFaceSearcherTest {
+    static final int DIM = 128;
+
+    /**
+     * 生成合成人脸特征：每个身份一个随机中心，各样本在中心附近加噪声，模拟同一人不同照片的特征分布
+     */
+    static float[][] syntheticEmbeddings(int identities, int samplesPerIdentity, float noise, long seed) {
+        Random random = new Random(seed);
+        float[][] vectors = new float[identities * samplesPerIdentity][DIM];
+        float[] center = new float[DIM];
+        for (int i = 0, n = 0; i < identities; i++) {
+            for (int d = 0; d < DIM; d++) {
+                center[d] = (float) random.nextGaussian();
+            }
+            for (int s = 0; s < samplesPerIdentity; s++, n++) {
+                for (int d = 0; d < DIM; d++) {
+                    vectors[n][d] = center[d] + noise * (float) random.nextGaussian();
+                }
+            }
+        }
+        return vectors;
+    }
+    static UniFaceFeature feature(Object keyId, float[] vector) {
+        UniFaceFeature feature = new UniFaceFeature();
+        feature.setKeyId(keyId);
+        byte[] featureCode = new byte[vector.length * 4];
+        UniImageUtil.floatsToBytes(vector, featureCode);
+        feature.setFeatureCode(featureCode);
+        return feature;
+    }
+    static float[] noisy(float[] vector, float noise, Random random) {
+        float[] v = vector.clone();
+        for (int d = 0; d < v.length; d++) {
+            v[d] += noise * (float) random.nextGaussian();
+        }
+        return v;
+    }
+    static float recall(UniFaceSearchResult[] expected, UniFaceSearchResult[] actual) {
+        Set<Object> keys = new HashSet<Object>();
+        for (UniFaceSearchResult r : expected) {
+            keys.add(r.getFeature().getKeyId());
+        }
+        int hit = 0;
+        for (UniFaceSearchResult r : actual) {
+            if (keys.contains(r.getFeature().getKeyId())) {
+                hit++;
+            }
+        }
+        return expected.length == 0 ? 1f : (float) hit / expected.length;
+    }
+
+    @Test
+    public void recallVsBruteForce() throws Exception {
+        float[][] vectors = syntheticEmbeddings(2000, 3, 0.6f, 1);
+        UniFlatFaceSearcher flat = new UniFlatFaceSearcher(0.7f);
+        UniHnswFaceSearcher hnsw = new UniHnswFaceSearcher(0.7f, 16, 100, 64);
+        for (int i = 0; i < vectors.length; i++) {
+            flat.registerFaceFeature(feature(i, vectors[i]));
+            hnsw.registerFaceFeature(feature(i, vectors[i]));
+        }
+        Random random = new Random(2);
+        int queries = 200;
+        int k = 10;
+        UniFaceFeature[] queryFeatures = new UniFaceFeature[queries];
+        UniFaceSearchResult[][] expected = new UniFaceSearchResult[queries][];
+        for (int q = 0; q < queries; q++) {
+            queryFeatures[q] = feature(null, noisy(vectors[random.nextInt(vectors.length)], 0.3f, random));
+            expected[q] = flat.search(queryFeatures[q], k);
+        }
+        float lastRecall = 0;
+        for (int ef : new int[] {16, 64, 200}) {
+            hnsw.setEfSearch(ef);
+            float recall = 0;
+            float top1 = 0;
+            long searchCount = 0;
+            for (int q = 0; q < queries; q++) {
+                UniFaceSearchResult[] actual = hnsw.search(queryFeatures[q], k);
+                recall += recall(expected[q], actual);
+                UniFaceSearchResult best = hnsw.search(queryFeatures[q], null);
+                top1 += expected[q][0].getFeature().getKeyId().equals(best.getFeature().getKeyId()) ? 1 : 0;
+                searchCount += best.getSearchCount();
+            }
+            recall /= queries;
+            top1 /= queries;
+            assertTrue("recall should not drop with larger efSearch", recall >= lastRecall - 0.01f);
+            lastRecall = recall;
+            if (ef >= 64) {
+                assertTrue("recall@" + k + " " + recall, recall >= 0.9f);
+                assertTrue("top1 " + top1, top1 >= 0.95f);
+            }
+            if (ef == 64) {
+                assertTrue("searchCount should be sub-linear", searchCount / queries < vectors.length / 3);
+            }
+        }
+    }
+
+    @Test
+    public void registerUpdateRemove() throws Exception {
+        float[][] vectors = syntheticEmbeddings(300, 1, 0f, 3);
+        UniHnswFaceSearcher hnsw = new UniHnswFaceSearcher(0.9f, 8, 50, 50);
+        for (int i = 0; i < vectors.length; i++) {
+            hnsw.registerFaceFeature(feature("k" + i, vectors[i]));
+        }
+        assertEquals(300, hnsw.getFaceFeatureCount());
+        UniFaceSearchResult result = hnsw.search(feature(null, vectors[7]), null);
+        assertEquals("k7", result.getFeature().getKeyId());
+        assertTrue(result.getPass());
+        assertTrue(result.isCompleted());
+
+        // 更新以后旧的特征值不再命中
+        hnsw.updateFaceFeature(feature("k7", vectors[8]));
+        result = hnsw.search(feature(null, vectors[7]), null);
+        assertFalse(result.getPass());
+        assertEquals(300, hnsw.getFaceFeatureCount());
+
+        assertNotNull(hnsw.removeFaceFeature("k8"));
+        assertNull(hnsw.removeFaceFeature("k8"));
+        result = hnsw.search(feature(null, vectors[8]), null);
+        assertEquals("k7", result.getFeature().getKeyId());
+        assertEquals(299, hnsw.getFaceFeatureCount());
+
+        // 删除超过一半以后在后台重建
+        for (int i = 0; i < 200; i++) {
+            hnsw.removeFaceFeature("k" + i);
+        }
+        assertEquals(100, hnsw.getFaceFeatureCount());
+        for (int i = 0; i < 100 && hnsw.getDeletedCount() >= 100; i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(hnsw.getDeletedCount() < 100);
+        for (int i = 200; i < 300; i++) {
+            assertEquals("k" + i, hnsw.search(feature(null, vectors[i]), null).getFeature().getKeyId());
+        }
+    }
+
+    @Test
+    public void deletedNodes_doNotTakeResultSlots() throws Exception {
+        float[][] vectors = syntheticEmbeddings(1000, 1, 0f, 5);
+        UniHnswFaceSearcher hnsw = new UniHnswFaceSearcher(0.7f, 8, 50, 10);
+        for (int i = 0; i < vectors.length; i++) {
+            hnsw.registerFaceFeature(feature(i, vectors[i]));
+        }
+        // 删除不到一半，不会触发重建
+        for (int i = 0; i < vectors.length; i++) {
+            if (i % 5 < 2) {
+                hnsw.removeFaceFeature(i);
+            }
+        }
+        assertEquals(400, hnsw.getDeletedCount());
+        for (int q = 0; q < vectors.length; q += 10) {
+            UniFaceSearchResult[] results = hnsw.search(feature(null, vectors[q]), 10);
+            assertEquals(10, results.length);
+            for (UniFaceSearchResult r : results) {
+                assertTrue((Integer) r.getFeature().getKeyId() % 5 >= 2);
+            }
+        }
+    }
+
+    @Test
+    public void compact_replaysConcurrentWrites() throws Exception {
+        float[][] vectors = syntheticEmbeddings(1200, 1, 0f, 6);
+        final UniHnswFaceSearcher hnsw = new UniHnswFaceSearcher(0.9f, 8, 50, 50);
+        for (int i = 0; i < 1000; i++) {
+            hnsw.registerFaceFeature(feature(i, vectors[i]));
+        }
+        for (int i = 0; i < 1000; i += 3) {
+            hnsw.removeFaceFeature(i);
+        }
+        Thread compactor = new Thread() {
+            @Override
+            public void run() {
+                hnsw.compact();
+            }
+        };
+        compactor.start();
+        // 重建期间的注册、更新和删除
+        for (int i = 1000; i < 1200; i++) {
+            hnsw.registerFaceFeature(feature(i, vectors[i]));
+            hnsw.removeFaceFeature(i - 1000 + 1);
+            if ((i - 1000 + 500) % 3 != 0) {
+                hnsw.updateFaceFeature(feature(i - 1000 + 500, vectors[i - 1000 + 500]));
+            }
+        }
+        compactor.join();
+        hnsw.compact();
+        assertEquals(0, hnsw.getDeletedCount());
+        int live = 0;
+        for (int i = 0; i < vectors.length; i++) {
+            boolean removed = i < 1000 && (i % 3 == 0 || (i >= 1 && i <= 200));
+            if (removed) {
+                assertTrue(hnsw.search(feature(null, vectors[i]), null).getSimilar() < 0.99f);
+            } else {
+                assertEquals(i, hnsw.search(feature(null, vectors[i]), null).getFeature().getKeyId());
+                live++;
+            }
+        }
+        assertEquals(live, hnsw.getFaceFeatureCount());
+    }
+}
@@ -0,0 +1,275 @@
+package uniface.android.search;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import uniface.UniFaceFeature;
+import uniface.UniFaceSearchResult;
+
+import static org.junit.Assert.*;
+import static uniface.android.search.UniHnswFaceSearcherTest.feature;
+import static uniface.android.search.UniHnswFaceSearcherTest.noisy;
+import static uniface.android.search.UniHnswFaceSearcherTest.syntheticEmbeddings;
+
+/**
+ * 内存映射特征库的持久化测试：日志重放、尾部截断、合并以及中断恢复
+ */
+public class UniMappedFaceGalleryTest {
+    private static File galleryFile() throws IOException {
+        File dir = Files.createTempDirectory("gallery").toFile();
+        dir.deleteOnExit();
+        return new File(dir, "faces.gallery");
+    }
+    private static void delete(File file) {
+        File dir = file.getParentFile();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+    /**
+     * 按相同的操作序列修改顺序扫描搜索器，作为对照
+     */
+    private static UniFlatFaceSearcher populate(UniMappedFaceGallery gallery, float[][] vectors, int from, int to) throws Exception {
+        UniFlatFaceSearcher flat = new UniFlatFaceSearcher(0.7f);
+        populate(gallery, flat, vectors, from, to);
+        return flat;
+    }
+    private static void populate(UniMappedFaceGallery gallery, UniFlatFaceSearcher flat, float[][] vectors, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            gallery.registerFaceFeature(feature(i, vectors[i]));
+            flat.registerFaceFeature(feature(i, vectors[i]));
+        }
+    }
+    private static void assertSameResults(UniFlatFaceSearcher expected, UniMappedFaceGallery actual, float[][] vectors, long seed) {
+        assertEquals(expected.getFaceFeatureCount(), actual.getFaceFeatureCount());
+        Random random = new Random(seed);
+        for (int q = 0; q < 30; q++) {
+            UniFaceFeature query = feature(null, noisy(vectors[random.nextInt(vectors.length)], 0.3f, random));
+            UniFaceSearchResult[] r1 = expected.search(query, 5);
+            UniFaceSearchResult[] r2 = actual.search(query, 5);
+            assertEquals(r1.length, r2.length);
+            for (int i = 0; i < r1.length; i++) {
+                assertEquals(r1[i].getFeature().getKeyId(), r2[i].getFeature().getKeyId());
+                assertEquals(r1[i].getSimilar(), r2[i].getSimilar(), 1e-5f);
+            }
+        }
+    }
+    /**
+     * 更新、删除一部分特征，覆盖日志中的两种记录
+     */
+    private static void updateAndRemove(UniMappedFaceGallery gallery, UniFlatFaceSearcher flat, float[][] vectors, int from, int to) throws Exception {
+        Random random = new Random(from);
+        for (int i = from; i < to; i += 5) {
+            float[] updated = noisy(vectors[i], 0.5f, random);
+            gallery.updateFaceFeature(feature(i, updated));
+            flat.updateFaceFeature(feature(i, updated));
+        }
+        for (int i = from + 1; i < to; i += 7) {
+            assertNotNull(gallery.removeFaceFeature(i));
+            flat.removeFaceFeature(i);
+        }
+    }
+
+    @Test
+    public void registerSearch_roundTrip() throws Exception {
+        File file = galleryFile();
+        float[][] vectors = syntheticEmbeddings(300, 1, 0f, 31);
+        UniMappedFaceGallery gallery = new UniMappedFaceGallery(file, 0.7f).setCompactThreshold(0);
+        try {
+            UniFlatFaceSearcher flat = populate(gallery, vectors, 0, vectors.length);
+            assertSameResults(flat, gallery, vectors, 32);
+            UniFaceSearchResult result = gallery.search(feature(null, vectors[42]), null);
+            assertEquals(42, result.getFeature().getKeyId());
+            assertTrue(result.getPass());
+            try {
+                gallery.registerFaceFeature(feature(42, vectors[0]));
+                fail("duplicate keyId registered");
+            } catch (IllegalArgumentException e) {
+            }
+            UniFaceFeature removed = gallery.removeFaceFeature(42);
+            assertEquals(42, removed.getKeyId());
+            assertNull(gallery.removeFaceFeature(42));
+            assertFalse(Integer.valueOf(42).equals(gallery.search(feature(null, vectors[42]), null).getFeature().getKeyId()));
+            assertEquals(vectors.length + 1, gallery.getLogRecordCount());
+        } finally {
+            gallery.close();
+            delete(file);
+        }
+    }
+
+    @Test
+    public void reopen_replaysLog() throws Exception {
+        File file = galleryFile();
+        float[][] vectors = syntheticEmbeddings(300, 1, 0f, 41);
+        try {
+            UniMappedFaceGallery gallery = new UniMappedFaceGallery(file, 0.7f).setCompactThreshold(0);
+            UniFlatFaceSearcher flat = populate(gallery, vectors, 0, vectors.length);
+            updateAndRemove(gallery, flat, vectors, 0, vectors.length);
+            int records = gallery.getLogRecordCount();
+            gallery.close();
+            assertFalse(file.exists());
+
+            gallery = new UniMappedFaceGallery(file, 0.7f).setCompactThreshold(0);
+            assertEquals(records, gallery.getLogRecordCount());
+            assertEquals(0, gallery.getGeneration());
+            assertSameResults(flat, gallery, vectors, 42);
+            gallery.close();
+        } finally {
+            delete(file);
+        }
+    }
+
+    @Test
+    public void reopen_truncatesTornLogTail() throws Exception {
+        File file = galleryFile();
+        File log = new File(file.getPath() + ".log");
+        float[][] vectors = syntheticEmbeddings(101, 1, 0f, 51);
+        try {
+            UniMappedFaceGallery gallery = new UniMappedFaceGallery(file, 0.7f).setCompactThreshold(0);
+            UniFlatFaceSearcher flat = populate(gallery, vectors, 0, 100);
+            gallery.close();
+            long length = log.length();
+
+            // 写到一半的记录：长度字段完整，记录体不完整
+            RandomAccessFile raf = new RandomAccessFile(log, "rw");
+            raf.seek(length);
+            raf.write(new byte[] {(byte) 200, 0, 0, 0, 1, 2, 3, 4, 5, 6, 7});
+            raf.close();
+            gallery = new UniMappedFaceGallery(file, 0.7f).setCompactThreshold(0);
+            assertEquals(length, log.length());
+            assertEquals(100, gallery.getLogRecordCount());
+            assertSameResults(flat, gallery, vectors, 52);
+            // 截断以后继续追加
+            populate(gallery, flat, vectors, 100, 101);
+            gallery.close();
+
+            // 最后一条记录校验失败
+            length = log.length();
+            raf = new RandomAccessFile(log, "rw");
+            raf.seek(length - 1);
+            int last = raf.read();
+            raf.seek(length - 1);
+            raf.write(last ^ 0xFF);
+            raf.close();
+            gallery = new UniMappedFaceGallery(file, 0.7f).setCompactThreshold(0);
+            assertEquals(100, gallery.getLogRecordCount());
+            assertNull(gallery.removeFaceFeature(100));
+            flat.removeFaceFeature(100);
+            assertSameResults(flat, gallery, vectors, 53);
+            gallery.close();
+        } finally {
+            delete(file);
+        }
+    }
+
+    @Test
+    public void compact_thenReopen() throws Exception {
+        File file = galleryFile();
+        float[][] vectors = syntheticEmbeddings(400, 1, 0f, 61);
+        try {
+            UniMappedFaceGallery gallery = new UniMappedFaceGallery(file, 0.7f).setCompactThreshold(0);
+            UniFlatFaceSearcher flat = populate(gallery, vectors, 0, 300);
+            updateAndRemove(gallery, flat, vectors, 0, 300);
+            gallery.compact();
+            assertEquals(1, gallery.getGeneration());
+            assertEquals(0, gallery.getLogRecordCount());
+            assertTrue(file.exists());
+            assertFalse(new File(file.getPath() + ".tmp").exists());
+            assertSameResults(flat, gallery, vectors, 62);
+            // 合并以后的修改写入新日志，作用在映射的特征库文件上
+            populate(gallery, flat, vectors, 300, 400);
+            updateAndRemove(gallery, flat, vectors, 300, 400);
+            gallery.close();
+
+            gallery = new UniMappedFaceGallery(file, 0.7f).setCompactThreshold(0);
+            assertEquals(1, gallery.getGeneration());
+            assertSameResults(flat, gallery, vectors, 63);
+            gallery.compact();
+            gallery.close();
+            gallery = new UniMappedFaceGallery(file, 0.7f);
+            assertEquals(2, gallery.getGeneration());
+            assertEquals(0, gallery.getLogRecordCount());
+            assertSameResults(flat, gallery, vectors, 64);
+            gallery.close();
+        } finally {
+            delete(file);
+        }
+    }
+
+    @Test
+    public void reopen_afterInterruptedCompaction() throws Exception {
+        File file = galleryFile();
+        File log = new File(file.getPath() + ".log");
+        File backup = new File(file.getPath() + ".bak");
+        File tmp = new File(file.getPath() + ".tmp");
+        float[][] vectors = syntheticEmbeddings(300, 1, 0f, 71);
+        try {
+            UniMappedFaceGallery gallery = new UniMappedFaceGallery(file, 0.7f).setCompactThreshold(0);
+            UniFlatFaceSearcher flat = populate(gallery, vectors, 0, 200);
+            gallery.compact();
+            populate(gallery, flat, vectors, 200, 300);
+            updateAndRemove(gallery, flat, vectors, 150, 250);
+            gallery.close();
+            byte[] oldGallery = Files.readAllBytes(file.toPath());
+            byte[] oldLog = Files.readAllBytes(log.toPath());
+
+            // 替换特征库文件以后、清空日志之前中断：旧日志的代数与新特征库文件不一致，内容已经合并，不再重放
+            gallery = new UniMappedFaceGallery(file, 0.7f).setCompactThreshold(0);
+            gallery.compact();
+            gallery.close();
+            Files.write(log.toPath(), oldLog);
+            gallery = new UniMappedFaceGallery(file, 0.7f).setCompactThreshold(0);
+            assertEquals(2, gallery.getGeneration());
+            assertEquals(0, gallery.getLogRecordCount());
+            assertSameResults(flat, gallery, vectors, 72);
+            gallery.close();
+
+            // 原文件改名为.bak以后、新文件就位之前中断：恢复.bak并重放与之匹配的日志，删除不完整的.tmp
+            assertTrue(file.delete());
+            Files.write(backup.toPath(), oldGallery);
+            Files.write(tmp.toPath(), new byte[] {1, 2, 3});
+            Files.write(log.toPath(), oldLog);
+            gallery = new UniMappedFaceGallery(file, 0.7f).setCompactThreshold(0);
+            assertFalse(backup.exists());
+            assertFalse(tmp.exists());
+            assertEquals(1, gallery.getGeneration());
+            assertEquals(oldLog.length, log.length());
+            assertSameResults(flat, gallery, vectors, 73);
+            gallery.close();
+        } finally {
+            delete(file);
+        }
+    }
+
+    @Test
+    public void backgroundCompaction_doesNotBlockSearch() throws Exception {
+        File file = galleryFile();
+        float[][] vectors = syntheticEmbeddings(500, 1, 0f, 81);
+        UniMappedFaceGallery gallery = new UniMappedFaceGallery(file, 0.7f).setCompactThreshold(100);
+        try {
+            UniFlatFaceSearcher flat = new UniFlatFaceSearcher(0.7f);
+            for (int i = 0; i < vectors.length; i++) {
+                gallery.registerFaceFeature(feature(i, vectors[i]));
+                flat.registerFaceFeature(feature(i, vectors[i]));
+                assertEquals(i, gallery.search(feature(null, vectors[i]), null).getFeature().getKeyId());
+            }
+            for (int i = 0; i < 100 && gallery.getGeneration() == 0; i++) {
+                Thread.sleep(20);
+            }
+            assertTrue(gallery.getGeneration() > 0);
+            assertSameResults(flat, gallery, vectors, 82);
+        } finally {
+            gallery.close();
+            delete(file);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package uniface.android.search;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import uniface.UniFaceFeature;
+import uniface.UniFaceSearchResult;
+
+import static org.junit.Assert.*;
+import static uniface.android.search.UniHnswFaceSearcherTest.feature;
+import static uniface.android.search.UniHnswFaceSearcherTest.noisy;
+import static uniface.android.search.UniHnswFaceSearcherTest.syntheticEmbeddings;
+
+/**
+ * int8量化存储与浮点存储的内存占用及精度对比
+ */
+public class UniQuantizedFaceSearcherTest {
+    @Test
+    public void accuracyDeltaAndMemorySaved() throws Exception {
+        float[][] vectors = syntheticEmbeddings(3000, 2, 0.6f, 5);
+        UniFlatFaceSearcher flat = new UniFlatFaceSearcher(0.7f);
+        UniQuantizedFaceSearcher reRanked = new UniQuantizedFaceSearcher(0.7f, 32);
+        UniQuantizedFaceSearcher quantizedOnly = new UniQuantizedFaceSearcher(0.7f, 0);
+        for (int i = 0; i < vectors.length; i++) {
+            UniFaceFeature feature = feature(i, vectors[i]);
+            flat.registerFaceFeature(feature);
+            reRanked.registerFaceFeature(feature);
+            quantizedOnly.registerFaceFeature(feature);
+        }
+        Random random = new Random(6);
+        int queries = 300;
+        int reRankedTop1 = 0;
+        int quantizedTop1 = 0;
+        double reRankedDelta = 0;
+        double quantizedDelta = 0;
+        for (int q = 0; q < queries; q++) {
+            UniFaceFeature query = feature(null, noisy(vectors[random.nextInt(vectors.length)], 0.4f, random));
+            UniFaceSearchResult expected = flat.search(query, null);
+            UniFaceSearchResult r1 = reRanked.search(query, null);
+            UniFaceSearchResult r2 = quantizedOnly.search(query, null);
+            if (expected.getFeature().getKeyId().equals(r1.getFeature().getKeyId())) {
+                reRankedTop1++;
+                reRankedDelta += Math.abs(expected.getSimilar() - r1.getSimilar());
+            }
+            if (expected.getFeature().getKeyId().equals(r2.getFeature().getKeyId())) {
+                quantizedTop1++;
+                quantizedDelta += Math.abs(expected.getSimilar() - r2.getSimilar());
+            }
+        }
+        long floatBytes = flat.getVectorMemoryBytes();
+        assertTrue(reRankedTop1 >= queries * 0.99f);
+        assertTrue(reRankedDelta / Math.max(1, reRankedTop1) < 1e-5);
+        assertTrue(quantizedTop1 >= queries * 0.9f);
+        // 只量化时的相似度误差在量化精度范围内
+        assertTrue(quantizedDelta / Math.max(1, quantizedTop1) < 0.01);
+        assertTrue(quantizedOnly.getCodeMemoryBytes() * 3 < floatBytes);
+        // 节省的是原始精度向量与量化码之差
+        assertEquals((long) vectors.length * vectors[0].length * 4 - quantizedOnly.getCodeMemoryBytes(), quantizedOnly.getSavedMemoryBytes());
+    }
+
+    @Test
+    public void exactVectorsInFile_matchInMemory() throws Exception {
+        float[][] vectors = syntheticEmbeddings(500, 1, 0f, 7);
+        File file = File.createTempFile("exact", ".bin");
+        file.deleteOnExit();
+        UniQuantizedFaceSearcher memory = new UniQuantizedFaceSearcher(0.7f, 16);
+        UniQuantizedFaceSearcher filed = new UniQuantizedFaceSearcher(0.7f, 16, file);
+        try {
+            for (int i = 0; i < vectors.length; i++) {
+                memory.registerFaceFeature(feature(i, vectors[i]));
+                filed.registerFaceFeature(feature(i, vectors[i]));
+            }
+            assertNotNull(memory.removeFaceFeature(3));
+            assertNotNull(filed.removeFaceFeature(3));
+            assertEquals(0, filed.getExactMemoryBytes());
+            Random random = new Random(8);
+            for (int q = 0; q < 50; q++) {
+                UniFaceFeature query = feature(null, noisy(vectors[random.nextInt(vectors.length)], 0.2f, random));
+                UniFaceSearchResult[] expected = memory.search(query, 5);
+                UniFaceSearchResult[] actual = filed.search(query, 5);
+                assertEquals(expected.length, actual.length);
+                for (int i = 0; i < expected.length; i++) {
+                    assertEquals(expected[i].getFeature().getKeyId(), actual[i].getFeature().getKeyId());
+                    assertEquals(expected[i].getSimilar(), actual[i].getSimilar(), 0f);
+                }
+            }
+            assertEquals(499, filed.getFaceFeatureCount());
+        } finally {
+            filed.close();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package uniface.android.search;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import uniface.UniFaceFeature;
+import uniface.UniFaceSearchResult;
+
+import static org.junit.Assert.*;
+import static uniface.android.search.UniHnswFaceSearcherTest.feature;
+import static uniface.android.search.UniHnswFaceSearcherTest.noisy;
+import static uniface.android.search.UniHnswFaceSearcherTest.syntheticEmbeddings;
+
+/**
+ * 快照隔离搜索器与顺序扫描结果的一致性、合并以及并发读写测试
+ */
+public class UniSnapshotFaceSearcherTest {
+    private static void assertSameResults(UniFlatFaceSearcher expected, UniSnapshotFaceSearcher actual, float[][] vectors, long seed) {
+        Random random = new Random(seed);
+        for (int q = 0; q < 50; q++) {
+            UniFaceFeature query = feature(null, noisy(vectors[random.nextInt(vectors.length)], 0.3f, random));
+            UniFaceSearchResult[] r1 = expected.search(query, 5);
+            UniFaceSearchResult[] r2 = actual.search(query, 5);
+            assertEquals(r1.length, r2.length);
+            for (int i = 0; i < r1.length; i++) {
+                assertEquals(r1[i].getFeature().getKeyId(), r2[i].getFeature().getKeyId());
+                assertEquals(r1[i].getSimilar(), r2[i].getSimilar(), 1e-6f);
+            }
+        }
+    }
+
+    @Test
+    public void writesAndMerge_matchFlatSearcher() throws Exception {
+        float[][] vectors = syntheticEmbeddings(1000, 1, 0f, 11);
+        UniFlatFaceSearcher flat = new UniFlatFaceSearcher(0.7f);
+        UniSnapshotFaceSearcher snapshot = new UniSnapshotFaceSearcher(0.7f, 64, 0f);
+        for (int i = 0; i < vectors.length; i++) {
+            flat.registerFaceFeature(feature(i, vectors[i]));
+            snapshot.registerFaceFeature(feature(i, vectors[i]));
+        }
+        assertEquals(16, snapshot.getSegmentCount());
+        assertSameResults(flat, snapshot, vectors, 12);
+
+        Random random = new Random(13);
+        for (int i = 0; i < vectors.length; i += 3) {
+            assertNotNull(snapshot.removeFaceFeature(i));
+            flat.removeFaceFeature(i);
+        }
+        assertNull(snapshot.removeFaceFeature(0));
+        for (int i = 1; i < vectors.length; i += 7) {
+            if (i % 3 == 0) {
+                continue;
+            }
+            float[] updated = noisy(vectors[i], 0.5f, random);
+            flat.updateFaceFeature(feature(i, updated));
+            snapshot.updateFaceFeature(feature(i, updated));
+        }
+        assertEquals(flat.getFaceFeatureCount(), snapshot.getFaceFeatureCount());
+        assertSameResults(flat, snapshot, vectors, 14);
+
+        int segments = snapshot.getSegmentCount();
+        while (snapshot.merge()) {
+        }
+        assertTrue(snapshot.getSegmentCount() < segments);
+        assertEquals(flat.getFaceFeatureCount(), snapshot.getFaceFeatureCount());
+        assertSameResults(flat, snapshot, vectors, 15);
+
+        // 合并以后的更新、删除作用在新的段上
+        for (int i = 2; i < vectors.length; i += 5) {
+            if (i % 3 != 0) {
+                flat.removeFaceFeature(i);
+                snapshot.removeFaceFeature(i);
+            }
+        }
+        assertSameResults(flat, snapshot, vectors, 16);
+
+        snapshot.clear();
+        assertEquals(0, snapshot.getFaceFeatureCount());
+        assertEquals(0, snapshot.search(feature(null, vectors[0]), 3).length);
+        snapshot.registerFaceFeature(feature(1, vectors[1]));
+        assertEquals(1, snapshot.search(feature(null, vectors[1]), null).getFeature().getKeyId());
+    }
+
+    @Test
+    public void concurrentSearch_duringIngestAndBackgroundMerge() throws Exception {
+        final float[][] vectors = syntheticEmbeddings(3000, 1, 0f, 21);
+        final UniSnapshotFaceSearcher snapshot = new UniSnapshotFaceSearcher(0.7f, 256, 0.25f);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final AtomicInteger searches = new AtomicInteger();
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] readers = new Thread[3];
+        for (int t = 0; t < readers.length; t++) {
+            final int seed = t;
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        while (!done.get()) {
+                            int i = random.nextInt(vectors.length);
+                            UniFaceSearchResult result = snapshot.search(feature(null, vectors[i]), null);
+                            if (result.getException() != null) {
+                                throw result.getException();
+                            }
+                            searches.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        try {
+            for (int i = 0; i < vectors.length; i++) {
+                snapshot.registerFaceFeature(feature(i, vectors[i]));
+                if (i % 2 == 1) {
+                    snapshot.removeFaceFeature(i - 1);
+                }
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        // 等待后台合并完成
+        for (int i = 0; i < 100 && snapshot.getMergeCount() == 0; i++) {
+            Thread.sleep(20);
+        }
+        snapshot.close();
+        assertNull(error.get());
+        assertTrue(searches.get() > 0);
+        assertTrue(snapshot.getMergeCount() > 0);
+        assertEquals(vectors.length / 2, snapshot.getFaceFeatureCount());
+        for (int i = 1; i < vectors.length; i += 2) {
+            UniFaceSearchResult result = snapshot.search(feature(null, vectors[i]), null);
+            assertEquals(i, result.getFeature().getKeyId());
+            assertTrue(result.getPass());
+        }
+        assertTrue(snapshot.search(feature(null, vectors[0]), null).getSimilar() < 0.99f);
+    }
+
+    private static int countMergeThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("SnapshotMergeThread_") && thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void closeRightAfterStart_stopsMergeThread() throws Exception {
+        // 合并线程还没有进入等待时就关闭，不能错过停止通知而一直等待
+        for (int i = 0; i < 20; i++) {
+            new UniSnapshotFaceSearcher(0.7f).close();
+        }
+        UniSnapshotFaceSearcher snapshot = new UniSnapshotFaceSearcher(0.7f);
+        snapshot.registerFaceFeature(feature(0, syntheticEmbeddings(1, 1, 0f, 22)[0]));
+        Thread.sleep(50);
+        snapshot.close();
+        snapshot.close();
+        for (int i = 0; i < 250 && countMergeThreads() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, countMergeThreads());
+        assertEquals(1, snapshot.getFaceFeatureCount());
+    }
+}
@@ -0,0 +1,103 @@
+package uniface.android.search;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 前K项收集器的排序、并列、合并测试
+ */
+public class UniTopKTest {
+    @Test
+    public void offer_keepsHighestInDescendingOrder() {
+        UniTopK topK = new UniTopK(3);
+        assertEquals(Float.NEGATIVE_INFINITY, topK.threshold(), 0);
+        assertTrue(topK.offer(0, 0.1f));
+        assertTrue(topK.offer(1, 0.5f));
+        assertTrue(topK.offer(2, 0.3f));
+        assertEquals(0.1f, topK.threshold(), 0);
+        assertTrue(topK.offer(3, 0.4f));
+        assertFalse(topK.offer(4, 0.2f));
+        assertEquals(3, topK.size());
+        assertEquals(1, topK.indexAt(0));
+        assertEquals(3, topK.indexAt(1));
+        assertEquals(2, topK.indexAt(2));
+        assertEquals(0.5f, topK.similarAt(0), 0);
+        assertEquals(0.3f, topK.threshold(), 0);
+
+        // 与随机数据排序的结果一致
+        Random random = new Random(1);
+        float[] similars = new float[1000];
+        topK = new UniTopK(10);
+        for (int i = 0; i < similars.length; i++) {
+            similars[i] = random.nextFloat() * 2 - 1;
+            topK.offer(i, similars[i]);
+        }
+        float[] sorted = similars.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(sorted[sorted.length - 1 - i], topK.similarAt(i), 0);
+            assertEquals(similars[topK.indexAt(i)], topK.similarAt(i), 0);
+        }
+    }
+
+    @Test
+    public void ties_keepEarlierItems() {
+        UniTopK topK = new UniTopK(3);
+        topK.offer(0, 0.5f);
+        topK.offer(1, 0.9f);
+        topK.offer(2, 0.5f);
+        // 相似度相同的项按加入顺序排列
+        assertEquals(0, topK.indexAt(1));
+        assertEquals(2, topK.indexAt(2));
+        // 已满时与最低相似度相同的项不能进入
+        assertFalse(topK.offer(3, 0.5f));
+        assertTrue(topK.offer(4, 0.9f));
+        assertEquals(1, topK.indexAt(0));
+        assertEquals(4, topK.indexAt(1));
+        assertEquals(0, topK.indexAt(2));
+    }
+
+    @Test
+    public void capacityAndClear() {
+        UniTopK topK = new UniTopK(0);
+        assertEquals(1, topK.capacity());
+        topK.offer(5, 0.2f);
+        topK.offer(6, 0.1f);
+        assertEquals(1, topK.size());
+        assertEquals(5, topK.indexAt(0));
+        topK.clear();
+        assertEquals(0, topK.size());
+        assertEquals(Float.NEGATIVE_INFINITY, topK.threshold(), 0);
+
+        // 加入的项少于K时全部保留
+        topK = new UniTopK(10);
+        topK.offer(0, -0.5f);
+        topK.offer(1, 0.5f);
+        assertEquals(2, topK.size());
+        assertEquals(Float.NEGATIVE_INFINITY, topK.threshold(), 0);
+        assertEquals(1, topK.indexAt(0));
+    }
+
+    @Test
+    public void merge_equalsSingleCollector() {
+        Random random = new Random(2);
+        UniTopK all = new UniTopK(5);
+        UniTopK first = new UniTopK(5);
+        UniTopK second = new UniTopK(5);
+        for (int i = 0; i < 200; i++) {
+            float s = random.nextFloat();
+            all.offer(i, s);
+            (i < 100 ? first : second).offer(i, s);
+        }
+        first.merge(second);
+        assertEquals(all.size(), first.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(all.indexAt(i), first.indexAt(i));
+            assertEquals(all.similarAt(i), first.similarAt(i), 0);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package uniface.android.video;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import uniimage.UniGeometryGraph;
+import uniimage.UniImage;
+import uniimage.UniRGBImage;
+import uniimage.UniRect;
+import uniimage.UniYUVImage;
+import univideo.UniVideoFrame;
+import univideo.UniVideoInfo;
+import univideo.UniVideoSource;
+
+import static org.junit.Assert.*;
+
+/**
+ * 转储文件的写入、读取和回放测试，包括录制中断留下的不完整末帧
+ */
+public class UniFrameDumpReaderTest {
+    private final static int FRAMES = 3;
+
+    private static UniImage createFrame(int i) {
+        if (i == 2) {
+            byte[] data = new byte[4 * 4 * 3];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) (j * 7 + i);
+            }
+            return new UniRGBImage(UniRGBImage.RGB, 4, 4, data);
+        }
+        byte[] data = new byte[16 * 8 * 3 / 2];
+        for (int j = 0; j < data.length; j++) {
+            data[j] = (byte) (j * 3 + i);
+        }
+        UniYUVImage image = new UniYUVImage(UniYUVImage.NV21, 16, 8, data);
+        image.setOrientation(90);
+        image.setMirror(i == 1);
+        if (i == 1) {
+            UniGeometryGraph graph = new UniGeometryGraph(UniGeometryGraph.Root);
+            graph.createInsideNamedContainer(UniGeometryGraph.Face).createInsideRect(2, 1, 6, 5);
+            image.setInsideGeometryGraph(graph);
+        }
+        return image;
+    }
+    /**
+     * 写入FRAMES帧，时间戳间隔40毫秒
+     * @return 每帧写完以后的文件长度
+     */
+    private static long[] writeDump(File file) throws IOException {
+        long[] ends = new long[FRAMES];
+        UniFrameDumpWriter writer = new UniFrameDumpWriter(file);
+        for (int i = 0; i < FRAMES; i++) {
+            writer.write(createFrame(i), i * 40);
+            writer.flush();
+            ends[i] = file.length();
+        }
+        assertEquals(FRAMES, writer.getFrames());
+        writer.close();
+        return ends;
+    }
+    private static void assertFrame(int i, UniImage image) {
+        UniImage expected = createFrame(i);
+        assertEquals(expected.getClass(), image.getClass());
+        assertEquals(expected.getWidth(), image.getWidth());
+        assertEquals(expected.getHeight(), image.getHeight());
+        assertEquals(expected.getOrientation(), image.getOrientation());
+        assertEquals(expected.isMirror(), image.isMirror());
+        assertArrayEquals(expected.getImageData(), image.getImageData());
+        UniGeometryGraph graph = image.getInsideGeometryGraph();
+        if (expected.getInsideGeometryGraph() == null) {
+            assertNull(graph);
+        } else {
+            UniGeometryGraph face = graph.findInsideGeometryGraph(UniGeometryGraph.Face);
+            assertNotNull(face);
+            UniRect rect = face.getInsideGraphs().get(0).asRect();
+            assertEquals(2, rect.x);
+            assertEquals(1, rect.y);
+            assertEquals(6, rect.width);
+            assertEquals(5, rect.height);
+        }
+    }
+    /**
+     * 尽可能快地回放，等待回放结束
+     * @return 回放的帧
+     */
+    private static List<UniVideoFrame> replay(File file, final UniVideoSource.CloseCause[] cause) throws InterruptedException {
+        final List<UniVideoFrame> frames = new ArrayList<UniVideoFrame>();
+        final CountDownLatch closed = new CountDownLatch(1);
+        UniFileVideoSource source = new UniFileVideoSource();
+        source.setGrabSpeed(0);
+        source.setGrabCallback(new UniVideoSource.GrabCallback() {
+            @Override
+            public void onVideoFrameGrabbed(UniVideoSource source, UniVideoFrame frame) {
+                frames.add(frame);
+            }
+        });
+        source.setOpenCallback(new UniVideoSource.OpenCallback() {
+            @Override
+            public void onOpened(UniVideoSource source, UniVideoInfo videoInfo) {
+            }
+            @Override
+            public void onOpenFailed(UniVideoSource source, String error, Exception exception) {
+                closed.countDown();
+            }
+            @Override
+            public void onClose(UniVideoSource source, UniVideoInfo videoInfo, UniVideoSource.CloseCause closeCause, Exception exception) {
+                cause[0] = closeCause;
+                closed.countDown();
+            }
+        });
+        source.open(file.getPath(), null);
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        source.close();
+        return frames;
+    }
+
+    @Test
+    public void writeRead_roundTrip() throws Exception {
+        File file = File.createTempFile("frames", ".dump");
+        try {
+            writeDump(file);
+            UniFrameDumpReader reader = new UniFrameDumpReader(file);
+            long[] info = reader.scan();
+            assertEquals(FRAMES, info[0]);
+            assertEquals(16, info[1]);
+            assertEquals(8, info[2]);
+            assertEquals((FRAMES - 1) * 40, info[3]);
+            for (int i = 0; i < FRAMES; i++) {
+                assertTrue(reader.next());
+                assertEquals(i, reader.getIndex());
+                assertEquals(i * 40, reader.getTimestamp());
+                assertFrame(i, reader.getImage());
+            }
+            assertFalse(reader.next());
+            assertFalse(reader.isTruncated());
+            reader.close();
+
+            UniVideoSource.CloseCause[] cause = new UniVideoSource.CloseCause[1];
+            List<UniVideoFrame> frames = replay(file, cause);
+            assertEquals(UniVideoSource.CloseCause.End, cause[0]);
+            assertEquals(FRAMES, frames.size());
+            for (int i = 0; i < FRAMES; i++) {
+                assertEquals(i, frames.get(i).getIndex());
+                assertEquals(i * 40, frames.get(i).getTimestamp());
+                assertFrame(i, (UniImage) frames.get(i).getRawFrame());
+                assertNotNull(frames.get(i).getImage());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void truncatedLastFrame_endsStream() throws Exception {
+        File file = File.createTempFile("frames", ".dump");
+        try {
+            long[] ends = writeDump(file);
+            // 截断在最后一帧的时间戳中、图片数据长度中、图片数据中
+            long[] cuts = {ends[FRAMES - 2] + 5, ends[FRAMES - 2] + 30, ends[FRAMES - 1] - 10};
+            for (long cut : cuts) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                raf.setLength(cut);
+                raf.close();
+                UniFrameDumpReader reader = new UniFrameDumpReader(file);
+                long[] info = reader.scan();
+                assertEquals("cut at " + cut, FRAMES - 1, info[0]);
+                assertEquals(40, info[3]);
+                for (int i = 0; i < FRAMES - 1; i++) {
+                    assertTrue(reader.next());
+                    assertFrame(i, reader.getImage());
+                }
+                assertFalse(reader.next());
+                assertTrue(reader.isTruncated());
+                assertFalse(reader.next());
+                reader.rewind();
+                assertTrue(reader.next());
+                assertFalse(reader.isTruncated());
+                reader.close();
+
+                UniVideoSource.CloseCause[] cause = new UniVideoSource.CloseCause[1];
+                List<UniVideoFrame> frames = replay(file, cause);
+                assertEquals(UniVideoSource.CloseCause.End, cause[0]);
+                assertEquals(FRAMES - 1, frames.size());
+                writeDump(file);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package uniface.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import uniface.android.search.UniFaceVectorUtil;
+import uniimage.util.UniImageUtil;
+
+/**
+ * 人脸特征向量比对，dot是app搜索器对预先归一化的向量使用的点积
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UniFaceCompareBenchmark {
+    @Param({"128", "192", "512"})
+    public int dim;
+
+    private float[] vector1;
+    private float[] vector2;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        this.vector1 = UniSyntheticData.embedding(this.dim, random);
+        this.vector2 = UniSyntheticData.noisy(this.vector1, 0.05f, random);
+    }
+
+    @Benchmark
+    public float cosDistance() {
+        return UniImageUtil.cosDistance(this.vector1, this.vector2);
+    }
+    @Benchmark
+    public float euclideanDistance() {
+        return UniImageUtil.euclideanDistance(this.vector1, this.vector2);
+    }
+    @Benchmark
+    public float dot() {
+        return UniFaceVectorUtil.dot(this.vector1, 0, this.vector2, 0, this.dim);
+    }
+}
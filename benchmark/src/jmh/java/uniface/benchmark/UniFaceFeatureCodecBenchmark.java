@@ -0,0 +1,111 @@
+package uniface.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import uniface.UniFaceFeature;
+import uniface.UniFaceGender;
+import uniface.android.search.UniFaceFeatureCodec;
+import uniimage.UniPoint;
+import uniimage.UniRect;
+
+/**
+ * 人脸特征的批量编解码：app中的UniFaceFeatureCodec与ObjectOutputStream序列化对比<br>
+ * ObjectOutputStream无法序列化带人脸小图的特征（UniRGBImage.RGBType不可序列化），java开头的基准总是不带人脸小图；
+ * faceImage为raw、deflate时codec开头的基准额外编码112x112人脸小图，分别存放原始数据和Deflater压缩的数据。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UniFaceFeatureCodecBenchmark {
+    @Param({"1", "256"})
+    public int batchSize;
+    @Param({"none", "raw", "deflate"})
+    public String faceImage;
+    @Param({"128"})
+    public int dim;
+
+    private UniFaceFeature[] features;
+    private UniFaceFeature[] plainFeatures; // 不带人脸小图
+    private UniFaceFeatureCodec codec;
+    private ByteBuffer encoded;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(1);
+        this.features = new UniFaceFeature[this.batchSize];
+        this.plainFeatures = new UniFaceFeature[this.batchSize];
+        for (int i = 0; i < this.batchSize; i++) {
+            UniFaceFeature feature = UniSyntheticData.feature("person-" + i, UniSyntheticData.embedding(this.dim, random));
+            feature.setRectangle(new UniRect(random.nextInt(500), random.nextInt(300), 112, 112));
+            feature.setMouthPoint(new UniPoint(56, 90));
+            feature.setLeftEyePoint(new UniPoint(36, 44));
+            feature.setRightEyePoint(new UniPoint(76, 44));
+            feature.setScore(80 + random.nextInt(20));
+            feature.setClarity(random.nextFloat());
+            feature.setOrient(0);
+            feature.setFaceId(i);
+            feature.setPitch(random.nextFloat() * 10);
+            feature.setYaw(random.nextFloat() * 10);
+            feature.setRoll(random.nextFloat() * 10);
+            feature.setGender(UniFaceGender.Male);
+            feature.setAge(30);
+            feature.setLiveness(true);
+            this.plainFeatures[i] = feature.clone();
+            feature.setFaceImage(UniSyntheticData.rgbFrame(112, 112, i));
+            this.features[i] = feature;
+        }
+        this.codec = new UniFaceFeatureCodec(!"none".equals(this.faceImage),
+                "deflate".equals(this.faceImage) ? Deflater.BEST_SPEED : Deflater.NO_COMPRESSION);
+        this.encoded = this.codec.encodeBatch(this.features);
+        this.serialized = this.javaSerialize();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.codec.close();
+    }
+
+    @Benchmark
+    public ByteBuffer codecEncode() {
+        return this.codec.encodeBatch(this.features);
+    }
+
+    @Benchmark
+    public UniFaceFeature[] codecDecode() {
+        return this.codec.decodeBatch(this.encoded.duplicate());
+    }
+
+    @Benchmark
+    public byte[] javaSerialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(this.plainFeatures);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Object javaDeserialize() throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(this.serialized));
+        return in.readObject();
+    }
+}
@@ -0,0 +1,132 @@
+package uniface.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import uniface.UniFaceFeature;
+import uniface.UniFaceSearchResult;
+import uniface.UniFaceSearcher;
+import uniface.android.search.UniForkJoinFaceSearcher;
+import uniface.android.search.UniSnapshotFaceSearcher;
+import uniface.util.UniFaceParallelSearcher;
+
+/**
+ * 人脸特征库搜索，特征库规模从1千到1百万<br>
+ * 1. parallel：jar中的UniFaceParallelSearcher，每个搜索线程一个UniSyntheticFaceEngine；<br>
+ * 2. forkjoin：app中的UniForkJoinFaceSearcher，作为对比；<br>
+ * 3. snapshot：app中的UniSnapshotFaceSearcher，搜索读取不可变快照，不与写入争用锁。<br>
+ * searchHit的目标均匀分布在特征库中，找到即停止；searchMiss是库外的陌生人，需要扫描整个特征库。<br>
+ * concurrentUpdates为true时，后台线程在搜索期间不断注册库外的特征并删除较早注册的，模拟底库在线更新。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UniFaceSearcherBenchmark {
+    private static final float PASS_SIMILAR = 0.7f;
+    private static final int QUERIES = 64;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int gallerySize;
+    @Param({"parallel", "forkjoin", "snapshot"})
+    public String searcher;
+    @Param({"128"})
+    public int dim;
+    @Param({"false", "true"})
+    public boolean concurrentUpdates;
+
+    private UniFaceSearcher faceSearcher;
+    private UniFaceFeature[] hitQueries;
+    private UniFaceFeature[] missQueries;
+    private int next;
+    private Thread updater;
+    private volatile boolean updating;
+
+    @Setup
+    public void setup() throws Exception {
+        int parallelNum = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        if ("parallel".equals(this.searcher)) {
+            this.faceSearcher = new UniFaceParallelSearcher(parallelNum, new UniSyntheticFaceEngine.Factory(PASS_SIMILAR));
+        } else if ("forkjoin".equals(this.searcher)) {
+            this.faceSearcher = new UniForkJoinFaceSearcher(PASS_SIMILAR, parallelNum, 4096);
+        } else if ("snapshot".equals(this.searcher)) {
+            this.faceSearcher = new UniSnapshotFaceSearcher(PASS_SIMILAR);
+        } else {
+            throw new IllegalArgumentException("unknown searcher: " + this.searcher);
+        }
+        Random random = new Random(1);
+        int step = this.gallerySize / QUERIES;
+        this.hitQueries = new UniFaceFeature[QUERIES];
+        for (int i = 0; i < this.gallerySize; i++) {
+            float[] vector = UniSyntheticData.embedding(this.dim, random);
+            this.faceSearcher.registerFaceFeature(UniSyntheticData.feature(i, vector));
+            int q = i / step;
+            if (i % step == step / 2 && q < QUERIES) {
+                this.hitQueries[q] = UniSyntheticData.feature(null, UniSyntheticData.noisy(vector, 0.02f, random));
+            }
+        }
+        this.missQueries = new UniFaceFeature[QUERIES];
+        for (int q = 0; q < QUERIES; q++) {
+            this.missQueries[q] = UniSyntheticData.feature(null, UniSyntheticData.embedding(this.dim, random));
+        }
+        if (this.concurrentUpdates) {
+            this.updating = true;
+            this.updater = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(2);
+                    int gallerySize = UniFaceSearcherBenchmark.this.gallerySize;
+                    try {
+                        for (int n = 0; UniFaceSearcherBenchmark.this.updating; n++) {
+                            float[] vector = UniSyntheticData.embedding(UniFaceSearcherBenchmark.this.dim, random);
+                            UniFaceSearcherBenchmark.this.faceSearcher.registerFaceFeature(UniSyntheticData.feature(gallerySize + n, vector));
+                            if (n >= QUERIES) {
+                                UniFaceSearcherBenchmark.this.faceSearcher.removeFaceFeature(gallerySize + n - QUERIES);
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            this.updater.start();
+        }
+    }
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        if (this.updater != null) {
+            this.updating = false;
+            this.updater.join();
+            this.updater = null;
+        }
+        if (this.faceSearcher instanceof UniFaceParallelSearcher) {
+            ((UniFaceParallelSearcher) this.faceSearcher).clear();
+        } else if (this.faceSearcher instanceof UniForkJoinFaceSearcher) {
+            ((UniForkJoinFaceSearcher) this.faceSearcher).close();
+        } else if (this.faceSearcher instanceof UniSnapshotFaceSearcher) {
+            ((UniSnapshotFaceSearcher) this.faceSearcher).close();
+        }
+    }
+
+    @Benchmark
+    public UniFaceSearchResult searchHit() throws Exception {
+        UniFaceSearchResult result = this.faceSearcher.search(this.hitQueries[this.next++ % QUERIES], null);
+        if (result.getPass() == null || !result.getPass()) {
+            throw new IllegalStateException("hit query not found, similar: " + result.getSimilar());
+        }
+        return result;
+    }
+    @Benchmark
+    public UniFaceSearchResult searchMiss() throws Exception {
+        return this.faceSearcher.search(this.missQueries[this.next++ % QUERIES], null);
+    }
+}
@@ -0,0 +1,105 @@
+package uniface.benchmark;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import uniface.UniFaceFeature;
+import uniface.android.recognition.UniFaceRecognitionService;
+import uniface.android.video.UniFileVideoSource;
+import uniface.android.video.UniFrameDumpWriter;
+import uniimage.UniYUVImage;
+import univideo.UniVideoFrame;
+import univideo.UniVideoInfo;
+import univideo.UniVideoSource;
+
+/**
+ * 回放帧图转储文件驱动UniFaceRecognitionService，测量整个文件从回放到全部回调完成的耗时<br>
+ * 转储文件由合成帧图和人脸几何图层生成，人脸引擎从几何图层解析人脸，测量的是视频源、YUV转RGB、
+ * 帧缓存环和识别线程调度本身的开销；grabSpeed为0时尽可能快地回放，为正数时按倍速实时回放。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UniFileReplayBenchmark {
+    private final static int FRAMES = 60;
+
+    @Param({"0", "4"})
+    public float grabSpeed;
+    @Param({"1", "2"})
+    public int recognitionThreads;
+
+    private File dump;
+    private UniFileVideoSource source;
+    private UniFaceRecognitionService service;
+    private final AtomicLong callbacks = new AtomicLong();
+    private volatile CountDownLatch ended;
+
+    @Setup
+    public void setup() throws Exception {
+        this.dump = File.createTempFile("uniface-replay", ".dump");
+        UniFrameDumpWriter writer = new UniFrameDumpWriter(this.dump);
+        for (int i = 0; i < FRAMES; i++) {
+            UniYUVImage frame = UniSyntheticData.yuvFrame(UniYUVImage.NV21, 640, 480, i);
+            frame.setInsideGeometryGraph(UniSyntheticData.faceGraph(640, 480, 2, i));
+            writer.write(frame, i * 33L);
+        }
+        writer.close();
+        this.service = new UniFaceRecognitionService()
+                .setFactory(new UniSyntheticFaceEngine.Factory(0.8f))
+                .setRecognitionThreads(this.recognitionThreads)
+                .setRecognitionCallback(new UniFaceRecognitionService.RecognitionCallback() {
+                    @Override
+                    public void onRecognized(UniVideoSource source, UniVideoFrame frame, UniFaceFeature[] features) {
+                        UniFileReplayBenchmark.this.callbacks.incrementAndGet();
+                    }
+                })
+                .start();
+        this.source = new UniFileVideoSource();
+        this.source.setGrabSpeed(this.grabSpeed);
+        this.source.setGrabCallback(this.service);
+        this.source.setOpenCallback(new UniVideoSource.OpenCallback() {
+            @Override
+            public void onOpened(UniVideoSource source, UniVideoInfo videoInfo) {
+            }
+            @Override
+            public void onOpenFailed(UniVideoSource source, String message, Exception exception) {
+                UniFileReplayBenchmark.this.ended.countDown();
+            }
+            @Override
+            public void onClose(UniVideoSource source, UniVideoInfo videoInfo, UniVideoSource.CloseCause closeCause, Exception exception) {
+                UniFileReplayBenchmark.this.ended.countDown();
+            }
+        });
+    }
+    @TearDown
+    public void tearDown() {
+        this.source.close();
+        this.service.stop();
+        this.dump.delete();
+    }
+
+    @Benchmark
+    public long replay() throws Exception {
+        this.ended = new CountDownLatch(1);
+        this.source.open(this.dump.getPath(), new Properties());
+        this.ended.await();
+        // 等待识别服务回调完所有放入的帧
+        while (this.service.getBuffedCount() > 0) {
+            Thread.sleep(1);
+        }
+        return this.callbacks.get();
+    }
+}
@@ -0,0 +1,55 @@
+package uniface.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import uniface.android.image.UniFlatGeometryGraph;
+import uniimage.UniGeometryGraph;
+
+/**
+ * 几何图形的深拷贝，每次图片处理都会克隆一次帧图上的人脸图形；对比扁平图层写时复制的克隆及克隆后旋转
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UniGeometryGraphBenchmark {
+    @Param({"1", "4", "16"})
+    public int faces;
+
+    private UniGeometryGraph graph;
+    private UniFlatGeometryGraph flatGraph;
+
+    @Setup
+    public void setup() {
+        this.graph = UniSyntheticData.faceGraph(1280, 720, this.faces, 1);
+        this.flatGraph = UniFlatGeometryGraph.of(this.graph);
+    }
+
+    @Benchmark
+    public UniGeometryGraph cloneGraph() {
+        return UniGeometryGraph.clone(this.graph);
+    }
+
+    @Benchmark
+    public UniGeometryGraph cloneRotateGraph() {
+        return UniGeometryGraph.clone(this.graph).rotate(640, 360, 90, -280, 280);
+    }
+
+    @Benchmark
+    public UniFlatGeometryGraph cloneFlatGraph() {
+        return this.flatGraph.clone();
+    }
+
+    @Benchmark
+    public UniFlatGeometryGraph cloneRotateFlatGraph() {
+        return this.flatGraph.clone().rotate(640, 360, 90, -280, 280);
+    }
+}
@@ -0,0 +1,85 @@
+package uniface.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import uniimage.UniRGBImage;
+import uniimage.UniRect;
+import uniimage.UniSize;
+import uniimage.util.UniImageUtil;
+
+/**
+ * RGB帧图上的人脸截图、缩放到模型输入尺寸、以及模型输入的字节转浮点
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UniRGBImageBenchmark {
+    @Param({"640x480", "1280x720"})
+    public String frameSize;
+    /**
+     * 人脸截图边长占帧图短边的比例
+     */
+    @Param({"0.5"})
+    public float faceRate;
+    /**
+     * 模型输入边长
+     */
+    @Param({"112", "160"})
+    public int inputSize;
+
+    private UniRGBImage frame;
+    private UniRect faceRect;
+    private UniRect outsideRect;
+    private UniRGBImage face;
+    private UniSize modelSize;
+    private byte[] modelBytes;
+    private float[] modelFloats;
+    private float[] mean;
+
+    @Setup
+    public void setup() {
+        int[] size = UniSyntheticData.size(this.frameSize);
+        this.frame = UniSyntheticData.rgbFrame(size[0], size[1], 1);
+        int side = (int) (Math.min(size[0], size[1]) * this.faceRate);
+        this.faceRect = new UniRect((size[0] - side) / 2, (size[1] - side) / 2, side, side);
+        // 一半超出帧图的区域，覆盖填充路径
+        this.outsideRect = new UniRect(size[0] - side / 2, size[1] - side / 2, side, side);
+        this.face = UniImageUtil.cutImage(this.frame, this.faceRect);
+        this.modelSize = new UniSize(this.inputSize, this.inputSize);
+        this.modelBytes = UniImageUtil.resizeImage(this.face, this.modelSize).getImageData();
+        this.modelFloats = new float[this.modelBytes.length];
+        this.mean = new float[] {127.5f, 127.5f, 127.5f};
+    }
+
+    @Benchmark
+    public UniRGBImage cutImage() {
+        return UniImageUtil.cutImage(this.frame, this.faceRect);
+    }
+    @Benchmark
+    public UniRGBImage cutImageFill() {
+        return UniImageUtil.cutImage(this.frame, this.outsideRect, (byte) 0);
+    }
+    @Benchmark
+    public UniRGBImage resizeImage() {
+        return UniImageUtil.resizeImage(this.face, this.modelSize);
+    }
+    @Benchmark
+    public float[] bytesCaseFloats() {
+        UniImageUtil.bytesCaseFloats(this.modelBytes, this.modelFloats, 255.0f, null);
+        return this.modelFloats;
+    }
+    @Benchmark
+    public float[] bytesCaseFloatsMean() {
+        UniImageUtil.bytesCaseFloats(this.modelBytes, this.modelFloats, 127.5f, this.mean);
+        return this.modelFloats;
+    }
+}
@@ -0,0 +1,128 @@
+package uniface.benchmark;
+
+import java.util.Random;
+
+import uniface.UniFaceFeature;
+import uniimage.UniGeometryGraph;
+import uniimage.UniRGBImage;
+import uniimage.UniYUVImage;
+import uniimage.util.UniImageUtil;
+
+/**
+ * 基准测试用的合成数据：帧图、人脸特征、几何图形<br>
+ * 全部由固定种子生成，保证每次运行的输入一致。
+ */
+public class UniSyntheticData {
+    /**
+     * 根据名称取YUV类型，名称与UniYUVImage中的常量名一致
+     */
+    public static UniYUVImage.YUVType yuvType(String name) {
+        switch (name) {
+            case "YUV_420_888":
+                return UniYUVImage.YUV_420_888;
+            case "NV21":
+                return UniYUVImage.NV21;
+            case "NV12":
+                return UniYUVImage.NV12;
+            case "NV21_TV":
+                return UniYUVImage.NV21_TV;
+            case "NV12_TV":
+                return UniYUVImage.NV12_TV;
+            default:
+                throw new IllegalArgumentException("unknown yuv type: " + name);
+        }
+    }
+    /**
+     * 解析"宽x高"格式的尺寸
+     */
+    public static int[] size(String size) {
+        int i = size.indexOf('x');
+        return new int[] {Integer.parseInt(size.substring(0, i)), Integer.parseInt(size.substring(i + 1))};
+    }
+
+    /**
+     * 生成一帧YUV图片：Y分量为平滑渐变加噪声，UV分量为随机色度，接近摄像头帧的数据分布
+     */
+    public static UniYUVImage yuvFrame(UniYUVImage.YUVType type, int width, int height, long seed) {
+        UniYUVImage image = new UniYUVImage(type, width, height);
+        byte[] data = image.getImageData();
+        Random random = new Random(seed);
+        int wh = width * height;
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                data[i] = (byte) ((x + y + random.nextInt(16)) & 0xFF);
+            }
+        }
+        for (int i = wh; i < data.length; i++) {
+            data[i] = (byte) (96 + random.nextInt(64));
+        }
+        image.setInsideGeometryGraph(faceGraph(width, height, 4, seed));
+        return image;
+    }
+    /**
+     * 生成一张RGB图片
+     */
+    public static UniRGBImage rgbFrame(int width, int height, long seed) {
+        return UniImageUtil.yuv2rgb(yuvFrame(UniYUVImage.NV21, width, height, seed));
+    }
+    /**
+     * 生成与分析结果结构一致的几何图形：每张人脸一个矩形，内含五官轮廓点
+     */
+    public static UniGeometryGraph faceGraph(int width, int height, int faces, long seed) {
+        Random random = new Random(seed);
+        UniGeometryGraph root = new UniGeometryGraph(UniGeometryGraph.Root);
+        for (int f = 0; f < faces; f++) {
+            int w = width / 8 + random.nextInt(width / 8);
+            int left = random.nextInt(width - w);
+            int top = random.nextInt(Math.max(1, height - w));
+            UniGeometryGraph face = root.createInsideRect(left, top, w, w);
+            face.setName(UniGeometryGraph.Face);
+            UniGeometryGraph polygon = face.createInsideNamedContainer(UniGeometryGraph.FacePolygon);
+            for (int p = 0; p < 68; p++) {
+                polygon.createInsidePoint(left + random.nextInt(w), top + random.nextInt(w));
+            }
+            polygon.createInsideNamedContainer(UniGeometryGraph.FacePolygonLeftEyePoint).createInsidePoint(left + w / 3, top + w / 3);
+            polygon.createInsideNamedContainer(UniGeometryGraph.FacePolygonRightEyePoint).createInsidePoint(left + w * 2 / 3, top + w / 3);
+            polygon.createInsideNamedContainer(UniGeometryGraph.FacePolygonMouthPoint).createInsidePoint(left + w / 2, top + w * 3 / 4);
+        }
+        return root;
+    }
+
+    /**
+     * 生成单位长度的随机特征向量
+     */
+    public static float[] embedding(int dim, Random random) {
+        float[] v = new float[dim];
+        double s = 0;
+        for (int d = 0; d < dim; d++) {
+            v[d] = (float) random.nextGaussian();
+            s += v[d] * v[d];
+        }
+        float inv = (float) (1 / Math.sqrt(s));
+        for (int d = 0; d < dim; d++) {
+            v[d] *= inv;
+        }
+        return v;
+    }
+    /**
+     * 在指定向量附近加噪声，模拟同一个人的另一张照片
+     */
+    public static float[] noisy(float[] vector, float noise, Random random) {
+        float[] v = vector.clone();
+        for (int d = 0; d < v.length; d++) {
+            v[d] += noise * (float) random.nextGaussian();
+        }
+        return v;
+    }
+    /**
+     * 以与特征提取结果相同的字节格式构造人脸特征
+     */
+    public static UniFaceFeature feature(Object keyId, float[] vector) {
+        UniFaceFeature feature = new UniFaceFeature();
+        feature.setKeyId(keyId);
+        byte[] featureCode = new byte[vector.length * 4];
+        UniImageUtil.floatsToBytes(vector, featureCode);
+        feature.setFeatureCode(featureCode);
+        return feature;
+    }
+}
@@ -0,0 +1,200 @@
+package uniface.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import uniface.UniFaceAnalysisItem;
+import uniface.UniFaceEngine;
+import uniface.UniFaceEngineFactory;
+import uniface.UniFaceFeature;
+import uniface.UniFaceSearchResult;
+import uniface.UniFaceSearcher;
+import uniimage.UniGeometryGraph;
+import uniimage.UniImage;
+import uniimage.UniPolygon;
+import uniimage.util.UniImageUtil;
+
+/**
+ * 只实现特征比对与搜索的人脸引擎，用于在JVM上驱动UniFaceParallelSearcher<br>
+ * 搜索方式与tflite引擎一致：逐个调用UniImageUtil.cosDistance，找到匹配通过的特征或被取消时停止。
+ * analyse只从帧图的几何图层中解析人脸矩形，不做图像分析，用于驱动回放的人脸识别流程。
+ */
+public class UniSyntheticFaceEngine implements UniFaceEngine {
+    /**
+     * 创建UniSyntheticFaceEngine的工厂
+     */
+    public static class Factory implements UniFaceEngineFactory {
+        private final float passSimilar;
+        private Properties properties;
+        private UniFaceAnalysisItem[] items;
+        public Factory(float passSimilar) {
+            this.passSimilar = passSimilar;
+        }
+        @Override
+        public Properties getPropertiesForAutoOpen() {
+            return this.properties;
+        }
+        @Override
+        public UniFaceEngineFactory setPropertiesForAutoOpen(Properties properties) {
+            this.properties = properties;
+            return this;
+        }
+        @Override
+        public UniFaceAnalysisItem[] getAnalysisItemsForAutoOpen() {
+            return this.items;
+        }
+        @Override
+        public UniFaceEngineFactory setAnalysisItemsForAutoOpen(UniFaceAnalysisItem[] items) {
+            this.items = items;
+            return this;
+        }
+        @Override
+        public UniFaceEngine createEngine(boolean autoOpen) throws Exception {
+            UniFaceEngine engine = new UniSyntheticFaceEngine(this.passSimilar);
+            if (autoOpen) {
+                engine.open(this.properties);
+            }
+            return engine;
+        }
+        @Override
+        public UniFaceEngineFactory destoryEngine(UniFaceEngine engine) {
+            engine.close();
+            return this;
+        }
+    }
+    /**
+     * 每比对多少个特征检查一次取消标志
+     */
+    private static final int CANCEL_CHECK_INTERVAL = 256;
+
+    private final float passSimilar;
+    private final List<float[]> vectors = new ArrayList<float[]>();
+    private final List<UniFaceFeature> keys = new ArrayList<UniFaceFeature>();
+    private final Map<Object, Integer> index = new HashMap<Object, Integer>();
+    private UniFaceAnalysisItem[] items;
+
+    public UniSyntheticFaceEngine(float passSimilar) {
+        this.passSimilar = passSimilar;
+    }
+    private static float[] vectorOf(UniFaceFeature feature) {
+        float[] vector = new float[feature.getFeatureCode().length / 4];
+        UniImageUtil.floatsFromBytes(feature.getFeatureCode(), vector);
+        return vector;
+    }
+
+    @Override
+    public UniFaceEngine open(Properties properties) {
+        return this;
+    }
+    @Override
+    public UniFaceEngine close() {
+        this.vectors.clear();
+        this.keys.clear();
+        this.index.clear();
+        return this;
+    }
+    @Override
+    public UniFaceAnalysisItem[] getAnalysisItems() {
+        return this.items;
+    }
+    @Override
+    public UniFaceAnalysisItem[] setAnalysisItems(UniFaceAnalysisItem[] items) {
+        UniFaceAnalysisItem[] old = this.items;
+        this.items = items;
+        return old;
+    }
+    @Override
+    public UniFaceFeature[] analyse(UniImage image) {
+        UniGeometryGraph graph = image.getInsideGeometryGraph();
+        List<UniGeometryGraph> faces = graph == null ? null : graph.findInsideGeometryGraphs(UniGeometryGraph.Face);
+        if (faces == null) {
+            return new UniFaceFeature[0];
+        }
+        UniFaceFeature[] features = new UniFaceFeature[faces.size()];
+        for (int i = 0; i < features.length; i++) {
+            features[i] = new UniFaceFeature();
+            features[i].setPolygon(new UniPolygon(faces.get(i).asRect()));
+        }
+        return features;
+    }
+    @Override
+    public Float compare(UniFaceFeature feature1, UniFaceFeature feature2) {
+        return UniImageUtil.cosDistance(vectorOf(feature1), vectorOf(feature2));
+    }
+
+    @Override
+    public UniFaceSearchResult search(UniFaceFeature feature, UniFaceSearchResult searchResult) {
+        UniFaceSearchResult result = searchResult == null ? new UniFaceSearchResult() : searchResult;
+        float[] query = vectorOf(feature);
+        int best = -1;
+        float bestSimilar = -Float.MAX_VALUE;
+        int searchCount = 0;
+        for (int i = 0; i < this.vectors.size(); i++) {
+            if (i % CANCEL_CHECK_INTERVAL == 0 && result.isCancelled()) {
+                break;
+            }
+            float similar = UniImageUtil.cosDistance(query, this.vectors.get(i));
+            searchCount++;
+            if (similar > bestSimilar) {
+                bestSimilar = similar;
+                best = i;
+                if (similar >= this.passSimilar) {
+                    break;
+                }
+            }
+        }
+        result.setSearchCount(searchCount);
+        if (best >= 0) {
+            result.setFeature(this.keys.get(best));
+            result.setSimilar(bestSimilar);
+            result.setPass(bestSimilar >= this.passSimilar);
+        }
+        return result.completed();
+    }
+    @Override
+    public UniFaceSearcher registerFaceFeature(UniFaceFeature feature) throws Exception {
+        if (this.index.containsKey(feature.getKeyId())) {
+            throw new Exception("Duplicate keyId: " + feature.getKeyId());
+        }
+        UniFaceFeature key = new UniFaceFeature();
+        key.setKeyId(feature.getKeyId());
+        this.index.put(feature.getKeyId(), this.vectors.size());
+        this.vectors.add(vectorOf(feature));
+        this.keys.add(key);
+        return this;
+    }
+    @Override
+    public UniFaceSearcher updateFaceFeature(UniFaceFeature feature) throws Exception {
+        Integer i = this.index.get(feature.getKeyId());
+        if (i == null) {
+            throw new Exception("Not found keyId: " + feature.getKeyId());
+        }
+        this.vectors.set(i, vectorOf(feature));
+        return this;
+    }
+    @Override
+    public UniFaceFeature removeFaceFeature(Object keyId) {
+        Integer i = this.index.remove(keyId);
+        if (i == null) {
+            return null;
+        }
+        // 用最后一个特征填补空位
+        int last = this.vectors.size() - 1;
+        UniFaceFeature removed = this.keys.get(i);
+        if (i != last) {
+            this.vectors.set(i, this.vectors.get(last));
+            this.keys.set(i, this.keys.get(last));
+            this.index.put(this.keys.get(i).getKeyId(), i);
+        }
+        this.vectors.remove(last);
+        this.keys.remove(last);
+        return removed;
+    }
+    @Override
+    public int getFaceFeatureCount() {
+        return this.vectors.size();
+    }
+}
@@ -0,0 +1,85 @@
+package uniface.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import uniface.android.image.UniFusedImageUtil;
+import uniface.android.image.UniParallelImageUtil;
+import uniface.android.image.UniPlaneImageUtil;
+import uniface.android.image.UniPlaneYUVImage;
+import uniimage.UniRGBImage;
+import uniimage.UniSize;
+import uniimage.UniYUVImage;
+import uniimage.util.UniImageUtil;
+
+/**
+ * YUV帧图的旋转与RGB转换，覆盖每种YUV类型和每个整90度角<br>
+ * rotateThenYuv2rgb是识别线程原来的两步处理，fusedYuv2rgb是app中单遍完成的融合实现，两者结果一致；
+ * parallel开头的是分行并行的实现，640x480及以上的帧图都达到默认并行阈值；
+ * planeYuv2rgb通过ByteBuffer分量平面读取同一帧数据，衡量不拷贝到堆上时按缓冲区绝对位置读取的开销。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UniYUVImageBenchmark {
+    @Param({"YUV_420_888", "NV21", "NV12", "NV21_TV", "NV12_TV"})
+    public String yuvType;
+    @Param({"0", "90", "180", "270"})
+    public int degree;
+    @Param({"640x480", "1280x720"})
+    public String frameSize;
+
+    private UniYUVImage frame;
+    private UniSize adaptiveSize;
+    private UniRGBImage fusedImage;
+    private UniRGBImage parallelImage;
+    private UniYUVImage parallelRotated;
+    private UniPlaneYUVImage planes;
+
+    @Setup
+    public void setup() {
+        int[] size = UniSyntheticData.size(this.frameSize);
+        this.frame = UniSyntheticData.yuvFrame(UniSyntheticData.yuvType(this.yuvType), size[0], size[1], 1);
+        this.adaptiveSize = new UniSize(0, 0);
+        this.fusedImage = new UniRGBImage(1, 1);
+        this.parallelImage = new UniRGBImage(1, 1);
+        this.planes = UniPlaneYUVImage.wrap(this.frame);
+    }
+
+    @Benchmark
+    public UniRGBImage yuv2rgb() {
+        return UniImageUtil.yuv2rgb(this.frame);
+    }
+    @Benchmark
+    public UniYUVImage rotateImage() {
+        return UniImageUtil.rotateImage(this.frame, this.degree, (byte) 0, this.adaptiveSize);
+    }
+    @Benchmark
+    public UniRGBImage rotateThenYuv2rgb() {
+        return UniImageUtil.yuv2rgb(UniImageUtil.rotateImage(this.frame, this.degree, (byte) 0, this.adaptiveSize));
+    }
+    @Benchmark
+    public UniRGBImage fusedYuv2rgb() {
+        return UniFusedImageUtil.yuv2rgb(this.frame, this.degree, null, this.fusedImage);
+    }
+    @Benchmark
+    public UniRGBImage parallelYuv2rgb() {
+        return UniParallelImageUtil.yuv2rgb(this.frame, this.degree, null, this.parallelImage);
+    }
+    @Benchmark
+    public UniYUVImage parallelRotateImage() {
+        return this.parallelRotated = UniParallelImageUtil.rotateImage(this.frame, this.degree, this.parallelRotated);
+    }
+    @Benchmark
+    public UniRGBImage planeYuv2rgb() {
+        return UniPlaneImageUtil.yuv2rgb(this.planes, this.degree, null, this.parallelImage);
+    }
+}